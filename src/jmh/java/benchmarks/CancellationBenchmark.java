@@ -0,0 +1,216 @@
+package benchmarks;
+
+import org.codehaus.janino.ByteArrayClassLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measure what the cancellation checks cost submitted code, and what instrumenting it costs.
+ * <p>
+ * The workload mixes tight loops and small recursive calls, the two places checks are added. The instrumented workload
+ * runs with an execution installed on the benchmark thread, the way submissions run, so each check reads the thread
+ * local and the cancelled flag, and with a block budget also counts the block. JMH refuses benchmarks in the default
+ * package, so we reach the server's classes reflectively.
+ */
+@State(Scope.Thread)
+public class CancellationBenchmark {
+    /**
+     * Submission with nested loops and recursion.
+     */
+    private static final String SOURCE = String.join("\n",
+            "public class Work {",
+            "    static int fib(int n) {",
+            "        if (n < 2) {",
+            "            return n;",
+            "        }",
+            "        return fib(n - 1) + fib(n - 2);",
+            "    }",
+            "    public static long work(int size) {",
+            "        long total = 0;",
+            "        for (int i = 0; i < size; i++) {",
+            "            for (int j = 0; j < size; j++) {",
+            "                total += i ^ j;",
+            "            }",
+            "        }",
+            "        return total + fib(size / 4);",
+            "    }",
+            "}",
+            "");
+
+    /**
+     * Size of the workload.
+     */
+    private static final int SIZE = 100;
+
+    /**
+     * An execution installed on the benchmark thread for as long as the benchmark runs.
+     */
+    public abstract static class InExecution {
+        /**
+         * CancellationCheck's thread local holding the current execution.
+         */
+        private ThreadLocal<Object> current;
+
+        /**
+         * Get the block budget of the execution.
+         *
+         * @return the number of blocks the execution may run, or 0 for no limit
+         */
+        protected abstract long budget();
+
+        /**
+         * Install a new execution on the benchmark thread.
+         *
+         * @throws Exception if the execution cannot be created
+         */
+        @Setup
+        @SuppressWarnings("unchecked")
+        public void enter() throws Exception {
+            Field field = Class.forName("CancellationCheck").getDeclaredField("CURRENT");
+            field.setAccessible(true);
+            current = (ThreadLocal<Object>) field.get(null);
+            Constructor<?> constructor = Class.forName("CancellationCheck$Execution")
+                    .getDeclaredConstructor(long.class);
+            constructor.setAccessible(true);
+            current.set(constructor.newInstance(budget()));
+        }
+
+        /**
+         * Remove the execution from the benchmark thread.
+         */
+        @TearDown
+        public void exit() {
+            current.remove();
+        }
+    }
+
+    /**
+     * An execution without a block budget.
+     */
+    @State(Scope.Thread)
+    public static class Unlimited extends InExecution {
+        @Override
+        protected long budget() {
+            return 0;
+        }
+    }
+
+    /**
+     * An execution with a block budget the workload never reaches, so every check also counts a block.
+     */
+    @State(Scope.Thread)
+    public static class Budgeted extends InExecution {
+        @Override
+        protected long budget() {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The workload as compiled.
+     */
+    private MethodHandle plain;
+
+    /**
+     * The workload with cancellation checks.
+     */
+    private MethodHandle instrumented;
+
+    /**
+     * CancellationInstrumenter.instrument.
+     */
+    private Method instrument;
+
+    /**
+     * The compiled classes.
+     */
+    private Map<String, byte[]> classes;
+
+    /**
+     * Compile the workload and load it with and without checks.
+     *
+     * @throws Exception if the workload cannot be compiled or loaded
+     */
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        Map<String, String> sources = new HashMap<>();
+        sources.put("Work.java", SOURCE);
+        classes = (Map<String, byte[]>) Class.forName("JDKCompiler").getMethod("compileToBytes", Map.class)
+                .invoke(null, sources);
+        instrument = Class.forName("CancellationInstrumenter").getMethod("instrument", Map.class);
+        plain = load(classes);
+        instrumented = load((Map<String, byte[]>) instrument.invoke(null, classes));
+    }
+
+    /**
+     * Load the workload into a new class loader.
+     *
+     * @param workClasses the classes to load
+     * @return a handle to the workload
+     * @throws Exception if the workload cannot be loaded
+     */
+    private static MethodHandle load(final Map<String, byte[]> workClasses) throws Exception {
+        ClassLoader loader = new ByteArrayClassLoader(workClasses, CancellationBenchmark.class.getClassLoader());
+        return MethodHandles.publicLookup().findStatic(loader.loadClass("Work"), "work",
+                MethodType.methodType(long.class, int.class));
+    }
+
+    /**
+     * The workload without checks.
+     *
+     * @return the workload's result
+     * @throws Throwable if the workload fails
+     */
+    @Benchmark
+    public long plain() throws Throwable {
+        return (long) plain.invokeExact(SIZE);
+    }
+
+    /**
+     * The workload with checks, in an execution without a block budget.
+     *
+     * @param execution the execution installed on this thread
+     * @return the workload's result
+     * @throws Throwable if the workload fails
+     */
+    @Benchmark
+    public long instrumented(final Unlimited execution) throws Throwable {
+        return (long) instrumented.invokeExact(SIZE);
+    }
+
+    /**
+     * The workload with checks, in an execution with a block budget.
+     *
+     * @param execution the execution installed on this thread
+     * @return the workload's result
+     * @throws Throwable if the workload fails
+     */
+    @Benchmark
+    public long budgeted(final Budgeted execution) throws Throwable {
+        return (long) instrumented.invokeExact(SIZE);
+    }
+
+    /**
+     * Instrumenting the workload's classes, which happens every time a submission is loaded.
+     *
+     * @return the instrumented classes
+     * @throws Exception if instrumenting fails
+     */
+    @Benchmark
+    public Object instrument() throws Exception {
+        return instrument.invoke(null, classes);
+    }
+}
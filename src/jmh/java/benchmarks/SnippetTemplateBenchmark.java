@@ -0,0 +1,143 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compare snippet templating against the original string-building implementation.
+ * <p>
+ * Run with the gc profiler (the default in build.gradle) to see allocation per operation. JMH refuses benchmarks in
+ * the default package, so we reach Snippet through a method handle.
+ */
+@State(Scope.Thread)
+public class SnippetTemplateBenchmark {
+    /**
+     * Typical snippet submission.
+     */
+    private static final String SOURCE = String.join("\n",
+            "import java.util.ArrayList;",
+            "",
+            "static int add(int first, int second) {",
+            "    return first + second;   ",
+            "}",
+            "int total = 0;",
+            "for (int i = 0; i < 10; i++) {",
+            "    total = add(total, i);\t",
+            "}",
+            "System.out.println(total);",
+            "");
+
+    /**
+     * Indentation level used by the original templating.
+     */
+    private static final int INDENT_LEVEL = 4;
+
+    /**
+     * Fake filename used by the original templating.
+     */
+    private static final String FILENAME = "Snippet.java";
+
+    /**
+     * Snippet.sources bound to a snippet containing SOURCE.
+     */
+    private MethodHandle sources;
+
+    /**
+     * Set up the snippet.
+     *
+     * @throws Exception if the snippet cannot be created
+     */
+    @Setup
+    public void setup() throws Exception {
+        Class.forName("Source").getMethod("initialize", Class.forName("org.apache.commons.cli.CommandLine"))
+                .invoke(null, (Object) null);
+        Class<?> snippetClass = Class.forName("Snippet");
+        Constructor<?> constructor = snippetClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Object snippet = constructor.newInstance();
+        snippetClass.getField("source").set(snippet, SOURCE);
+        Method sourcesMethod = snippetClass.getDeclaredMethod("sources");
+        sourcesMethod.setAccessible(true);
+        sources = MethodHandles.lookup().unreflect(sourcesMethod).bindTo(snippet);
+    }
+
+    /**
+     * Current templating.
+     *
+     * @return the templated sources
+     * @throws Throwable if templating fails
+     */
+    @Benchmark
+    public Object template() throws Throwable {
+        return sources.invoke();
+    }
+
+    /**
+     * Original templating, kept here for comparison.
+     *
+     * @return the templated sources
+     */
+    @Benchmark
+    public Map<String, String> originalTemplate() {
+        Map<String, String> snippetSources = new HashMap<>();
+        Map<Integer, Integer> templateLineMapping = new HashMap<>();
+        int indentLevel = INDENT_LEVEL;
+
+        int templateLine = 0;
+        int sourceLine = 0;
+        StringBuilder templatedSourceBuilder = new StringBuilder();
+
+        templatedSourceBuilder.append("public class Snippet {\n");
+        templateLineMapping.put(templateLine, null);
+        templateLine++;
+        templatedSourceBuilder.append(padLeft(indentLevel)).append("public static void snippet() {\n");
+        templateLineMapping.put(templateLine, null);
+        templateLine++;
+
+        for (String line : SOURCE.trim().split("\n")) {
+            if (line.startsWith("import ")) {
+                sourceLine++;
+                continue;
+            }
+            if (line.startsWith("static ")) {
+                line = line.replace("static ", "");
+            }
+            templatedSourceBuilder.append(padLeft(indentLevel * 2)).append(line.replaceAll("\\s+$", "")).append("\n");
+            templateLineMapping.put(templateLine, sourceLine);
+            templateLine++;
+            sourceLine++;
+        }
+
+        templatedSourceBuilder.append(padLeft(indentLevel)).append("}\n");
+        templateLineMapping.put(templateLine, null);
+        templateLine++;
+        templatedSourceBuilder.append("}\n\n");
+        templateLineMapping.put(templateLine, null);
+
+        snippetSources.put(FILENAME, templatedSourceBuilder.toString());
+        return snippetSources;
+    }
+
+    /**
+     * Original padding helper.
+     *
+     * @param count amount of space to insert
+     * @return a empty String of length count
+     */
+    private static String padLeft(final int count) {
+        StringBuilder padding = new StringBuilder();
+        for (int unused = 0; unused < count; unused++) {
+            padding.append(" ");
+        }
+        return padding.toString();
+    }
+}
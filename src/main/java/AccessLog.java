@@ -0,0 +1,400 @@
+import com.eclipsesource.json.JsonObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured access log with one JSON line per request.
+ * <p>
+ * Request threads never touch the file. They build their line and append it to a fixed-size ring buffer without
+ * locking, and a background thread drains the buffer to the file, rotating it once it grows too large. If the
+ * buffer is full the line is dropped and counted rather than making the request wait.
+ */
+public final class AccessLog {
+    /**
+     * Header that carries a request's ID. Requests without one are given one, and it is passed on when they are
+     * forwarded so that both nodes log the same ID.
+     */
+    public static final String ID_HEADER = "X-Request-Id";
+
+    /**
+     * Default number of lines the buffer holds.
+     */
+    static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Default size at which the log file is rotated, in bytes.
+     */
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Number of rotated files kept, named after the log file with .1 for the newest through .5 for the oldest.
+     */
+    static final int ROTATED_FILES = 5;
+
+    /**
+     * How often the background thread checks for new lines when the buffer is empty.
+     */
+    private static final long DRAIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Milliseconds in a second.
+     */
+    private static final double MILLISECONDS_PER_SECOND = 1000.0;
+
+    /**
+     * Nanoseconds in a millisecond.
+     */
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    /**
+     * Lines waiting to be written. A slot is null until the line claimed for it has been stored.
+     */
+    private final AtomicReferenceArray<String> slots;
+
+    /**
+     * Capacity minus one, to map positions to slots.
+     */
+    private final int mask;
+
+    /**
+     * Position of the next line to claim. Only ever increases.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Position of the next line to write. Only the draining thread advances it.
+     */
+    private volatile long head = 0;
+
+    /**
+     * The log file.
+     */
+    private final Path path;
+
+    /**
+     * Size at which the log file is rotated, in bytes.
+     */
+    private final long maxBytes;
+
+    /**
+     * Writer for the log file, or null if it isn't open.
+     */
+    private Writer writer;
+
+    /**
+     * Characters written to the current log file, which is about its size in bytes.
+     */
+    private long written;
+
+    /**
+     * Number of lines written.
+     */
+    private final AtomicLong linesWritten = new AtomicLong();
+
+    /**
+     * Number of lines dropped because the buffer was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Number of lines lost because the file could not be written.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Number of files rotated.
+     */
+    private final AtomicLong rotated = new AtomicLong();
+
+    /**
+     * Prefix of the IDs given to requests that don't bring their own, unique to this process.
+     */
+    private final String idPrefix = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX) + "-";
+
+    /**
+     * Number of IDs given out.
+     */
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Thread that drains the buffer, or null if it hasn't been started.
+     */
+    private Thread drainer;
+
+    /**
+     * Whether the log has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new access log.
+     *
+     * @param setPath     the log file, appended to if it exists
+     * @param setMaxBytes size at which the log file is rotated, in bytes
+     * @param capacity    number of lines the buffer holds, rounded up to a power of two
+     */
+    AccessLog(final Path setPath, final long setMaxBytes, final int capacity) {
+        path = setPath;
+        maxBytes = setMaxBytes;
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Start the thread that writes lines to the file.
+     *
+     * @return this log, for chaining
+     */
+    synchronized AccessLog start() {
+        if (drainer == null) {
+            drainer = new Thread(this::drainLoop, "access-log");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+        return this;
+    }
+
+    /**
+     * Get an ID for a request that doesn't bring its own.
+     *
+     * @return an ID unique to this process
+     */
+    String nextId() {
+        return idPrefix + ids.incrementAndGet();
+    }
+
+    /**
+     * Log a request that ran a submission.
+     *
+     * @param id       the request's ID
+     * @param source   the submission, after it has run
+     * @param received when the request arrived, from System.nanoTime
+     * @return true if the line was added, false if the buffer was full
+     */
+    boolean record(final String id, final Source source, final long received) {
+        long outputBytes = 0;
+        if (source.output != null) {
+            outputBytes = source.output.length();
+        }
+        JsonObject line = new JsonObject()
+                .add("time", OffsetDateTime.now().toString())
+                .add("id", id)
+                .add("as", source.getClass().getSimpleName())
+                .add("compiler", source.compiler)
+                .add("priority", PriorityScheduler.resolve(source.priority))
+                .add("sourceLength", source.sourceLength())
+                .add("outputLength", outputBytes)
+                .add("queueMs", source.queueWait() / NANOSECONDS_PER_MILLISECOND)
+                .add("checkstyleMs", source.checkstyleLength * MILLISECONDS_PER_SECOND)
+                .add("compileMs", source.compileLength * MILLISECONDS_PER_SECOND)
+                .add("executionMs", source.executionLength * MILLISECONDS_PER_SECOND)
+                .add("totalMs", (System.nanoTime() - received) / NANOSECONDS_PER_MILLISECOND)
+                .add("checkstyleSucceeded", source.checkstyleSucceeded)
+                .add("compiled", source.compiled)
+                .add("executed", source.executed)
+                .add("crashed", source.crashed)
+                .add("timedOut", source.timedOut)
+                .add("budgetExceeded", source.budgetExceeded);
+        String profile = source.profile();
+        if (profile != null) {
+            line.add("profile", profile);
+        }
+        return offer(line.toString());
+    }
+
+    /**
+     * Log a request that was forwarded to another node, which logs how it ran.
+     *
+     * @param id       the request's ID
+     * @param owner    the node it was forwarded to
+     * @param received when the request arrived, from System.nanoTime
+     * @return true if the line was added, false if the buffer was full
+     */
+    boolean recordForwarded(final String id, final String owner, final long received) {
+        return offer(new JsonObject()
+                .add("time", OffsetDateTime.now().toString())
+                .add("id", id)
+                .add("forwardedTo", owner)
+                .add("totalMs", (System.nanoTime() - received) / NANOSECONDS_PER_MILLISECOND)
+                .toString());
+    }
+
+    /**
+     * Add a line to the buffer without waiting.
+     *
+     * @param line the line, without a line break
+     * @return true if the line was added, false if the buffer was full or the log closed
+     */
+    boolean offer(final String line) {
+        while (!closed) {
+            long position = tail.get();
+            if (position - head >= slots.length()) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (tail.compareAndSet(position, position + 1)) {
+                slots.lazySet((int) (position & mask), line);
+                return true;
+            }
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Write the lines in the buffer to the file. Only called by one thread at a time.
+     *
+     * @return the number of lines written
+     */
+    synchronized int drain() {
+        int count = 0;
+        try {
+            for (long position = head; position < tail.get(); position++) {
+                int slot = (int) (position & mask);
+                String line = slots.get(slot);
+                if (line == null) {
+                    break;
+                }
+                slots.set(slot, null);
+                head = position + 1;
+                write(line);
+                count++;
+            }
+            if (writer != null) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            closeWriter();
+        }
+        linesWritten.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Write one line, rotating the file first if it has grown too large.
+     *
+     * @param line the line
+     * @throws IOException if the file cannot be written
+     */
+    private void write(final String line) throws IOException {
+        if (writer != null && written >= maxBytes) {
+            rotate();
+        }
+        if (writer == null) {
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+            written = Files.size(path);
+        }
+        writer.write(line);
+        writer.write('\n');
+        written += line.length() + 1;
+    }
+
+    /**
+     * Shift the rotated files along, dropping the oldest, and move the current file to the newest slot.
+     *
+     * @throws IOException if the files cannot be moved
+     */
+    private void rotate() throws IOException {
+        closeWriter();
+        Files.deleteIfExists(rotatedPath(ROTATED_FILES));
+        for (int i = ROTATED_FILES - 1; i >= 1; i--) {
+            if (Files.exists(rotatedPath(i))) {
+                Files.move(rotatedPath(i), rotatedPath(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(path, rotatedPath(1), StandardCopyOption.REPLACE_EXISTING);
+        rotated.incrementAndGet();
+    }
+
+    /**
+     * Get the name of a rotated file.
+     *
+     * @param index 1 for the newest rotated file
+     * @return the file's path
+     */
+    Path rotatedPath(final int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+
+    /**
+     * Close the log file, ignoring errors.
+     */
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException ignored) {
+        } finally {
+            writer = null;
+        }
+    }
+
+    /**
+     * Drain the buffer until the log is closed.
+     */
+    private void drainLoop() {
+        while (!closed) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(DRAIN_INTERVAL);
+            }
+        }
+    }
+
+    /**
+     * Stop taking lines, write out the ones already taken, and close the file.
+     *
+     * @param timeout how long to wait for the background thread to stop
+     */
+    void close(final Duration timeout) {
+        closed = true;
+        Thread thread;
+        synchronized (this) {
+            thread = drainer;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(timeout.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            drain();
+            closeWriter();
+        }
+    }
+
+    /**
+     * Get the log counters.
+     *
+     * @return a JSON object with how many lines were written, dropped, and waiting
+     */
+    JsonObject stats() {
+        return new JsonObject()
+                .add("path", path.toString())
+                .add("capacity", slots.length())
+                .add("pending", tail.get() - head)
+                .add("written", linesWritten.get())
+                .add("dropped", dropped.get())
+                .add("failed", failed.get())
+                .add("rotated", rotated.get());
+    }
+}
@@ -0,0 +1,212 @@
+import com.eclipsesource.json.JsonObject;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cancel executions that run past their timeout without stopping their threads.
+ * <p>
+ * Submitted classes are rewritten by {@link CancellationInstrumenter} to call {@link #check()} on entry to every
+ * method and before every backward branch. Each execution's thread carries it in an inheritable thread local, so that
+ * any threads the submission starts carry it too, and it is marked as cancelled when the execution times out. From
+ * then on the next check in any of its threads throws ThreadDeath. That unwinds
+ * the submission like any other exception, releasing monitors and running finally blocks, and Source ignores it.
+ * Unlike Thread.stop, it is never thrown in the middle of library code, such as while System.out is locked.
+ * <p>
+ * The same checks count blocks for executions given a budget: each one marks the start of a method or of another
+ * pass through a loop, so the count depends only on what the submission does and not on how busy the server is.
+ * An execution that runs past its budget is cancelled the same way.
+ * <p>
+ * Threads are never stopped, since Thread.stop is unsafe and unsupported since Java 20. A thread that is still running
+ * a grace period after it was cancelled, for example because it is busy in library code or its classes could not be
+ * instrumented, is abandoned instead: it keeps running at the lowest priority as a daemon until it finishes, and is
+ * counted so that {@link Health} can stop sending the node traffic while too many are left.
+ */
+public final class CancellationCheck {
+    /**
+     * One execution, shared by its thread and any threads the submission starts.
+     */
+    static final class Execution {
+        /**
+         * Whether the execution has been cancelled.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Number of blocks the execution may run, or 0 for no limit.
+         */
+        private final long budget;
+
+        /**
+         * Number of blocks run so far, if there is a budget.
+         */
+        private final AtomicLong blocks = new AtomicLong();
+
+        /**
+         * Whether the execution ran past its budget.
+         */
+        private final AtomicBoolean exceeded = new AtomicBoolean();
+
+        /**
+         * Create a new execution.
+         *
+         * @param setBudget number of blocks the execution may run, or 0 for no limit
+         */
+        Execution(final long setBudget) {
+            budget = setBudget;
+        }
+
+        /**
+         * Throw ThreadDeath if the execution has been cancelled, counting a block against its budget first.
+         */
+        private void check() {
+            if (cancelled) {
+                throw new ThreadDeath();
+            }
+            if (budget > 0 && blocks.incrementAndGet() > budget) {
+                if (exceeded.compareAndSet(false, true)) {
+                    EXCEEDED.incrementAndGet();
+                }
+                cancelled = true;
+                throw new ThreadDeath();
+            }
+        }
+
+        /**
+         * Get the number of blocks the execution ran.
+         *
+         * @return the number of blocks, or null if the execution had no budget
+         */
+        Long blocks() {
+            if (budget <= 0) {
+                return null;
+            }
+            return blocks.get();
+        }
+
+        /**
+         * Get whether the execution ran past its budget.
+         *
+         * @return whether the execution was cancelled for running past its budget
+         */
+        boolean exceeded() {
+            return exceeded.get();
+        }
+    }
+
+    /**
+     * How long a cancelled thread has to unwind before it is abandoned, in milliseconds.
+     */
+    private static final long GRACE_PERIOD_MS = 100;
+
+    /**
+     * Execution the current thread belongs to, or null if it isn't running a submission.
+     * <p>
+     * Nothing but the threads refers to an execution, so it is collected with the last of them.
+     */
+    private static final InheritableThreadLocal<Execution> CURRENT = new InheritableThreadLocal<>();
+
+    /**
+     * Number of executions that unwound on their own after being cancelled.
+     */
+    private static final AtomicLong COOPERATIVE = new AtomicLong();
+
+    /**
+     * Number of executions whose threads were abandoned.
+     */
+    private static final AtomicLong ABANDONED = new AtomicLong();
+
+    /**
+     * Abandoned threads that may still be running. Finished ones are removed when counted.
+     */
+    private static final Set<Thread> ABANDONED_THREADS = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of executions that ran past their budget.
+     */
+    private static final AtomicLong EXCEEDED = new AtomicLong();
+
+    /**
+     * Not instantiable.
+     */
+    private CancellationCheck() { }
+
+    /**
+     * Throw ThreadDeath if the current thread belongs to an execution that has been cancelled or used up its budget.
+     * <p>
+     * Called from instrumented submissions, so this must stay public and cheap.
+     */
+    public static void check() {
+        Execution execution = CURRENT.get();
+        if (execution != null) {
+            execution.check();
+        }
+    }
+
+    /**
+     * Create a thread that runs a task as part of an execution.
+     *
+     * @param execution the execution
+     * @param task      the task to run
+     * @return the thread, not yet started, which is a daemon so that an abandoned one can't keep the server running
+     */
+    static Thread newThread(final Execution execution, final Runnable task) {
+        Thread thread = new Thread(() -> {
+            CURRENT.set(execution);
+            task.run();
+        });
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Cancel an execution and wait for its thread to unwind, abandoning it if it doesn't.
+     *
+     * @param execution the execution
+     * @param thread    the thread running the execution
+     */
+    static void cancel(final Execution execution, final Thread thread) {
+        execution.cancelled = true;
+        thread.interrupt();
+        try {
+            thread.join(GRACE_PERIOD_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            ABANDONED.incrementAndGet();
+            thread.setPriority(Thread.MIN_PRIORITY);
+            ABANDONED_THREADS.add(thread);
+        } else {
+            COOPERATIVE.incrementAndGet();
+        }
+    }
+
+    /**
+     * Count the abandoned threads that are still running.
+     *
+     * @return the number of abandoned threads that haven't finished yet
+     */
+    static int abandoned() {
+        ABANDONED_THREADS.removeIf(thread -> !thread.isAlive());
+        return ABANDONED_THREADS.size();
+    }
+
+    /**
+     * Get the cancellation counters.
+     *
+     * @return a JSON object with how executions that were cancelled ended, and how many methods were instrumented
+     */
+    public static JsonObject stats() {
+        return new JsonObject()
+                .add("cooperative", COOPERATIVE.get())
+                .add("abandoned", ABANDONED.get())
+                .add("abandonedRunning", abandoned())
+                .add("budgetExceeded", EXCEEDED.get())
+                .add("instrumentedMethods", CancellationInstrumenter.instrumentedMethods())
+                .add("skippedMethods", CancellationInstrumenter.skippedMethods())
+                .add("skippedClasses", CancellationInstrumenter.skippedClasses());
+    }
+}
@@ -0,0 +1,1159 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrite compiled classes so that they check for cancellation on entry to every method and before every backward
+ * branch, which every loop has.
+ * <p>
+ * Each check is a three byte call to {@link CancellationCheck#check()} that doesn't touch the operand stack, so
+ * max_stack and the types in stack map frames stay the same. Inserting it only moves code: branch offsets, switch
+ * padding, exception ranges, stack map frame offsets, and line number and local variable ranges are relocated to
+ * match. A branch to an instruction with a check in front of it lands on the check.
+ * <p>
+ * Janino and javac output is all we need to handle. A method that can't be rewritten safely, because a branch would
+ * no longer fit in 16 bits or it has a code attribute we don't know how to relocate, is left as it is. So is a class
+ * that can't be parsed. Such code still times out, but a thread stuck in it is abandoned rather than unwound.
+ */
+public final class CancellationInstrumenter {
+    /**
+     * Name of the class holding the check.
+     */
+    private static final String CHECK_CLASS = "CancellationCheck";
+
+    /**
+     * Name of the check method.
+     */
+    private static final String CHECK_METHOD = "check";
+
+    /**
+     * Descriptor of the check method.
+     */
+    private static final String CHECK_DESCRIPTOR = "()V";
+
+    /**
+     * Constant pool entries added for the check.
+     */
+    private static final int ADDED_CONSTANTS = 6;
+
+    /**
+     * Largest constant pool count and code length.
+     */
+    private static final int MAX_U2 = 0xffff;
+
+    /**
+     * Class file magic number.
+     */
+    private static final int MAGIC = 0xcafebabe;
+
+    /**
+     * Constant pool tag for UTF-8 strings.
+     */
+    private static final int CONSTANT_UTF8 = 1;
+
+    /**
+     * Constant pool tag for integers.
+     */
+    private static final int CONSTANT_INTEGER = 3;
+
+    /**
+     * Constant pool tag for floats.
+     */
+    private static final int CONSTANT_FLOAT = 4;
+
+    /**
+     * Constant pool tag for longs.
+     */
+    private static final int CONSTANT_LONG = 5;
+
+    /**
+     * Constant pool tag for doubles.
+     */
+    private static final int CONSTANT_DOUBLE = 6;
+
+    /**
+     * Constant pool tag for classes.
+     */
+    private static final int CONSTANT_CLASS = 7;
+
+    /**
+     * Constant pool tag for strings.
+     */
+    private static final int CONSTANT_STRING = 8;
+
+    /**
+     * Constant pool tag for field references.
+     */
+    private static final int CONSTANT_FIELDREF = 9;
+
+    /**
+     * Constant pool tag for method references.
+     */
+    private static final int CONSTANT_METHODREF = 10;
+
+    /**
+     * Constant pool tag for interface method references.
+     */
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+
+    /**
+     * Constant pool tag for names and types.
+     */
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    /**
+     * Constant pool tag for method handles.
+     */
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+
+    /**
+     * Constant pool tag for method types.
+     */
+    private static final int CONSTANT_METHOD_TYPE = 16;
+
+    /**
+     * Constant pool tag for dynamic constants.
+     */
+    private static final int CONSTANT_DYNAMIC = 17;
+
+    /**
+     * Constant pool tag for invokedynamic call sites.
+     */
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+    /**
+     * Constant pool tag for modules.
+     */
+    private static final int CONSTANT_MODULE = 19;
+
+    /**
+     * Constant pool tag for packages.
+     */
+    private static final int CONSTANT_PACKAGE = 20;
+
+    /**
+     * The invokestatic opcode.
+     */
+    private static final int INVOKESTATIC = 0xb8;
+
+    /**
+     * Length of the instruction that calls the check.
+     */
+    private static final int CHECK_LENGTH = 3;
+
+    /**
+     * First conditional branch opcode, ifeq.
+     */
+    private static final int IFEQ = 0x99;
+
+    /**
+     * Last 16-bit branch opcode in the main range, jsr.
+     */
+    private static final int JSR = 0xa8;
+
+    /**
+     * The ret opcode.
+     */
+    private static final int RET = 0xa9;
+
+    /**
+     * The tableswitch opcode.
+     */
+    private static final int TABLESWITCH = 0xaa;
+
+    /**
+     * The lookupswitch opcode.
+     */
+    private static final int LOOKUPSWITCH = 0xab;
+
+    /**
+     * The invokeinterface opcode.
+     */
+    private static final int INVOKEINTERFACE = 0xb9;
+
+    /**
+     * The invokedynamic opcode.
+     */
+    private static final int INVOKEDYNAMIC = 0xba;
+
+    /**
+     * The wide opcode.
+     */
+    private static final int WIDE = 0xc4;
+
+    /**
+     * The iinc opcode.
+     */
+    private static final int IINC = 0x84;
+
+    /**
+     * The multianewarray opcode.
+     */
+    private static final int MULTIANEWARRAY = 0xc5;
+
+    /**
+     * The ifnull opcode.
+     */
+    private static final int IFNULL = 0xc6;
+
+    /**
+     * The ifnonnull opcode.
+     */
+    private static final int IFNONNULL = 0xc7;
+
+    /**
+     * The goto_w opcode.
+     */
+    private static final int GOTO_W = 0xc8;
+
+    /**
+     * The jsr_w opcode.
+     */
+    private static final int JSR_W = 0xc9;
+
+    /**
+     * Largest valid opcode.
+     */
+    private static final int MAX_OPCODE = JSR_W;
+
+    /**
+     * Lengths of instructions by opcode, or 0 for those whose length varies.
+     */
+    private static final int[] INSTRUCTION_LENGTHS = instructionLengths();
+
+    /**
+     * Bytes the operands of switch instructions are aligned to.
+     */
+    private static final int SWITCH_ALIGNMENT = 4;
+
+    /**
+     * Words of a tableswitch's operands before its jumps: the default jump and the low and high cases.
+     */
+    private static final int TABLESWITCH_WORDS = 3;
+
+    /**
+     * Length of the access flags and the two indexes that start a class, field, or method.
+     */
+    private static final int HEADER_LENGTH = Short.BYTES * 3;
+
+    /**
+     * Largest stack map frame type of a same_frame.
+     */
+    private static final int SAME_FRAME_MAX = 63;
+
+    /**
+     * First stack map frame type of a same_locals_1_stack_item_frame.
+     */
+    private static final int SAME_LOCALS_1_STACK_ITEM = 64;
+
+    /**
+     * Largest stack map frame type of a same_locals_1_stack_item_frame.
+     */
+    private static final int SAME_LOCALS_1_STACK_ITEM_MAX = 127;
+
+    /**
+     * Stack map frame type of a same_locals_1_stack_item_frame_extended.
+     */
+    private static final int SAME_LOCALS_1_STACK_ITEM_EXTENDED = 247;
+
+    /**
+     * Stack map frame type of a same_frame_extended, between those of chop and append frames.
+     */
+    private static final int SAME_FRAME_EXTENDED = 251;
+
+    /**
+     * Stack map frame type of a full_frame.
+     */
+    private static final int FULL_FRAME = 255;
+
+    /**
+     * Verification type tag of an object, which is followed by a constant pool index.
+     */
+    private static final int ITEM_OBJECT = 7;
+
+    /**
+     * Verification type tag of an uninitialized object, which is followed by the offset of its new instruction.
+     */
+    private static final int ITEM_UNINITIALIZED = 8;
+
+    /**
+     * Mask for one byte.
+     */
+    private static final int BYTE_MASK = 0xff;
+
+    /**
+     * Number of methods instrumented.
+     */
+    private static final AtomicLong INSTRUMENTED_METHODS = new AtomicLong();
+
+    /**
+     * Number of methods left as they were.
+     */
+    private static final AtomicLong SKIPPED_METHODS = new AtomicLong();
+
+    /**
+     * Number of classes left as they were because they could not be parsed.
+     */
+    private static final AtomicLong SKIPPED_CLASSES = new AtomicLong();
+
+    /**
+     * Class file being read.
+     */
+    private final ByteBuffer in;
+
+    /**
+     * Class file being written.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * Contents of the class's UTF-8 constants by index, with null for other constants.
+     */
+    private String[] utf8;
+
+    /**
+     * Constant pool index of the reference to the check method.
+     */
+    private int checkMethod;
+
+    /**
+     * Create an instrumenter for one class.
+     *
+     * @param classFile the class file to read
+     * @param output    where to write the instrumented class file
+     */
+    private CancellationInstrumenter(final byte[] classFile, final ByteArrayOutputStream output) {
+        in = ByteBuffer.wrap(classFile);
+        out = new DataOutputStream(output);
+    }
+
+    /**
+     * Build the table of instruction lengths.
+     *
+     * @return lengths by opcode, 0 for variable-length instructions, and -1 for invalid opcodes
+     */
+    @SuppressWarnings("checkstyle:magicnumber")
+    private static int[] instructionLengths() {
+        int[] lengths = new int[MAX_OPCODE + 1];
+        Arrays.fill(lengths, 1);
+        lengths[0x10] = 2;
+        lengths[0x11] = 3;
+        lengths[0x12] = 2;
+        lengths[0x13] = 3;
+        lengths[0x14] = 3;
+        for (int opcode = 0x15; opcode <= 0x19; opcode++) {
+            lengths[opcode] = 2;
+        }
+        for (int opcode = 0x36; opcode <= 0x3a; opcode++) {
+            lengths[opcode] = 2;
+        }
+        lengths[IINC] = 3;
+        for (int opcode = IFEQ; opcode <= JSR; opcode++) {
+            lengths[opcode] = 3;
+        }
+        lengths[RET] = 2;
+        lengths[TABLESWITCH] = 0;
+        lengths[LOOKUPSWITCH] = 0;
+        for (int opcode = 0xb2; opcode <= INVOKESTATIC; opcode++) {
+            lengths[opcode] = 3;
+        }
+        lengths[INVOKEINTERFACE] = 5;
+        lengths[INVOKEDYNAMIC] = 5;
+        lengths[0xbb] = 3;
+        lengths[0xbc] = 2;
+        lengths[0xbd] = 3;
+        lengths[0xc0] = 3;
+        lengths[0xc1] = 3;
+        lengths[WIDE] = 0;
+        lengths[MULTIANEWARRAY] = 4;
+        lengths[IFNULL] = 3;
+        lengths[IFNONNULL] = 3;
+        lengths[GOTO_W] = 5;
+        lengths[JSR_W] = 5;
+        return lengths;
+    }
+
+    /**
+     * Instrument a set of compiled classes.
+     * <p>
+     * Classes that can't be parsed are returned as they are.
+     *
+     * @param classes a map of binary class names to class file bytes
+     * @return a map of binary class names to instrumented class file bytes
+     */
+    public static Map<String, byte[]> instrument(final Map<String, byte[]> classes) {
+        Map<String, byte[]> instrumented = new HashMap<>();
+        for (Map.Entry<String, byte[]> klass : classes.entrySet()) {
+            byte[] bytes;
+            try {
+                bytes = instrument(klass.getValue());
+            } catch (IllegalArgumentException e) {
+                SKIPPED_CLASSES.incrementAndGet();
+                bytes = klass.getValue();
+            }
+            instrumented.put(klass.getKey(), bytes);
+        }
+        return instrumented;
+    }
+
+    /**
+     * Instrument one class.
+     *
+     * @param classFile the class file bytes
+     * @return the instrumented class file bytes
+     * @throws IllegalArgumentException thrown if the class file can't be parsed
+     */
+    static byte[] instrument(final byte[] classFile) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(classFile.length + classFile.length / 2);
+        try {
+            new CancellationInstrumenter(classFile, output).rewriteClass();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("Truncated class file", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Get the number of methods instrumented.
+     *
+     * @return the number of methods instrumented
+     */
+    static long instrumentedMethods() {
+        return INSTRUMENTED_METHODS.get();
+    }
+
+    /**
+     * Get the number of methods left as they were.
+     *
+     * @return the number of methods skipped
+     */
+    static long skippedMethods() {
+        return SKIPPED_METHODS.get();
+    }
+
+    /**
+     * Get the number of classes left as they were.
+     *
+     * @return the number of classes skipped
+     */
+    static long skippedClasses() {
+        return SKIPPED_CLASSES.get();
+    }
+
+    /**
+     * Read and rewrite the whole class file.
+     *
+     * @throws IOException thrown if the output cannot be written
+     */
+    private void rewriteClass() throws IOException {
+        if (in.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(in.getInt());
+        rewriteConstantPool();
+        // Access flags, this class, and super class
+        copy(HEADER_LENGTH);
+        int interfaces = copyU2();
+        copy(interfaces * Short.BYTES);
+        int fields = copyU2();
+        for (int i = 0; i < fields; i++) {
+            copy(HEADER_LENGTH);
+            copyAttributes();
+        }
+        int methods = copyU2();
+        for (int i = 0; i < methods; i++) {
+            copy(HEADER_LENGTH);
+            int attributes = copyU2();
+            for (int j = 0; j < attributes; j++) {
+                int name = copyU2();
+                int length = in.getInt();
+                ByteBuffer attribute = slice(length);
+                byte[] rewritten = null;
+                if ("Code".equals(utf8(name))) {
+                    rewritten = rewriteCode(attribute);
+                    if (rewritten == null) {
+                        SKIPPED_METHODS.incrementAndGet();
+                    } else {
+                        INSTRUMENTED_METHODS.incrementAndGet();
+                    }
+                }
+                if (rewritten == null) {
+                    rewritten = new byte[length];
+                    attribute.rewind();
+                    attribute.get(rewritten);
+                }
+                out.writeInt(rewritten.length);
+                out.write(rewritten);
+            }
+        }
+        // Class attributes hold no code offsets
+        copy(in.remaining());
+    }
+
+    /**
+     * Copy the constant pool, adding a reference to the check method.
+     *
+     * @throws IOException thrown if the output cannot be written
+     */
+    private void rewriteConstantPool() throws IOException {
+        int count = u2(in);
+        if (count + ADDED_CONSTANTS > MAX_U2) {
+            throw new IllegalArgumentException("Constant pool is full");
+        }
+        out.writeShort(count + ADDED_CONSTANTS);
+        utf8 = new String[count];
+        for (int index = 1; index < count; index++) {
+            int tag = in.get() & BYTE_MASK;
+            out.writeByte(tag);
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    int length = copyU2();
+                    byte[] bytes = new byte[length];
+                    in.get(bytes);
+                    out.write(bytes);
+                    // Modified UTF-8 only differs for characters we never look for
+                    utf8[index] = new String(bytes, StandardCharsets.UTF_8);
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    copy(Short.BYTES);
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    copy(Byte.BYTES + Short.BYTES);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    copy(Integer.BYTES);
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    copy(Long.BYTES);
+                    // Eight byte constants take up two entries
+                    index++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        int className = count;
+        out.writeByte(CONSTANT_UTF8);
+        out.writeUTF(CHECK_CLASS);
+        int checkClass = className + 1;
+        out.writeByte(CONSTANT_CLASS);
+        out.writeShort(className);
+        int methodName = checkClass + 1;
+        out.writeByte(CONSTANT_UTF8);
+        out.writeUTF(CHECK_METHOD);
+        int descriptor = methodName + 1;
+        out.writeByte(CONSTANT_UTF8);
+        out.writeUTF(CHECK_DESCRIPTOR);
+        int nameAndType = descriptor + 1;
+        out.writeByte(CONSTANT_NAME_AND_TYPE);
+        out.writeShort(methodName);
+        out.writeShort(descriptor);
+        checkMethod = nameAndType + 1;
+        out.writeByte(CONSTANT_METHODREF);
+        out.writeShort(checkClass);
+        out.writeShort(nameAndType);
+    }
+
+    /**
+     * Rewrite a method's Code attribute.
+     *
+     * @param attribute the attribute's contents
+     * @return the rewritten contents, or null if the method has to be left as it is
+     * @throws IOException thrown if the output cannot be written
+     */
+    private byte[] rewriteCode(final ByteBuffer attribute) throws IOException {
+        int maxStack = u2(attribute);
+        int maxLocals = u2(attribute);
+        int codeLength = attribute.getInt();
+        ByteBuffer code = slice(attribute, codeLength);
+
+        // Find instruction boundaries, and put a check in front of the first instruction and backward branches
+        boolean[] starts = new boolean[codeLength + 1];
+        boolean[] checked = new boolean[codeLength];
+        for (int offset = 0; offset < codeLength; offset += instructionLength(code, offset)) {
+            starts[offset] = true;
+            checked[offset] = offset == 0 || branchesBackward(code, offset);
+        }
+        starts[codeLength] = true;
+
+        // Lay out the new code. Jumps to an instruction land on its check, if it has one.
+        int[] target = new int[codeLength + 1];
+        int[] moved = new int[codeLength + 1];
+        int position = 0;
+        for (int offset = 0; offset < codeLength; offset += instructionLength(code, offset)) {
+            target[offset] = position;
+            if (checked[offset]) {
+                position += CHECK_LENGTH;
+            }
+            moved[offset] = position;
+            position += movedLength(code, offset, position);
+        }
+        target[codeLength] = position;
+        moved[codeLength] = position;
+        if (position > MAX_U2) {
+            return null;
+        }
+        Relocation relocation = new Relocation(starts, target, moved);
+
+        ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+        DataOutputStream result = new DataOutputStream(rewritten);
+        result.writeShort(maxStack);
+        result.writeShort(maxLocals);
+        result.writeInt(position);
+        for (int offset = 0; offset < codeLength; offset += instructionLength(code, offset)) {
+            if (checked[offset]) {
+                result.writeByte(INVOKESTATIC);
+                result.writeShort(checkMethod);
+            }
+            if (!writeInstruction(code, offset, relocation, result)) {
+                return null;
+            }
+        }
+
+        int exceptions = u2(attribute);
+        result.writeShort(exceptions);
+        for (int i = 0; i < exceptions; i++) {
+            result.writeShort(relocation.target(u2(attribute)));
+            result.writeShort(relocation.target(u2(attribute)));
+            result.writeShort(relocation.target(u2(attribute)));
+            result.writeShort(u2(attribute));
+        }
+
+        int attributes = u2(attribute);
+        result.writeShort(attributes);
+        for (int i = 0; i < attributes; i++) {
+            int name = u2(attribute);
+            ByteBuffer contents = slice(attribute, attribute.getInt());
+            byte[] relocated;
+            switch (String.valueOf(utf8(name))) {
+                case "LineNumberTable":
+                    relocated = relocateLineNumbers(contents, relocation);
+                    break;
+                case "LocalVariableTable":
+                case "LocalVariableTypeTable":
+                    relocated = relocateLocalVariables(contents, relocation);
+                    break;
+                case "StackMapTable":
+                    relocated = relocateStackMap(contents, relocation);
+                    break;
+                default:
+                    // Other code attributes, such as type annotations, may refer to offsets we don't know about
+                    return null;
+            }
+            result.writeShort(name);
+            result.writeInt(relocated.length);
+            result.write(relocated);
+        }
+        if (!relocation.valid) {
+            return null;
+        }
+        return rewritten.toByteArray();
+    }
+
+    /**
+     * Where instructions moved to.
+     */
+    private static final class Relocation {
+        /**
+         * Which old offsets are instruction boundaries.
+         */
+        private final boolean[] starts;
+
+        /**
+         * New offset that jumps to each old instruction land on, including its check.
+         */
+        private final int[] targets;
+
+        /**
+         * New offset of each old instruction itself.
+         */
+        private final int[] moved;
+
+        /**
+         * Whether every offset relocated so far was an instruction boundary.
+         */
+        private boolean valid = true;
+
+        /**
+         * Create a relocation.
+         *
+         * @param setStarts  which old offsets are instruction boundaries
+         * @param setTargets new offsets that jumps land on
+         * @param setMoved   new offsets of the instructions themselves
+         */
+        Relocation(final boolean[] setStarts, final int[] setTargets, final int[] setMoved) {
+            starts = setStarts;
+            targets = setTargets;
+            moved = setMoved;
+        }
+
+        /**
+         * Relocate the target of a jump, or the start or end of a range.
+         *
+         * @param offset the old offset
+         * @return the new offset
+         */
+        int target(final int offset) {
+            if (offset < 0 || offset >= starts.length || !starts[offset]) {
+                valid = false;
+                return 0;
+            }
+            return targets[offset];
+        }
+
+        /**
+         * Relocate an instruction itself, leaving out its check.
+         *
+         * @param offset the old offset
+         * @return the new offset
+         */
+        int moved(final int offset) {
+            if (offset < 0 || offset >= starts.length || !starts[offset]) {
+                valid = false;
+                return 0;
+            }
+            return moved[offset];
+        }
+    }
+
+    /**
+     * Get the length of an instruction.
+     *
+     * @param code   the method's code
+     * @param offset the instruction's offset
+     * @return its length in bytes
+     */
+    private static int instructionLength(final ByteBuffer code, final int offset) {
+        int opcode = code.get(offset) & BYTE_MASK;
+        if (opcode > MAX_OPCODE) {
+            throw new IllegalArgumentException("Invalid opcode " + opcode);
+        }
+        if (INSTRUCTION_LENGTHS[opcode] != 0) {
+            return INSTRUCTION_LENGTHS[opcode];
+        }
+        if (opcode == WIDE) {
+            if ((code.get(offset + 1) & BYTE_MASK) == IINC) {
+                return 1 + Byte.BYTES + Short.BYTES * 2;
+            }
+            return 1 + Byte.BYTES + Short.BYTES;
+        }
+        return switchLength(code, offset, offset);
+    }
+
+    /**
+     * Get the length of a switch instruction.
+     *
+     * @param code     the method's code
+     * @param offset   the instruction's old offset
+     * @param position the offset the instruction will be written at, which decides its padding
+     * @return its length in bytes
+     */
+    private static int switchLength(final ByteBuffer code, final int offset, final int position) {
+        int operands = offset + 1 + padding(offset);
+        int words;
+        if ((code.get(offset) & BYTE_MASK) == TABLESWITCH) {
+            // Default, low, high, and a jump for each case
+            int low = code.getInt(operands + Integer.BYTES);
+            int high = code.getInt(operands + Integer.BYTES * 2);
+            words = TABLESWITCH_WORDS + high - low + 1;
+        } else {
+            // Default, count, and a match and jump for each case
+            words = 2 + code.getInt(operands + Integer.BYTES) * 2;
+        }
+        return 1 + padding(position) + Integer.BYTES * words;
+    }
+
+    /**
+     * Get the padding that aligns the operands of a switch instruction.
+     *
+     * @param offset the offset of the instruction
+     * @return the number of padding bytes
+     */
+    private static int padding(final int offset) {
+        return (SWITCH_ALIGNMENT - (offset + 1) % SWITCH_ALIGNMENT) % SWITCH_ALIGNMENT;
+    }
+
+    /**
+     * Get the length an instruction will have once it has moved.
+     *
+     * @param code     the method's code
+     * @param offset   the instruction's old offset
+     * @param position the instruction's new offset
+     * @return its new length in bytes
+     */
+    private static int movedLength(final ByteBuffer code, final int offset, final int position) {
+        int opcode = code.get(offset) & BYTE_MASK;
+        if (opcode == TABLESWITCH || opcode == LOOKUPSWITCH) {
+            return switchLength(code, offset, position);
+        }
+        return instructionLength(code, offset);
+    }
+
+    /**
+     * Check whether an instruction is a branch with 16-bit offsets.
+     *
+     * @param opcode the instruction's opcode
+     * @return whether it is
+     */
+    private static boolean isShortBranch(final int opcode) {
+        return (opcode >= IFEQ && opcode <= JSR) || opcode == IFNULL || opcode == IFNONNULL;
+    }
+
+    /**
+     * Check whether an instruction can branch to itself or an earlier instruction.
+     *
+     * @param code   the method's code
+     * @param offset the instruction's offset
+     * @return whether it does
+     */
+    private static boolean branchesBackward(final ByteBuffer code, final int offset) {
+        int opcode = code.get(offset) & BYTE_MASK;
+        if (isShortBranch(opcode)) {
+            return code.getShort(offset + 1) <= 0;
+        }
+        if (opcode == GOTO_W || opcode == JSR_W) {
+            return code.getInt(offset + 1) <= 0;
+        }
+        if (opcode != TABLESWITCH && opcode != LOOKUPSWITCH) {
+            return false;
+        }
+        for (int jump : switchJumps(code, offset)) {
+            if (jump <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the positions of the jump offsets of a switch instruction, default first.
+     *
+     * @param code   the method's code
+     * @param offset the instruction's offset
+     * @return the relative jumps
+     */
+    private static int[] switchJumps(final ByteBuffer code, final int offset) {
+        int operands = offset + 1 + padding(offset);
+        int[] jumps;
+        if ((code.get(offset) & BYTE_MASK) == TABLESWITCH) {
+            int count = code.getInt(operands + Integer.BYTES * 2) - code.getInt(operands + Integer.BYTES) + 1;
+            jumps = new int[count + 1];
+            for (int i = 1; i <= count; i++) {
+                jumps[i] = code.getInt(operands + Integer.BYTES * (2 + i));
+            }
+        } else {
+            int count = code.getInt(operands + Integer.BYTES);
+            jumps = new int[count + 1];
+            for (int i = 1; i <= count; i++) {
+                jumps[i] = code.getInt(operands + Integer.BYTES * (2 * i + 1));
+            }
+        }
+        jumps[0] = code.getInt(operands);
+        return jumps;
+    }
+
+    /**
+     * Write an instruction at its new position, relocating any jumps.
+     *
+     * @param code       the method's code
+     * @param offset     the instruction's old offset
+     * @param relocation where instructions moved to
+     * @param result     where to write the instruction
+     * @return false if a jump no longer fits
+     * @throws IOException thrown if the output cannot be written
+     */
+    private static boolean writeInstruction(final ByteBuffer code, final int offset, final Relocation relocation,
+                                            final DataOutputStream result) throws IOException {
+        int opcode = code.get(offset) & BYTE_MASK;
+        int from = relocation.moved(offset);
+        if (isShortBranch(opcode)) {
+            int jump = relocation.target(offset + code.getShort(offset + 1)) - from;
+            if (jump < Short.MIN_VALUE || jump > Short.MAX_VALUE) {
+                return false;
+            }
+            result.writeByte(opcode);
+            result.writeShort(jump);
+        } else if (opcode == GOTO_W || opcode == JSR_W) {
+            result.writeByte(opcode);
+            result.writeInt(relocation.target(offset + code.getInt(offset + 1)) - from);
+        } else if (opcode == TABLESWITCH || opcode == LOOKUPSWITCH) {
+            result.writeByte(opcode);
+            for (int i = 0; i < padding(from); i++) {
+                result.writeByte(0);
+            }
+            int operands = offset + 1 + padding(offset);
+            int[] jumps = switchJumps(code, offset);
+            result.writeInt(relocation.target(offset + jumps[0]) - from);
+            if (opcode == TABLESWITCH) {
+                result.writeInt(code.getInt(operands + Integer.BYTES));
+                result.writeInt(code.getInt(operands + Integer.BYTES * 2));
+                for (int i = 1; i < jumps.length; i++) {
+                    result.writeInt(relocation.target(offset + jumps[i]) - from);
+                }
+            } else {
+                result.writeInt(jumps.length - 1);
+                for (int i = 1; i < jumps.length; i++) {
+                    result.writeInt(code.getInt(operands + Integer.BYTES * (2 * i)));
+                    result.writeInt(relocation.target(offset + jumps[i]) - from);
+                }
+            }
+        } else {
+            for (int i = 0; i < instructionLength(code, offset); i++) {
+                result.writeByte(code.get(offset + i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Relocate a LineNumberTable attribute.
+     *
+     * @param contents   the attribute's contents
+     * @param relocation where instructions moved to
+     * @return the relocated contents
+     * @throws IOException thrown if the output cannot be written
+     */
+    private static byte[] relocateLineNumbers(final ByteBuffer contents, final Relocation relocation)
+            throws IOException {
+        ByteArrayOutputStream relocated = new ByteArrayOutputStream();
+        DataOutputStream result = new DataOutputStream(relocated);
+        int count = u2(contents);
+        result.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            result.writeShort(relocation.target(u2(contents)));
+            result.writeShort(u2(contents));
+        }
+        return relocated.toByteArray();
+    }
+
+    /**
+     * Relocate a LocalVariableTable or LocalVariableTypeTable attribute.
+     *
+     * @param contents   the attribute's contents
+     * @param relocation where instructions moved to
+     * @return the relocated contents
+     * @throws IOException thrown if the output cannot be written
+     */
+    private static byte[] relocateLocalVariables(final ByteBuffer contents, final Relocation relocation)
+            throws IOException {
+        ByteArrayOutputStream relocated = new ByteArrayOutputStream();
+        DataOutputStream result = new DataOutputStream(relocated);
+        int count = u2(contents);
+        result.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            int start = u2(contents);
+            int end = start + u2(contents);
+            int newStart = relocation.target(start);
+            result.writeShort(newStart);
+            result.writeShort(relocation.target(end) - newStart);
+            // Name, descriptor or signature, and index
+            result.writeShort(u2(contents));
+            result.writeShort(u2(contents));
+            result.writeShort(u2(contents));
+        }
+        return relocated.toByteArray();
+    }
+
+    /**
+     * Relocate a StackMapTable attribute. Frames keep their types, but their offsets are delta-encoded and may need a
+     * longer form once they have grown.
+     *
+     * @param contents   the attribute's contents
+     * @param relocation where instructions moved to
+     * @return the relocated contents
+     * @throws IOException thrown if the output cannot be written
+     */
+    private static byte[] relocateStackMap(final ByteBuffer contents, final Relocation relocation)
+            throws IOException {
+        ByteArrayOutputStream relocated = new ByteArrayOutputStream();
+        DataOutputStream result = new DataOutputStream(relocated);
+        int count = u2(contents);
+        result.writeShort(count);
+        int offset = -1;
+        int newOffset = -1;
+        for (int i = 0; i < count; i++) {
+            int type = contents.get() & BYTE_MASK;
+            int delta;
+            if (type <= SAME_FRAME_MAX) {
+                delta = type;
+            } else if (type <= SAME_LOCALS_1_STACK_ITEM_MAX) {
+                delta = type - SAME_LOCALS_1_STACK_ITEM;
+            } else if (type >= SAME_LOCALS_1_STACK_ITEM_EXTENDED) {
+                delta = u2(contents);
+            } else {
+                throw new IllegalArgumentException("Invalid stack map frame type " + type);
+            }
+            offset += delta + 1;
+            int next = relocation.target(offset);
+            int newDelta = next - newOffset - 1;
+            newOffset = next;
+
+            if (type <= SAME_FRAME_MAX || type == SAME_FRAME_EXTENDED) {
+                if (newDelta <= SAME_FRAME_MAX) {
+                    result.writeByte(newDelta);
+                } else {
+                    result.writeByte(SAME_FRAME_EXTENDED);
+                    result.writeShort(newDelta);
+                }
+            } else if (type <= SAME_LOCALS_1_STACK_ITEM_MAX || type == SAME_LOCALS_1_STACK_ITEM_EXTENDED) {
+                if (newDelta <= SAME_FRAME_MAX) {
+                    result.writeByte(SAME_LOCALS_1_STACK_ITEM + newDelta);
+                } else {
+                    result.writeByte(SAME_LOCALS_1_STACK_ITEM_EXTENDED);
+                    result.writeShort(newDelta);
+                }
+                relocateVerificationType(contents, relocation, result);
+            } else if (type < FULL_FRAME) {
+                // Chop and append frames
+                result.writeByte(type);
+                result.writeShort(newDelta);
+                for (int local = SAME_FRAME_EXTENDED; local < type; local++) {
+                    relocateVerificationType(contents, relocation, result);
+                }
+            } else {
+                result.writeByte(type);
+                result.writeShort(newDelta);
+                for (int part = 0; part < 2; part++) {
+                    int types = u2(contents);
+                    result.writeShort(types);
+                    for (int j = 0; j < types; j++) {
+                        relocateVerificationType(contents, relocation, result);
+                    }
+                }
+            }
+        }
+        return relocated.toByteArray();
+    }
+
+    /**
+     * Copy a verification type, relocating the new instruction of an uninitialized object.
+     *
+     * @param contents   the stack map being read
+     * @param relocation where instructions moved to
+     * @param result     where to write the verification type
+     * @throws IOException thrown if the output cannot be written
+     */
+    private static void relocateVerificationType(final ByteBuffer contents, final Relocation relocation,
+                                                 final DataOutputStream result) throws IOException {
+        int tag = contents.get() & BYTE_MASK;
+        result.writeByte(tag);
+        if (tag == ITEM_OBJECT) {
+            result.writeShort(u2(contents));
+        } else if (tag == ITEM_UNINITIALIZED) {
+            result.writeShort(relocation.moved(u2(contents)));
+        }
+    }
+
+    /**
+     * Look up a UTF-8 constant.
+     *
+     * @param index the constant's index
+     * @return its contents, or null if it is not a UTF-8 constant
+     */
+    private String utf8(final int index) {
+        if (index <= 0 || index >= utf8.length) {
+            return null;
+        }
+        return utf8[index];
+    }
+
+    /**
+     * Copy bytes from the input to the output.
+     *
+     * @param length the number of bytes to copy
+     * @throws IOException thrown if the output cannot be written
+     */
+    private void copy(final int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        out.write(bytes);
+    }
+
+    /**
+     * Copy an unsigned 16-bit value from the input to the output.
+     *
+     * @return the value
+     * @throws IOException thrown if the output cannot be written
+     */
+    private int copyU2() throws IOException {
+        int value = u2(in);
+        out.writeShort(value);
+        return value;
+    }
+
+    /**
+     * Copy a list of attributes from the input to the output.
+     *
+     * @throws IOException thrown if the output cannot be written
+     */
+    private void copyAttributes() throws IOException {
+        int attributes = copyU2();
+        for (int i = 0; i < attributes; i++) {
+            copyU2();
+            int length = in.getInt();
+            out.writeInt(length);
+            copy(length);
+        }
+    }
+
+    /**
+     * Take the next bytes of the input as a separate buffer.
+     *
+     * @param length the number of bytes
+     * @return a buffer over those bytes
+     */
+    private ByteBuffer slice(final int length) {
+        return slice(in, length);
+    }
+
+    /**
+     * Take the next bytes of a buffer as a separate buffer.
+     *
+     * @param buffer the buffer to read from
+     * @param length the number of bytes
+     * @return a buffer over those bytes
+     */
+    private static ByteBuffer slice(final ByteBuffer buffer, final int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    /**
+     * Read an unsigned 16-bit value.
+     *
+     * @param buffer the buffer to read from
+     * @return the value
+     */
+    private static int u2(final ByteBuffer buffer) {
+        return buffer.getShort() & MAX_U2;
+    }
+}
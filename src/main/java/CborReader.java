@@ -0,0 +1,408 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read a CBOR (RFC 8949) submission into the same tree Gson builds from JSON.
+ * <p>
+ * Only what can be expressed in JSON is accepted: map keys must be text, and byte strings are rejected. Tags are
+ * ignored, and undefined is read as null.
+ */
+public final class CborReader {
+    /**
+     * Deepest nesting accepted, so that a hostile submission can't exhaust the stack.
+     */
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * Bits to shift the initial byte to get its major type.
+     */
+    private static final int MAJOR_TYPE_SHIFT = 5;
+
+    /**
+     * Mask for the additional information in the initial byte.
+     */
+    private static final int ADDITIONAL_MASK = 0x1f;
+
+    /**
+     * Largest argument stored in the initial byte itself.
+     */
+    private static final int MAX_IMMEDIATE = 23;
+
+    /**
+     * Additional information for an argument in the next byte.
+     */
+    private static final int ONE_BYTE = 24;
+
+    /**
+     * Additional information for an argument in the next two bytes.
+     */
+    private static final int TWO_BYTES = 25;
+
+    /**
+     * Additional information for an argument in the next four bytes.
+     */
+    private static final int FOUR_BYTES = 26;
+
+    /**
+     * Additional information for an argument in the next eight bytes.
+     */
+    private static final int EIGHT_BYTES = 27;
+
+    /**
+     * Additional information for an item of indefinite length.
+     */
+    private static final int INDEFINITE = 31;
+
+    /**
+     * Byte ending an item of indefinite length.
+     */
+    private static final int BREAK = 0xff;
+
+    /**
+     * Simple value false.
+     */
+    private static final int FALSE = 20;
+
+    /**
+     * Simple value true.
+     */
+    private static final int TRUE = 21;
+
+    /**
+     * Simple value null.
+     */
+    private static final int NULL = 22;
+
+    /**
+     * Simple value undefined.
+     */
+    private static final int UNDEFINED = 23;
+
+    /**
+     * Mask for one byte.
+     */
+    private static final int BYTE_MASK = 0xff;
+
+    /**
+     * Mask for two bytes.
+     */
+    private static final long SHORT_MASK = 0xffffL;
+
+    /**
+     * Mask for four bytes.
+     */
+    private static final long INT_MASK = 0xffffffffL;
+
+    /**
+     * Major type of unsigned integers.
+     */
+    private static final int UNSIGNED = 0;
+
+    /**
+     * Major type of negative integers.
+     */
+    private static final int NEGATIVE = 1;
+
+    /**
+     * Major type of byte strings.
+     */
+    private static final int BYTES = 2;
+
+    /**
+     * Major type of text strings.
+     */
+    private static final int TEXT = 3;
+
+    /**
+     * Major type of arrays.
+     */
+    private static final int ARRAY = 4;
+
+    /**
+     * Major type of maps.
+     */
+    private static final int MAP = 5;
+
+    /**
+     * Major type of tags.
+     */
+    private static final int TAG = 6;
+
+    /**
+     * Major type of simple values and floating point numbers.
+     */
+    private static final int SIMPLE = 7;
+
+    /**
+     * Input being read.
+     */
+    private final ByteBuffer input;
+
+    /**
+     * Create a reader.
+     *
+     * @param bytes the CBOR input
+     */
+    private CborReader(final byte[] bytes) {
+        input = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Read a single CBOR item.
+     *
+     * @param bytes the CBOR input
+     * @return the item as a Gson tree
+     * @throws IOException thrown if the input is not a single valid CBOR item that can be expressed as JSON
+     */
+    public static JsonElement read(final byte[] bytes) throws IOException {
+        CborReader reader = new CborReader(bytes);
+        try {
+            JsonElement item = reader.item(0);
+            if (reader.input.hasRemaining()) {
+                throw new IOException("Unexpected data after CBOR item");
+            }
+            return item;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated CBOR input", e);
+        }
+    }
+
+    /**
+     * Read the next item.
+     *
+     * @param depth how deeply the item is nested
+     * @return the item
+     * @throws IOException thrown if the item is invalid
+     */
+    private JsonElement item(final int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("CBOR input is nested too deeply");
+        }
+        int initial = input.get() & BYTE_MASK;
+        int majorType = initial >>> MAJOR_TYPE_SHIFT;
+        int additional = initial & ADDITIONAL_MASK;
+        switch (majorType) {
+            case UNSIGNED:
+                return new JsonPrimitive(argument(additional));
+            case NEGATIVE:
+                return new JsonPrimitive(-1 - argument(additional));
+            case BYTES:
+                throw new IOException("CBOR byte strings are not supported");
+            case TEXT:
+                return new JsonPrimitive(text(additional));
+            case ARRAY:
+                return array(additional, depth);
+            case MAP:
+                return map(additional, depth);
+            case TAG:
+                argument(additional);
+                return item(depth + 1);
+            case SIMPLE:
+                return simple(additional);
+            default:
+                throw new IOException("Invalid CBOR major type " + majorType);
+        }
+    }
+
+    /**
+     * Read the argument of an item of definite length.
+     *
+     * @param additional the additional information from the initial byte
+     * @return the argument
+     * @throws IOException thrown if the additional information is invalid
+     */
+    private long argument(final int additional) throws IOException {
+        if (additional <= MAX_IMMEDIATE) {
+            return additional;
+        }
+        switch (additional) {
+            case ONE_BYTE:
+                return input.get() & BYTE_MASK;
+            case TWO_BYTES:
+                return input.getShort() & SHORT_MASK;
+            case FOUR_BYTES:
+                return input.getInt() & INT_MASK;
+            case EIGHT_BYTES:
+                long argument = input.getLong();
+                if (argument < 0) {
+                    throw new IOException("CBOR integer is too large");
+                }
+                return argument;
+            default:
+                throw new IOException("Invalid CBOR additional information " + additional);
+        }
+    }
+
+    /**
+     * Read a length, checking that it fits in what is left of the input.
+     *
+     * @param additional the additional information from the initial byte
+     * @return the length
+     * @throws IOException thrown if the length is invalid
+     */
+    private int length(final int additional) throws IOException {
+        long length = argument(additional);
+        if (length > input.remaining()) {
+            throw new IOException("Truncated CBOR input");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Read a text string, which may be split into chunks.
+     *
+     * @param additional the additional information from the initial byte
+     * @return the string
+     * @throws IOException thrown if the string is invalid
+     */
+    private String text(final int additional) throws IOException {
+        if (additional != INDEFINITE) {
+            byte[] bytes = new byte[length(additional)];
+            input.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        StringBuilder text = new StringBuilder();
+        for (int initial = input.get() & BYTE_MASK; initial != BREAK; initial = input.get() & BYTE_MASK) {
+            if (initial >>> MAJOR_TYPE_SHIFT != TEXT || (initial & ADDITIONAL_MASK) == INDEFINITE) {
+                throw new IOException("Invalid chunk in CBOR text string");
+            }
+            text.append(text(initial & ADDITIONAL_MASK));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Read an array.
+     *
+     * @param additional the additional information from the initial byte
+     * @param depth      how deeply the array is nested
+     * @return the array
+     * @throws IOException thrown if the array is invalid
+     */
+    private JsonArray array(final int additional, final int depth) throws IOException {
+        JsonArray array = new JsonArray();
+        if (additional == INDEFINITE) {
+            while (!atBreak()) {
+                array.add(item(depth + 1));
+            }
+            return array;
+        }
+        for (int count = length(additional); count > 0; count--) {
+            array.add(item(depth + 1));
+        }
+        return array;
+    }
+
+    /**
+     * Read a map whose keys are text.
+     *
+     * @param additional the additional information from the initial byte
+     * @param depth      how deeply the map is nested
+     * @return the map as an object
+     * @throws IOException thrown if the map is invalid or has a key that isn't text
+     */
+    private JsonObject map(final int additional, final int depth) throws IOException {
+        JsonObject map = new JsonObject();
+        if (additional == INDEFINITE) {
+            while (!atBreak()) {
+                entry(map, depth);
+            }
+            return map;
+        }
+        for (int count = length(additional); count > 0; count--) {
+            entry(map, depth);
+        }
+        return map;
+    }
+
+    /**
+     * Read one map entry.
+     *
+     * @param map   the map to add it to
+     * @param depth how deeply the map is nested
+     * @throws IOException thrown if the entry is invalid or its key isn't text
+     */
+    private void entry(final JsonObject map, final int depth) throws IOException {
+        JsonElement key = item(depth + 1);
+        if (!key.isJsonPrimitive() || !key.getAsJsonPrimitive().isString()) {
+            throw new IOException("CBOR map keys must be text");
+        }
+        map.add(key.getAsString(), item(depth + 1));
+    }
+
+    /**
+     * Check for the end of an item of indefinite length, consuming it if it is there.
+     *
+     * @return whether the item has ended
+     */
+    private boolean atBreak() {
+        if ((input.get(input.position()) & BYTE_MASK) == BREAK) {
+            input.get();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read a simple value or floating point number.
+     *
+     * @param additional the additional information from the initial byte
+     * @return the value
+     * @throws IOException thrown if the value can't be expressed in JSON
+     */
+    private JsonElement simple(final int additional) throws IOException {
+        switch (additional) {
+            case FALSE:
+                return new JsonPrimitive(false);
+            case TRUE:
+                return new JsonPrimitive(true);
+            case NULL:
+            case UNDEFINED:
+                return JsonNull.INSTANCE;
+            case TWO_BYTES:
+                return new JsonPrimitive(halfToFloat(input.getShort()));
+            case FOUR_BYTES:
+                return new JsonPrimitive(input.getFloat());
+            case EIGHT_BYTES:
+                return new JsonPrimitive(input.getDouble());
+            default:
+                throw new IOException("Unsupported CBOR simple value " + additional);
+        }
+    }
+
+    /**
+     * Convert a half-precision float to a float.
+     *
+     * @param half the half-precision bits
+     * @return the value
+     */
+    @SuppressWarnings("checkstyle:magicnumber")
+    private static float halfToFloat(final short half) {
+        int exponent = (half >> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        float value;
+        if (exponent == 0) {
+            value = mantissa * (float) Math.pow(2, -24);
+        } else if (exponent == 0x1f) {
+            if (mantissa == 0) {
+                value = Float.POSITIVE_INFINITY;
+            } else {
+                value = Float.NaN;
+            }
+        } else {
+            value = (mantissa + 1024) * (float) Math.pow(2, exponent - 25);
+        }
+        if (half < 0) {
+            return -value;
+        }
+        return value;
+    }
+}
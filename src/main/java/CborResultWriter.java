@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Write execution results as CBOR (RFC 8949) straight to an output stream.
+ * <p>
+ * Fields, their order, and their nesting are exactly those of the JSON results. Objects and the invocations array are
+ * written with indefinite lengths, since null fields are skipped and so the number of fields isn't known up front.
+ * Integers use the shortest encoding and floating point values are written as 64-bit doubles.
+ */
+public final class CborResultWriter extends ResultWriter {
+    /**
+     * Major type of unsigned integers.
+     */
+    private static final int UNSIGNED = 0;
+
+    /**
+     * Major type of negative integers.
+     */
+    private static final int NEGATIVE = 1;
+
+    /**
+     * Major type of UTF-8 text strings.
+     */
+    private static final int TEXT = 3;
+
+    /**
+     * Major type of arrays.
+     */
+    private static final int ARRAY = 4;
+
+    /**
+     * Start of an array of indefinite length.
+     */
+    private static final int INDEFINITE_ARRAY = 0x9f;
+
+    /**
+     * Start of a map of indefinite length.
+     */
+    private static final int INDEFINITE_MAP = 0xbf;
+
+    /**
+     * End of an item of indefinite length.
+     */
+    private static final int BREAK = 0xff;
+
+    /**
+     * Simple value false.
+     */
+    private static final int FALSE = 0xf4;
+
+    /**
+     * Simple value true.
+     */
+    private static final int TRUE = 0xf5;
+
+    /**
+     * Simple value null.
+     */
+    private static final int NULL = 0xf6;
+
+    /**
+     * Initial byte of a 64-bit floating point value.
+     */
+    private static final int DOUBLE = 0xfb;
+
+    /**
+     * Largest argument stored in the initial byte itself.
+     */
+    private static final int MAX_IMMEDIATE = 23;
+
+    /**
+     * Additional information saying the argument follows in 1, 2, 4, or 8 bytes.
+     */
+    private static final int ONE_BYTE = 24;
+
+    /**
+     * Bits to shift a major type into the initial byte.
+     */
+    private static final int MAJOR_TYPE_SHIFT = 5;
+
+    /**
+     * Mask for one byte.
+     */
+    private static final int BYTE_MASK = 0xff;
+
+    /**
+     * Create a new CBOR result writer.
+     *
+     * @param setOut the stream to write to
+     */
+    public CborResultWriter(final OutputStream setOut) {
+        super(setOut);
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        writeByte(INDEFINITE_MAP);
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        writeByte(BREAK);
+    }
+
+    @Override
+    public void beginArray(final String name) throws IOException {
+        name(name);
+        writeByte(INDEFINITE_ARRAY);
+    }
+
+    @Override
+    public void beginElement() throws IOException {
+        beginObject();
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        writeByte(BREAK);
+    }
+
+    @Override
+    public void field(final String name, final String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        name(name);
+        text(value);
+    }
+
+    @Override
+    public void field(final String name, final String[] values) throws IOException {
+        if (values == null) {
+            return;
+        }
+        name(name);
+        header(ARRAY, values.length);
+        for (String value : values) {
+            if (value == null) {
+                writeByte(NULL);
+            } else {
+                text(value);
+            }
+        }
+    }
+
+    @Override
+    public void field(final String name, final boolean value) throws IOException {
+        name(name);
+        if (value) {
+            writeByte(TRUE);
+        } else {
+            writeByte(FALSE);
+        }
+    }
+
+    @Override
+    public void field(final String name, final int value) throws IOException {
+        name(name);
+        if (value >= 0) {
+            header(UNSIGNED, value);
+        } else {
+            header(NEGATIVE, -1L - value);
+        }
+    }
+
+    @Override
+    public void field(final String name, final long value) throws IOException {
+        name(name);
+        if (value >= 0) {
+            header(UNSIGNED, value);
+        } else {
+            header(NEGATIVE, -1L - value);
+        }
+    }
+
+    @Override
+    public void field(final String name, final double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException(value + " is not a valid double value as per JSON specification.");
+        }
+        name(name);
+        writeByte(DOUBLE);
+        writeBigEndian(Double.doubleToLongBits(value), Long.BYTES);
+    }
+
+    @Override
+    protected void name(final String name) throws IOException {
+        text(name);
+    }
+
+    /**
+     * Write a text string. Unpaired surrogates become '?', as they do in the JSON results.
+     *
+     * @param value the string to write
+     * @throws IOException thrown if the stream cannot be written
+     */
+    private void text(final String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        header(TEXT, bytes.length);
+        writeBytes(bytes);
+    }
+
+    /**
+     * Write the initial byte of an item and its argument in the shortest form.
+     *
+     * @param majorType the item's major type
+     * @param argument  the item's argument: a value, a length, or a count
+     * @throws IOException thrown if the stream cannot be written
+     */
+    private void header(final int majorType, final long argument) throws IOException {
+        int initial = majorType << MAJOR_TYPE_SHIFT;
+        if (argument <= MAX_IMMEDIATE) {
+            writeByte(initial | (int) argument);
+            return;
+        }
+        int additional = ONE_BYTE;
+        int length = 1;
+        while (length < Long.BYTES && argument >>> (length * Byte.SIZE) != 0) {
+            additional++;
+            length *= 2;
+        }
+        writeByte(initial | additional);
+        writeBigEndian(argument, length);
+    }
+
+    /**
+     * Write the low bytes of a value, most significant first.
+     *
+     * @param value  the value to write
+     * @param length the number of bytes to write
+     * @throws IOException thrown if the stream cannot be written
+     */
+    private void writeBigEndian(final long value, final int length) throws IOException {
+        for (int shift = (length - 1) * Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            writeByte((int) (value >>> shift) & BYTE_MASK);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Content-addressed store of compiled classes and checkstyle results that survives restarts.
+ * <p>
+ * Values are appended to a single file as records with a length and checksum, and read back through memory maps
+ * using an in-memory index built when the store is opened. Appends are not forced to disk, since every value can be
+ * rebuilt: a crash of the server can only leave a partial record at the end of the file, but a crash of the machine
+ * can also lose recent records or leave holes where they were. Either way the first record that fails its checksum
+ * ends the file, and it is truncated there on the next open. Once the file grows past its size cap, the most recently
+ * used records are copied to a new file that is forced to disk and atomically replaces the old one.
+ */
+public final class ClassStore implements Closeable {
+    /**
+     * Marks the start of each record.
+     */
+    private static final int MAGIC = 0x4a4e4931;
+
+    /**
+     * Size of a record header: magic, key length, value length, and checksum.
+     */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    /**
+     * Offset of the checksum in a record header.
+     */
+    private static final int CHECKSUM_OFFSET = 3 * Integer.BYTES;
+
+    /**
+     * Fraction of the size cap to fill when compacting, so that compaction doesn't run again right away.
+     */
+    private static final double COMPACTED_FRACTION = 0.75;
+
+    /**
+     * Largest the file may grow, so that every offset in it fits in a single map.
+     */
+    static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+    /**
+     * Location of a record in the file.
+     */
+    private static final class Entry {
+        /**
+         * Offset of the record.
+         */
+        private final long offset;
+
+        /**
+         * Length of the key in bytes.
+         */
+        private final int keyLength;
+
+        /**
+         * Length of the value in bytes.
+         */
+        private final int valueLength;
+
+        /**
+         * When the value was last read or written, for compaction.
+         */
+        private long lastUsed;
+
+        /**
+         * Create a new index entry.
+         *
+         * @param setOffset      offset of the record
+         * @param setKeyLength   length of the key in bytes
+         * @param setValueLength length of the value in bytes
+         * @param setLastUsed    when the value was last used
+         */
+        Entry(final long setOffset, final int setKeyLength, final int setValueLength, final long setLastUsed) {
+            offset = setOffset;
+            keyLength = setKeyLength;
+            valueLength = setValueLength;
+            lastUsed = setLastUsed;
+        }
+
+        /**
+         * Get the length of the whole record.
+         *
+         * @return the length of the record in bytes
+         */
+        long recordLength() {
+            return HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+
+    /**
+     * Read-only map of part of the file.
+     */
+    private static final class Chunk {
+        /**
+         * Offset of the first mapped byte.
+         */
+        private final long start;
+
+        /**
+         * The mapped bytes.
+         */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Map part of a file.
+         *
+         * @param channel  the file
+         * @param setStart offset of the first byte to map
+         * @param length   number of bytes to map
+         * @throws IOException thrown if the file cannot be mapped
+         */
+        Chunk(final FileChannel channel, final long setStart, final long length) throws IOException {
+            start = setStart;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+
+        /**
+         * Get the offset just past the last mapped byte.
+         *
+         * @return the offset
+         */
+        long end() {
+            return start + buffer.capacity();
+        }
+    }
+
+    /**
+     * Path of the store file.
+     */
+    private final Path path;
+
+    /**
+     * Size the file is compacted below once it grows past.
+     */
+    private final long maxBytes;
+
+    /**
+     * Records in the file by key.
+     */
+    private final Map<String, Entry> index = new HashMap<>();
+
+    /**
+     * Open store file.
+     */
+    private FileChannel channel;
+
+    /**
+     * Maps of the file in order of offset, extended when a record past the last one is read.
+     */
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    /**
+     * Length of the valid records in the file.
+     */
+    private long end;
+
+    /**
+     * Logical clock used to order entries by last use.
+     */
+    private long clock = 0;
+
+    /**
+     * Open a store, creating it if needed.
+     *
+     * @param setPath     path of the store file
+     * @param setMaxBytes size to keep the file under, at most {@link #MAX_FILE_BYTES}
+     * @throws IOException thrown if the file cannot be opened or read
+     */
+    public ClassStore(final Path setPath, final long setMaxBytes) throws IOException {
+        if (setMaxBytes <= 0 || setMaxBytes > MAX_FILE_BYTES) {
+            throw new IllegalArgumentException("Store size cap must be positive and under 2048 megabytes");
+        }
+        path = setPath;
+        maxBytes = setMaxBytes;
+        open();
+    }
+
+    /**
+     * Open the file and index its records, dropping anything after the last valid one.
+     *
+     * @throws IOException thrown if the file cannot be opened or read
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.min(channel.size(), MAX_FILE_BYTES);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        index.clear();
+        chunks.clear();
+        end = 0;
+        while (end + HEADER_SIZE <= size) {
+            mapped.position((int) end);
+            int magic = mapped.getInt();
+            int keyLength = mapped.getInt();
+            int valueLength = mapped.getInt();
+            int checksum = mapped.getInt();
+            if (magic != MAGIC || keyLength < 0 || valueLength < 0
+                    || end + HEADER_SIZE + keyLength + valueLength > size) {
+                break;
+            }
+            byte[] record = new byte[keyLength + valueLength];
+            mapped.get(record);
+            if (checksum(record) != checksum) {
+                break;
+            }
+            String key = new String(record, 0, keyLength, StandardCharsets.UTF_8);
+            Entry entry = new Entry(end, keyLength, valueLength, clock++);
+            index.put(key, entry);
+            end += entry.recordLength();
+        }
+        if (end < channel.size()) {
+            channel.truncate(end);
+        }
+    }
+
+    /**
+     * Map the records appended since the last map.
+     * <p>
+     * The new chunk absorbs the chunks before it that are no larger than it, so chunks grow geometrically toward the
+     * start of the file: there are only logarithmically many, and each byte is remapped a logarithmic number of times
+     * however reads and appends interleave.
+     *
+     * @throws IOException thrown if the file cannot be mapped
+     */
+    private void mapTail() throws IOException {
+        long start = 0;
+        if (!chunks.isEmpty()) {
+            start = chunks.get(chunks.size() - 1).end();
+        }
+        if (start >= end) {
+            return;
+        }
+        while (!chunks.isEmpty() && chunks.get(chunks.size() - 1).buffer.capacity() <= end - start) {
+            start = chunks.remove(chunks.size() - 1).start;
+        }
+        chunks.add(new Chunk(channel, start, end - start));
+    }
+
+    /**
+     * Get the bytes of a record.
+     *
+     * @param entry the record
+     * @return a buffer positioned at the record's header and limited to its end
+     * @throws IOException thrown if the file cannot be mapped
+     */
+    private ByteBuffer record(final Entry entry) throws IOException {
+        if (chunks.isEmpty() || entry.offset + entry.recordLength() > chunks.get(chunks.size() - 1).end()) {
+            mapTail();
+        }
+        int i = chunks.size() - 1;
+        while (chunks.get(i).start > entry.offset) {
+            i--;
+        }
+        Chunk chunk = chunks.get(i);
+        ByteBuffer record = chunk.buffer.duplicate();
+        int position = (int) (entry.offset - chunk.start);
+        record.limit(position + (int) entry.recordLength());
+        record.position(position);
+        return record;
+    }
+
+    /**
+     * Get a value.
+     *
+     * @param key the value's key
+     * @return the value, or null if it is not in the store
+     * @throws IOException thrown if the file cannot be read
+     */
+    public synchronized byte[] get(final String key) throws IOException {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        byte[] value = new byte[entry.valueLength];
+        ByteBuffer record = record(entry);
+        record.position(record.position() + HEADER_SIZE + entry.keyLength);
+        record.get(value);
+        entry.lastUsed = clock++;
+        return value;
+    }
+
+    /**
+     * Add a value. Values are addressed by content, so a key that is already present is left alone.
+     * <p>
+     * A value too large to survive compaction is not stored at all, since it would only be dropped by the compaction
+     * its own append sets off, and appended again the next time it is put.
+     *
+     * @param key   the value's key
+     * @param value the value
+     * @throws IOException thrown if the file cannot be written
+     */
+    public synchronized void put(final String key, final byte[] value) throws IOException {
+        if (index.containsKey(key)) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long length = (long) HEADER_SIZE + keyBytes.length + value.length;
+        if (length > maxBytes * COMPACTED_FRACTION) {
+            return;
+        }
+        if (end + length > MAX_FILE_BYTES) {
+            compact();
+            if (end + length > MAX_FILE_BYTES) {
+                return;
+            }
+        }
+        Entry entry = new Entry(end, keyBytes.length, value.length, clock++);
+        ByteBuffer record = ByteBuffer.allocate((int) entry.recordLength());
+        record.putInt(MAGIC).putInt(keyBytes.length).putInt(value.length).putInt(0);
+        record.put(keyBytes).put(value);
+        record.putInt(CHECKSUM_OFFSET, checksum(record.array(), HEADER_SIZE));
+        record.flip();
+        writeFully(channel, record, end);
+        index.put(key, entry);
+        end += entry.recordLength();
+        if (end > maxBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Get the number of values in the store.
+     *
+     * @return the number of values
+     */
+    public synchronized int count() {
+        return index.size();
+    }
+
+    /**
+     * Get the size of the store file.
+     *
+     * @return the length of the valid records in bytes
+     */
+    public synchronized long size() {
+        return end;
+    }
+
+    /**
+     * Copy the most recently used records to a new file and replace the old one with it.
+     *
+     * @throws IOException thrown if the files cannot be read or written
+     */
+    private void compact() throws IOException {
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(index.entrySet());
+        entries.sort((first, second) -> Long.compare(second.getValue().lastUsed, first.getValue().lastUsed));
+
+        List<Entry> kept = new ArrayList<>();
+        long keptBytes = 0;
+        for (Map.Entry<String, Entry> entry : entries) {
+            long length = entry.getValue().recordLength();
+            if (keptBytes + length <= maxBytes * COMPACTED_FRACTION) {
+                kept.add(entry.getValue());
+                keptBytes += length;
+            }
+        }
+        // Least recently used first, so that reopening the file restores the same order
+        Collections.reverse(kept);
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        long written = 0;
+        try (FileChannel output = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Entry entry : kept) {
+                writeFully(output, record(entry), written);
+                written += entry.recordLength();
+            }
+            output.force(true);
+        }
+        // If the move fails the old file is still in place, and reopening it keeps the store usable
+        try {
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            channel.close();
+            open();
+        }
+    }
+
+    /**
+     * Write a buffer at a position, retrying until all of it has been written.
+     *
+     * @param output   the channel to write to
+     * @param buffer   the bytes to write
+     * @param position where to write them
+     * @throws IOException thrown if the channel cannot be written
+     */
+    private static void writeFully(final FileChannel output, final ByteBuffer buffer,
+                                   final long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += output.write(buffer, at);
+        }
+    }
+
+    /**
+     * Compute the checksum of a record body.
+     *
+     * @param bytes the key and value bytes
+     * @return the checksum
+     */
+    private static int checksum(final byte[] bytes) {
+        return checksum(bytes, 0);
+    }
+
+    /**
+     * Compute the checksum of a record body.
+     *
+     * @param bytes  an array containing the key and value bytes
+     * @param offset where the key starts
+     * @return the checksum
+     */
+    private static int checksum(final byte[] bytes, final int offset) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, bytes.length - offset);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Encode compiled classes and the compiler that produced them as a store value.
+     *
+     * @param compiler the compiler that produced the classes
+     * @param classes  a map of binary class names to class file bytes
+     * @return the encoded value
+     */
+    public static byte[] encodeClasses(final String compiler, final Map<String, byte[]> classes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeUTF(compiler);
+            output.writeInt(classes.size());
+            for (Map.Entry<String, byte[]> compiledClass : classes.entrySet()) {
+                output.writeUTF(compiledClass.getKey());
+                output.writeInt(compiledClass.getValue().length);
+                output.write(compiledClass.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode compiled classes encoded by {@link #encodeClasses(String, Map)}.
+     *
+     * @param value the encoded value
+     * @return the compiler that produced the classes, and a map of binary class names to class file bytes
+     */
+    public static Map.Entry<String, Map<String, byte[]>> decodeClasses(final byte[] value) {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(value))) {
+            String compiler = input.readUTF();
+            int count = input.readInt();
+            Map<String, byte[]> classes = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = input.readUTF();
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                classes.put(name, bytes);
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(compiler, classes);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
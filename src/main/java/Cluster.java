@@ -0,0 +1,531 @@
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Route submissions between janini nodes so that repeats of a submission always reach the same node.
+ * <p>
+ * Each node owns the parts of a consistent hash ring closest to its virtual nodes. A node that receives a submission
+ * it doesn't own forwards it to the owner, whose coalescing and compiled class store then see every repeat. Peers
+ * are health checked in the background; a peer that stops answering leaves the ring and its share moves to the
+ * remaining nodes, and it rejoins once it answers again. A node that starts up announces itself to the peers it was
+ * given, and every health check answer lists the peer's healthy nodes so that membership spreads to the rest of the
+ * cluster. Announcements are what let an attacker point a node at an address of their choosing, so without a shared
+ * secret a node only accepts them from the peers it was configured with; with one, any node that presents it can join
+ * without the others being restarted.
+ */
+public final class Cluster {
+    /**
+     * Header marking a request that has already been forwarded, so it is never forwarded again.
+     */
+    public static final String FORWARDED_HEADER = "X-Janini-Forwarded";
+
+    /**
+     * Header carrying the shared secret on announcements.
+     */
+    public static final String SECRET_HEADER = "X-Janini-Cluster-Secret";
+
+    /**
+     * Response headers copied back from the owner of a forwarded submission.
+     */
+    private static final String[] RESPONSE_HEADERS = {"Content-Type", "Content-Encoding", "Vary"};
+
+    /**
+     * Number of points each node gets on the ring, to spread submissions evenly.
+     */
+    private static final int VIRTUAL_NODES = 64;
+
+    /**
+     * How often to check peer health.
+     */
+    private static final long HEALTH_CHECK_INTERVAL_MS = 1000;
+
+    /**
+     * How long to wait when connecting to a peer.
+     */
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+
+    /**
+     * How long to wait for a peer to answer a health check.
+     */
+    private static final int HEALTH_CHECK_TIMEOUT_MS = 2000;
+
+    /**
+     * How long to wait for a peer to run a forwarded submission.
+     */
+    private static final int FORWARD_TIMEOUT_MS = 60000;
+
+    /**
+     * Size of the buffer used to copy forwarded responses.
+     */
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    /**
+     * Address of this node, as host:port.
+     */
+    private final String self;
+
+    /**
+     * Addresses of the peers this node was started with.
+     */
+    private final Set<String> configured = new HashSet<>();
+
+    /**
+     * Secret a node must present to join, or null to only accept the configured peers.
+     */
+    private final byte[] secret;
+
+    /**
+     * Every node we know about, and whether it passed its last health check.
+     */
+    private final Map<String, Boolean> members = new ConcurrentHashMap<>();
+
+    /**
+     * Ring of healthy nodes, replaced whenever membership changes.
+     */
+    private volatile NavigableMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Background health checks.
+     */
+    private final ScheduledExecutorService healthChecks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Number of submissions that arrived here first and ran here, because this node owns them or the owner was down.
+     */
+    private final AtomicLong servedLocally = new AtomicLong();
+
+    /**
+     * Number of submissions forwarded to their owner.
+     */
+    private final AtomicLong forwarded = new AtomicLong();
+
+    /**
+     * Number of forwards that failed before the owner had the submission, so it ran here instead.
+     */
+    private final AtomicLong forwardFailures = new AtomicLong();
+
+    /**
+     * Number of forwards the owner accepted but never answered.
+     */
+    private final AtomicLong forwardsUnanswered = new AtomicLong();
+
+    /**
+     * Create a new cluster member.
+     *
+     * @param setSelf   address of this node, as host:port
+     * @param peers     addresses of the other nodes, as host:port
+     * @param setSecret secret nodes must present to join, or null to only accept announcements from the peers
+     */
+    public Cluster(final String setSelf, final Collection<String> peers, final String setSecret) {
+        for (String address : peers) {
+            if (!isAddress(address)) {
+                throw new IllegalArgumentException("Bad peer address " + address + ", expected host:port");
+            }
+        }
+        if (!isAddress(setSelf)) {
+            throw new IllegalArgumentException("Bad advertised address " + setSelf + ", expected host:port");
+        }
+        self = setSelf;
+        if (setSecret == null) {
+            secret = null;
+        } else {
+            secret = setSecret.getBytes(StandardCharsets.UTF_8);
+        }
+        members.put(self, true);
+        for (String peer : peers) {
+            if (!peer.equals(self)) {
+                configured.add(peer);
+                members.put(peer, true);
+            }
+        }
+        rebuildRing();
+    }
+
+    /**
+     * Announce this node to its peers and start checking their health.
+     */
+    public void start() {
+        for (String peer : members.keySet()) {
+            if (!peer.equals(self)) {
+                healthChecks.execute(() -> announce(peer));
+            }
+        }
+        healthChecks.scheduleWithFixedDelay(this::checkHealth,
+                HEALTH_CHECK_INTERVAL_MS, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop checking peer health.
+     */
+    public void stop() {
+        healthChecks.shutdownNow();
+    }
+
+    /**
+     * Get the address of this node.
+     *
+     * @return this node's address, as host:port
+     */
+    public String self() {
+        return self;
+    }
+
+    /**
+     * Find the node that owns a submission.
+     *
+     * @param key the submission's key
+     * @return the address of the owning node
+     */
+    public String owner(final String key) {
+        return owner(ring, key);
+    }
+
+    /**
+     * Add a node that announced itself, or mark a known one as healthy again.
+     *
+     * @param peer      the node's address
+     * @param presented the secret the node presented, or null if it presented none
+     * @return true if the node joined, false if its address is invalid or it may not join
+     */
+    public boolean join(final String peer, final String presented) {
+        if (!isAddress(peer) || peer.equals(self)) {
+            return false;
+        }
+        boolean allowed;
+        if (secret == null) {
+            allowed = configured.contains(peer);
+        } else {
+            allowed = presented != null
+                    && MessageDigest.isEqual(secret, presented.getBytes(StandardCharsets.UTF_8));
+        }
+        if (allowed) {
+            setHealthy(peer, true);
+        }
+        return allowed;
+    }
+
+    /**
+     * Check that a string is a node address: a host and a port, and nothing else.
+     *
+     * @param address the string to check
+     * @return true if it is a host:port address
+     */
+    static boolean isAddress(final String address) {
+        try {
+            URI uri = new URI("http://" + address);
+            return uri.getHost() != null && uri.getPort() > 0 && address.equals(uri.getHost() + ":" + uri.getPort());
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record that a submission that arrived here first also ran here.
+     */
+    public void servedLocally() {
+        servedLocally.incrementAndGet();
+    }
+
+    /**
+     * Forward a submission to the node that owns it and copy its response.
+     * <p>
+     * The body is forwarded as received, so the owner decodes it and encodes its response the same way this node
+     * would have. If the owner can't be reached or the submission can't be sent, the owner is taken out of the ring
+     * and nothing has been written to the response. Once the owner has the submission it may be running it, so it is
+     * never run here as well: the owner's status and body are copied whatever they are, and an owner that never
+     * answers is reported as a gateway error and left to the health checks.
+     *
+     * @param owner    the owning node
+     * @param body     the submission
+     * @param headers  request headers to pass on, which say how the submission and its response are encoded
+     * @param response where to copy the owner's response
+     * @return true if the owner has the submission, false if it couldn't be sent and we should run it ourselves
+     * @throws IOException thrown if the response cannot be copied
+     */
+    public boolean forward(final String owner, final byte[] body, final Map<String, String> headers,
+                           final HttpServletResponse response) throws IOException {
+        HttpURLConnection connection;
+        try {
+            connection = connect(owner, "/run", FORWARD_TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty(FORWARDED_HEADER, self);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream request = connection.getOutputStream()) {
+                request.write(body);
+            }
+        } catch (IOException e) {
+            forwardFailures.incrementAndGet();
+            setHealthy(owner, false);
+            return false;
+        }
+        forwarded.incrementAndGet();
+        int status;
+        InputStream ownerResponse;
+        try {
+            status = connection.getResponseCode();
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                ownerResponse = connection.getErrorStream();
+            } else {
+                ownerResponse = connection.getInputStream();
+            }
+        } catch (SocketTimeoutException e) {
+            forwardsUnanswered.incrementAndGet();
+            response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            return true;
+        } catch (IOException e) {
+            forwardsUnanswered.incrementAndGet();
+            response.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+            return true;
+        }
+        response.setStatus(status);
+        for (String header : RESPONSE_HEADERS) {
+            if (connection.getHeaderField(header) != null) {
+                response.setHeader(header, connection.getHeaderField(header));
+            }
+        }
+        OutputStream out = response.getOutputStream();
+        if (ownerResponse == null) {
+            out.flush();
+            return true;
+        }
+        try (InputStream in = ownerResponse) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+        }
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Get the cluster's membership and counters.
+     *
+     * @return a JSON object describing this node's view of the cluster
+     */
+    public JsonObject stats() {
+        JsonArray healthy = new JsonArray();
+        JsonArray unhealthy = new JsonArray();
+        for (Map.Entry<String, Boolean> member : new TreeMap<>(members).entrySet()) {
+            if (member.getValue()) {
+                healthy.add(member.getKey());
+            } else {
+                unhealthy.add(member.getKey());
+            }
+        }
+        return new JsonObject()
+                .add("self", self)
+                .add("healthy", healthy)
+                .add("unhealthy", unhealthy)
+                .add("servedLocally", servedLocally.get())
+                .add("forwarded", forwarded.get())
+                .add("forwardFailures", forwardFailures.get())
+                .add("forwardsUnanswered", forwardsUnanswered.get());
+    }
+
+    /**
+     * Tell a peer that this node exists.
+     *
+     * @param peer the peer's address
+     */
+    private void announce(final String peer) {
+        try {
+            HttpURLConnection connection = connect(peer, "/cluster/join", HEALTH_CHECK_TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            if (secret != null) {
+                connection.setRequestProperty(SECRET_HEADER, new String(secret, StandardCharsets.UTF_8));
+            }
+            connection.setDoOutput(true);
+            try (OutputStream request = connection.getOutputStream()) {
+                request.write(self.getBytes(StandardCharsets.UTF_8));
+            }
+            learn(connection);
+        } catch (IOException ignored) {
+            // The peer will be picked up by the health checks once it is up
+        }
+    }
+
+    /**
+     * Check every peer and update the ring.
+     */
+    private void checkHealth() {
+        for (String peer : members.keySet()) {
+            if (peer.equals(self)) {
+                continue;
+            }
+            boolean healthy;
+            try {
+                HttpURLConnection connection = connect(peer, "/cluster", HEALTH_CHECK_TIMEOUT_MS);
+                healthy = connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+                learn(connection);
+            } catch (IOException e) {
+                healthy = false;
+            }
+            setHealthy(peer, healthy);
+        }
+    }
+
+    /**
+     * Add the nodes a peer knows about. They join the ring once they pass a health check.
+     * <p>
+     * Peers are trusted to only list nodes that joined them, but addresses that aren't host:port are still skipped.
+     *
+     * @param connection connection whose response is the peer's view of the cluster
+     * @throws IOException thrown if the response cannot be read
+     */
+    private void learn(final HttpURLConnection connection) throws IOException {
+        try (Reader response = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            for (JsonValue peer : Json.parse(response).asObject().get("healthy").asArray()) {
+                if (isAddress(peer.asString())) {
+                    members.putIfAbsent(peer.asString(), false);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid cluster response", e);
+        }
+    }
+
+    /**
+     * Update a node's health, rebuilding the ring if it changed.
+     *
+     * @param peer    the node's address
+     * @param healthy whether the node is healthy
+     */
+    private synchronized void setHealthy(final String peer, final boolean healthy) {
+        Boolean previous = members.put(peer, healthy);
+        if (previous == null || previous != healthy) {
+            rebuildRing();
+        }
+    }
+
+    /**
+     * Rebuild the ring from the healthy nodes. This node is always on it.
+     */
+    private synchronized void rebuildRing() {
+        Set<String> nodes = new TreeSet<>();
+        for (Map.Entry<String, Boolean> member : members.entrySet()) {
+            if (member.getValue() || member.getKey().equals(self)) {
+                nodes.add(member.getKey());
+            }
+        }
+        ring = buildRing(nodes);
+    }
+
+    /**
+     * Build a ring for a set of nodes.
+     *
+     * @param nodes the nodes' addresses
+     * @return a map of ring positions to nodes
+     */
+    static NavigableMap<Long, String> buildRing(final Collection<String> nodes) {
+        NavigableMap<Long, String> newRing = new TreeMap<>();
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                newRing.put(hash(node + "#" + i), node);
+            }
+        }
+        return newRing;
+    }
+
+    /**
+     * Find the node that owns a key on a ring.
+     *
+     * @param onRing the ring
+     * @param key    the key
+     * @return the owning node
+     */
+    static String owner(final NavigableMap<Long, String> onRing, final String key) {
+        Map.Entry<Long, String> owner = onRing.ceilingEntry(hash(key));
+        if (owner == null) {
+            owner = onRing.firstEntry();
+        }
+        return owner.getValue();
+    }
+
+    /**
+     * Hash a string to a position on the ring.
+     *
+     * @param value the string to hash
+     * @return the ring position
+     */
+    private static long hash(final String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Open a connection to a peer.
+     *
+     * @param peer    the peer's address
+     * @param path    the path to request
+     * @param timeout how long to wait for a response in milliseconds
+     * @return the connection
+     * @throws IOException thrown if the URL is invalid or the connection cannot be opened
+     */
+    private static HttpURLConnection connect(final String peer, final String path,
+                                             final int timeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + peer + path).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(timeout);
+        return connection;
+    }
+
+    /**
+     * Count how many keys each node owns, for checking how evenly the ring spreads them.
+     *
+     * @param onRing the ring
+     * @param keys   the keys
+     * @return a map of nodes to the number of keys they own
+     */
+    static Map<String, Integer> ownership(final NavigableMap<Long, String> onRing, final Collection<String> keys) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String key : keys) {
+            counts.merge(owner(onRing, key), 1, Integer::sum);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,216 @@
+import com.eclipsesource.json.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Decide whether to skip Janino when no compiler is requested.
+ * <p>
+ * Janino does not support some newer language features. Rather than paying for a failed Janino compile before falling
+ * back to the JDK, we scan the source for constructs that are known to break it and go straight to the JDK compiler.
+ * The scan is a handful of regular expressions, so it may match inside strings or comments. That only costs a slower
+ * compile, never a wrong result.
+ * <p>
+ * The router also keeps track of which compiler wins hedged compiles, where both run at once, and by how much.
+ */
+public final class CompilerRouter {
+    /**
+     * Constructs that Janino cannot compile.
+     */
+    enum Rule {
+        /**
+         * Lambda expressions.
+         */
+        LAMBDA("->"),
+        /**
+         * Method references.
+         */
+        METHOD_REFERENCE("::"),
+        /**
+         * The diamond operator.
+         */
+        DIAMOND("\\w\\s*<>"),
+        /**
+         * Classes that extend or implement a parameterized type, such as Comparable&lt;Question&gt;.
+         * <p>
+         * Janino parses type arguments but erases them, so ordinary uses of generic types compile as long as values
+         * are cast. It cannot generate the bridge methods these classes need, though. Type parameters in the class's
+         * own header, such as &lt;T extends Comparable&lt;T&gt;&gt;, don't match.
+         */
+        GENERIC_SUPERTYPE("\\b(?:class|interface|enum)\\s+\\w+\\s*(?:<[^{;]*?>)?\\s+(?:extends|implements)\\s+[^{;]*<"),
+        /**
+         * Local variable type inference.
+         */
+        VAR("\\bvar\\s+\\w+\\s*[=:]");
+
+        /**
+         * Pattern that identifies the construct.
+         */
+        private final Pattern pattern;
+
+        /**
+         * Number of times this rule sent a source to the JDK.
+         */
+        private final AtomicLong matched = new AtomicLong();
+
+        /**
+         * Create a new rule.
+         *
+         * @param regex regular expression that identifies the construct
+         */
+        Rule(final String regex) {
+            pattern = Pattern.compile(regex);
+        }
+    }
+
+    /**
+     * Number of times Janino was tried and succeeded.
+     */
+    private static final AtomicLong JANINO_HITS = new AtomicLong();
+
+    /**
+     * Number of times Janino was tried and failed, so we fell back to the JDK anyway.
+     */
+    private static final AtomicLong JANINO_MISSES = new AtomicLong();
+
+    /**
+     * Number of times Janino was skipped.
+     */
+    private static final AtomicLong ROUTED_TO_JDK = new AtomicLong();
+
+    /**
+     * Number of hedged compiles won by each compiler.
+     */
+    private static final Map<String, AtomicLong> HEDGE_WINS = new ConcurrentHashMap<>();
+
+    /**
+     * Total lead in seconds of each compiler's hedged wins where the other compiler also succeeded.
+     */
+    private static final Map<String, DoubleAdder> HEDGE_LEADS = new ConcurrentHashMap<>();
+
+    /**
+     * Number of hedged wins included in the lead totals.
+     */
+    private static final Map<String, AtomicLong> HEDGE_LEAD_COUNTS = new ConcurrentHashMap<>();
+
+    /**
+     * Number of hedged compiles that ran only one compiler because every hedge thread was busy.
+     */
+    private static final AtomicLong HEDGE_SKIPPED = new AtomicLong();
+
+    /**
+     * Not instantiable.
+     */
+    private CompilerRouter() { }
+
+    /**
+     * Check whether sources should skip Janino and go straight to the JDK compiler.
+     *
+     * @param sources the sources to scan
+     * @return true if any source contains a construct Janino cannot compile
+     */
+    public static boolean prefersJDK(final String... sources) {
+        Rule rule = matchingRule(sources);
+        if (rule == null) {
+            return false;
+        }
+        rule.matched.incrementAndGet();
+        ROUTED_TO_JDK.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Find the first rule that matches any of the sources, without counting it.
+     *
+     * @param sources the sources to scan
+     * @return the matching rule, or null if Janino should be able to compile the sources
+     */
+    static Rule matchingRule(final String... sources) {
+        for (String source : sources) {
+            for (Rule rule : Rule.values()) {
+                if (rule.pattern.matcher(source).find()) {
+                    return rule;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record the outcome of a Janino compile that the router allowed.
+     *
+     * @param succeeded whether Janino compiled the sources
+     */
+    public static void recordJanino(final boolean succeeded) {
+        if (succeeded) {
+            JANINO_HITS.incrementAndGet();
+        } else {
+            JANINO_MISSES.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record which compiler won a hedged compile.
+     *
+     * @param winner the compiler that succeeded first
+     */
+    public static void recordHedgeWin(final String winner) {
+        HEDGE_WINS.computeIfAbsent(winner, unused -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Record that a hedged compile ran only one compiler because every hedge thread was busy.
+     */
+    public static void recordHedgeSkipped() {
+        HEDGE_SKIPPED.incrementAndGet();
+    }
+
+    /**
+     * Record how far ahead the winner of a hedged compile was, once the other compiler has also succeeded.
+     *
+     * @param winner the compiler that succeeded first
+     * @param lead   how many seconds earlier it succeeded
+     */
+    public static void recordHedgeLead(final String winner, final double lead) {
+        HEDGE_LEADS.computeIfAbsent(winner, unused -> new DoubleAdder()).add(lead);
+        HEDGE_LEAD_COUNTS.computeIfAbsent(winner, unused -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Get the router's counters.
+     *
+     * @return a JSON object with hit, miss, and per-rule counts
+     */
+    public static JsonObject stats() {
+        JsonObject rules = new JsonObject();
+        for (Rule rule : Rule.values()) {
+            rules.add(rule.name(), rule.matched.get());
+        }
+        long hits = JANINO_HITS.get();
+        long misses = JANINO_MISSES.get();
+        double missRate = 0.0;
+        if (hits + misses > 0) {
+            missRate = (double) misses / (hits + misses);
+        }
+        JsonObject hedged = new JsonObject();
+        for (Map.Entry<String, AtomicLong> wins : HEDGE_WINS.entrySet()) {
+            JsonObject winner = new JsonObject().add("wins", wins.getValue().get());
+            AtomicLong leadCount = HEDGE_LEAD_COUNTS.get(wins.getKey());
+            if (leadCount != null && leadCount.get() > 0) {
+                winner.add("averageLead", HEDGE_LEADS.get(wins.getKey()).sum() / leadCount.get());
+            }
+            hedged.add(wins.getKey(), winner);
+        }
+        return new JsonObject()
+                .add("routedToJDK", ROUTED_TO_JDK.get())
+                .add("janinoHits", hits)
+                .add("janinoMisses", misses)
+                .add("janinoMissRate", missRate)
+                .add("rules", rules)
+                .add("hedged", hedged)
+                .add("hedgeSkipped", HEDGE_SKIPPED.get());
+    }
+}
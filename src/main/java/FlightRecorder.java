@@ -0,0 +1,450 @@
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Java Flight Recorder events for each phase of a submission.
+ * <p>
+ * Each phase emits an event carrying the submission's executor, compiler, outcome, and sizes, so that a recording
+ * lines up submissions with garbage collection, safepoints, and lock contention on a single timeline. A recorder
+ * listener tracks whether any recording is running, so when none is, timing a phase is a single volatile read.
+ * <p>
+ * We still build for and deploy on releases without the flight recorder API, so the event types are defined at
+ * runtime through the event factory, which needs Java 12 or newer. On older releases events are not emitted.
+ */
+public final class FlightRecorder {
+    /**
+     * Phases of a submission that emit events.
+     */
+    enum Phase {
+        /**
+         * Parsing the request into a submission.
+         */
+        DECODE("Decode"),
+
+        /**
+         * Running checkstyle.
+         */
+        CHECKSTYLE("Checkstyle"),
+
+        /**
+         * Compiling.
+         */
+        COMPILE("Compile"),
+
+        /**
+         * Running the compiled code.
+         */
+        EXECUTE("Execute"),
+
+        /**
+         * Writing the result.
+         */
+        SERIALIZE("Serialize");
+
+        /**
+         * Label of the phase's events.
+         */
+        private final String label;
+
+        /**
+         * Create a new phase.
+         *
+         * @param setLabel label of the phase's events
+         */
+        Phase(final String setLabel) {
+            label = setLabel;
+        }
+
+        /**
+         * Get the name of the phase's event type.
+         *
+         * @return the event type name
+         */
+        String eventName() {
+            return EVENT_PREFIX + label;
+        }
+    }
+
+    /**
+     * Prefix of the event type names.
+     */
+    static final String EVENT_PREFIX = "janini.";
+
+    /**
+     * Name, type, and label of each event field, in the order they are set.
+     */
+    private static final Object[][] FIELDS = {
+        {"as", String.class, "Executor"},
+        {"compiler", String.class, "Compiler"},
+        {"succeeded", boolean.class, "Succeeded"},
+        {"timedOut", boolean.class, "Timed Out"},
+        {"crashed", boolean.class, "Crashed"},
+        {"sourceLength", long.class, "Source Length"},
+        {"outputLength", long.class, "Output Length"}
+    };
+
+    /**
+     * How long a continuous recording keeps events.
+     */
+    static final Duration MAX_AGE = Duration.ofHours(1);
+
+    /**
+     * How much disk a continuous recording uses before discarding its oldest events.
+     */
+    static final long MAX_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Recordings that are running, whoever started them.
+     */
+    private static final Set<Object> RUNNING = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether any recording is running, kept up to date by a recorder listener so that phases are free to time
+     * otherwise.
+     */
+    private static volatile boolean recording = false;
+
+    /**
+     * Handles to the flight recorder API, or null if it is not available.
+     * Initialized after the recording state, since registering the listener may report running recordings.
+     */
+    private static final Events EVENTS = Events.create();
+
+    /**
+     * The continuous recording, or null if none is running.
+     */
+    private static Object continuous;
+
+    /**
+     * Handles to the flight recorder API, which we can't refer to directly since we still build for Java 10.
+     */
+    private static final class Events {
+        /**
+         * Event factories by phase.
+         */
+        private final Map<Phase, Object> factories = new EnumMap<>(Phase.class);
+
+        /**
+         * EventFactory.newEvent, as (Object) Object.
+         */
+        private final MethodHandle newEvent;
+
+        /**
+         * Event.isEnabled, as (Object) boolean.
+         */
+        private final MethodHandle isEnabled;
+
+        /**
+         * Event.begin, as (Object) void.
+         */
+        private final MethodHandle begin;
+
+        /**
+         * Event.end, as (Object) void.
+         */
+        private final MethodHandle end;
+
+        /**
+         * Event.shouldCommit, as (Object) boolean.
+         */
+        private final MethodHandle shouldCommit;
+
+        /**
+         * Event.set, as (Object, int, Object) void.
+         */
+        private final MethodHandle set;
+
+        /**
+         * Event.commit, as (Object) void.
+         */
+        private final MethodHandle commit;
+
+        /**
+         * Recording.getState, as (Object) Object.
+         */
+        private final MethodHandle getState;
+
+        /**
+         * Define and register an event type for every phase, and look up the methods events are emitted with.
+         *
+         * @throws ReflectiveOperationException thrown if the flight recorder API is not available
+         */
+        @SuppressWarnings("unchecked")
+        private Events() throws ReflectiveOperationException {
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+            Class<? extends Annotation> name = (Class<? extends Annotation>) Class.forName("jdk.jfr.Name");
+            Class<? extends Annotation> label = (Class<? extends Annotation>) Class.forName("jdk.jfr.Label");
+            Class<? extends Annotation> category = (Class<? extends Annotation>) Class.forName("jdk.jfr.Category");
+
+            List<Object> fields = new ArrayList<>();
+            for (Object[] spec : FIELDS) {
+                fields.add(field.newInstance(spec[1], spec[0],
+                        Arrays.asList(annotation.newInstance(label, spec[2]))));
+            }
+            Method create = factoryClass.getMethod("create", List.class, List.class);
+            for (Phase phase : Phase.values()) {
+                List<Object> annotations = Arrays.asList(annotation.newInstance(name, phase.eventName()),
+                        annotation.newInstance(label, phase.label),
+                        annotation.newInstance(category, new String[] {"Janini"}));
+                factories.put(phase, create.invoke(null, annotations, fields));
+            }
+
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodType action = MethodType.methodType(void.class, Object.class);
+            MethodType test = MethodType.methodType(boolean.class, Object.class);
+            newEvent = lookup.unreflect(factoryClass.getMethod("newEvent"))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            isEnabled = lookup.unreflect(eventClass.getMethod("isEnabled")).asType(test);
+            begin = lookup.unreflect(eventClass.getMethod("begin")).asType(action);
+            end = lookup.unreflect(eventClass.getMethod("end")).asType(action);
+            shouldCommit = lookup.unreflect(eventClass.getMethod("shouldCommit")).asType(test);
+            set = lookup.unreflect(eventClass.getMethod("set", int.class, Object.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+            commit = lookup.unreflect(eventClass.getMethod("commit")).asType(action);
+            getState = lookup.unreflect(Class.forName("jdk.jfr.Recording").getMethod("getState"))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+
+            Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+            Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(), new Class<?>[] {listenerClass},
+                    this::listen);
+            Class.forName("jdk.jfr.FlightRecorder").getMethod("addListener", listenerClass).invoke(null, listener);
+        }
+
+        /**
+         * Load the flight recorder API.
+         *
+         * @return handles to the API, or null if it is not available
+         */
+        static Events create() {
+            try {
+                return new Events();
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Handle a call to the recorder listener, tracking which recordings are running.
+         *
+         * @param listener  the listener
+         * @param method    the method called
+         * @param arguments the arguments
+         * @return the method's result
+         * @throws Throwable thrown if a recording's state cannot be read
+         */
+        private Object listen(final Object listener, final Method method, final Object[] arguments) throws Throwable {
+            switch (method.getName()) {
+                case "recorderInitialized":
+                    for (Object each : (List<?>) arguments[0].getClass().getMethod("getRecordings")
+                            .invoke(arguments[0])) {
+                        stateChanged(each);
+                    }
+                    return null;
+                case "recordingStateChanged":
+                    stateChanged(arguments[0]);
+                    return null;
+                case "equals":
+                    return listener == arguments[0];
+                case "hashCode":
+                    return System.identityHashCode(listener);
+                case "toString":
+                    return "janini recording listener";
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Track a recording whose state may have changed.
+         *
+         * @param changed the recording
+         * @throws Throwable thrown if its state cannot be read
+         */
+        private void stateChanged(final Object changed) throws Throwable {
+            if ("RUNNING".equals(String.valueOf((Object) getState.invokeExact(changed)))) {
+                RUNNING.add(changed);
+            } else {
+                RUNNING.remove(changed);
+            }
+            recording = !RUNNING.isEmpty();
+        }
+    }
+
+    /**
+     * A phase in progress.
+     */
+    static final class Span {
+        /**
+         * The event being timed, or null if events are not being recorded.
+         */
+        private final Object event;
+
+        /**
+         * Create a new span.
+         *
+         * @param setEvent the event being timed
+         */
+        private Span(final Object setEvent) {
+            event = setEvent;
+        }
+
+        /**
+         * Finish the phase and commit its event.
+         *
+         * @param source    the submission, or null if it could not be decoded
+         * @param succeeded whether the phase succeeded
+         */
+        void end(final Source source, final boolean succeeded) {
+            if (event == null) {
+                return;
+            }
+            try {
+                EVENTS.end.invokeExact(event);
+                if (!((boolean) EVENTS.shouldCommit.invokeExact(event))) {
+                    return;
+                }
+                Object[] values = {null, null, succeeded, false, false, 0L, 0L};
+                if (source != null) {
+                    long outputLength = 0;
+                    if (source.output != null) {
+                        outputLength = source.output.length();
+                    }
+                    values = new Object[] {source.as, source.compiler, succeeded, source.timedOut, source.crashed,
+                        source.sourceLength(), outputLength};
+                }
+                for (int i = 0; i < values.length; i++) {
+                    EVENTS.set.invokeExact(event, i, values[i]);
+                }
+                EVENTS.commit.invokeExact(event);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable ignored) {
+            }
+        }
+    }
+
+    /**
+     * Span returned when events are not being recorded.
+     */
+    private static final Span DISABLED = new Span(null);
+
+    /**
+     * Not instantiable.
+     */
+    private FlightRecorder() { }
+
+    /**
+     * Check whether events can be emitted on this Java runtime.
+     *
+     * @return true if the flight recorder API is available
+     */
+    static boolean available() {
+        return EVENTS != null;
+    }
+
+    /**
+     * Check whether any recording is running, so that phase events are worth creating.
+     *
+     * @return true if a recording is running
+     */
+    static boolean recording() {
+        return recording;
+    }
+
+    /**
+     * Start timing a phase.
+     *
+     * @param phase the phase
+     * @return a span to end when the phase is done
+     */
+    static Span begin(final Phase phase) {
+        if (!recording) {
+            return DISABLED;
+        }
+        try {
+            Object event = (Object) EVENTS.newEvent.invokeExact(EVENTS.factories.get(phase));
+            if (!((boolean) EVENTS.isEnabled.invokeExact(event))) {
+                return DISABLED;
+            }
+            EVENTS.begin.invokeExact(event);
+            return new Span(event);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            return DISABLED;
+        }
+    }
+
+    /**
+     * Start a continuous recording that keeps the last hour of events, and write it to a file when it stops.
+     * <p>
+     * The recording uses the JDK's default settings, which add little overhead, plus the phase events.
+     *
+     * @param destination the file the recording is written to when the server exits
+     * @throws IllegalStateException thrown if this Java runtime cannot emit the phase events or the recording cannot
+     *                               be started
+     */
+    static synchronized void start(final Path destination) {
+        if (EVENTS == null) {
+            throw new IllegalStateException("Flight recorder events require Java 12 or newer");
+        }
+        if (continuous != null) {
+            return;
+        }
+        try {
+            Class<?> configurationClass = Class.forName("jdk.jfr.Configuration");
+            Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+            Object configuration = configurationClass.getMethod("getConfiguration", String.class).invoke(null,
+                    "default");
+            Object started = recordingClass.getConstructor(configurationClass).newInstance(configuration);
+            recordingClass.getMethod("setName", String.class).invoke(started, "janini");
+            for (Phase phase : Phase.values()) {
+                recordingClass.getMethod("enable", String.class).invoke(started, phase.eventName());
+            }
+            recordingClass.getMethod("setToDisk", boolean.class).invoke(started, true);
+            recordingClass.getMethod("setMaxAge", Duration.class).invoke(started, MAX_AGE);
+            recordingClass.getMethod("setMaxSize", long.class).invoke(started, MAX_SIZE);
+            recordingClass.getMethod("setDestination", Path.class).invoke(started, destination);
+            recordingClass.getMethod("setDumpOnExit", boolean.class).invoke(started, true);
+            recordingClass.getMethod("start").invoke(started);
+            continuous = started;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not start flight recording", e);
+        }
+    }
+
+    /**
+     * Stop the continuous recording and write it to its file.
+     */
+    static synchronized void stop() {
+        if (continuous == null) {
+            return;
+        }
+        try {
+            continuous.getClass().getMethod("stop").invoke(continuous);
+            continuous.getClass().getMethod("close").invoke(continuous);
+        } catch (ReflectiveOperationException ignored) {
+        } finally {
+            continuous = null;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saturation signals and whether this node should be sent more traffic.
+ * <p>
+ * A load balancer that only checks that the server answers keeps sending work to a node until its submissions start
+ * timing out. The signals here move earlier: submissions queue at the scheduler gates, waits for a checkstyle permit
+ * grow, the heap and metaspace fill, and collections take a growing share of the time. Each signal has a limit, and
+ * the node stops accepting traffic while any signal is over its limit, so the balancer can steer away before
+ * timeouts spike.
+ */
+public final class Health {
+    /**
+     * Limits used unless others are configured.
+     * <ul>
+     * <li>executeQueued: submissions waiting to execute</li>
+     * <li>checkstyleWaitMs: moving average wait for a checkstyle permit</li>
+     * <li>heap: fraction of the maximum heap still in use after the last collection</li>
+     * <li>metaspace: fraction of the metaspace high-water mark in use</li>
+     * <li>gcFraction: fraction of the window spent collecting garbage</li>
+     * <li>timeoutRate: fraction of executions in the window that timed out</li>
+     * <li>abandonedThreads: timed out executions whose threads didn't unwind and are still running</li>
+     * </ul>
+     */
+    public static final String DEFAULT_LIMITS = "executeQueued=16,checkstyleWaitMs=2000,heap=0.9,metaspace=1,"
+            + "gcFraction=0.2,timeoutRate=0.5,abandonedThreads=4";
+
+    /**
+     * Length of the window that collection time and the timeout rate are measured over.
+     */
+    static final long WINDOW_SECONDS = 60;
+
+    /**
+     * Fewest executions in the window for the timeout rate to count toward the verdict.
+     */
+    static final long MIN_EXECUTIONS = 10;
+
+    /**
+     * Shortest time between the snapshots the window is measured from, so frequent checks keep a bounded history.
+     */
+    private static final long SNAPSHOT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Nanoseconds in a millisecond.
+     */
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    /**
+     * Counters at one point in time.
+     */
+    private static final class Snapshot {
+        /**
+         * When the snapshot was taken, from System.nanoTime.
+         */
+        private final long at = System.nanoTime();
+
+        /**
+         * Total time spent collecting garbage, in milliseconds.
+         */
+        private final long gcMillis = gcMillis();
+
+        /**
+         * Number of executions.
+         */
+        private final long executions = EXECUTIONS.get();
+
+        /**
+         * Number of executions that timed out.
+         */
+        private final long timeouts = TIMEOUTS.get();
+    }
+
+    /**
+     * Number of executions.
+     */
+    private static final AtomicLong EXECUTIONS = new AtomicLong();
+
+    /**
+     * Number of executions that timed out.
+     */
+    private static final AtomicLong TIMEOUTS = new AtomicLong();
+
+    /**
+     * Snapshots taken by recent checks, oldest first. The oldest is the start of the window.
+     */
+    private static final Deque<Snapshot> HISTORY = new ArrayDeque<>(Collections.singletonList(new Snapshot()));
+
+    /**
+     * Limits by signal name.
+     */
+    private static volatile Map<String, Double> limits = parse(DEFAULT_LIMITS, null);
+
+    /**
+     * Not instantiable.
+     */
+    private Health() { }
+
+    /**
+     * Set the limits of some signals, leaving the others at their defaults.
+     *
+     * @param setLimits comma-separated signal=limit pairs, for example executeQueued=32,heap=0.8
+     */
+    static void configure(final String setLimits) {
+        limits = parse(setLimits, parse(DEFAULT_LIMITS, null));
+    }
+
+    /**
+     * Parse a list of limits.
+     *
+     * @param spec     comma-separated signal=limit pairs
+     * @param defaults limits of the signals the list leaves out, or null if the list defines every signal
+     * @return the limits by signal name
+     */
+    private static Map<String, Double> parse(final String spec, final Map<String, Double> defaults) {
+        Map<String, Double> parsed = new LinkedHashMap<>();
+        if (defaults != null) {
+            parsed.putAll(defaults);
+        }
+        for (String pair : spec.split(",")) {
+            String[] parts = pair.trim().split("=");
+            if (parts.length != 2 || (defaults != null && !defaults.containsKey(parts[0].trim()))) {
+                throw new IllegalArgumentException("Bad health limit " + pair + ", expected one of "
+                        + String.join(", ", parse(DEFAULT_LIMITS, null).keySet()) + " set to a number");
+            }
+            double limit = Double.parseDouble(parts[1].trim());
+            if (limit < 0) {
+                throw new IllegalArgumentException("Health limit " + parts[0].trim() + " must not be negative");
+            }
+            parsed.put(parts[0].trim(), limit);
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    /**
+     * Count an execution.
+     *
+     * @param timedOut whether it timed out
+     */
+    static void executed(final boolean timedOut) {
+        EXECUTIONS.incrementAndGet();
+        if (timedOut) {
+            TIMEOUTS.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the total time the collectors have spent collecting.
+     *
+     * @return the time in milliseconds
+     */
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Get how much of the heap the last collections left in use.
+     * <p>
+     * Current usage includes garbage that simply hasn't been collected yet, so it swings between nearly full and
+     * nearly empty on a healthy node. What each pool held after it was last collected is what the node actually
+     * needs. A pool that hasn't been collected yet counts at its current usage.
+     *
+     * @return the bytes in use after the last collection of each heap pool
+     */
+    private static long heapAfterCollection() {
+        long total = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            MemoryUsage collected = pool.getCollectionUsage();
+            if (collected != null && collected.getCommitted() > 0) {
+                total += collected.getUsed();
+            } else {
+                total += pool.getUsage().getUsed();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get the start of the window, and record the current counters for later checks.
+     *
+     * @param now the current counters
+     * @return the counters at the start of the window
+     */
+    private static synchronized Snapshot advance(final Snapshot now) {
+        long windowStart = now.at - TimeUnit.SECONDS.toNanos(WINDOW_SECONDS);
+        while (HISTORY.size() > 1) {
+            Snapshot oldest = HISTORY.removeFirst();
+            if (HISTORY.peekFirst().at > windowStart) {
+                HISTORY.addFirst(oldest);
+                break;
+            }
+        }
+        Snapshot start = HISTORY.peekFirst();
+        if (now.at - HISTORY.peekLast().at >= SNAPSHOT_INTERVAL) {
+            HISTORY.addLast(now);
+        }
+        return start;
+    }
+
+    /**
+     * Describe one scheduler gate.
+     *
+     * @param gate the gate
+     * @return a JSON object with how many submissions are waiting and running, and how long they recently waited
+     */
+    private static JsonObject gate(final PriorityScheduler.Gate gate) {
+        return new JsonObject()
+                .add("queued", gate.queued())
+                .add("inFlight", gate.inFlight())
+                .add("available", gate.available())
+                .add("recentWaitMs", gate.recentWaitMs());
+    }
+
+    /**
+     * Get a fraction, treating an unknown or unbounded total as empty.
+     *
+     * @param part  the part
+     * @param total the total, or 0 or less if there is none
+     * @return part over total, or 0 if there is no total
+     */
+    private static double fraction(final double part, final double total) {
+        if (total <= 0) {
+            return 0;
+        }
+        return part / total;
+    }
+
+    /**
+     * Check a signal against its limit.
+     *
+     * @param reasons where to add the signal if it is over its limit
+     * @param name    the signal's name
+     * @param value   the signal's value
+     */
+    private static void limit(final JsonArray reasons, final String name, final double value) {
+        double limit = limits.get(name);
+        if (value > limit) {
+            reasons.add(name + " is " + value + ", over the limit of " + limit);
+        }
+    }
+
+    /**
+     * Measure the saturation signals and decide whether this node should be sent more traffic.
+     *
+     * @return a JSON object with the verdict, the signals over their limits, every signal, and the limits
+     */
+    public static JsonObject check() {
+        Snapshot now = new Snapshot();
+        Snapshot start = advance(now);
+        double windowMs = (now.at - start.at) / NANOSECONDS_PER_MILLISECOND;
+        long executions = now.executions - start.executions;
+        long timeouts = now.timeouts - start.timeouts;
+        double gcFraction = Math.min(1, fraction(now.gcMillis - start.gcMillis, windowMs));
+        double timeoutRate = fraction(timeouts, executions);
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long heapMax = heap.getMax();
+        if (heapMax < 0) {
+            heapMax = heap.getCommitted();
+        }
+        long heapLive = heapAfterCollection();
+        double heapFraction = fraction(heapLive, heapMax);
+        long metaspaceUsed = MetaspaceBudget.used();
+        double metaspaceFraction = fraction(metaspaceUsed, MetaspaceBudget.limit());
+        int abandoned = CancellationCheck.abandoned();
+
+        JsonArray reasons = new JsonArray();
+        limit(reasons, "executeQueued", PriorityScheduler.EXECUTE.queued());
+        limit(reasons, "checkstyleWaitMs", PriorityScheduler.CHECKSTYLE.recentWaitMs());
+        limit(reasons, "heap", heapFraction);
+        limit(reasons, "metaspace", metaspaceFraction);
+        limit(reasons, "gcFraction", gcFraction);
+        if (executions >= MIN_EXECUTIONS) {
+            limit(reasons, "timeoutRate", timeoutRate);
+        }
+        limit(reasons, "abandonedThreads", abandoned);
+
+        JsonObject configured = new JsonObject();
+        for (Map.Entry<String, Double> entry : limits.entrySet()) {
+            configured.add(entry.getKey(), entry.getValue());
+        }
+        return new JsonObject()
+                .add("accepting", reasons.isEmpty())
+                .add("reasons", reasons)
+                .add("checkstyle", gate(PriorityScheduler.CHECKSTYLE))
+                .add("compile", gate(PriorityScheduler.COMPILE))
+                .add("execute", gate(PriorityScheduler.EXECUTE))
+                .add("heap", new JsonObject()
+                        .add("used", heap.getUsed())
+                        .add("afterCollection", heapLive)
+                        .add("max", heapMax)
+                        .add("fraction", heapFraction))
+                .add("metaspace", new JsonObject()
+                        .add("used", metaspaceUsed)
+                        .add("highWaterMark", MetaspaceBudget.limit())
+                        .add("fraction", metaspaceFraction))
+                .add("window", new JsonObject()
+                        .add("seconds", windowMs / TimeUnit.SECONDS.toMillis(1))
+                        .add("gcMs", now.gcMillis - start.gcMillis)
+                        .add("gcFraction", gcFraction)
+                        .add("executions", executions)
+                        .add("timeouts", timeouts)
+                        .add("timeoutRate", timeoutRate))
+                .add("abandonedThreads", abandoned)
+                .add("limits", configured);
+    }
+}
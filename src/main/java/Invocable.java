@@ -0,0 +1,19 @@
+/**
+ * An executor that can run its compiled code once per invocation instead of executing it once.
+ */
+public interface Invocable {
+    /**
+     * Get the invocations to run instead of a single execution.
+     *
+     * @return the invocations, or null to execute once
+     */
+    Invocation[] invocations();
+
+    /**
+     * Run the code once with some arguments.
+     *
+     * @param arguments the arguments to pass
+     * @throws Throwable thrown if the code throws
+     */
+    void doInvoke(String[] arguments) throws Throwable;
+}
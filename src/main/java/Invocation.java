@@ -0,0 +1,172 @@
+import java.io.IOException;
+
+/**
+ * One call of a compiled method with its own arguments and timeout, and what happened when it ran.
+ * <p>
+ * A submission can carry a list of up to {@link Source#MAX_INVOCATIONS} invocations to run several test cases against
+ * a single checkstyle and compile.
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public final class Invocation {
+    /**
+     * Arguments to pass to the method.
+     */
+    public String[] arguments;
+
+    /**
+     * Timeout in milliseconds, or null to use the submission's. Cut short if less of the submission's timeout is left.
+     */
+    public Integer timeoutLength;
+
+    /**
+     * Output to compare the output with on the server. If set, the output is not returned.
+     */
+    public String expectedOutput;
+
+    /**
+     * Hex SHA-256 hash of the canonical expected output, used if there is no expected output.
+     */
+    public String expectedOutputHash;
+
+    /**
+     * Time execution took in seconds.
+     */
+    double executionLength;
+
+    /**
+     * Whether execution succeeded.
+     */
+    boolean executed = false;
+
+    /**
+     * Whether execution crashed.
+     */
+    boolean crashed = false;
+
+    /**
+     * Whether execution timed out.
+     */
+    boolean timedOut = false;
+
+    /**
+     * Number of blocks execution ran, if the submission has a block budget.
+     */
+    Long blocksExecuted;
+
+    /**
+     * Whether execution was cancelled for running past the submission's block budget.
+     */
+    boolean budgetExceeded = false;
+
+    /**
+     * Error message generated by execution if it failed.
+     */
+    String executionErrorMessage;
+
+    /**
+     * Stack trace generated by execution if it failed.
+     */
+    String executionErrorStackTrace;
+
+    /**
+     * Output from execution if it succeeded.
+     */
+    String output;
+
+    /**
+     * Whether the output matched the expected output, if one was given.
+     */
+    Boolean outputMatched;
+
+    /**
+     * Where the output first differed from the expected output.
+     */
+    String outputMismatch;
+
+    /**
+     * Get the arguments to pass to the method.
+     *
+     * @return the arguments, or an empty array if none were given
+     */
+    String[] arguments() {
+        if (arguments == null) {
+            return new String[] {};
+        }
+        return arguments;
+    }
+
+    /**
+     * Get the timeout for this invocation.
+     *
+     * @param defaultTimeout the submission's timeout in milliseconds
+     * @return the timeout in milliseconds
+     */
+    int timeoutLength(final int defaultTimeout) {
+        if (timeoutLength == null) {
+            return defaultTimeout;
+        }
+        return timeoutLength;
+    }
+
+    /**
+     * Describe the inputs of this invocation for building a submission key.
+     *
+     * @return a string that differs for every distinct set of arguments, timeout, and expected output
+     */
+    String key() {
+        StringBuilder key = new StringBuilder();
+        key.append(timeoutLength).append(Source.optional(expectedOutput)).append('\0')
+                .append(Source.optional(expectedOutputHash)).append('[');
+        for (String argument : arguments()) {
+            key.append(argument.length()).append(':').append(argument);
+        }
+        return key.append(']').toString();
+    }
+
+    /**
+     * Copy the results of an identical invocation.
+     *
+     * @param other the invocation to copy from
+     */
+    void copyResults(final Invocation other) {
+        executionLength = other.executionLength;
+        executed = other.executed;
+        crashed = other.crashed;
+        timedOut = other.timedOut;
+        blocksExecuted = other.blocksExecuted;
+        budgetExceeded = other.budgetExceeded;
+        executionErrorMessage = other.executionErrorMessage;
+        executionErrorStackTrace = other.executionErrorStackTrace;
+        output = other.output;
+        outputMatched = other.outputMatched;
+        outputMismatch = other.outputMismatch;
+    }
+
+    /**
+     * Write this invocation as an element of the current array, in the order Gson uses.
+     *
+     * @param writer the writer to write to
+     * @throws IOException thrown if the stream cannot be written
+     */
+    void write(final ResultWriter writer) throws IOException {
+        writer.beginElement();
+        writer.field("arguments", arguments);
+        if (timeoutLength != null) {
+            writer.field("timeoutLength", timeoutLength.intValue());
+        }
+        // As for the submission, the expected output is not sent back
+        writer.field("expectedOutputHash", expectedOutputHash);
+        writer.field("executionLength", executionLength);
+        writer.field("executed", executed);
+        writer.field("crashed", crashed);
+        writer.field("timedOut", timedOut);
+        writer.field("blocksExecuted", blocksExecuted);
+        writer.field("budgetExceeded", budgetExceeded);
+        writer.field("executionErrorMessage", executionErrorMessage);
+        writer.field("executionErrorStackTrace", executionErrorStackTrace);
+        writer.field("output", output);
+        writer.field("outputMatched", outputMatched);
+        writer.field("outputMismatch", outputMismatch);
+        writer.endObject();
+    }
+}
@@ -0,0 +1,319 @@
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.compiler.Location;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Shared in-process JDK compiler.
+ * <p>
+ * Opening a standard file manager indexes the platform classes, which is most of the cost of compiling a small
+ * submission. So we keep a pool of file managers around and reuse them. Each compile wraps one in a file manager that
+ * keeps sources and class files in memory, so the shared file managers are only ever read from.
+ */
+public final class JDKCompiler {
+    /**
+     * The system Java compiler. It holds no per-compile state and is safe to share.
+     */
+    private static final JavaCompiler SYSTEM_COMPILER = ToolProvider.getSystemJavaCompiler();
+
+    /**
+     * Maximum number of idle file managers to keep around.
+     */
+    private static final int FILE_MANAGER_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Idle file managers ready for reuse.
+     */
+    private static final BlockingQueue<StandardJavaFileManager> FILE_MANAGERS =
+            new ArrayBlockingQueue<>(FILE_MANAGER_POOL_SIZE);
+
+    /**
+     * Options passed to every compile.
+     */
+    private static final List<String> OPTIONS = Arrays.asList("-g", "-proc:none");
+
+    /**
+     * Not instantiable.
+     */
+    private JDKCompiler() { }
+
+    /**
+     * In-memory source file.
+     */
+    private static final class MemorySourceFile extends SimpleJavaFileObject {
+        /**
+         * Source code.
+         */
+        private final String contents;
+
+        /**
+         * Create a new in-memory source file.
+         *
+         * @param name        the name of the file
+         * @param setContents the source code
+         */
+        MemorySourceFile(final String name, final String setContents) {
+            super(URI.create("string:///" + name), Kind.SOURCE);
+            contents = setContents;
+        }
+
+        @Override
+        public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+            return contents;
+        }
+
+        /**
+         * Allow public classes whose names don't match the file name, like Janino does.
+         */
+        @Override
+        public boolean isNameCompatible(final String simpleName, final Kind kind) {
+            return kind == Kind.SOURCE;
+        }
+    }
+
+    /**
+     * In-memory class file.
+     */
+    private static final class MemoryClassFile extends SimpleJavaFileObject {
+        /**
+         * Binary name of the class.
+         */
+        private final String binaryName;
+
+        /**
+         * Bytes written by the compiler.
+         */
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /**
+         * Create a new in-memory class file.
+         *
+         * @param className the binary name of the class
+         */
+        MemoryClassFile(final String className) {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            binaryName = className;
+        }
+
+        /**
+         * Create an in-memory class file for a class compiled earlier.
+         *
+         * @param className the binary name of the class
+         * @param contents  the class file bytes
+         */
+        MemoryClassFile(final String className, final byte[] contents) {
+            this(className);
+            bytes.write(contents, 0, contents.length);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * File manager that captures class files in memory and reads everything else from a shared file manager.
+     */
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        /**
+         * Class files produced by the current compile.
+         */
+        private final Map<String, MemoryClassFile> classFiles = new HashMap<>();
+
+        /**
+         * Classes the sources are compiled against in addition to the class path, by package.
+         */
+        private final Map<String, List<JavaFileObject>> classPath = new HashMap<>();
+
+        /**
+         * Create a new in-memory file manager.
+         *
+         * @param fileManager the shared file manager to read platform and class path classes from
+         * @param classes     a map of binary class names to class file bytes to add to the class path
+         */
+        MemoryFileManager(final StandardJavaFileManager fileManager, final Map<String, byte[]> classes) {
+            super(fileManager);
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                String packageName = "";
+                int lastDot = entry.getKey().lastIndexOf('.');
+                if (lastDot >= 0) {
+                    packageName = entry.getKey().substring(0, lastDot);
+                }
+                classPath.computeIfAbsent(packageName, name -> new ArrayList<>())
+                        .add(new MemoryClassFile(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(final JavaFileManager.Location location, final String packageName,
+                                             final Set<JavaFileObject.Kind> kinds, final boolean recurse)
+                throws IOException {
+            Iterable<JavaFileObject> listed = super.list(location, packageName, kinds, recurse);
+            List<JavaFileObject> added = classPath.get(packageName);
+            if (added == null || location != StandardLocation.CLASS_PATH
+                    || !kinds.contains(JavaFileObject.Kind.CLASS)) {
+                return listed;
+            }
+            List<JavaFileObject> combined = new ArrayList<>(added);
+            for (JavaFileObject file : listed) {
+                combined.add(file);
+            }
+            return combined;
+        }
+
+        @Override
+        public String inferBinaryName(final JavaFileManager.Location location, final JavaFileObject file) {
+            if (file instanceof MemoryClassFile) {
+                return ((MemoryClassFile) file).binaryName;
+            }
+            return super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(final JavaFileManager.Location location, final String className,
+                                                   final JavaFileObject.Kind kind, final FileObject sibling) {
+            MemoryClassFile classFile = new MemoryClassFile(className);
+            classFiles.put(className, classFile);
+            return classFile;
+        }
+
+        @Override
+        public boolean isSameFile(final FileObject a, final FileObject b) {
+            return a.toUri().equals(b.toUri());
+        }
+
+        /**
+         * Don't close the shared file manager when we are done.
+         */
+        @Override
+        public void close() { }
+
+        /**
+         * Get the compiled classes.
+         *
+         * @return a map of binary class names to class file bytes
+         */
+        Map<String, byte[]> getClasses() {
+            Map<String, byte[]> classes = new HashMap<>();
+            for (Map.Entry<String, MemoryClassFile> classFile : classFiles.entrySet()) {
+                classes.put(classFile.getKey(), classFile.getValue().bytes.toByteArray());
+            }
+            return classes;
+        }
+    }
+
+    /**
+     * Compile a set of sources together to class file bytes.
+     *
+     * @param sources a map of source file names to contents
+     * @return a map of binary class names to class file bytes
+     * @throws CompileException thrown if compilation fails
+     */
+    public static Map<String, byte[]> compileToBytes(final Map<String, String> sources) throws CompileException {
+        return compileToBytes(sources, Collections.emptyMap());
+    }
+
+    /**
+     * Compile a set of sources together against classes compiled earlier.
+     *
+     * @param sources   a map of source file names to contents
+     * @param classPath a map of binary class names to class file bytes to compile against
+     * @return a map of binary class names to class file bytes
+     * @throws CompileException thrown if compilation fails
+     */
+    public static Map<String, byte[]> compileToBytes(final Map<String, String> sources,
+                                                     final Map<String, byte[]> classPath) throws CompileException {
+        List<JavaFileObject> sourceFiles = new ArrayList<>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            sourceFiles.add(new MemorySourceFile(source.getKey(), source.getValue()));
+        }
+
+        StandardJavaFileManager fileManager = FILE_MANAGERS.poll();
+        if (fileManager == null) {
+            fileManager = SYSTEM_COMPILER.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+        }
+        try {
+            DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+            MemoryFileManager memoryFileManager = new MemoryFileManager(fileManager, classPath);
+            boolean succeeded = SYSTEM_COMPILER.getTask(null, memoryFileManager, diagnostics,
+                    OPTIONS, null, sourceFiles).call();
+            if (!succeeded) {
+                throw toCompileException(diagnostics);
+            }
+            return memoryFileManager.getClasses();
+        } finally {
+            if (!FILE_MANAGERS.offer(fileManager)) {
+                try {
+                    fileManager.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Close the idle file managers, which hold the compiler's indexes of the platform classes.
+     * <p>
+     * Used to make room when memory runs low. New file managers are opened as needed, at the cost of slower compiles.
+     */
+    static void trimFileManagers() {
+        for (StandardJavaFileManager fileManager = FILE_MANAGERS.poll(); fileManager != null;
+             fileManager = FILE_MANAGERS.poll()) {
+            try {
+                fileManager.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Convert the first compiler error to a CompileException.
+     *
+     * @param diagnostics diagnostics collected during the compile
+     * @return an exception describing the first error
+     */
+    private static CompileException toCompileException(final DiagnosticCollector<JavaFileObject> diagnostics) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() != Diagnostic.Kind.ERROR) {
+                continue;
+            }
+            Location location = null;
+            if (diagnostic.getSource() != null) {
+                location = new Location(diagnostic.getSource().getName(),
+                        (int) diagnostic.getLineNumber(), (int) diagnostic.getColumnNumber());
+            }
+            return new CompileException(diagnostic.getMessage(null), location);
+        }
+        return new CompileException("Compilation failed", null);
+    }
+}
@@ -0,0 +1,481 @@
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keep track of the class loaders that hold submitted code, and keep metaspace from running out.
+ * <p>
+ * Every submission's classes are loaded into a new class loader, and they are only unloaded once that loader is
+ * collected. Anything that still refers to one of the classes, such as a thread that kept running after it timed out
+ * and was stopped, keeps the whole loader in metaspace. So loaders are tracked with weak references from when they are
+ * created until they are collected. A loader that survives a full collection well after its request finished is
+ * reported as leaking.
+ * <p>
+ * Above the metaspace high-water mark, new runs wait while caches are trimmed and released loaders are collected, and
+ * are turned away if that doesn't bring metaspace back under the mark. Leaks are reported through {@link #stats()}
+ * rather than printed, since System.err belongs to whatever submission is running.
+ */
+public final class MetaspaceBudget {
+    /**
+     * A class loader being tracked.
+     */
+    static final class Tracked extends WeakReference<ClassLoader> {
+        /**
+         * The classes in the loader, for leak reports.
+         */
+        private final String description;
+
+        /**
+         * Whether the loader's request has finished.
+         */
+        private volatile boolean released = false;
+
+        /**
+         * When the loader's request finished, from System.nanoTime.
+         */
+        private volatile long releasedAt;
+
+        /**
+         * Whether the loader's request timed out, which is how most leaks start.
+         */
+        private volatile boolean timedOut = false;
+
+        /**
+         * Whether the loader has been reported as leaking.
+         */
+        private volatile boolean leaking = false;
+
+        /**
+         * Start tracking a class loader.
+         *
+         * @param loader         the class loader
+         * @param setDescription the classes in the loader
+         */
+        Tracked(final ClassLoader loader, final String setDescription) {
+            super(loader, COLLECTED);
+            description = setDescription;
+        }
+    }
+
+    /**
+     * Name of the memory pool that holds class metadata.
+     */
+    private static final String METASPACE_POOL = "Metaspace";
+
+    /**
+     * Fraction of MaxMetaspaceSize used as the high-water mark if none is given.
+     */
+    private static final double DEFAULT_HIGH_WATER_FRACTION = 0.8;
+
+    /**
+     * How often to look for leaks in milliseconds.
+     */
+    private static final long SCAN_INTERVAL_MS = 30000;
+
+    /**
+     * Default time after its request finished that a loader that survives a full collection is leaking.
+     */
+    private static final long DEFAULT_LEAK_AGE_MS = 60000;
+
+    /**
+     * Longest time a run waits for metaspace to drop under the high-water mark in milliseconds.
+     */
+    static final long THROTTLE_WAIT_MS = 5000;
+
+    /**
+     * Shortest time between collections while runs are being throttled in milliseconds.
+     */
+    private static final long RECLAIM_INTERVAL_MS = 500;
+
+    /**
+     * Most leaks listed by {@link #stats()}.
+     */
+    private static final int MAX_REPORTED_LEAKS = 20;
+
+    /**
+     * Convert milliseconds to nanoseconds.
+     */
+    private static final long MILLISECONDS_TO_NANOSECONDS = 1000000;
+
+    /**
+     * Convert nanoseconds to seconds.
+     */
+    private static final double NANOSECONDS_TO_SECONDS = 1000000000.0;
+
+    /**
+     * Message returned with runs that are turned away.
+     */
+    static final String REJECTED_MESSAGE = "Server is low on metaspace, try again later";
+
+    /**
+     * The metaspace memory pool, or null if this JVM doesn't have one.
+     */
+    private static final MemoryPoolMXBean METASPACE = findMetaspace();
+
+    /**
+     * Queue that collected loaders' references are added to.
+     */
+    private static final ReferenceQueue<ClassLoader> COLLECTED = new ReferenceQueue<>();
+
+    /**
+     * Loaders that have not been collected yet.
+     */
+    private static final Set<Tracked> TRACKED = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of loaders created.
+     */
+    private static final AtomicLong CREATED_COUNT = new AtomicLong();
+
+    /**
+     * Number of loaders collected.
+     */
+    private static final AtomicLong COLLECTED_COUNT = new AtomicLong();
+
+    /**
+     * Number of loaders ever reported as leaking.
+     */
+    private static final AtomicLong LEAKED_COUNT = new AtomicLong();
+
+    /**
+     * Number of runs that had to wait for metaspace.
+     */
+    private static final AtomicLong THROTTLED_COUNT = new AtomicLong();
+
+    /**
+     * Number of runs turned away because metaspace stayed above the high-water mark.
+     */
+    private static final AtomicLong REJECTED_COUNT = new AtomicLong();
+
+    /**
+     * Number of times caches were trimmed to make room.
+     */
+    private static final AtomicLong TRIMMED_COUNT = new AtomicLong();
+
+    /**
+     * Lock held by a waiting run while it trims caches and collects, so that only one of them collects at a time.
+     */
+    static final ReentrantLock RECLAIM_LOCK = new ReentrantLock();
+
+    /**
+     * High-water mark in bytes, or 0 for none.
+     */
+    private static volatile long limit = 0;
+
+    /**
+     * Time after its request finished that a loader that survives a full collection is leaking, in nanoseconds.
+     */
+    private static volatile long leakAge = DEFAULT_LEAK_AGE_MS * MILLISECONDS_TO_NANOSECONDS;
+
+    /**
+     * When we last started a full collection, from System.nanoTime.
+     */
+    private static volatile long lastCollection = System.nanoTime();
+
+    /**
+     * Thread that looks for leaks, or null if it hasn't been started.
+     */
+    private static ScheduledExecutorService scanner = null;
+
+    /**
+     * Not instantiable.
+     */
+    private MetaspaceBudget() { }
+
+    /**
+     * Find the metaspace memory pool.
+     *
+     * @return the pool, or null if this JVM doesn't have one
+     */
+    private static MemoryPoolMXBean findMetaspace() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals(METASPACE_POOL)) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the default high-water mark.
+     *
+     * @return a fraction of MaxMetaspaceSize, or 0 if metaspace is unbounded
+     */
+    static long defaultLimit() {
+        if (METASPACE == null || METASPACE.getUsage().getMax() < 0) {
+            return 0;
+        }
+        return (long) (METASPACE.getUsage().getMax() * DEFAULT_HIGH_WATER_FRACTION);
+    }
+
+    /**
+     * Set the high-water mark and start looking for leaks.
+     *
+     * @param setLimit the high-water mark in bytes, or 0 to never throttle
+     */
+    static synchronized void start(final long setLimit) {
+        limit = setLimit;
+        if (scanner != null) {
+            return;
+        }
+        scanner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metaspace-budget");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scanner.scheduleWithFixedDelay(MetaspaceBudget::scan, SCAN_INTERVAL_MS, SCAN_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the high-water mark.
+     *
+     * @param setLimit the high-water mark in bytes, or 0 to never throttle
+     */
+    static void setLimit(final long setLimit) {
+        limit = setLimit;
+    }
+
+    /**
+     * Get the high-water mark.
+     *
+     * @return the high-water mark in bytes, or 0 if there is none
+     */
+    static long limit() {
+        return limit;
+    }
+
+    /**
+     * Set how long after its request finished a loader must survive to be reported as leaking.
+     *
+     * @param setLeakAge the age in milliseconds
+     */
+    static void setLeakAge(final long setLeakAge) {
+        leakAge = setLeakAge * MILLISECONDS_TO_NANOSECONDS;
+    }
+
+    /**
+     * Get how much metaspace is in use.
+     *
+     * @return the bytes in use, or 0 if this JVM doesn't have metaspace
+     */
+    static long used() {
+        if (METASPACE == null) {
+            return 0;
+        }
+        return METASPACE.getUsage().getUsed();
+    }
+
+    /**
+     * Start tracking a new class loader.
+     *
+     * @param loader  the class loader
+     * @param classes the names of the classes it holds
+     * @return the handle to release the loader with once its request finishes
+     */
+    static Tracked track(final ClassLoader loader, final Collection<String> classes) {
+        drain();
+        String description = "no classes";
+        if (!classes.isEmpty()) {
+            description = new TreeSet<>(classes).first();
+            if (classes.size() > 1) {
+                description += " and " + (classes.size() - 1) + " more";
+            }
+        }
+        Tracked tracked = new Tracked(loader, description);
+        TRACKED.add(tracked);
+        CREATED_COUNT.incrementAndGet();
+        return tracked;
+    }
+
+    /**
+     * Mark loaders as no longer needed because their request has finished.
+     *
+     * @param loaders  the loaders created for the request
+     * @param timedOut whether the request timed out
+     */
+    static void release(final Collection<Tracked> loaders, final boolean timedOut) {
+        long now = System.nanoTime();
+        for (Tracked tracked : loaders) {
+            tracked.timedOut = timedOut;
+            tracked.releasedAt = now;
+            tracked.released = true;
+        }
+    }
+
+    /**
+     * Let a run go ahead, waiting for metaspace to drop under the high-water mark if it is above it.
+     * <p>
+     * Waiting runs sleep without holding the reclaim lock, and wait for it only as long as their deadline allows, so a
+     * run stuck behind a slow collection is still rejected on time.
+     *
+     * @return whether the run may go ahead, or false if metaspace stayed above the mark
+     */
+    static boolean admit() {
+        long currentLimit = limit;
+        if (currentLimit <= 0 || used() < currentLimit) {
+            return true;
+        }
+        THROTTLED_COUNT.incrementAndGet();
+        long deadline = System.nanoTime() + THROTTLE_WAIT_MS * MILLISECONDS_TO_NANOSECONDS;
+        try {
+            while (used() >= currentLimit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !RECLAIM_LOCK.tryLock(remaining, TimeUnit.NANOSECONDS)) {
+                    REJECTED_COUNT.incrementAndGet();
+                    return false;
+                }
+                try {
+                    if (used() >= currentLimit && System.nanoTime() - lastCollection
+                            >= RECLAIM_INTERVAL_MS * MILLISECONDS_TO_NANOSECONDS) {
+                        JDKCompiler.trimFileManagers();
+                        TRIMMED_COUNT.incrementAndGet();
+                        collect();
+                        continue;
+                    }
+                } finally {
+                    RECLAIM_LOCK.unlock();
+                }
+                Thread.sleep(Math.max(0, Math.min(RECLAIM_INTERVAL_MS,
+                        TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            REJECTED_COUNT.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Look for loaders that outlived their requests.
+     * <p>
+     * Loaders are only unloaded by a full collection, so if any were released long enough ago to be suspects, we
+     * collect once and report those that survive. Loaders reported once are not suspects again, so a real leak doesn't
+     * cause a collection on every scan.
+     */
+    static synchronized void scan() {
+        drain();
+        long now = System.nanoTime();
+        boolean collectSuspects = false;
+        for (Tracked tracked : TRACKED) {
+            if (isSuspect(tracked, now) && tracked.releasedAt - lastCollection > 0) {
+                collectSuspects = true;
+                break;
+            }
+        }
+        if (collectSuspects) {
+            collect();
+        }
+        for (Tracked tracked : TRACKED) {
+            if (tracked.get() == null) {
+                collected(tracked);
+            } else if (isSuspect(tracked, now) && lastCollection - tracked.releasedAt > 0) {
+                tracked.leaking = true;
+                LEAKED_COUNT.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Check whether a loader was released long enough ago that it should have been collected.
+     *
+     * @param tracked the loader
+     * @param now     the current time from System.nanoTime
+     * @return whether the loader is a suspect
+     */
+    private static boolean isSuspect(final Tracked tracked, final long now) {
+        return tracked.released && !tracked.leaking && now - tracked.releasedAt > leakAge;
+    }
+
+    /**
+     * Run a full collection, which unloads the classes of loaders that are no longer reachable.
+     */
+    private static void collect() {
+        lastCollection = System.nanoTime();
+        System.gc();
+        drain();
+    }
+
+    /**
+     * Stop tracking loaders that have been collected.
+     */
+    private static void drain() {
+        for (Reference<? extends ClassLoader> reference = COLLECTED.poll(); reference != null;
+             reference = COLLECTED.poll()) {
+            collected((Tracked) reference);
+        }
+    }
+
+    /**
+     * Stop tracking a loader that has been collected.
+     *
+     * @param tracked the loader
+     */
+    private static void collected(final Tracked tracked) {
+        if (TRACKED.remove(tracked)) {
+            COLLECTED_COUNT.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get metaspace usage, loader counts, and the loaders that are leaking.
+     *
+     * @return a JSON object with usage in bytes, counters, and a list of leaking loaders
+     */
+    public static JsonObject stats() {
+        drain();
+        long now = System.nanoTime();
+        int inUse = 0;
+        int released = 0;
+        int leaking = 0;
+        JsonArray leaks = new JsonArray();
+        for (Tracked tracked : TRACKED) {
+            if (!tracked.released) {
+                inUse++;
+            } else if (!tracked.leaking) {
+                released++;
+            } else {
+                leaking++;
+                if (leaks.size() < MAX_REPORTED_LEAKS) {
+                    leaks.add(new JsonObject()
+                            .add("classes", tracked.description)
+                            .add("timedOut", tracked.timedOut)
+                            .add("releasedSecondsAgo", (now - tracked.releasedAt) / NANOSECONDS_TO_SECONDS));
+                }
+            }
+        }
+        long peak = 0;
+        if (METASPACE != null) {
+            peak = METASPACE.getPeakUsage().getUsed();
+        }
+        return new JsonObject()
+                .add("used", used())
+                .add("peak", peak)
+                .add("highWaterMark", limit)
+                .add("loadersInUse", inUse)
+                .add("loadersReleased", released)
+                .add("loadersLeaking", leaking)
+                .add("loadersCreated", CREATED_COUNT.get())
+                .add("loadersCollected", COLLECTED_COUNT.get())
+                .add("leaksReported", LEAKED_COUNT.get())
+                .add("throttled", THROTTLED_COUNT.get())
+                .add("rejected", REJECTED_COUNT.get())
+                .add("trimmed", TRIMMED_COUNT.get())
+                .add("leaks", leaks);
+    }
+}
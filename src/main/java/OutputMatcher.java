@@ -0,0 +1,375 @@
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Compare output with what was expected while it is being captured, so that the output itself never has to be kept.
+ * <p>
+ * Output is canonicalized as it arrives according to the comparison mode, and then either compared byte by byte with
+ * the canonical expected output or hashed and compared with an expected SHA-256 hash at the end. Whitespace bytes
+ * never occur inside multi-byte characters, so canonicalization works directly on the encoded bytes.
+ */
+public final class OutputMatcher extends OutputStream {
+    /**
+     * Compare output exactly.
+     */
+    public static final String EXACT = "exact";
+
+    /**
+     * Compare whitespace-separated tokens, ignoring how much whitespace separates them.
+     */
+    public static final String WHITESPACE = "whitespace";
+
+    /**
+     * Compare line by line, ignoring trailing whitespace on each line and trailing blank lines.
+     */
+    public static final String LINES = "lines";
+
+    /**
+     * Maximum number of bytes of expected and actual output shown when they differ.
+     */
+    private static final int EXCERPT_LENGTH = 40;
+
+    /**
+     * Comparison mode.
+     */
+    private final String comparison;
+
+    /**
+     * Canonical expected output, or null if comparing hashes.
+     */
+    private final byte[] expected;
+
+    /**
+     * Expected hash of the canonical output, or null if comparing output.
+     */
+    private final String expectedHash;
+
+    /**
+     * Digest of the canonical output, or null if comparing output.
+     */
+    private final MessageDigest digest;
+
+    /**
+     * Whether to stop the code that is running at the first mismatch.
+     */
+    private final boolean stopOnMismatch;
+
+    /**
+     * Number of canonical output bytes seen so far.
+     */
+    private int position = 0;
+
+    /**
+     * Canonical position of the first mismatch, or -1 if there hasn't been one.
+     */
+    private int mismatchAt = -1;
+
+    /**
+     * Canonical output starting at the first mismatch, kept for the excerpt.
+     */
+    private final ByteArrayOutputStream mismatched = new ByteArrayOutputStream();
+
+    /**
+     * All canonical output, when only canonicalizing.
+     */
+    private final ByteArrayOutputStream canonical;
+
+    /**
+     * Whether the output has ended, so that pending whitespace can no longer matter.
+     */
+    private boolean finished = false;
+
+    /**
+     * Whether the hash of the canonical output matched, once it has ended.
+     */
+    private boolean hashMatched = false;
+
+    /**
+     * Whitespace seen in whitespace mode since the last token.
+     */
+    private boolean pendingSpace = false;
+
+    /**
+     * Trailing whitespace seen in lines mode since the last visible byte on this line.
+     */
+    private final ByteArrayOutputStream pendingWhitespace = new ByteArrayOutputStream();
+
+    /**
+     * Line breaks seen in lines mode since the last visible byte.
+     */
+    private int pendingNewlines = 0;
+
+    /**
+     * Create a new output matcher.
+     *
+     * @param setComparison     the comparison mode, or null to compare exactly
+     * @param expectedOutput    the expected output, or null to compare hashes
+     * @param setExpectedHash   the expected hex SHA-256 hash of the canonical output, used if there is no expected
+     *                          output
+     * @param setStopOnMismatch whether to stop the running code at the first mismatch
+     * @throws IllegalArgumentException thrown if the comparison mode is unknown
+     */
+    public OutputMatcher(final String setComparison, final String expectedOutput, final String setExpectedHash,
+                         final boolean setStopOnMismatch) {
+        comparison = mode(setComparison);
+        canonical = null;
+        if (expectedOutput != null) {
+            expected = canonicalize(comparison, expectedOutput.getBytes(Charset.defaultCharset()));
+            expectedHash = null;
+            digest = null;
+            stopOnMismatch = setStopOnMismatch;
+        } else {
+            expected = null;
+            expectedHash = setExpectedHash.toLowerCase();
+            digest = sha256();
+            stopOnMismatch = false;
+        }
+    }
+
+    /**
+     * Create a matcher that only canonicalizes.
+     *
+     * @param setComparison the comparison mode
+     */
+    private OutputMatcher(final String setComparison) {
+        comparison = setComparison;
+        expected = null;
+        expectedHash = null;
+        digest = null;
+        stopOnMismatch = false;
+        canonical = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Check a comparison mode.
+     *
+     * @param comparison the comparison mode, or null to compare exactly
+     * @return the comparison mode
+     * @throws IllegalArgumentException thrown if the comparison mode is unknown
+     */
+    static String mode(final String comparison) {
+        if (comparison == null) {
+            return EXACT;
+        }
+        if (!comparison.equals(EXACT) && !comparison.equals(WHITESPACE) && !comparison.equals(LINES)) {
+            throw new IllegalArgumentException("Unknown comparison " + comparison);
+        }
+        return comparison;
+    }
+
+    /**
+     * Canonicalize some output.
+     *
+     * @param comparison the comparison mode
+     * @param output     the output bytes
+     * @return the canonical output bytes
+     */
+    private static byte[] canonicalize(final String comparison, final byte[] output) {
+        OutputMatcher canonicalizer = new OutputMatcher(comparison);
+        canonicalizer.write(output, 0, output.length);
+        return canonicalizer.canonical.toByteArray();
+    }
+
+    /**
+     * Compute the hash that should be sent to compare against some expected output without sending the output.
+     *
+     * @param comparison     the comparison mode, or null to compare exactly
+     * @param expectedOutput the expected output
+     * @return the hex SHA-256 hash of the canonical expected output
+     */
+    public static String hash(final String comparison, final String expectedOutput) {
+        byte[] canonicalOutput = canonicalize(mode(comparison), expectedOutput.getBytes(Charset.defaultCharset()));
+        return hex(sha256().digest(canonicalOutput));
+    }
+
+    @Override
+    public void write(final int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(final byte[] bytes, final int offset, final int length) {
+        if (finished) {
+            return;
+        }
+        boolean matchedBefore = mismatchAt == -1;
+        for (int i = offset; i < offset + length; i++) {
+            accept(bytes[i]);
+        }
+        if (stopOnMismatch && mismatchAt != -1) {
+            finished = true;
+            if (matchedBefore) {
+                throw new ThreadDeath();
+            }
+        }
+    }
+
+    /**
+     * Feed one output byte through canonicalization.
+     *
+     * @param b the output byte
+     */
+    private void accept(final byte b) {
+        if (comparison.equals(WHITESPACE)) {
+            if (isWhitespace(b)) {
+                pendingSpace = position > 0;
+                return;
+            }
+            if (pendingSpace) {
+                compare((byte) ' ');
+                pendingSpace = false;
+            }
+        } else if (comparison.equals(LINES)) {
+            if (b == '\n') {
+                pendingWhitespace.reset();
+                pendingNewlines++;
+                return;
+            }
+            if (isWhitespace(b)) {
+                pendingWhitespace.write(b);
+                return;
+            }
+            for (; pendingNewlines > 0; pendingNewlines--) {
+                compare((byte) '\n');
+            }
+            for (byte whitespace : pendingWhitespace.toByteArray()) {
+                compare(whitespace);
+            }
+            pendingWhitespace.reset();
+        }
+        compare(b);
+    }
+
+    /**
+     * Compare one canonical output byte.
+     *
+     * @param b the canonical output byte
+     */
+    private void compare(final byte b) {
+        if (canonical != null) {
+            canonical.write(b);
+        } else if (digest != null) {
+            digest.update(b);
+        } else if (mismatchAt != -1) {
+            if (mismatched.size() < EXCERPT_LENGTH) {
+                mismatched.write(b);
+            }
+        } else if (position >= expected.length || expected[position] != b) {
+            mismatchAt = position;
+            mismatched.write(b);
+        }
+        position++;
+    }
+
+    /**
+     * Mark the end of the output. Whatever is still pending is trailing whitespace and is dropped.
+     */
+    public synchronized void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (digest != null) {
+            hashMatched = hex(digest.digest()).equals(expectedHash);
+        } else if (mismatchAt == -1 && position < expected.length) {
+            mismatchAt = position;
+        }
+    }
+
+    /**
+     * Check whether the output matched. Only meaningful once the output has finished.
+     *
+     * @return whether the canonical output matched what was expected
+     */
+    public synchronized boolean matched() {
+        if (digest != null) {
+            return hashMatched;
+        }
+        return mismatchAt == -1;
+    }
+
+    /**
+     * Describe where the output first differed from what was expected.
+     *
+     * @return a short excerpt of the expected and actual output, or null if they matched or only hashes were compared
+     */
+    public synchronized String mismatch() {
+        if (digest != null || mismatchAt == -1) {
+            return null;
+        }
+        int line = 1;
+        int lineStart = 0;
+        for (int i = 0; i < mismatchAt; i++) {
+            if (expected[i] == '\n') {
+                line++;
+                lineStart = i + 1;
+            }
+        }
+        return "Mismatch at line " + line + ", column " + (mismatchAt - lineStart + 1)
+                + ": expected \"" + excerpt(Arrays.copyOfRange(expected, mismatchAt, expected.length))
+                + "\" but got \"" + excerpt(mismatched.toByteArray()) + "\"";
+    }
+
+    /**
+     * Shorten output for a mismatch excerpt.
+     *
+     * @param bytes the output starting where it differed
+     * @return up to the end of the line or the excerpt length, with line breaks escaped
+     */
+    private static String excerpt(final byte[] bytes) {
+        int length = 0;
+        while (length < bytes.length && length < EXCERPT_LENGTH && bytes[length] != '\n') {
+            length++;
+        }
+        String excerpt = new String(bytes, 0, length, Charset.defaultCharset());
+        if (length < bytes.length) {
+            if (bytes[length] == '\n') {
+                excerpt += "\\n";
+            } else {
+                excerpt += "...";
+            }
+        }
+        return excerpt;
+    }
+
+    /**
+     * Check whether a byte is ASCII whitespace.
+     *
+     * @param b the byte to check
+     * @return whether it is a space, tab, carriage return, line feed, vertical tab, or form feed
+     */
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\u000B' || b == '\f';
+    }
+
+    /**
+     * Create a SHA-256 digest.
+     *
+     * @return a new digest
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Encode bytes as lowercase hex.
+     *
+     * @param bytes the bytes to encode
+     * @return the hex string
+     */
+    private static String hex(final byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,391 @@
+import com.eclipsesource.json.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Schedule checkstyle, compiles, and executions by priority class.
+ * <p>
+ * Interactive requests from the web IDE and bulk requests from autograders arrive through the same route. Without
+ * scheduling, a regrade batch queues ahead of everyone typing in the IDE. So each stage sits behind a gate with a
+ * fixed number of permits, and submissions waiting for a permit queue by class. Freed permits go to the classes in
+ * proportion to their weights, using stride scheduling: each class advances by its latency target every time one of
+ * its submissions is admitted, and the class that is furthest behind goes next. A class with a tenth of the target
+ * gets ten times the share, and an idle class doesn't bank credit while it is away.
+ */
+public final class PriorityScheduler {
+    /**
+     * Header that sets the priority class of a submission that doesn't set one itself.
+     */
+    public static final String HEADER = "X-Priority";
+
+    /**
+     * Latency targets used unless others are configured.
+     */
+    public static final String DEFAULT_TARGETS = "interactive=250,batch=10000";
+
+    /**
+     * A submission waiting for a permit.
+     */
+    private static final class Ticket {
+        /**
+         * Whether the submission has been given a permit.
+         */
+        private boolean admitted = false;
+    }
+
+    /**
+     * The submissions of one class waiting at one gate, and how long they have waited.
+     */
+    private static final class Lane {
+        /**
+         * Submissions waiting, in arrival order.
+         */
+        private final Queue<Ticket> waiting = new ArrayDeque<>();
+
+        /**
+         * The lane's position in virtual time. The lane with the lowest pass is admitted next.
+         */
+        private long pass = 0;
+
+        /**
+         * Number of submissions admitted.
+         */
+        private long admitted = 0;
+
+        /**
+         * Total time admitted submissions waited, in nanoseconds.
+         */
+        private long totalWait = 0;
+
+        /**
+         * Longest time an admitted submission waited, in nanoseconds.
+         */
+        private long maxWait = 0;
+    }
+
+    /**
+     * A stage with a limited number of permits, shared between the classes by weight.
+     */
+    static final class Gate {
+        /**
+         * Number of permits.
+         */
+        private final int permits;
+
+        /**
+         * Number of permits not in use.
+         */
+        private int available;
+
+        /**
+         * Moving average of how long recently admitted submissions waited, in nanoseconds.
+         */
+        private double recentWait = 0;
+
+        /**
+         * Lanes by class.
+         */
+        private final Map<String, Lane> lanes = new LinkedHashMap<>();
+
+        /**
+         * Pass of the last lane admitted from. A lane that was empty starts from here.
+         */
+        private long virtualTime = 0;
+
+        /**
+         * Create a new gate.
+         *
+         * @param setPermits number of submissions allowed through at once
+         */
+        Gate(final int setPermits) {
+            permits = setPermits;
+            available = setPermits;
+        }
+
+        /**
+         * Do some work once the gate admits a submission of a class.
+         *
+         * @param priority the submission's priority class
+         * @param waited   told how long the submission waited to be admitted, in nanoseconds
+         * @param work     the work to do
+         * @param <T>      the type of the work's result
+         * @return the work's result
+         */
+        <T> T run(final String priority, final LongConsumer waited, final Supplier<T> work) {
+            waited.accept(enter(priority));
+            try {
+                return work.get();
+            } finally {
+                exit();
+            }
+        }
+
+        /**
+         * Wait until the gate admits a submission of a class.
+         *
+         * @param priority the submission's priority class
+         * @return how long the submission waited, in nanoseconds
+         */
+        synchronized long enter(final String priority) {
+            long queued = System.nanoTime();
+            Lane lane = lanes.computeIfAbsent(resolve(priority), name -> new Lane());
+            if (lane.waiting.isEmpty()) {
+                lane.pass = Math.max(lane.pass, virtualTime);
+            }
+            Ticket ticket = new Ticket();
+            lane.waiting.add(ticket);
+            dispatch();
+            boolean interrupted = false;
+            while (!ticket.admitted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            long waited = System.nanoTime() - queued;
+            lane.admitted++;
+            lane.totalWait += waited;
+            lane.maxWait = Math.max(lane.maxWait, waited);
+            recentWait += (waited - recentWait) * RECENT_WAIT_WEIGHT;
+            return waited;
+        }
+
+        /**
+         * Give back a permit.
+         */
+        synchronized void exit() {
+            available++;
+            dispatch();
+        }
+
+        /**
+         * Hand out free permits to the lanes that are furthest behind.
+         */
+        private void dispatch() {
+            boolean admitted = false;
+            while (available > 0) {
+                String next = null;
+                for (Map.Entry<String, Lane> entry : lanes.entrySet()) {
+                    Lane lane = entry.getValue();
+                    if (lane.waiting.isEmpty()) {
+                        continue;
+                    }
+                    if (next == null || lane.pass < lanes.get(next).pass
+                            || (lane.pass == lanes.get(next).pass && target(entry.getKey()) < target(next))) {
+                        next = entry.getKey();
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                Lane lane = lanes.get(next);
+                lane.waiting.remove().admitted = true;
+                available--;
+                virtualTime = lane.pass;
+                lane.pass += target(next);
+                admitted = true;
+            }
+            if (admitted) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Get the number of submissions waiting at this gate.
+         *
+         * @return the number waiting, across all classes
+         */
+        synchronized int queued() {
+            int queued = 0;
+            for (Lane lane : lanes.values()) {
+                queued += lane.waiting.size();
+            }
+            return queued;
+        }
+
+        /**
+         * Get the number of submissions this gate has let through that haven't finished.
+         *
+         * @return the number of permits in use
+         */
+        synchronized int inFlight() {
+            return permits - available;
+        }
+
+        /**
+         * Get the number of submissions this gate could let through right now.
+         *
+         * @return the number of permits not in use
+         */
+        synchronized int available() {
+            return available;
+        }
+
+        /**
+         * Get how long recently admitted submissions waited.
+         *
+         * @return a moving average of their waits in milliseconds
+         */
+        synchronized double recentWaitMs() {
+            return recentWait / NANOSECONDS_PER_MILLISECOND;
+        }
+
+        /**
+         * Get the queue depth and wait times of one class at this gate.
+         *
+         * @param priority the class
+         * @return a JSON object with how many submissions are waiting and how long admitted ones waited
+         */
+        synchronized JsonObject stats(final String priority) {
+            Lane lane = lanes.getOrDefault(priority, new Lane());
+            double meanWait = 0;
+            if (lane.admitted > 0) {
+                meanWait = (double) lane.totalWait / lane.admitted / NANOSECONDS_PER_MILLISECOND;
+            }
+            return new JsonObject()
+                    .add("queued", lane.waiting.size())
+                    .add("admitted", lane.admitted)
+                    .add("meanWaitMs", meanWait)
+                    .add("maxWaitMs", (double) lane.maxWait / NANOSECONDS_PER_MILLISECOND);
+        }
+    }
+
+    /**
+     * Nanoseconds in a millisecond.
+     */
+    private static final long NANOSECONDS_PER_MILLISECOND = 1000000;
+
+    /**
+     * Weight of the latest wait in a gate's moving average, so that about the last ten admissions count.
+     */
+    private static final double RECENT_WAIT_WEIGHT = 0.1;
+
+    /**
+     * Latency targets in milliseconds by class, in the order they were configured.
+     */
+    private static volatile Map<String, Long> targets = parse(DEFAULT_TARGETS);
+
+    /**
+     * Class of submissions that don't set one or set an unknown one: the class with the longest target.
+     */
+    private static volatile String defaultClass = defaultClass(targets);
+
+    /**
+     * Gate in front of checkstyle, which runs on as many threads as there are processors.
+     */
+    static final Gate CHECKSTYLE = new Gate(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Gate in front of compiles, which run on as many threads as there are processors.
+     */
+    static final Gate COMPILE = new Gate(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Gate in front of executions, which run one at a time since they capture System.out.
+     */
+    static final Gate EXECUTE = new Gate(1);
+
+    /**
+     * Not instantiable.
+     */
+    private PriorityScheduler() { }
+
+    /**
+     * Set the priority classes and their latency targets.
+     *
+     * @param setTargets comma-separated class=milliseconds pairs, for example {@value #DEFAULT_TARGETS}
+     */
+    static void configure(final String setTargets) {
+        Map<String, Long> parsed = parse(setTargets);
+        defaultClass = defaultClass(parsed);
+        targets = parsed;
+    }
+
+    /**
+     * Parse a list of latency targets.
+     *
+     * @param spec comma-separated class=milliseconds pairs
+     * @return the targets by class, in order
+     */
+    private static Map<String, Long> parse(final String spec) {
+        Map<String, Long> parsed = new LinkedHashMap<>();
+        for (String pair : spec.split(",")) {
+            String[] parts = pair.trim().split("=");
+            if (parts.length != 2 || parts[0].trim().isEmpty()) {
+                throw new IllegalArgumentException("Bad priority class " + pair + ", expected class=milliseconds");
+            }
+            long target = Long.parseLong(parts[1].trim());
+            if (target <= 0) {
+                throw new IllegalArgumentException("Latency target for " + parts[0].trim() + " must be positive");
+            }
+            parsed.put(parts[0].trim(), target);
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    /**
+     * Find the class with the longest latency target.
+     *
+     * @param classes the targets by class
+     * @return the class that untagged submissions go to
+     */
+    private static String defaultClass(final Map<String, Long> classes) {
+        String longest = null;
+        for (Map.Entry<String, Long> entry : classes.entrySet()) {
+            if (longest == null || entry.getValue() > classes.get(longest)) {
+                longest = entry.getKey();
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Find the class a submission is scheduled in.
+     *
+     * @param priority the class the submission asked for, or null
+     * @return the class if it is known, or the default class
+     */
+    static String resolve(final String priority) {
+        if (priority != null && targets.containsKey(priority)) {
+            return priority;
+        }
+        return defaultClass;
+    }
+
+    /**
+     * Get the latency target of a class, which is also its stride.
+     *
+     * @param priority the class
+     * @return the target in milliseconds
+     */
+    private static long target(final String priority) {
+        return targets.getOrDefault(priority, targets.get(defaultClass));
+    }
+
+    /**
+     * Get the queue depth and wait times of each class at each gate.
+     *
+     * @return a JSON object with the target and per-stage counters of every class
+     */
+    public static JsonObject stats() {
+        JsonObject stats = new JsonObject().add("default", defaultClass);
+        for (Map.Entry<String, Long> entry : targets.entrySet()) {
+            stats.add(entry.getKey(), new JsonObject()
+                    .add("targetMs", entry.getValue())
+                    .add("checkstyle", CHECKSTYLE.stats(entry.getKey()))
+                    .add("compile", COMPILE.stats(entry.getKey()))
+                    .add("execute", EXECUTE.stats(entry.getKey())));
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,848 @@
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.janino.ClassLoaderIClassLoader;
+import org.codehaus.janino.Parser;
+import org.codehaus.janino.Scanner;
+import org.codehaus.janino.UnitCompiler;
+import org.codehaus.janino.util.ClassFile;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Run one chunk of a REPL session against everything earlier chunks defined.
+ * <p>
+ * Each chunk becomes a class that extends the previous chunk's class. Top-level variables become static fields, and
+ * top-level methods and classes become static members, so later chunks see all of them unqualified through
+ * inheritance. A later declaration with the same name hides the earlier one. The remaining statements are grouped
+ * into static methods that run in order. Everything stays on the lines it was written on, so compiler errors point at
+ * the chunk as the client sent it.
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class ReplChunk extends Snippet {
+    /**
+     * ID of the session the chunk belongs to.
+     */
+    public String session;
+
+    /**
+     * Position of the chunk in its session, counting from 1.
+     */
+    protected int chunk;
+
+    /**
+     * The session the chunk runs in.
+     */
+    private transient ReplSession replSession;
+
+    /**
+     * The chunk rewritten as a class.
+     */
+    private transient String classSource;
+
+    /**
+     * The chunk's import declarations, on a single line.
+     */
+    private transient String imports;
+
+    /**
+     * Method that runs the chunk's statements.
+     */
+    private transient Method method;
+
+    /**
+     * Compiled classes the method was loaded from.
+     */
+    private transient Map<String, byte[]> classes;
+
+    /**
+     * Prefix of the names of the classes chunks are compiled to.
+     */
+    private static final String CLASS_PREFIX = "Chunk";
+
+    /**
+     * Name of the method that runs a chunk's statements.
+     */
+    private static final String METHOD_NAME = "eval0";
+
+    /**
+     * Prefix of the names of the methods that hold a chunk's statements between declarations.
+     */
+    private static final String STEP_PREFIX = "step$";
+
+    /**
+     * System property Janino uses to enable debugging information in generated classes.
+     */
+    private static final String JANINO_DEBUGGING_PROPERTY = "org.codehaus.janino.source_debugging.enable";
+
+    /**
+     * Keywords that can't start a type, so can't start a declaration.
+     */
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("abstract", "assert", "break", "case",
+            "catch", "class", "const", "continue", "default", "do", "else", "enum", "extends", "final", "finally",
+            "for", "goto", "if", "implements", "import", "instanceof", "interface", "native", "new", "package",
+            "private", "protected", "public", "return", "static", "strictfp", "super", "switch", "synchronized",
+            "this", "throw", "throws", "transient", "try", "volatile", "while", "true", "false", "null"));
+
+    /**
+     * Modifiers that may come before a top-level declaration.
+     */
+    private static final Set<String> MODIFIERS = new HashSet<>(Arrays.asList("abstract", "final", "native",
+            "private", "protected", "public", "static", "strictfp", "synchronized", "transient", "volatile"));
+
+    /**
+     * Kinds of top-level elements of a chunk.
+     */
+    private enum Kind {
+        /**
+         * A statement, run in order with the statements around it.
+         */
+        STATEMENT,
+
+        /**
+         * A method or class declaration, kept as a static member.
+         */
+        MEMBER,
+
+        /**
+         * A variable declaration, split into static fields and assignments.
+         */
+        VARIABLE
+    }
+
+    /**
+     * A token of a chunk, as offsets into its source.
+     */
+    private static final class Token {
+        /**
+         * Offset of the first character.
+         */
+        private final int start;
+
+        /**
+         * Offset after the last character.
+         */
+        private final int end;
+
+        /**
+         * The token's text.
+         */
+        private final String text;
+
+        /**
+         * Create a new token.
+         *
+         * @param source   the chunk's source
+         * @param setStart offset of the first character
+         * @param setEnd   offset after the last character
+         */
+        Token(final String source, final int setStart, final int setEnd) {
+            start = setStart;
+            end = setEnd;
+            text = source.substring(setStart, setEnd);
+        }
+
+        /**
+         * Check whether the token could be a name or the start of a type.
+         *
+         * @return true if the token is an identifier that is not a keyword
+         */
+        boolean isName() {
+            return Character.isJavaIdentifierStart(text.charAt(0)) && !KEYWORDS.contains(text);
+        }
+    }
+
+    /**
+     * A chunk rewritten as a class.
+     */
+    static final class Rewritten {
+        /**
+         * The class's source.
+         */
+        final String source;
+
+        /**
+         * The chunk's import declarations, on a single line.
+         */
+        final String imports;
+
+        /**
+         * Create a new rewritten chunk.
+         *
+         * @param setSource  the class's source
+         * @param setImports the chunk's import declarations
+         */
+        Rewritten(final String setSource, final String setImports) {
+            source = setSource;
+            imports = setImports;
+        }
+    }
+
+    /**
+     * Create a new chunk and set default fields.
+     */
+    ReplChunk() {
+        super();
+    }
+
+    /**
+     * Prepare to run as the next chunk of a session. Called with the session locked.
+     *
+     * @param setSession the session to run in
+     */
+    void attach(final ReplSession setSession) {
+        replSession = setSession;
+        session = setSession.id();
+        chunk = setSession.chunks() + 1;
+        // Each session keeps its own state, so only compiles can be shared with identical sessions
+        shareExecution = false;
+        String superName = null;
+        if (chunk > 1) {
+            superName = CLASS_PREFIX + (chunk - 1);
+        }
+        Rewritten rewritten = rewrite(source, CLASS_PREFIX + chunk, superName, setSession.imports());
+        classSource = rewritten.source;
+        imports = rewritten.imports;
+    }
+
+    /**
+     * Write the chunk fields returned to the client, followed by the Snippet ones.
+     *
+     * @param writer the writer to write fields to
+     * @throws IOException thrown if the stream cannot be written
+     */
+    @Override
+    protected void writeFields(final ResultWriter writer) throws IOException {
+        writer.field("session", session);
+        writer.field("chunk", chunk);
+        super.writeFields(writer);
+    }
+
+    /**
+     * Describe the session the chunk is compiled against.
+     *
+     * @return everything the session compiled before this chunk
+     */
+    @Override
+    protected String compileContext() {
+        return replSession.history();
+    }
+
+    /**
+     * Get the class loader the chunk's classes are loaded on top of.
+     *
+     * @return the previous chunk's class loader, or the usual parent for the first chunk
+     */
+    private ClassLoader parentLoader() {
+        ClassLoader parent = replSession.loader();
+        if (parent == null) {
+            parent = Thread.currentThread().getContextClassLoader();
+        }
+        return parent;
+    }
+
+    /**
+     * Compile the chunk with Janino, against the classes of the earlier chunks.
+     *
+     * @return a map of binary class names to class file bytes
+     * @throws CompileException thrown if compilation fails
+     */
+    private Map<String, byte[]> compileWithJanino() throws CompileException {
+        UnitCompiler unitCompiler;
+        try {
+            Parser parser = new Parser(new Scanner(filename, new StringReader(classSource)));
+            unitCompiler = new UnitCompiler(parser.parseCompilationUnit(),
+                    new ClassLoaderIClassLoader(parentLoader()));
+        } catch (IOException e) {
+            throw new CompileException(e.toString(), null);
+        }
+        boolean debug = Boolean.getBoolean(JANINO_DEBUGGING_PROPERTY);
+        Map<String, byte[]> compiledClasses = new HashMap<>();
+        for (ClassFile classFile : unitCompiler.compileUnit(debug, debug, debug)) {
+            compiledClasses.put(classFile.getThisClassName(), classFile.toByteArray());
+        }
+        return compiledClasses;
+    }
+
+    /**
+     * Compile the chunk with the JDK, against the classes of the earlier chunks.
+     *
+     * @return a map of binary class names to class file bytes
+     * @throws CompileException thrown if compilation fails
+     */
+    private Map<String, byte[]> compileWithJDK() throws CompileException {
+        return JDKCompiler.compileToBytes(Collections.singletonMap(filename, classSource), replSession.classes());
+    }
+
+    /**
+     * Compile the chunk, routing it between Janino and the JDK like any other snippet.
+     *
+     * @throws CompileException       if compilation fails
+     * @throws ClassNotFoundException if the chunk's class is not found
+     * @throws NoSuchMethodException  if the chunk's method is not found
+     */
+    @Override
+    public void doCompile() throws CompileException, ClassNotFoundException, NoSuchMethodException {
+        switch (compiler) {
+            case "Janino":
+                useCompiled("Janino", compileWithJanino());
+                break;
+            case "JDK":
+                useCompiled("JDK", compileWithJDK());
+                break;
+            default:
+                if (!CompilerRouter.prefersJDK(source)) {
+                    try {
+                        useCompiled("Janino", compileWithJanino());
+                        CompilerRouter.recordJanino(true);
+                        break;
+                    } catch (CompileException ignored) {
+                        CompilerRouter.recordJanino(false);
+                    }
+                }
+                useCompiled("JDK", compileWithJDK());
+                break;
+        }
+    }
+
+    /**
+     * Compile with a specific compiler without modifying this object.
+     *
+     * @param useCompiler the compiler to use
+     * @return a map of binary class names to class file bytes
+     * @throws CompileException if compilation fails
+     */
+    @Override
+    protected Object compileWith(final String useCompiler) throws CompileException {
+        if (useCompiler.equals("Janino")) {
+            return compileWithJanino();
+        }
+        return compileWithJDK();
+    }
+
+    /**
+     * Add the chunk's classes to the session's class loader and make it the latest chunk of its session.
+     *
+     * @param useCompiler the compiler that produced the classes
+     * @param result      a map of binary class names to class file bytes
+     * @throws ClassNotFoundException if the chunk's class is not found
+     * @throws NoSuchMethodException  if the chunk's method is not found
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void useCompiled(final String useCompiler, final Object result)
+            throws ClassNotFoundException, NoSuchMethodException {
+        Map<String, byte[]> compiledClasses = (Map<String, byte[]>) result;
+        ReplSession.Loader classLoader = replSession.loader();
+        if (classLoader == null) {
+            classLoader = confine(new ReplSession.Loader(parentLoader()), compiledClasses.keySet());
+        }
+        classLoader.add(CancellationInstrumenter.instrument(compiledClasses));
+        method = classLoader.loadClass(CLASS_PREFIX + chunk).getMethod(METHOD_NAME);
+        classes = compiledClasses;
+        compiler = useCompiler;
+        replSession.advance(classLoader, compiledClasses, imports, classSource);
+    }
+
+    /**
+     * Get the compiled classes the method was loaded from.
+     *
+     * @return a map of binary class names to class file bytes
+     */
+    @Override
+    protected Map<String, byte[]> compiledClasses() {
+        return classes;
+    }
+
+    /**
+     * Run the chunk's statements.
+     *
+     * @throws InvocationTargetException if execution fails
+     * @throws IllegalAccessException    if the code attempts to violate the sandbox
+     */
+    @Override
+    public void doExecute() throws InvocationTargetException, IllegalAccessException {
+        method.invoke(null);
+    }
+
+    /**
+     * Keep the session's class loader loaded for the chunks after this one.
+     *
+     * @param created the loaders created for this chunk
+     */
+    @Override
+    protected void releaseLoaders(final List<MetaspaceBudget.Tracked> created) {
+        replSession.retain(created);
+    }
+
+    /**
+     * Rewrite a chunk as a class that extends the previous chunk's class.
+     *
+     * @param source       the chunk
+     * @param className    the name of the class
+     * @param superName    the name of the previous chunk's class, or null for the first chunk
+     * @param priorImports the imports of the earlier chunks, on a single line
+     * @return the class's source and the chunk's imports
+     */
+    static Rewritten rewrite(final String source, final String className, final String superName,
+                             final String priorImports) {
+        List<Token> tokens = tokenize(source);
+        StringBuilder rewritten = new StringBuilder(priorImports);
+        StringBuilder imports = new StringBuilder();
+        int i = 0;
+        int copied = 0;
+        while (i < tokens.size() && tokens.get(i).text.equals("import")) {
+            int end = statementEnd(tokens, i);
+            imports.append(source, tokens.get(i).start, tokens.get(end - 1).end).append(' ');
+            copied = tokens.get(end - 1).end;
+            i = end;
+        }
+        rewritten.append(source, 0, copied).append("public class ").append(className);
+        if (superName != null) {
+            rewritten.append(" extends ").append(superName);
+        }
+        rewritten.append(" {");
+
+        int steps = 0;
+        boolean inStep = false;
+        while (i < tokens.size()) {
+            int end = memberEnd(tokens, i);
+            Kind kind = Kind.MEMBER;
+            if (end < 0) {
+                end = variableEnd(tokens, i);
+                kind = Kind.VARIABLE;
+            }
+            if (end < 0) {
+                end = statementEnd(tokens, i);
+                kind = Kind.STATEMENT;
+            }
+            String gap = source.substring(copied, tokens.get(i).start);
+            String element = source.substring(tokens.get(i).start, tokens.get(end - 1).end);
+            if (kind == Kind.STATEMENT) {
+                if (!inStep) {
+                    rewritten.append(" static void ").append(STEP_PREFIX).append(steps).append("() {");
+                    steps++;
+                    inStep = true;
+                }
+                rewritten.append(gap).append(element);
+            } else {
+                if (inStep) {
+                    rewritten.append(" }");
+                    inStep = false;
+                }
+                rewritten.append(gap);
+                if (kind == Kind.MEMBER) {
+                    if (!hasModifier(tokens, i, "static")) {
+                        rewritten.append("static ");
+                    }
+                    rewritten.append(element);
+                } else {
+                    List<String> assignments = declareFields(source, tokens, i, end, rewritten);
+                    if (!assignments.isEmpty()) {
+                        rewritten.append(" static void ").append(STEP_PREFIX).append(steps).append("() {");
+                        steps++;
+                        inStep = true;
+                        for (String assignment : assignments) {
+                            rewritten.append(' ').append(assignment);
+                        }
+                    }
+                    int lines = countLines(element);
+                    for (String assignment : assignments) {
+                        lines -= countLines(assignment);
+                    }
+                    for (int line = 0; line < lines; line++) {
+                        rewritten.append('\n');
+                    }
+                }
+            }
+            copied = tokens.get(end - 1).end;
+            i = end;
+        }
+        if (inStep) {
+            rewritten.append(" }");
+        }
+        rewritten.append(source, copied, source.length()).append("\npublic static void ").append(METHOD_NAME)
+                .append("() {");
+        for (int step = 0; step < steps; step++) {
+            rewritten.append(' ').append(STEP_PREFIX).append(step).append("();");
+        }
+        rewritten.append(" } }\n");
+        return new Rewritten(rewritten.toString(), imports.toString());
+    }
+
+    /**
+     * Count the line breaks in some text.
+     *
+     * @param text the text
+     * @return the number of line breaks
+     */
+    private static int countLines(final String text) {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Split a chunk into tokens, skipping whitespace and comments.
+     * <p>
+     * This only needs to find where top-level elements start and end, so operators are single characters and
+     * literals are only as exact as they need to be to keep their contents from being taken for tokens.
+     *
+     * @param source the chunk
+     * @return the chunk's tokens
+     */
+    private static List<Token> tokenize(final String source) {
+        List<Token> tokens = new ArrayList<>();
+        int position = 0;
+        while (position < source.length()) {
+            char character = source.charAt(position);
+            int start = position;
+            if (Character.isWhitespace(character)) {
+                position++;
+                continue;
+            } else if (source.startsWith("//", position)) {
+                position = source.indexOf('\n', position);
+                if (position < 0) {
+                    position = source.length();
+                }
+                continue;
+            } else if (source.startsWith("/*", position)) {
+                position = source.indexOf("*/", position + 2);
+                if (position < 0) {
+                    position = source.length();
+                } else {
+                    position += 2;
+                }
+                continue;
+            } else if (character == '"' || character == '\'') {
+                position++;
+                while (position < source.length() && source.charAt(position) != character
+                        && source.charAt(position) != '\n') {
+                    if (source.charAt(position) == '\\') {
+                        position++;
+                    }
+                    position++;
+                }
+                position = Math.min(position + 1, source.length());
+            } else if (Character.isJavaIdentifierStart(character)) {
+                while (position < source.length() && Character.isJavaIdentifierPart(source.charAt(position))) {
+                    position++;
+                }
+            } else if (Character.isDigit(character)) {
+                while (position < source.length() && (Character.isLetterOrDigit(source.charAt(position))
+                        || source.charAt(position) == '_' || source.charAt(position) == '.')) {
+                    position++;
+                }
+            } else {
+                position++;
+            }
+            tokens.add(new Token(source, start, position));
+        }
+        return tokens;
+    }
+
+    /**
+     * Find the token after a closing bracket.
+     *
+     * @param tokens the chunk's tokens
+     * @param open   index of the opening bracket
+     * @return the index after the matching closing bracket, or the number of tokens if it is never closed
+     */
+    private static int matching(final List<Token> tokens, final int open) {
+        int depth = 0;
+        for (int i = open; i < tokens.size(); i++) {
+            String text = tokens.get(i).text;
+            if (text.equals("(") || text.equals("[") || text.equals("{")) {
+                depth++;
+            } else if (text.equals(")") || text.equals("]") || text.equals("}")) {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        return tokens.size();
+    }
+
+    /**
+     * Find the end of a statement: a semicolon or closing brace outside any brackets.
+     *
+     * @param tokens the chunk's tokens
+     * @param start  index of the statement's first token
+     * @return the index after the statement's last token
+     */
+    private static int statementEnd(final List<Token> tokens, final int start) {
+        int i = start;
+        while (i < tokens.size()) {
+            String text = tokens.get(i).text;
+            if (text.equals("(") || text.equals("[") || text.equals("{")) {
+                i = matching(tokens, i);
+                if (text.equals("{")) {
+                    return i;
+                }
+            } else if (text.equals(";") || text.equals(")") || text.equals("]") || text.equals("}")) {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return tokens.size();
+    }
+
+    /**
+     * Skip the modifiers and annotations at the start of a declaration.
+     *
+     * @param tokens the chunk's tokens
+     * @param start  index of the declaration's first token
+     * @return the index of the first token after the modifiers
+     */
+    private static int skipModifiers(final List<Token> tokens, final int start) {
+        int i = start;
+        while (i < tokens.size()) {
+            String text = tokens.get(i).text;
+            if (MODIFIERS.contains(text)) {
+                i++;
+            } else if (text.equals("@") && i + 1 < tokens.size() && !tokens.get(i + 1).text.equals("interface")) {
+                i += 2;
+                while (i + 1 < tokens.size() && tokens.get(i).text.equals(".")) {
+                    i += 2;
+                }
+                if (i < tokens.size() && tokens.get(i).text.equals("(")) {
+                    i = matching(tokens, i);
+                }
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Check whether a declaration has a modifier.
+     *
+     * @param tokens   the chunk's tokens
+     * @param start    index of the declaration's first token
+     * @param modifier the modifier to look for
+     * @return true if the modifier is among the declaration's modifiers
+     */
+    private static boolean hasModifier(final List<Token> tokens, final int start, final String modifier) {
+        int end = skipModifiers(tokens, start);
+        for (int i = start; i < end; i++) {
+            if (tokens.get(i).text.equals(modifier)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skip a type such as int, String[], or Map.Entry&lt;String, List&lt;Integer&gt;&gt;.
+     *
+     * @param tokens the chunk's tokens
+     * @param start  index of the type's first token
+     * @return the index after the type, or -1 if there is no type there
+     */
+    private static int skipType(final List<Token> tokens, final int start) {
+        if (start >= tokens.size() || !tokens.get(start).isName()) {
+            return -1;
+        }
+        int i = start + 1;
+        while (i < tokens.size()) {
+            String text = tokens.get(i).text;
+            if (text.equals(".") && i + 1 < tokens.size() && tokens.get(i + 1).isName()) {
+                i += 2;
+            } else if (text.equals("<")) {
+                i = skipTypeArguments(tokens, i);
+                if (i < 0) {
+                    return -1;
+                }
+            } else {
+                break;
+            }
+        }
+        while (i + 1 < tokens.size() && tokens.get(i).text.equals("[") && tokens.get(i + 1).text.equals("]")) {
+            i += 2;
+        }
+        return i;
+    }
+
+    /**
+     * Skip type arguments or type parameters.
+     *
+     * @param tokens the chunk's tokens
+     * @param open   index of the opening angle bracket
+     * @return the index after the matching closing angle bracket, or -1 if these can't be type arguments
+     */
+    private static int skipTypeArguments(final List<Token> tokens, final int open) {
+        int depth = 0;
+        for (int i = open; i < tokens.size(); i++) {
+            String text = tokens.get(i).text;
+            if (text.equals("<")) {
+                depth++;
+            } else if (text.equals(">")) {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            } else if (!tokens.get(i).isName() && !text.equals("extends") && !text.equals("super")
+                    && !text.equals("?") && !text.equals(",") && !text.equals(".") && !text.equals("&")
+                    && !text.equals("[") && !text.equals("]")) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the end of a method or class declaration.
+     *
+     * @param tokens the chunk's tokens
+     * @param start  index of the element's first token
+     * @return the index after the declaration, or -1 if the element is not a method or class declaration
+     */
+    private static int memberEnd(final List<Token> tokens, final int start) {
+        int i = skipModifiers(tokens, start);
+        if (i >= tokens.size()) {
+            return -1;
+        }
+        String text = tokens.get(i).text;
+        if (text.equals("class") || text.equals("interface") || text.equals("enum") || text.equals("@")) {
+            while (i < tokens.size() && !tokens.get(i).text.equals("{")) {
+                i++;
+            }
+            return matching(tokens, i);
+        }
+        if (text.equals("<")) {
+            i = skipTypeArguments(tokens, i);
+            if (i < 0) {
+                return -1;
+            }
+        }
+        int name = skipType(tokens, i);
+        if (name < 0 || name + 1 >= tokens.size() || !tokens.get(name).isName()
+                || !tokens.get(name + 1).text.equals("(")) {
+            return -1;
+        }
+        i = matching(tokens, name + 1);
+        while (i < tokens.size()) {
+            if (tokens.get(i).text.equals("{")) {
+                return matching(tokens, i);
+            } else if (tokens.get(i).text.equals(";")) {
+                return i + 1;
+            }
+            i++;
+        }
+        return tokens.size();
+    }
+
+    /**
+     * Find the end of a variable declaration.
+     *
+     * @param tokens the chunk's tokens
+     * @param start  index of the element's first token
+     * @return the index after the declaration, or -1 if the element is not a variable declaration
+     */
+    private static int variableEnd(final List<Token> tokens, final int start) {
+        int i = skipModifiers(tokens, start);
+        int name = skipType(tokens, i);
+        if (name < 0 || name + 1 >= tokens.size() || !tokens.get(name).isName()
+                || tokens.get(i).text.equals("var")) {
+            return -1;
+        }
+        String next = tokens.get(name + 1).text;
+        if (!next.equals("=") && !next.equals(",") && !next.equals(";") && !next.equals("[")) {
+            return -1;
+        }
+        i = name;
+        while (i < tokens.size() && !tokens.get(i).text.equals(";")) {
+            String text = tokens.get(i).text;
+            if (text.equals("(") || text.equals("[") || text.equals("{")) {
+                i = matching(tokens, i);
+            } else {
+                i++;
+            }
+        }
+        return Math.min(i + 1, tokens.size());
+    }
+
+    /**
+     * Check whether a comma in a variable declaration starts the next declarator, rather than separating type
+     * arguments in an initializer like new HashMap&lt;String, Integer&gt;().
+     *
+     * @param tokens the chunk's tokens
+     * @param comma  index of the comma
+     * @return true if a declarator follows the comma
+     */
+    private static boolean startsDeclarator(final List<Token> tokens, final int comma) {
+        if (comma + 2 >= tokens.size() || !tokens.get(comma + 1).isName()) {
+            return false;
+        }
+        String next = tokens.get(comma + 2).text;
+        return next.equals("=") || next.equals(",") || next.equals(";") || next.equals("[");
+    }
+
+    /**
+     * Declare the variables of a variable declaration as static fields.
+     *
+     * @param source    the chunk
+     * @param tokens    the chunk's tokens
+     * @param start     index of the declaration's first token
+     * @param end       index after the declaration's last token
+     * @param rewritten the class being written
+     * @return assignments that give the fields their initial values
+     */
+    private static List<String> declareFields(final String source, final List<Token> tokens, final int start,
+                                              final int end, final StringBuilder rewritten) {
+        int typeStart = skipModifiers(tokens, start);
+        int typeEnd = skipType(tokens, typeStart);
+        String type = source.substring(tokens.get(typeStart).start, tokens.get(typeEnd - 1).end);
+        List<String> assignments = new ArrayList<>();
+        int i = typeEnd;
+        while (i < end && tokens.get(i).isName()) {
+            String name = tokens.get(i).text;
+            StringBuilder dimensions = new StringBuilder();
+            i++;
+            while (i + 1 < end && tokens.get(i).text.equals("[") && tokens.get(i + 1).text.equals("]")) {
+                dimensions.append("[]");
+                i += 2;
+            }
+            rewritten.append("static ").append(type).append(dimensions).append(' ').append(name).append("; ");
+            if (i + 1 < end && tokens.get(i).text.equals("=") && !tokens.get(i + 1).text.equals(";")) {
+                int initializer = i + 1;
+                i = initializer;
+                while (i < end && !tokens.get(i).text.equals(";")
+                        && !(tokens.get(i).text.equals(",") && startsDeclarator(tokens, i))) {
+                    String text = tokens.get(i).text;
+                    if (text.equals("(") || text.equals("[") || text.equals("{")) {
+                        i = matching(tokens, i);
+                    } else {
+                        i++;
+                    }
+                }
+                StringBuilder assignment = new StringBuilder(name).append(" = ");
+                if (tokens.get(initializer).text.equals("{")) {
+                    assignment.append("new ").append(type).append(dimensions).append(' ');
+                }
+                assignment.append(source, tokens.get(initializer).start, tokens.get(i - 1).end).append(';');
+                assignments.add(assignment.toString());
+            }
+            if (i < end && tokens.get(i).text.equals(",")) {
+                i++;
+            }
+        }
+        return assignments;
+    }
+}
@@ -0,0 +1,492 @@
+import com.eclipsesource.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A REPL session that evaluates snippets one chunk at a time.
+ * <p>
+ * Re-running a whole session every time a line is added makes each step slower than the last. Instead, each chunk is
+ * compiled on its own against the classes of the chunks before it, which stay loaded between requests, and only the
+ * new chunk runs. See {@link ReplChunk} for how variables and declarations carry over.
+ * <p>
+ * Sessions live on the node that opened them and are closed after sitting idle. Their number and the size of the
+ * classes each one keeps are limited, since everything a session defines stays on the heap until it is closed.
+ */
+public final class ReplSession {
+    /**
+     * Default number of sessions kept at once.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 100;
+
+    /**
+     * Default idle time after which a session is closed, in seconds.
+     */
+    public static final long DEFAULT_IDLE_SECONDS = 600;
+
+    /**
+     * Largest total size of the classes and sources a session keeps, in bytes.
+     */
+    static final long MAX_SESSION_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Largest number of chunks in a session, which is also how deep its class hierarchy gets.
+     */
+    static final int MAX_CHUNKS = 1000;
+
+    /**
+     * Error returned when a session can't take another chunk.
+     */
+    public static final String FULL_MESSAGE = "Session is full, start a new one";
+
+    /**
+     * Error returned for chunks sent to a session that doesn't exist, or has expired.
+     */
+    public static final String UNKNOWN_MESSAGE = "Unknown session, it may have expired";
+
+    /**
+     * Error returned for chunks that stop before execution, since only executed chunks may become session state.
+     */
+    public static final String PHASE_MESSAGE = "Session chunks must run through " + Source.EXECUTE_PHASE;
+
+    /**
+     * Error returned when no more sessions can be opened.
+     */
+    public static final String TOO_MANY_MESSAGE = "Too many sessions, try again later";
+
+    /**
+     * Class loader holding every chunk of a session.
+     * <p>
+     * Chunks are added to the same loader rather than stacked in loaders of their own, so that they share a runtime
+     * package and later chunks can use the package-private members of earlier ones.
+     */
+    static final class Loader extends ClassLoader {
+        /**
+         * Class files added but not yet defined.
+         */
+        private final Map<String, byte[]> pending = new HashMap<>();
+
+        /**
+         * Create a new session class loader.
+         *
+         * @param parent the class loader chunks may refer to
+         */
+        Loader(final ClassLoader parent) {
+            super(parent);
+        }
+
+        /**
+         * Add a chunk's classes to the loader.
+         *
+         * @param classes a map of binary class names to class file bytes
+         */
+        synchronized void add(final Map<String, byte[]> classes) {
+            pending.putAll(classes);
+        }
+
+        /**
+         * Define a class added earlier.
+         *
+         * @param name the binary name of the class
+         * @return the class
+         * @throws ClassNotFoundException if no chunk added the class
+         */
+        @Override
+        protected synchronized Class<?> findClass(final String name) throws ClassNotFoundException {
+            byte[] classFile = pending.remove(name);
+            if (classFile == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+    /**
+     * Open sessions by ID.
+     */
+    private static final Map<String, ReplSession> SESSIONS = new ConcurrentHashMap<>();
+
+    /**
+     * Number of sessions kept at once.
+     */
+    private static volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+
+    /**
+     * Idle time after which a session is closed, in milliseconds.
+     */
+    private static volatile long idleTimeout = TimeUnit.SECONDS.toMillis(DEFAULT_IDLE_SECONDS);
+
+    /**
+     * Number of sessions opened.
+     */
+    private static final AtomicLong OPENED = new AtomicLong();
+
+    /**
+     * Number of sessions closed by their clients.
+     */
+    private static final AtomicLong CLOSED = new AtomicLong();
+
+    /**
+     * Number of sessions closed for sitting idle.
+     */
+    private static final AtomicLong EXPIRED = new AtomicLong();
+
+    /**
+     * Number of sessions that could not be opened because too many were open.
+     */
+    private static final AtomicLong REJECTED = new AtomicLong();
+
+    /**
+     * Number of chunks turned away because their session was full.
+     */
+    private static final AtomicLong FULL = new AtomicLong();
+
+    /**
+     * Number of chunks compiled into sessions.
+     */
+    private static final AtomicLong CHUNKS = new AtomicLong();
+
+    /**
+     * Thread that closes idle sessions.
+     */
+    private static ScheduledExecutorService expirer;
+
+    /**
+     * The session's ID.
+     */
+    private final String id = UUID.randomUUID().toString();
+
+    /**
+     * Held while a chunk is being evaluated, since each chunk builds on the one before it.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * When the session was last used, from System.currentTimeMillis.
+     */
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * Whether the session has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Number of chunks compiled so far.
+     */
+    private int chunks = 0;
+
+    /**
+     * Class loader holding every chunk, or null before the first one.
+     */
+    private Loader loader = null;
+
+    /**
+     * Class files of every chunk so far, for compilers that compile against bytes rather than a class loader.
+     */
+    private final Map<String, byte[]> classes = new HashMap<>();
+
+    /**
+     * Imports of every chunk so far.
+     */
+    private final StringBuilder imports = new StringBuilder();
+
+    /**
+     * Everything compiled so far, in order. Chunks with the same history compile to the same classes.
+     */
+    private final StringBuilder history = new StringBuilder();
+
+    /**
+     * Bytes of classes, sources, and history kept.
+     */
+    private long size = 0;
+
+    /**
+     * Loaders created for the session, released to the metaspace budget when it is closed.
+     */
+    private final List<MetaspaceBudget.Tracked> loaders = new ArrayList<>();
+
+    /**
+     * Sessions are opened through {@link #open()}.
+     */
+    private ReplSession() { }
+
+    /**
+     * Set the session limits and start closing idle sessions.
+     *
+     * @param setMaxSessions number of sessions kept at once
+     * @param idleSeconds    idle time after which a session is closed
+     */
+    static synchronized void start(final int setMaxSessions, final long idleSeconds) {
+        maxSessions = setMaxSessions;
+        idleTimeout = TimeUnit.SECONDS.toMillis(idleSeconds);
+        if (expirer != null) {
+            return;
+        }
+        expirer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "repl-sessions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleSeconds / 2);
+        expirer.scheduleWithFixedDelay(ReplSession::expire, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Set the idle timeout. Used for testing.
+     *
+     * @param setIdleTimeout idle time after which a session is closed, in milliseconds
+     */
+    static void setIdleTimeout(final long setIdleTimeout) {
+        idleTimeout = setIdleTimeout;
+    }
+
+    /**
+     * Set the number of sessions kept at once. Used for testing.
+     *
+     * @param setMaxSessions number of sessions kept at once
+     */
+    static void setMaxSessions(final int setMaxSessions) {
+        maxSessions = setMaxSessions;
+    }
+
+    /**
+     * Open a new session, closing idle ones first if there are too many.
+     *
+     * @return the new session
+     * @throws IllegalStateException if too many sessions are in use
+     */
+    static ReplSession open() {
+        if (SESSIONS.size() >= maxSessions) {
+            expire();
+        }
+        synchronized (SESSIONS) {
+            if (SESSIONS.size() >= maxSessions) {
+                REJECTED.incrementAndGet();
+                throw new IllegalStateException(TOO_MANY_MESSAGE);
+            }
+            ReplSession session = new ReplSession();
+            SESSIONS.put(session.id, session);
+            OPENED.incrementAndGet();
+            return session;
+        }
+    }
+
+    /**
+     * Find an open session.
+     *
+     * @param id the session's ID
+     * @return the session, or null if there is no such session or it has been closed
+     */
+    static ReplSession get(final String id) {
+        return SESSIONS.get(id);
+    }
+
+    /**
+     * Close a session at its client's request.
+     *
+     * @param id the session's ID
+     * @return whether the session was open
+     */
+    static boolean close(final String id) {
+        ReplSession session = SESSIONS.remove(id);
+        if (session == null) {
+            return false;
+        }
+        CLOSED.incrementAndGet();
+        session.lock.lock();
+        try {
+            session.release();
+        } finally {
+            session.lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Close sessions that have sat idle for longer than the idle timeout. Sessions evaluating a chunk are not idle.
+     *
+     * @return the number of sessions closed
+     */
+    static int expire() {
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        int expired = 0;
+        for (ReplSession session : SESSIONS.values()) {
+            if (session.lastUsed > cutoff || !session.lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (session.lastUsed <= cutoff && SESSIONS.remove(session.id, session)) {
+                    session.release();
+                    EXPIRED.incrementAndGet();
+                    expired++;
+                }
+            } finally {
+                session.lock.unlock();
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Get the session counters.
+     *
+     * @return a JSON object with how many sessions are open and how they ended
+     */
+    static JsonObject stats() {
+        long size = 0;
+        for (ReplSession session : SESSIONS.values()) {
+            size += session.size;
+        }
+        return new JsonObject()
+                .add("open", SESSIONS.size())
+                .add("maxSessions", maxSessions)
+                .add("idleTimeoutMs", idleTimeout)
+                .add("bytes", size)
+                .add("opened", OPENED.get())
+                .add("closed", CLOSED.get())
+                .add("expired", EXPIRED.get())
+                .add("rejected", REJECTED.get())
+                .add("full", FULL.get())
+                .add("chunks", CHUNKS.get());
+    }
+
+    /**
+     * Evaluate the next chunk of the session. Chunks of one session run one at a time.
+     *
+     * @param chunk the chunk to run
+     * @return the chunk, for chaining
+     */
+    Source evaluate(final ReplChunk chunk) {
+        lock.lock();
+        try {
+            if (closed) {
+                chunk.executionErrorMessage = "Session was closed";
+                return chunk;
+            }
+            if (chunk.lastPhase != null && !chunk.lastPhase.equals(Source.EXECUTE_PHASE)) {
+                chunk.executionErrorMessage = PHASE_MESSAGE;
+                return chunk;
+            }
+            if (chunks >= MAX_CHUNKS || size >= MAX_SESSION_BYTES) {
+                FULL.incrementAndGet();
+                chunk.executionErrorMessage = FULL_MESSAGE;
+                return chunk;
+            }
+            chunk.attach(this);
+            return chunk.run();
+        } finally {
+            lastUsed = System.currentTimeMillis();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the session's ID.
+     *
+     * @return the ID clients use to send chunks to the session
+     */
+    String id() {
+        return id;
+    }
+
+    /**
+     * Get the number of chunks compiled so far.
+     *
+     * @return the number of chunks
+     */
+    int chunks() {
+        return chunks;
+    }
+
+    /**
+     * Get the class loader that the next chunk's classes are added to.
+     *
+     * @return the session's class loader, or null before the first chunk
+     */
+    Loader loader() {
+        return loader;
+    }
+
+    /**
+     * Get the class files of every chunk so far.
+     *
+     * @return a map of binary class names to class file bytes
+     */
+    Map<String, byte[]> classes() {
+        return Collections.unmodifiableMap(classes);
+    }
+
+    /**
+     * Get the imports of every chunk so far.
+     *
+     * @return the import declarations on a single line
+     */
+    String imports() {
+        return imports.toString();
+    }
+
+    /**
+     * Get a description of everything compiled so far.
+     *
+     * @return the session's history
+     */
+    String history() {
+        return history.toString();
+    }
+
+    /**
+     * Make a freshly compiled chunk the latest one.
+     *
+     * @param chunkLoader  the class loader holding the chunk
+     * @param chunkClasses the chunk's class files
+     * @param chunkImports the chunk's import declarations on a single line
+     * @param chunkSource  the chunk's source as compiled
+     */
+    void advance(final Loader chunkLoader, final Map<String, byte[]> chunkClasses, final String chunkImports,
+                 final String chunkSource) {
+        chunks++;
+        CHUNKS.incrementAndGet();
+        loader = chunkLoader;
+        classes.putAll(chunkClasses);
+        imports.append(chunkImports);
+        history.append(chunkSource.length()).append(':').append(chunkSource);
+        size += (chunkSource.length() * 2L + chunkImports.length()) * Character.BYTES;
+        for (byte[] classFile : chunkClasses.values()) {
+            size += classFile.length;
+        }
+    }
+
+    /**
+     * Keep the class loaders created for a chunk until the session is closed.
+     *
+     * @param created the loaders created for the chunk
+     */
+    void retain(final List<MetaspaceBudget.Tracked> created) {
+        loaders.addAll(created);
+    }
+
+    /**
+     * Drop everything the session holds. Must be called with the lock held.
+     */
+    private void release() {
+        closed = true;
+        MetaspaceBudget.release(loaders, false);
+        loaders.clear();
+        loader = null;
+        classes.clear();
+        imports.setLength(0);
+        history.setLength(0);
+        size = 0;
+    }
+}
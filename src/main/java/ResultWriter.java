@@ -0,0 +1,452 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+
+/**
+ * Write execution results as UTF-8 JSON straight to an output stream.
+ * <p>
+ * The output is byte-for-byte what Gson produced when serializing a Source reflectively: fields in the order Gson
+ * visits them, null fields omitted, HTML-sensitive characters escaped, and timestamps written as Gson's view of the
+ * internals of OffsetDateTime. Each Source subclass lists its own fields, so no reflection or intermediate String is
+ * needed.
+ * <p>
+ * Subclasses can write the same fields in another encoding by overriding how each kind of value is written.
+ */
+public class ResultWriter {
+    /**
+     * Size of the output buffer.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Largest UTF-8 or escape sequence written for a single character.
+     */
+    private static final int MAX_CHARACTER_LENGTH = 6;
+
+    /**
+     * Number of ASCII characters.
+     */
+    private static final int ASCII_CHARACTERS = 128;
+
+    /**
+     * Escapes for ASCII characters, matching Gson's HTML-safe JsonWriter. Null means write the character as is.
+     */
+    private static final byte[][] ASCII_ESCAPES = new byte[ASCII_CHARACTERS][];
+
+    static {
+        for (int character = 0; character < ' '; character++) {
+            ASCII_ESCAPES[character] = String.format("\\u%04x", character).getBytes();
+        }
+        ASCII_ESCAPES['"'] = "\\\"".getBytes();
+        ASCII_ESCAPES['\\'] = "\\\\".getBytes();
+        ASCII_ESCAPES['\t'] = "\\t".getBytes();
+        ASCII_ESCAPES['\b'] = "\\b".getBytes();
+        ASCII_ESCAPES['\n'] = "\\n".getBytes();
+        ASCII_ESCAPES['\r'] = "\\r".getBytes();
+        ASCII_ESCAPES['\f'] = "\\f".getBytes();
+        ASCII_ESCAPES['<'] = "\\u003c".getBytes();
+        ASCII_ESCAPES['>'] = "\\u003e".getBytes();
+        ASCII_ESCAPES['&'] = "\\u0026".getBytes();
+        ASCII_ESCAPES['='] = "\\u003d".getBytes();
+        ASCII_ESCAPES['\''] = "\\u0027".getBytes();
+    }
+
+    /**
+     * Line separator, which Gson escapes because JavaScript does not allow it in strings.
+     */
+    private static final char LINE_SEPARATOR = '\u2028';
+
+    /**
+     * Paragraph separator, which Gson escapes because JavaScript does not allow it in strings.
+     */
+    private static final char PARAGRAPH_SEPARATOR = '\u2029';
+
+    /**
+     * Stream to write to.
+     */
+    private final OutputStream out;
+
+    /**
+     * Bytes not yet written to the stream.
+     */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Number of bytes in the buffer.
+     */
+    private int position = 0;
+
+    /**
+     * Whether the next field is the first in the current object.
+     */
+    private boolean firstField = true;
+
+    /**
+     * Create a new result writer.
+     *
+     * @param setOut the stream to write to
+     */
+    public ResultWriter(final OutputStream setOut) {
+        out = setOut;
+    }
+
+    /**
+     * Start an object.
+     *
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void beginObject() throws IOException {
+        writeByte('{');
+        firstField = true;
+    }
+
+    /**
+     * Finish an object.
+     *
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void endObject() throws IOException {
+        writeByte('}');
+        firstField = false;
+    }
+
+    /**
+     * Start an array field whose elements are objects.
+     *
+     * @param name the field name
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void beginArray(final String name) throws IOException {
+        name(name);
+        writeByte('[');
+        firstField = true;
+    }
+
+    /**
+     * Start an object that is an element of the current array.
+     *
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void beginElement() throws IOException {
+        if (!firstField) {
+            writeByte(',');
+        }
+        beginObject();
+    }
+
+    /**
+     * Finish an array field.
+     *
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void endArray() throws IOException {
+        writeByte(']');
+        firstField = false;
+    }
+
+    /**
+     * Write a string field, skipping it if it is null.
+     *
+     * @param name  the field name
+     * @param value the field value
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void field(final String name, final String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        name(name);
+        string(value);
+    }
+
+    /**
+     * Write a string array field, skipping it if it is null.
+     *
+     * @param name   the field name
+     * @param values the field value
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void field(final String name, final String[] values) throws IOException {
+        if (values == null) {
+            return;
+        }
+        name(name);
+        writeByte('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            if (values[i] == null) {
+                writeAscii("null");
+            } else {
+                string(values[i]);
+            }
+        }
+        writeByte(']');
+    }
+
+    /**
+     * Write a boolean field.
+     *
+     * @param name  the field name
+     * @param value the field value
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void field(final String name, final boolean value) throws IOException {
+        name(name);
+        if (value) {
+            writeAscii("true");
+        } else {
+            writeAscii("false");
+        }
+    }
+
+    /**
+     * Write a boolean field, skipping it if it is null.
+     *
+     * @param name  the field name
+     * @param value the field value
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public final void field(final String name, final Boolean value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        field(name, value.booleanValue());
+    }
+
+    /**
+     * Write an integer field.
+     *
+     * @param name  the field name
+     * @param value the field value
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void field(final String name, final int value) throws IOException {
+        name(name);
+        writeAscii(Integer.toString(value));
+    }
+
+    /**
+     * Write a long integer field, skipping it if it is null.
+     *
+     * @param name  the field name
+     * @param value the field value
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public final void field(final String name, final Long value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        field(name, value.longValue());
+    }
+
+    /**
+     * Write a long integer field.
+     *
+     * @param name  the field name
+     * @param value the field value
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void field(final String name, final long value) throws IOException {
+        name(name);
+        writeAscii(Long.toString(value));
+    }
+
+    /**
+     * Write a floating point field, skipping it if it is null.
+     *
+     * @param name  the field name
+     * @param value the field value
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public final void field(final String name, final Double value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        field(name, value.doubleValue());
+    }
+
+    /**
+     * Write a floating point field.
+     *
+     * @param name  the field name
+     * @param value the field value
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void field(final String name, final double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException(value + " is not a valid double value as per JSON specification.");
+        }
+        name(name);
+        writeAscii(Double.toString(value));
+    }
+
+    /**
+     * Write a timestamp field the way Gson serializes OffsetDateTime, skipping it if it is null.
+     *
+     * @param name  the field name
+     * @param value the field value
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public final void field(final String name, final OffsetDateTime value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        LocalDate date = value.toLocalDate();
+        LocalTime time = value.toLocalTime();
+        name(name);
+        beginObject();
+        name("dateTime");
+        beginObject();
+        name("date");
+        beginObject();
+        field("year", date.getYear());
+        field("month", date.getMonthValue());
+        field("day", date.getDayOfMonth());
+        endObject();
+        name("time");
+        beginObject();
+        field("hour", time.getHour());
+        field("minute", time.getMinute());
+        field("second", time.getSecond());
+        field("nano", time.getNano());
+        endObject();
+        endObject();
+        name("offset");
+        beginObject();
+        field("totalSeconds", value.getOffset().getTotalSeconds());
+        endObject();
+        endObject();
+    }
+
+    /**
+     * Write any buffered bytes to the stream.
+     *
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public final void flush() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+        out.flush();
+    }
+
+    /**
+     * Write a field name and the separators before it.
+     *
+     * @param name the field name
+     * @throws IOException thrown if the stream cannot be written
+     */
+    protected void name(final String name) throws IOException {
+        if (!firstField) {
+            writeByte(',');
+        }
+        firstField = false;
+        string(name);
+        writeByte(':');
+    }
+
+    /**
+     * Write a quoted, escaped string as UTF-8.
+     *
+     * @param value the string to write
+     * @throws IOException thrown if the stream cannot be written
+     */
+    @SuppressWarnings("checkstyle:magicnumber")
+    private void string(final String value) throws IOException {
+        writeByte('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (position > BUFFER_SIZE - MAX_CHARACTER_LENGTH) {
+                drain();
+            }
+            char character = value.charAt(i);
+            if (character < ASCII_ESCAPES.length) {
+                byte[] escape = ASCII_ESCAPES[character];
+                if (escape == null) {
+                    buffer[position++] = (byte) character;
+                } else {
+                    System.arraycopy(escape, 0, buffer, position, escape.length);
+                    position += escape.length;
+                }
+            } else if (character == LINE_SEPARATOR) {
+                writeAscii("\\u2028");
+            } else if (character == PARAGRAPH_SEPARATOR) {
+                writeAscii("\\u2029");
+            } else if (character < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (character >> 6));
+                buffer[position++] = (byte) (0x80 | (character & 0x3f));
+            } else if (!Character.isSurrogate(character)) {
+                buffer[position++] = (byte) (0xe0 | (character >> 12));
+                buffer[position++] = (byte) (0x80 | ((character >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (character & 0x3f));
+            } else if (Character.isHighSurrogate(character) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(character, value.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                // Unpaired surrogates become '?', as they did when Spark encoded Gson's String
+                buffer[position++] = '?';
+            }
+        }
+        writeByte('"');
+    }
+
+    /**
+     * Write a string known to contain only ASCII characters.
+     *
+     * @param value the string to write
+     * @throws IOException thrown if the stream cannot be written
+     */
+    private void writeAscii(final String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            writeByte(value.charAt(i));
+        }
+    }
+
+    /**
+     * Write a single byte.
+     *
+     * @param value the byte to write
+     * @throws IOException thrown if the stream cannot be written
+     */
+    protected final void writeByte(final int value) throws IOException {
+        if (position == BUFFER_SIZE) {
+            drain();
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Write some bytes, bypassing the buffer if they don't fit in it.
+     *
+     * @param bytes the bytes to write
+     * @throws IOException thrown if the stream cannot be written
+     */
+    protected final void writeBytes(final byte[] bytes) throws IOException {
+        if (position + bytes.length > BUFFER_SIZE) {
+            drain();
+        }
+        if (bytes.length > BUFFER_SIZE) {
+            out.write(bytes);
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Write the buffer to the stream without flushing it.
+     *
+     * @throws IOException thrown if the stream cannot be written
+     */
+    private void drain() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
@@ -0,0 +1,262 @@
+import com.eclipsesource.json.JsonObject;
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.compiler.Sandbox;
+import org.codehaus.janino.ByteArrayClassLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Permissions;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Instructor classes loaded once at startup and shared by every SimpleCompiler submission.
+ * <p>
+ * Many assignments ship the same helper classes with every submission, which are then checked and compiled each time.
+ * Instead, the library sources and jars are compiled once into a class loader that is the parent of every
+ * submission's class loader. Submissions compile and run against the library without sending it, and since it is
+ * never sent, it is never checked.
+ * <p>
+ * The library's classes are loaded once, so their static state is shared by every submission. Libraries should not
+ * keep any.
+ */
+public final class SharedLibrary {
+    /**
+     * The library as loaded. Replaced as a whole so that readers never see half of one.
+     */
+    private static final class Loaded {
+        /**
+         * Class files of the library by binary name, as the compiler produced them.
+         */
+        private final Map<String, byte[]> classes;
+
+        /**
+         * Class loader holding the library, or null if there is none.
+         */
+        private final ClassLoader loader;
+
+        /**
+         * Hash of the library's classes, or an empty string if there is none.
+         */
+        private final String fingerprint;
+
+        /**
+         * Number of source files compiled into the library.
+         */
+        private final int sources;
+
+        /**
+         * Number of jars added to the library.
+         */
+        private final int jars;
+
+        /**
+         * Create a new loaded library.
+         *
+         * @param setClasses     class files of the library by binary name
+         * @param setLoader      class loader holding the library
+         * @param setFingerprint hash of the library's classes
+         * @param setSources     number of source files compiled into the library
+         * @param setJars        number of jars added to the library
+         */
+        Loaded(final Map<String, byte[]> setClasses, final ClassLoader setLoader, final String setFingerprint,
+               final int setSources, final int setJars) {
+            classes = setClasses;
+            loader = setLoader;
+            fingerprint = setFingerprint;
+            sources = setSources;
+            jars = setJars;
+        }
+    }
+
+    /**
+     * The library in use.
+     */
+    private static volatile Loaded library = new Loaded(Collections.emptyMap(), null, "", 0, 0);
+
+    /**
+     * Not instantiable.
+     */
+    private SharedLibrary() { }
+
+    /**
+     * Load the library, replacing any loaded before.
+     * <p>
+     * Sources are compiled together with the JDK compiler against the classes in the jars. Directories are searched
+     * for both.
+     *
+     * @param paths       .java sources, .jar archives, and directories containing them
+     * @param permissions the permissions the library's code runs with
+     * @throws IOException      if a file cannot be read
+     * @throws CompileException if the sources do not compile
+     */
+    static void load(final List<Path> paths, final Permissions permissions) throws IOException, CompileException {
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> walked = Files.walk(path)) {
+                    files.addAll(walked.filter(SharedLibrary::isLibraryFile).sorted().collect(Collectors.toList()));
+                }
+            } else if (isLibraryFile(path)) {
+                files.add(path);
+            } else {
+                throw new IllegalArgumentException("Library files must be .java sources or .jar archives: " + path);
+            }
+        }
+
+        Map<String, String> sources = new HashMap<>();
+        Map<String, byte[]> classes = new HashMap<>();
+        int jars = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".jar")) {
+                classes.putAll(readJar(file));
+                jars++;
+            } else if (sources.put(name, new String(Files.readAllBytes(file), StandardCharsets.UTF_8)) != null) {
+                throw new IllegalArgumentException("Library sources must have distinct file names: " + name);
+            }
+        }
+        if (!sources.isEmpty()) {
+            classes.putAll(JDKCompiler.compileToBytes(sources, classes));
+        }
+        if (classes.isEmpty()) {
+            clear();
+            return;
+        }
+
+        ClassLoader loader = new ByteArrayClassLoader(CancellationInstrumenter.instrument(classes),
+                Thread.currentThread().getContextClassLoader());
+        Sandbox.confine(loader, permissions);
+        library = new Loaded(Collections.unmodifiableMap(classes), loader, fingerprint(classes), sources.size(), jars);
+    }
+
+    /**
+     * Unload the library. Used for testing.
+     */
+    static void clear() {
+        library = new Loaded(Collections.emptyMap(), null, "", 0, 0);
+    }
+
+    /**
+     * Check whether a file can be added to the library.
+     *
+     * @param path the file
+     * @return true for .java sources and .jar archives
+     */
+    private static boolean isLibraryFile(final Path path) {
+        String name = path.getFileName().toString();
+        return Files.isRegularFile(path) && (name.endsWith(".java") || name.endsWith(".jar"));
+    }
+
+    /**
+     * Read the class files in a jar.
+     *
+     * @param jar the jar
+     * @return a map of binary class names to class file bytes
+     * @throws IOException if the jar cannot be read
+     */
+    private static Map<String, byte[]> readJar(final Path jar) throws IOException {
+        Map<String, byte[]> classes = new HashMap<>();
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/")
+                        || name.endsWith("module-info.class")) {
+                    continue;
+                }
+                try (InputStream input = zip.getInputStream(entry)) {
+                    classes.put(name.substring(0, name.length() - ".class".length()).replace('/', '.'),
+                            input.readAllBytes());
+                }
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Hash a set of classes.
+     *
+     * @param classes a map of binary class names to class file bytes
+     * @return a hash that changes whenever any of the classes does
+     */
+    private static String fingerprint(final Map<String, byte[]> classes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        for (Map.Entry<String, byte[]> entry : new TreeMap<>(classes).entrySet()) {
+            digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(entry.getValue());
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Get the class loader submissions are loaded on top of.
+     *
+     * @return the library's class loader, or the context class loader if there is no library
+     */
+    static ClassLoader loader() {
+        ClassLoader loader = library.loader;
+        if (loader == null) {
+            loader = Thread.currentThread().getContextClassLoader();
+        }
+        return loader;
+    }
+
+    /**
+     * Get the library's classes, for compilers that compile against bytes rather than a class loader.
+     *
+     * @return a map of binary class names to class file bytes
+     */
+    static Map<String, byte[]> classes() {
+        return library.classes;
+    }
+
+    /**
+     * Get a hash of the library, so results compiled against one library are not reused with another.
+     *
+     * @return a hash of the library's classes, or an empty string if there is no library
+     */
+    static String fingerprint() {
+        return library.fingerprint;
+    }
+
+    /**
+     * Describe the library.
+     *
+     * @return a JSON object with the number and size of the library's classes and where they came from
+     */
+    public static JsonObject stats() {
+        Loaded loaded = library;
+        long bytes = 0;
+        for (byte[] classFile : loaded.classes.values()) {
+            bytes += classFile.length;
+        }
+        return new JsonObject()
+                .add("classes", loaded.classes.size())
+                .add("bytes", bytes)
+                .add("sources", loaded.sources)
+                .add("jars", loaded.jars)
+                .add("fingerprint", loaded.fingerprint);
+    }
+}
@@ -1,19 +1,30 @@
 import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.janino.ClassLoaderIClassLoader;
+import org.codehaus.janino.Descriptor;
+import org.codehaus.janino.IClass;
+import org.codehaus.janino.IClassLoader;
+import org.codehaus.janino.Parser;
+import org.codehaus.janino.Scanner;
+import org.codehaus.janino.UnitCompiler;
+import org.codehaus.janino.util.ClassFile;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Run a class method using Janino.
  */
 @SuppressWarnings("checkstyle:visibilitymodifier")
-public class SimpleCompiler extends Source {
+public class SimpleCompiler extends Source implements Invocable {
 
     /**
      * Sources to compile.
@@ -31,9 +42,32 @@ public class SimpleCompiler extends Source {
     public String methodName = "main";
 
     /**
-     * Method to run.
+     * Calls to make to the method, each with its own arguments and timeout. If null the method is called once with
+     * no arguments.
+     * <p>
+     * All invocations run against the same compiled classes, so static state carries over from one to the next.
+     */
+    public Invocation[] invocations;
+
+    /**
+     * Handle to the method to run, looked up once per compile and used for every invocation.
+     */
+    private transient MethodHandle method;
+
+    /**
+     * Type the method handle is adapted to, so that it can be called exactly whatever the method returns.
+     */
+    private static final MethodType ENTRY_POINT_TYPE = MethodType.methodType(void.class, String[].class);
+
+    /**
+     * Compiled classes the method was loaded from.
+     */
+    private transient Map<String, byte[]> classes;
+
+    /**
+     * System property Janino uses to enable debugging information in generated classes.
      */
-    private transient Method method;
+    private static final String JANINO_DEBUGGING_PROPERTY = "org.codehaus.janino.source_debugging.enable";
 
     /**
      * Create a new SimpleCompiler and set default fields.
@@ -52,6 +86,40 @@ public class SimpleCompiler extends Source {
         compiler = setCompiler;
     }
 
+    /**
+     * Get the file name used for a source.
+     *
+     * @param index the index of the source in the sources array
+     * @return the file name for that source
+     */
+    private String sourceName(final int index) {
+        if (index == 0) {
+            return className + ".java";
+        }
+        return className + "Helper" + index;
+    }
+
+    /**
+     * Write the SimpleCompiler fields returned to the client, followed by the common ones.
+     *
+     * @param writer the writer to write fields to
+     * @throws IOException thrown if the stream cannot be written
+     */
+    @Override
+    protected void writeFields(final ResultWriter writer) throws IOException {
+        writer.field("sources", sources);
+        writer.field("className", className);
+        writer.field("methodName", methodName);
+        if (invocations != null) {
+            writer.beginArray("invocations");
+            for (Invocation invocation : invocations) {
+                invocation.write(writer);
+            }
+            writer.endArray();
+        }
+        super.writeFields(writer);
+    }
+
     /**
      * Get a map of sources.
      *
@@ -60,17 +128,52 @@ public class SimpleCompiler extends Source {
     protected Map<String, String> sources() {
         HashMap<String, String> sourceFiles = new HashMap<>();
         if (sources.length > 0) {
-            // Name the first source file after the entry point class
-            sourceFiles.put(className + ".java", sources[0]);
-            // Then name the others sequentially
-            for (int i = 1; i < sources.length; i++) {
-                sourceFiles.put(className + "Helper" + i, sources[i]);
+            // Name the first source file after the entry point class, then name the others sequentially
+            for (int i = 0; i < sources.length; i++) {
+                sourceFiles.put(sourceName(i), sources[i]);
             }
             // TODO: Make sure that naming scheme won't break things
         }
         return sourceFiles;
     }
 
+    /**
+     * Describe the method that gets run and how it is called, which are not part of the sources.
+     *
+     * @return the class and method to run, and the invocations if there are any
+     */
+    @Override
+    protected String entryPoint() {
+        if (invocations == null) {
+            return className + "." + methodName;
+        }
+        StringBuilder entryPoint = new StringBuilder(className).append('.').append(methodName);
+        for (Invocation invocation : invocations) {
+            entryPoint.append(invocation.key());
+        }
+        return entryPoint.toString();
+    }
+
+    /**
+     * Describe the shared library the sources are compiled against, which is not part of the sources.
+     *
+     * @return a hash of the shared library
+     */
+    @Override
+    protected String compileContext() {
+        return SharedLibrary.fingerprint();
+    }
+
+    /**
+     * Get the invocations to run instead of a single execution.
+     *
+     * @return the invocations, or null to call the method once with no arguments
+     */
+    @Override
+    public Invocation[] invocations() {
+        return invocations;
+    }
+
     /**
      * Create a new SimpleCompiler execution object from a received JSON string.
      *
@@ -83,39 +186,79 @@ public class SimpleCompiler extends Source {
 
     /**
      * Try compiling with Janino.
+     * <p>
+     * All sources are parsed first and then compiled together in a single pass, so they may refer to each other in
+     * any order and end up in one flat class loader. They are compiled against the shared library, if there is one.
      *
-     * @return ClassLoader if compilation was successful
+     * @return a map of binary class names to class file bytes
      * @throws CompileException thrown if compilation fails
-     * @throws IOException      thrown if there was a problem converting the string to bytes
-     */
-    private ClassLoader compileWithJanino() throws CompileException, IOException {
-        org.codehaus.janino.SimpleCompiler simpleCompiler =
-                new org.codehaus.janino.SimpleCompiler();
-        simpleCompiler.setPermissions(permissions);
-        for (String source : sources) {
-            simpleCompiler.cook(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
-            simpleCompiler.setParentClassLoader(simpleCompiler.getClassLoader());
+     * @throws IOException      thrown if there was a problem reading the sources
+     */
+    private Map<String, byte[]> compileWithJanino() throws CompileException, IOException {
+        final List<UnitCompiler> unitCompilers = new ArrayList<>();
+        IClassLoader iClassLoader = new IClassLoader(
+                new ClassLoaderIClassLoader(SharedLibrary.loader())) {
+            {
+                postConstruct();
+            }
+
+            @Override
+            protected IClass findIClass(final String descriptor) {
+                String name = Descriptor.toClassName(descriptor);
+                for (UnitCompiler unitCompiler : unitCompilers) {
+                    IClass found = unitCompiler.findClass(name);
+                    if (found != null) {
+                        defineIClass(found);
+                        return found;
+                    }
+                }
+                return null;
+            }
+        };
+        for (int i = 0; i < sources.length; i++) {
+            Parser parser = new Parser(new Scanner(sourceName(i), new StringReader(sources[i])));
+            unitCompilers.add(new UnitCompiler(parser.parseCompilationUnit(), iClassLoader));
         }
-        compiler = "Janino";
-        return simpleCompiler.getClassLoader();
+
+        boolean debug = Boolean.getBoolean(JANINO_DEBUGGING_PROPERTY);
+        Map<String, byte[]> compiledClasses = new HashMap<>();
+        for (UnitCompiler unitCompiler : unitCompilers) {
+            for (ClassFile classFile : unitCompiler.compileUnit(debug, debug, debug)) {
+                compiledClasses.put(classFile.getThisClassName(), classFile.toByteArray());
+            }
+        }
+        return compiledClasses;
     }
 
     /**
      * Try compiling with the JDK compiler.
+     * <p>
+     * All sources are compiled together by the shared in-process compiler, against the shared library if there is one.
      *
-     * @return ClassLoader if compilation was successful
+     * @return a map of binary class names to class file bytes
      * @throws CompileException thrown if compilation fails
-     * @throws IOException      thrown if there was a problem converting the string to bytes
-     */
-    private ClassLoader compileWithJDK() throws CompileException, IOException {
-        org.codehaus.commons.compiler.jdk.SimpleCompiler simpleCompiler =
-                new org.codehaus.commons.compiler.jdk.SimpleCompiler();
-        simpleCompiler.setPermissions(permissions);
-        for (String source : sources) {
-            simpleCompiler.cook(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+     */
+    private Map<String, byte[]> compileWithJDK() throws CompileException {
+        return JDKCompiler.compileToBytes(sources(), SharedLibrary.classes());
+    }
+
+    /**
+     * Find the method to run in freshly compiled classes.
+     *
+     * @param classLoader the class loader containing the compiled classes
+     * @return a handle to the method to run
+     * @throws ClassNotFoundException if the class specified is not found
+     * @throws NoSuchMethodException  if the method specified is not found or is not static
+     * @throws IllegalAccessException if the method cannot be accessed
+     */
+    private MethodHandle loadMethod(final ClassLoader classLoader)
+            throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException {
+        Class<?> klass = classLoader.loadClass(className);
+        Method loadedMethod = klass.getMethod(methodName, String[].class);
+        if (!(Modifier.isStatic(loadedMethod.getModifiers()))) {
+            throw new NoSuchMethodException(methodName + " must be static");
         }
-        compiler = "JDK";
-        return simpleCompiler.getClassLoader();
+        return MethodHandles.publicLookup().unreflect(loadedMethod).asType(ENTRY_POINT_TYPE);
     }
 
     /**
@@ -127,29 +270,79 @@ public class SimpleCompiler extends Source {
      * @throws IOException            if there is a problem creating the input stream
      * @throws ClassNotFoundException if the class specified is not found
      * @throws NoSuchMethodException  if the method specified is not found or is not static
+     * @throws IllegalAccessException if the method cannot be accessed
      */
-    public void doCompile() throws CompileException, IOException, ClassNotFoundException, NoSuchMethodException {
-        ClassLoader classLoader;
+    public void doCompile() throws CompileException, IOException, ClassNotFoundException, NoSuchMethodException,
+            IllegalAccessException {
         switch (compiler) {
             case "Janino":
-                classLoader = compileWithJanino();
+                useCompiled("Janino", compileWithJanino());
                 break;
             case "JDK":
-                classLoader = compileWithJDK();
+                useCompiled("JDK", compileWithJDK());
                 break;
             default:
-                try {
-                    classLoader = compileWithJanino();
-                    break;
-                } catch (CompileException ignored) { }
-                classLoader = compileWithJDK();
+                if (!CompilerRouter.prefersJDK(sources)) {
+                    Map<String, byte[]> compiledClasses = null;
+                    try {
+                        compiledClasses = compileWithJanino();
+                        CompilerRouter.recordJanino(true);
+                    } catch (CompileException ignored) {
+                        CompilerRouter.recordJanino(false);
+                    }
+                    if (compiledClasses != null) {
+                        useCompiled("Janino", compiledClasses);
+                        break;
+                    }
+                }
+                useCompiled("JDK", compileWithJDK());
                 break;
         }
-        Class<?> klass = classLoader.loadClass(className);
-        method = klass.getMethod(methodName, String[].class);
-        if (!(Modifier.isStatic(method.getModifiers()))) {
-            throw new NoSuchMethodException(methodName + " must be static");
+    }
+
+    /**
+     * Compile with a specific compiler without modifying this object.
+     *
+     * @param useCompiler the compiler to use
+     * @return a map of binary class names to class file bytes
+     * @throws CompileException if compilation fails
+     * @throws IOException      if there is a problem reading the sources
+     */
+    protected Object compileWith(final String useCompiler) throws CompileException, IOException {
+        if (useCompiler.equals("Janino")) {
+            return compileWithJanino();
         }
+        return compileWithJDK();
+    }
+
+    /**
+     * Load the classes produced by a successful compile and find the method to run.
+     * <p>
+     * The classes always go into a new class loader, so submissions that share a compile never share static state.
+     * The loader sits on top of the shared library, so the library's classes are loaded once for all submissions.
+     *
+     * @param useCompiler the compiler that produced the classes
+     * @param result      a map of binary class names to class file bytes
+     * @throws ClassNotFoundException if the class specified is not found
+     * @throws NoSuchMethodException  if the method specified is not found or is not static
+     * @throws IllegalAccessException if the method cannot be accessed
+     */
+    @SuppressWarnings("unchecked")
+    protected void useCompiled(final String useCompiler, final Object result)
+            throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException {
+        Map<String, byte[]> compiledClasses = (Map<String, byte[]>) result;
+        method = loadMethod(loadClasses(compiledClasses, SharedLibrary.loader()));
+        classes = compiledClasses;
+        compiler = useCompiler;
+    }
+
+    /**
+     * Get the compiled classes the method was loaded from.
+     *
+     * @return a map of binary class names to class file bytes
+     */
+    protected Map<String, byte[]> compiledClasses() {
+        return classes;
     }
 
     /**
@@ -157,11 +350,21 @@ public class SimpleCompiler extends Source {
      * <p>
      * Throws an exception if execution fails.
      *
-     * @throws InvocationTargetException if the target cannot be invoked
-     * @throws IllegalAccessException    if the code attempts to violate the sandbox
+     * @throws Throwable thrown if the code throws
+     */
+    public void doExecute() throws Throwable {
+        doInvoke(new String[] {});
+    }
+
+    /**
+     * Call the method with some arguments.
+     *
+     * @param arguments the arguments to pass
+     * @throws Throwable thrown if the code throws
      */
-    public void doExecute() throws InvocationTargetException, IllegalAccessException {
-        method.invoke(null, (Object) new String[]{});
+    @Override
+    public void doInvoke(final String[] arguments) throws Throwable {
+        method.invokeExact(arguments);
     }
 
     /**
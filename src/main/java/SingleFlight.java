@@ -0,0 +1,103 @@
+import com.eclipsesource.json.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesce identical submissions that are in flight at the same time.
+ * <p>
+ * When an assignment is released, many students run the same starter code within seconds of each other. The first
+ * submission with a given key leads the flight and does the work. Submissions with the same key that arrive while it
+ * is in flight wait for it and copy its results instead of running checkstyle and the compiler again.
+ */
+public final class SingleFlight {
+    /**
+     * Flights in progress by key. Completed with the leader, or with null if the leader failed.
+     */
+    private static final Map<String, CompletableFuture<Source>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    /**
+     * Number of submissions that led a flight.
+     */
+    private static final AtomicLong LEADERS = new AtomicLong();
+
+    /**
+     * Number of submissions that joined a flight and used its results.
+     */
+    private static final AtomicLong COALESCED = new AtomicLong();
+
+    /**
+     * Number of coalesced submissions that also used the leader's execution.
+     */
+    private static final AtomicLong SHARED_EXECUTIONS = new AtomicLong();
+
+    /**
+     * Number of submissions that joined a flight whose leader failed, and so ran on their own.
+     */
+    private static final AtomicLong ABANDONED = new AtomicLong();
+
+    /**
+     * Not instantiable.
+     */
+    private SingleFlight() { }
+
+    /**
+     * Join the flight for a key, or start a new one.
+     *
+     * @param key    the submission's key
+     * @param flight a new flight to lead if none is in progress
+     * @return the flight in progress, or null if the caller now leads the new flight
+     */
+    static CompletableFuture<Source> join(final String key, final CompletableFuture<Source> flight) {
+        CompletableFuture<Source> inFlight = IN_FLIGHT.putIfAbsent(key, flight);
+        if (inFlight == null) {
+            LEADERS.incrementAndGet();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Finish a flight and hand its results to anyone waiting on it.
+     *
+     * @param key    the submission's key
+     * @param flight the flight being led
+     * @param leader the finished leader, or null if it failed
+     */
+    static void land(final String key, final CompletableFuture<Source> flight, final Source leader) {
+        IN_FLIGHT.remove(key, flight);
+        flight.complete(leader);
+    }
+
+    /**
+     * Record what a submission that joined a flight got from it.
+     *
+     * @param leader          the leader it copied from, or null if the leader failed
+     * @param sharedExecution whether it also copied the leader's execution
+     */
+    static void recordFollower(final Source leader, final boolean sharedExecution) {
+        if (leader == null) {
+            ABANDONED.incrementAndGet();
+            return;
+        }
+        COALESCED.incrementAndGet();
+        if (sharedExecution) {
+            SHARED_EXECUTIONS.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the coalescing counters.
+     *
+     * @return a JSON object with leader, coalesced, and shared execution counts
+     */
+    public static JsonObject stats() {
+        return new JsonObject()
+                .add("inFlight", IN_FLIGHT.size())
+                .add("leaders", LEADERS.get())
+                .add("coalesced", COALESCED.get())
+                .add("sharedExecutions", SHARED_EXECUTIONS.get())
+                .add("abandoned", ABANDONED.get());
+    }
+}
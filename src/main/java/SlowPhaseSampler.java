@@ -0,0 +1,311 @@
+import com.eclipsesource.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sample the stacks of phases that run too long.
+ * <p>
+ * When checkstyle, a compile, or an execution goes over the threshold, we want to know where the time went: a huge
+ * checkstyle tree, a slow fallback compile, or submitted code stuck in I/O. Each phase is watched while it runs, and
+ * once it is over the threshold a background thread samples the stack of the thread doing its work at a fixed
+ * interval. Samples are folded into one line per distinct stack, root first, with a count: the format flame graph
+ * tools read. Phases that finish under the threshold are never sampled, so watching them costs a map update.
+ */
+public final class SlowPhaseSampler {
+    /**
+     * Default time a phase may run before it is sampled, in milliseconds.
+     */
+    public static final long DEFAULT_THRESHOLD_MS = 1000;
+
+    /**
+     * Time between samples, in milliseconds.
+     */
+    static final long SAMPLE_INTERVAL_MS = 10;
+
+    /**
+     * Deepest stack kept, counting from the frame that was running.
+     */
+    static final int MAX_DEPTH = 64;
+
+    /**
+     * Most distinct stacks kept per submission. Further stacks are counted under their phase alone.
+     */
+    static final int MAX_STACKS = 100;
+
+    /**
+     * Frame standing in for the frames cut from the root end of a deep stack.
+     */
+    static final String TRUNCATED = "...";
+
+    /**
+     * Stacks sampled from one submission.
+     */
+    static final class Profile {
+        /**
+         * Number of samples by folded stack, or null before the first sample.
+         */
+        private Map<String, Integer> stacks;
+
+        /**
+         * Add a sample.
+         *
+         * @param phase  the phase the sample was taken in
+         * @param frames the stack, with the running frame first
+         */
+        synchronized void add(final String phase, final StackTraceElement[] frames) {
+            if (stacks == null) {
+                stacks = new HashMap<>();
+            }
+            StringBuilder folded = new StringBuilder(phase);
+            int depth = Math.min(frames.length, MAX_DEPTH);
+            if (frames.length > depth) {
+                folded.append(';').append(TRUNCATED);
+            }
+            for (int i = depth - 1; i >= 0; i--) {
+                folded.append(';').append(frames[i].getClassName()).append('.').append(frames[i].getMethodName());
+            }
+            String stack = folded.toString();
+            if (!stacks.containsKey(stack) && stacks.size() >= MAX_STACKS) {
+                stack = phase;
+            }
+            stacks.merge(stack, 1, Integer::sum);
+        }
+
+        /**
+         * Get the folded stacks.
+         *
+         * @return one "root;...;leaf count" line per stack, most sampled first, or null if nothing was sampled
+         */
+        synchronized String folded() {
+            if (stacks == null) {
+                return null;
+            }
+            List<Map.Entry<String, Integer>> sorted = new ArrayList<>(stacks.entrySet());
+            sorted.sort((a, b) -> b.getValue() - a.getValue());
+            StringBuilder folded = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : sorted) {
+                folded.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+            return folded.toString();
+        }
+    }
+
+    /**
+     * A phase being watched.
+     */
+    static final class Watch implements AutoCloseable {
+        /**
+         * The phase.
+         */
+        private final String phase;
+
+        /**
+         * The thread that started the phase.
+         */
+        private final Thread owner;
+
+        /**
+         * Where samples go.
+         */
+        private final Profile profile;
+
+        /**
+         * When the phase started, from System.nanoTime.
+         */
+        private final long started = System.nanoTime();
+
+        /**
+         * The thread doing the phase's work, which is the owner unless it has handed the work to another thread.
+         */
+        private volatile Thread target;
+
+        /**
+         * Whether the phase has been sampled.
+         */
+        private boolean sampled = false;
+
+        /**
+         * Whether the phase is done, after which samples taken while it finished are discarded.
+         */
+        private boolean closed = false;
+
+        /**
+         * Start watching a phase.
+         *
+         * @param setPhase   the phase
+         * @param setProfile where samples go
+         */
+        private Watch(final String setPhase, final Profile setProfile) {
+            phase = setPhase;
+            profile = setProfile;
+            owner = Thread.currentThread();
+            target = owner;
+        }
+
+        /**
+         * Stop watching the phase.
+         */
+        @Override
+        public void close() {
+            if (profile == null) {
+                return;
+            }
+            WATCHES.remove(owner, this);
+            synchronized (this) {
+                closed = true;
+                if (sampled) {
+                    SLOW.computeIfAbsent(phase, name -> new AtomicLong()).incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Add a sample unless the phase is already done.
+         *
+         * @param frames the stack, with the running frame first
+         */
+        private synchronized void add(final StackTraceElement[] frames) {
+            if (closed) {
+                return;
+            }
+            profile.add(phase, frames);
+            sampled = true;
+            SAMPLES.incrementAndGet();
+        }
+    }
+
+    /**
+     * Watch returned when sampling is off.
+     */
+    private static final Watch OFF = new Watch("", null);
+
+    /**
+     * Phases being watched, by the thread that started them.
+     */
+    private static final Map<Thread, Watch> WATCHES = new ConcurrentHashMap<>();
+
+    /**
+     * Number of phases sampled, by phase.
+     */
+    private static final Map<String, AtomicLong> SLOW = new ConcurrentHashMap<>();
+
+    /**
+     * Number of samples taken.
+     */
+    private static final AtomicLong SAMPLES = new AtomicLong();
+
+    /**
+     * Time a phase may run before it is sampled, in nanoseconds, or 0 if sampling is off.
+     */
+    private static volatile long threshold = TimeUnit.MILLISECONDS.toNanos(DEFAULT_THRESHOLD_MS);
+
+    /**
+     * Thread that takes samples.
+     */
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "slow-phase-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        SAMPLER.scheduleAtFixedRate(SlowPhaseSampler::sample, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private SlowPhaseSampler() { }
+
+    /**
+     * Set the time a phase may run before it is sampled.
+     *
+     * @param thresholdMs the threshold in milliseconds, or 0 to turn sampling off
+     */
+    static void configure(final long thresholdMs) {
+        if (thresholdMs < 0) {
+            throw new IllegalArgumentException("Slow phase threshold must not be negative");
+        }
+        threshold = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+    }
+
+    /**
+     * Start watching a phase run by the current thread.
+     *
+     * @param phase   the phase
+     * @param profile where samples of the phase go
+     * @return a watch to close when the phase is done
+     */
+    static Watch watch(final String phase, final Profile profile) {
+        if (threshold == 0) {
+            return OFF;
+        }
+        Watch watch = new Watch(phase, profile);
+        WATCHES.put(watch.owner, watch);
+        return watch;
+    }
+
+    /**
+     * Sample another thread for the current thread's phase, while it waits for that thread to do the work.
+     *
+     * @param worker the thread doing the work, or null to go back to sampling the current thread
+     */
+    static void delegate(final Thread worker) {
+        Watch watch = WATCHES.get(Thread.currentThread());
+        if (watch == null) {
+            return;
+        }
+        if (worker == null) {
+            watch.target = watch.owner;
+        } else {
+            watch.target = worker;
+        }
+    }
+
+    /**
+     * Sample every phase that is over the threshold.
+     */
+    private static void sample() {
+        long limit = threshold;
+        if (limit == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Watch watch : WATCHES.values()) {
+            if (now - watch.started < limit) {
+                continue;
+            }
+            StackTraceElement[] frames = watch.target.getStackTrace();
+            if (frames.length == 0) {
+                continue;
+            }
+            watch.add(frames);
+        }
+    }
+
+    /**
+     * Get the sampler counters.
+     *
+     * @return a JSON object with the threshold, the number of samples, and how many phases of each kind were sampled
+     */
+    public static JsonObject stats() {
+        JsonObject slow = new JsonObject();
+        for (Map.Entry<String, AtomicLong> entry : SLOW.entrySet()) {
+            slow.add(entry.getKey(), entry.getValue().get());
+        }
+        return new JsonObject()
+                .add("thresholdMs", TimeUnit.NANOSECONDS.toMillis(threshold))
+                .add("watching", WATCHES.size())
+                .add("samples", SAMPLES.get())
+                .add("slow", slow);
+    }
+}
@@ -1,6 +1,16 @@
 import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.compiler.Location;
+import org.codehaus.janino.ClassLoaderIClassLoader;
+import org.codehaus.janino.Descriptor;
+import org.codehaus.janino.IClassLoader;
+import org.codehaus.janino.Java;
+import org.codehaus.janino.UnitCompiler;
+import org.codehaus.janino.util.ClassFile;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -21,19 +31,44 @@ public class Snippet extends Source {
     public String source;
 
     /**
-     * Janino script evaluator.
+     * Method the snippet was wrapped in.
      */
-    private transient org.codehaus.janino.ScriptEvaluator janinoScriptEvaluator;
+    private transient Method method;
 
     /**
-     * JDK script evaluator.
+     * Compiled classes the method was loaded from.
      */
-    private transient org.codehaus.commons.compiler.jdk.ScriptEvaluator jdkScriptEvaluator;
+    private transient Map<String, byte[]> classes;
 
     /**
-     * Map of lines in template to lines in original source.
+     * Name of the class snippets are wrapped in. Janino's script evaluator uses the same name.
      */
-    private transient Map<Integer, Integer> templateLineMapping;
+    private static final String CLASS_NAME = "SC";
+
+    /**
+     * Name of the method snippets are wrapped in. Janino's script evaluator uses the same name.
+     */
+    private static final String METHOD_NAME = "eval0";
+
+    /**
+     * System property Janino uses to enable debugging information in generated classes.
+     */
+    private static final String JANINO_DEBUGGING_PROPERTY = "org.codehaus.janino.source_debugging.enable";
+
+    /**
+     * Spaces to copy indentation from.
+     */
+    private static final String INDENTATION = "                                                                ";
+
+    /**
+     * Builders larger than this are not kept for reuse, so one huge snippet doesn't pin memory.
+     */
+    private static final int MAX_CACHED_BUILDER_CAPACITY = 64 * 1024;
+
+    /**
+     * Per-thread builder reused when templating snippets.
+     */
+    private static final ThreadLocal<StringBuilder> TEMPLATE_BUILDER = ThreadLocal.withInitial(StringBuilder::new);
 
     /**
      * Create a new Snippet and set default fields.
@@ -53,17 +88,88 @@ public class Snippet extends Source {
     }
 
     /**
-     * Convenience method to pad left strings with whitespace.
+     * Convenience method to pad left with whitespace.
+     *
+     * @param builder the builder to append to
+     * @param count   amount of space to insert
+     */
+    private static void padLeft(final StringBuilder builder, final int count) {
+        int remaining = count;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, INDENTATION.length());
+            builder.append(INDENTATION, 0, chunk);
+            remaining -= chunk;
+        }
+    }
+
+    /**
+     * Check whether a character matches \s in a regular expression.
      *
-     * @param count amount of space to insert
-     * @return a empty String of length count
+     * @param character the character to check
+     * @return true if the character is whitespace
      */
-    private String padLeft(final int count) {
-        StringBuilder padding = new StringBuilder();
-        for (int unused = 0; unused < count; unused++) {
-            padding.append(" ");
+    private static boolean isWhitespace(final char character) {
+        return character == ' ' || character == '\t' || character == '\n'
+                || character == '\u000B' || character == '\f' || character == '\r';
+    }
+
+    /**
+     * Check whether a line of the source starts with a prefix.
+     *
+     * @param prefix    the prefix to look for
+     * @param lineStart index of the start of the line in the source
+     * @param lineEnd   index of the end of the line in the source
+     * @return true if the line starts with the prefix
+     */
+    private boolean lineStartsWith(final String prefix, final int lineStart, final int lineEnd) {
+        return lineEnd - lineStart >= prefix.length() && source.startsWith(prefix, lineStart);
+    }
+
+    /**
+     * Append one line of the snippet to the template.
+     * <p>
+     * Lines starting with static have every "static " removed, and trailing whitespace is dropped.
+     *
+     * @param builder   the builder to append to
+     * @param lineStart index of the start of the line in the source
+     * @param lineEnd   index of the end of the line in the source
+     */
+    private void appendLine(final StringBuilder builder, final int lineStart, final int lineEnd) {
+        padLeft(builder, indentLevel * 2);
+        int contentStart = builder.length();
+        if (lineStartsWith("static ", lineStart, lineEnd)) {
+            int position = lineStart;
+            while (position < lineEnd) {
+                int match = source.indexOf("static ", position);
+                if (match < 0 || match + "static ".length() > lineEnd) {
+                    break;
+                }
+                builder.append(source, position, match);
+                position = match + "static ".length();
+            }
+            builder.append(source, position, lineEnd);
+        } else {
+            builder.append(source, lineStart, lineEnd);
+        }
+        int contentEnd = builder.length();
+        while (contentEnd > contentStart && isWhitespace(builder.charAt(contentEnd - 1))) {
+            contentEnd--;
         }
-        return padding.toString();
+        builder.setLength(contentEnd);
+        builder.append('\n');
+    }
+
+    /**
+     * Write the Snippet fields returned to the client, followed by the common ones.
+     *
+     * @param writer the writer to write fields to
+     * @throws IOException thrown if the stream cannot be written
+     */
+    @Override
+    protected void writeFields(final ResultWriter writer) throws IOException {
+        writer.field("filename", filename);
+        writer.field("source", source);
+        super.writeFields(writer);
     }
 
     /**
@@ -72,44 +178,50 @@ public class Snippet extends Source {
      * @return a map of sources for this snippet.
      */
     protected Map<String, String> sources() {
-        Map<String, String> snippetSources = new HashMap<>();
-        templateLineMapping = new HashMap<>();
+        // Equivalent to source.trim()
+        int start = 0;
+        int end = source.length();
+        while (start < end && source.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && source.charAt(end - 1) <= ' ') {
+            end--;
+        }
 
-        int templateLine = 0;
-        int sourceLine = 0;
-        StringBuilder templatedSourceBuilder = new StringBuilder();
+        int lineCount = 1;
+        for (int i = start; i < end; i++) {
+            if (source.charAt(i) == '\n') {
+                lineCount++;
+            }
+        }
+        StringBuilder templatedSourceBuilder = TEMPLATE_BUILDER.get();
+        templatedSourceBuilder.setLength(0);
 
         templatedSourceBuilder.append("public class Snippet {\n");
-        templateLineMapping.put(templateLine, null);
-        templateLine++;
-        templatedSourceBuilder.append(padLeft(indentLevel)).append("public static void snippet() {\n");
-        templateLineMapping.put(templateLine, null);
-        templateLine++;
-
-        for (String line : source.trim().split("\n")) {
-            if (line.startsWith("import ")) {
-                sourceLine++;
-                continue;
+        padLeft(templatedSourceBuilder, indentLevel);
+        templatedSourceBuilder.append("public static void snippet() {\n");
+
+        int lineStart = start;
+        for (int line = 0; line < lineCount; line++) {
+            int lineEnd = source.indexOf('\n', lineStart);
+            if (lineEnd < 0 || lineEnd > end) {
+                lineEnd = end;
             }
-            if (line.startsWith("static ")) {
-                line = line.replace("static ", "");
+            if (!lineStartsWith("import ", lineStart, lineEnd)) {
+                appendLine(templatedSourceBuilder, lineStart, lineEnd);
             }
-            templatedSourceBuilder.append(padLeft(indentLevel * 2)).append(line.replaceAll("\\s+$", "")).append("\n");
-            templateLineMapping.put(templateLine, sourceLine);
-            templateLine++;
-            sourceLine++;
+            lineStart = lineEnd + 1;
         }
 
-        templatedSourceBuilder.append(padLeft(indentLevel)).append("}\n");
-        templateLineMapping.put(templateLine, null);
-        templateLine++;
+        padLeft(templatedSourceBuilder, indentLevel);
+        templatedSourceBuilder.append("}\n");
         templatedSourceBuilder.append("}\n\n");
-        templateLineMapping.put(templateLine, null);
-        templateLine++;
 
         String templatedSource = templatedSourceBuilder.toString();
-        snippetSources.put(filename, templatedSource);
-        return snippetSources;
+        if (templatedSourceBuilder.capacity() > MAX_CACHED_BUILDER_CAPACITY) {
+            TEMPLATE_BUILDER.remove();
+        }
+        return Collections.singletonMap(filename, templatedSource);
     }
 
     /**
@@ -124,26 +236,78 @@ public class Snippet extends Source {
 
     /**
      * Try compiling with Janino.
+     * <p>
+     * The script evaluator only wraps the snippet in a class. That class is compiled here rather than by the script
+     * evaluator, which would also load it, so that the classes are only loaded once, the same way as classes from the
+     * JDK compiler. The types the evaluator adds to the class are resolved here too, since it would otherwise resolve
+     * them with the class loader it creates when it compiles.
      *
+     * @return a map of binary class names to class file bytes
      * @throws CompileException thrown if compilation fails
      */
-    private void compileWithJanino() throws CompileException {
-        janinoScriptEvaluator = new org.codehaus.janino.ScriptEvaluator();
-        janinoScriptEvaluator.setPermissions(permissions);
-        janinoScriptEvaluator.cook(source);
-        compiler = "Janino";
+    private Map<String, byte[]> compileWithJanino() throws CompileException {
+        final Map<String, byte[]> compiledClasses = new HashMap<>();
+        final IClassLoader iClassLoader = new ClassLoaderIClassLoader(Thread.currentThread().getContextClassLoader());
+        org.codehaus.janino.ScriptEvaluator scriptEvaluator = new org.codehaus.janino.ScriptEvaluator() {
+            @Override
+            protected Java.Type classToType(final Location location, final Class<?> type) {
+                try {
+                    String descriptor = Descriptor.fromClassName(type.getName());
+                    return new Java.SimpleType(location, iClassLoader.loadIClass(descriptor));
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            protected void cook2(final Java.CompilationUnit compilationUnit) throws CompileException {
+                UnitCompiler unitCompiler = new UnitCompiler(compilationUnit, iClassLoader);
+                boolean debug = Boolean.getBoolean(JANINO_DEBUGGING_PROPERTY);
+                for (ClassFile classFile : unitCompiler.compileUnit(debug, debug, debug)) {
+                    compiledClasses.put(classFile.getThisClassName(), classFile.toByteArray());
+                }
+            }
+        };
+        scriptEvaluator.cook(source);
+        return compiledClasses;
+    }
+
+    /**
+     * Wrap the snippet in a class for the JDK compiler.
+     * <p>
+     * Leading imports stay at the top and the class header is placed on the same line as the first statement, so
+     * line numbers in compiler errors match the original snippet.
+     *
+     * @return the snippet wrapped in a class with a single static method
+     */
+    private String jdkSource() {
+        StringBuilder jdkSourceBuilder = new StringBuilder();
+        String[] lines = source.split("\n", -1);
+        int line = 0;
+        for (; line < lines.length; line++) {
+            String trimmed = lines[line].trim();
+            if (!trimmed.isEmpty() && !trimmed.startsWith("import ")) {
+                break;
+            }
+            jdkSourceBuilder.append(lines[line]).append("\n");
+        }
+        jdkSourceBuilder.append("public class ").append(CLASS_NAME)
+                .append(" { public static void ").append(METHOD_NAME).append("() { ");
+        for (; line < lines.length; line++) {
+            jdkSourceBuilder.append(lines[line]).append("\n");
+        }
+        jdkSourceBuilder.append("} }\n");
+        return jdkSourceBuilder.toString();
     }
 
     /**
      * Try compiling with the JDK.
      *
+     * @return a map of binary class names to class file bytes
      * @throws CompileException thrown if compilation fails
      */
-    private void compileWithJDK() throws CompileException {
-        jdkScriptEvaluator = new org.codehaus.commons.compiler.jdk.ScriptEvaluator();
-        jdkScriptEvaluator.setPermissions(permissions);
-        jdkScriptEvaluator.cook(source);
-        compiler = "JDK";
+    private Map<String, byte[]> compileWithJDK() throws CompileException {
+        return JDKCompiler.compileToBytes(Collections.singletonMap(filename, jdkSource()));
     }
 
     /**
@@ -151,39 +315,85 @@ public class Snippet extends Source {
      * <p>
      * Throws an exception if compilation fails.
      *
-     * @throws CompileException if compilation fails
+     * @throws CompileException       if compilation fails
+     * @throws ClassNotFoundException if the wrapper class is not found
+     * @throws NoSuchMethodException  if the wrapper method is not found
      */
-    public void doCompile() throws CompileException {
+    public void doCompile() throws CompileException, ClassNotFoundException, NoSuchMethodException {
         switch (compiler) {
             case "Janino":
-                compileWithJanino();
+                useCompiled("Janino", compileWithJanino());
                 break;
             case "JDK":
-                compileWithJDK();
+                useCompiled("JDK", compileWithJDK());
                 break;
             default:
-                try {
-                    compileWithJanino();
-                    break;
-                } catch (CompileException ignored) { }
-                compileWithJDK();
+                if (!CompilerRouter.prefersJDK(source)) {
+                    try {
+                        useCompiled("Janino", compileWithJanino());
+                        CompilerRouter.recordJanino(true);
+                        break;
+                    } catch (CompileException ignored) {
+                        CompilerRouter.recordJanino(false);
+                    }
+                }
+                useCompiled("JDK", compileWithJDK());
                 break;
         }
     }
 
+    /**
+     * Compile with a specific compiler without modifying this object.
+     *
+     * @param useCompiler the compiler to use
+     * @return a map of binary class names to class file bytes
+     * @throws CompileException if compilation fails
+     */
+    protected Object compileWith(final String useCompiler) throws CompileException {
+        if (useCompiler.equals("Janino")) {
+            return compileWithJanino();
+        }
+        return compileWithJDK();
+    }
+
+    /**
+     * Load the classes produced by a successful compile and find the method the snippet was wrapped in.
+     * <p>
+     * Snippets may declare local classes with static fields, so the classes always go into a new class loader.
+     *
+     * @param useCompiler the compiler that produced the classes
+     * @param result      a map of binary class names to class file bytes
+     * @throws ClassNotFoundException if the wrapper class is not found
+     * @throws NoSuchMethodException  if the wrapper method is not found
+     */
+    @SuppressWarnings("unchecked")
+    protected void useCompiled(final String useCompiler, final Object result)
+            throws ClassNotFoundException, NoSuchMethodException {
+        Map<String, byte[]> compiledClasses = (Map<String, byte[]>) result;
+        method = loadClasses(compiledClasses).loadClass(CLASS_NAME).getMethod(METHOD_NAME);
+        classes = compiledClasses;
+        compiler = useCompiler;
+    }
+
+    /**
+     * Get the compiled classes the method was loaded from.
+     *
+     * @return a map of binary class names to class file bytes
+     */
+    protected Map<String, byte[]> compiledClasses() {
+        return classes;
+    }
+
     /**
      * Execute our snippet of Java source code.
      * <p>
      * Throws an exception of execution fails.
      *
      * @throws InvocationTargetException if execution fails
+     * @throws IllegalAccessException    if the code attempts to violate the sandbox
      */
-    public void doExecute() throws InvocationTargetException {
-        if (compiler.equals("Janino")) {
-            janinoScriptEvaluator.evaluate(new Object[0]);
-        } else if (compiler.equals("JDK")) {
-            jdkScriptEvaluator.evaluate(new Object[0]);
-        }
+    public void doExecute() throws InvocationTargetException, IllegalAccessException {
+        method.invoke(null);
     }
 
     /**
@@ -1,4 +1,5 @@
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.puppycrawl.tools.checkstyle.ConfigurationLoader;
 import com.puppycrawl.tools.checkstyle.PackageObjectFactory;
 import com.puppycrawl.tools.checkstyle.PropertiesExpander;
@@ -7,16 +8,32 @@ import com.puppycrawl.tools.checkstyle.api.CheckstyleException;
 import com.puppycrawl.tools.checkstyle.api.Configuration;
 import com.puppycrawl.tools.checkstyle.api.LocalizedMessage;
 import org.apache.commons.cli.CommandLine;
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.commons.compiler.Sandbox;
+import org.codehaus.janino.ByteArrayClassLoader;
 
 import java.io.*;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.ReflectPermission;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Permissions;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
@@ -36,11 +53,62 @@ public abstract class Source implements Callable<Void> {
      */
     public boolean requireCheckstyle = true;
 
+    /**
+     * Whether to share the execution of an identical submission that is already in flight, rather than only its
+     * checkstyle and compile results.
+     */
+    public boolean shareExecution = false;
+
+    /**
+     * Last phase to run: checkstyle for lint-only requests, compile for compile-only requests, or execute to run
+     * everything. Missing means execute.
+     */
+    public String lastPhase;
+
+    /**
+     * Phase that runs checkstyle.
+     */
+    public static final String CHECKSTYLE_PHASE = "checkstyle";
+
+    /**
+     * Phase that compiles.
+     */
+    public static final String COMPILE_PHASE = "compile";
+
+    /**
+     * Phase that runs the compiled code.
+     */
+    public static final String EXECUTE_PHASE = "execute";
+
+    /**
+     * Phases in the order they run.
+     */
+    private static final List<String> PHASES = Arrays.asList(CHECKSTYLE_PHASE, COMPILE_PHASE, EXECUTE_PHASE);
+
+    /**
+     * Priority class to schedule checkstyle, compilation, and execution in, such as interactive or batch. Unknown or
+     * missing classes are scheduled in the class with the longest latency target.
+     */
+    public String priority;
+
     /**
      * Compiler used.
      */
     protected String compiler = "";
 
+    /**
+     * Compiler mode that runs Janino and the JDK at the same time and keeps whichever succeeds first.
+     */
+    public static final String HEDGED = "Hedged";
+
+    /**
+     * How many seconds the winning compiler finished ahead of the other one during a hedged compile.
+     * <p>
+     * Only set if the other compiler had also succeeded by the time the winner was picked. Otherwise the lead is
+     * recorded by the router once the other compiler finishes, after the result has been returned.
+     */
+    protected Double hedgeLead;
+
     /**
      * How the source was run.
      */
@@ -146,21 +214,73 @@ public abstract class Source implements Callable<Void> {
      */
     protected String executionErrorStackTrace;
 
+    /**
+     * Most invocations a submission may carry.
+     */
+    public static final int MAX_INVOCATIONS = 100;
+
     /**
      * Default execution timeout in milliseconds.
      */
     public static final int DEFAULT_TIMEOUT = 100;
 
     /**
-     * Execution timeout in milliseconds. Default is 100.
+     * Execution timeout in milliseconds. Default is 100. With invocations, the time all of them may take together.
      */
     protected int timeoutLength = DEFAULT_TIMEOUT;
 
+    /**
+     * Number of blocks execution may run, counting each method call and each pass through a loop, or 0 for no limit.
+     * Unlike the timeout, the count doesn't depend on how busy the server is. Applies to each invocation separately.
+     */
+    public long blockBudget = 0;
+
+    /**
+     * Number of blocks execution ran, if there is a block budget.
+     */
+    protected Long blocksExecuted;
+
+    /**
+     * Whether execution was cancelled for running past its block budget.
+     */
+    protected boolean budgetExceeded = false;
+
     /**
      * Output from execution if everything succeeded.
      */
     protected String output;
 
+    /**
+     * Output to compare the output with on the server. If set, the output is not returned.
+     */
+    public String expectedOutput;
+
+    /**
+     * Hex SHA-256 hash of the canonical expected output, compared with the hash of the canonical output if there is
+     * no expected output. If set, the output is not returned.
+     */
+    public String expectedOutputHash;
+
+    /**
+     * How to compare output: exact, whitespace, or lines. Default is exact.
+     */
+    public String comparison;
+
+    /**
+     * Whether to stop execution as soon as the output differs from the expected output.
+     */
+    public boolean stopOnMismatch = false;
+
+    /**
+     * Whether the output matched the expected output, if one was given.
+     */
+    protected Boolean outputMatched;
+
+    /**
+     * Where the output first differed from the expected output.
+     */
+    protected String outputMismatch;
+
     /**
      * Current tool version.
      */
@@ -184,7 +304,7 @@ public abstract class Source implements Callable<Void> {
     /**
      * Default permissions for code execution.
      */
-    protected transient Permissions permissions = new Permissions();
+    protected transient Permissions permissions = defaultPermissions();
 
     /**
      * Lock to serialize System.out and System.err.
@@ -201,13 +321,41 @@ public abstract class Source implements Callable<Void> {
      */
     private transient StringChecker checker = null;
 
+    /**
+     * Class loaders created for this submission, released to the metaspace budget once it has run.
+     */
+    private transient List<MetaspaceBudget.Tracked> loaders = new ArrayList<>();
+
+    /**
+     * Time this submission waited for the scheduler to admit it to each stage, in nanoseconds.
+     */
+    private transient long queueWait = 0;
+
+    /**
+     * Total length of the sources, or null until it is first needed.
+     */
+    private transient Long sourceLength;
+
+    /**
+     * Stacks sampled from phases of this submission that ran over the slow phase threshold.
+     */
+    private final transient SlowPhaseSampler.Profile profile = new SlowPhaseSampler.Profile();
+
+    /**
+     * Whether to return the sampled stacks with the result.
+     */
+    protected transient boolean returnProfile = false;
+
     /**
      * Initialize based on command line options.
      *
      * @param settings options passed on the command line
      * @throws CheckstyleException thrown if the checkstyle configuration is invalid
+     * @throws IOException         thrown if the compiled class store or the shared library cannot be read
+     * @throws CompileException    thrown if the shared library does not compile
      */
-    public static void initialize(final CommandLine settings) throws CheckstyleException {
+    public static void initialize(final CommandLine settings) throws CheckstyleException, IOException,
+            CompileException {
         String checkstyleConfigurationPath = "./defaults/checkstyle.xml";
         if (settings != null && settings.hasOption("c")) {
             checkstyleConfigurationPath = settings.getOptionValue("c");
@@ -219,21 +367,153 @@ public abstract class Source implements Callable<Void> {
                 ConfigurationLoader.IgnoredModulesOptions.OMIT,
                 new ThreadModeSettings(1, 1)
         );
+        try {
+            checkstyleFingerprint = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256")
+                    .digest(Files.readAllBytes(Paths.get(checkstyleConfigurationPath))));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            checkstyleFingerprint = checkstyleConfigurationPath;
+        }
+
+        if (settings != null && settings.hasOption("s")) {
+            long storeMegabytes = DEFAULT_STORE_MEGABYTES;
+            if (settings.hasOption("m")) {
+                storeMegabytes = Long.parseLong(settings.getOptionValue("m"));
+            }
+            setClassStore(new ClassStore(Paths.get(settings.getOptionValue("s")), storeMegabytes * BYTES_PER_MEGABYTE));
+        }
+
+        if (settings != null) {
+            long metaspaceLimit = MetaspaceBudget.defaultLimit();
+            if (settings.hasOption("b")) {
+                metaspaceLimit = Long.parseLong(settings.getOptionValue("b")) * BYTES_PER_MEGABYTE;
+            }
+            MetaspaceBudget.start(metaspaceLimit);
+        }
+
+        if (settings != null && settings.hasOption("j")) {
+            List<Path> libraryPaths = new ArrayList<>();
+            for (String path : settings.getOptionValue("j").split(",")) {
+                libraryPaths.add(Paths.get(path.trim()));
+            }
+            SharedLibrary.load(libraryPaths, defaultPermissions());
+        }
+
+        if (settings != null && settings.hasOption("q")) {
+            PriorityScheduler.configure(settings.getOptionValue("q"));
+        }
+
+        if (settings != null && settings.hasOption("h")) {
+            Health.configure(settings.getOptionValue("h"));
+        }
+
+        if (settings != null && settings.hasOption("w")) {
+            SlowPhaseSampler.configure(Long.parseLong(settings.getOptionValue("w")));
+        }
+
+        if (settings != null) {
+            int maxSessions = ReplSession.DEFAULT_MAX_SESSIONS;
+            if (settings.hasOption("r")) {
+                maxSessions = Integer.parseInt(settings.getOptionValue("r"));
+            }
+            long idleSeconds = ReplSession.DEFAULT_IDLE_SECONDS;
+            if (settings.hasOption("e")) {
+                idleSeconds = Long.parseLong(settings.getOptionValue("e"));
+            }
+            ReplSession.start(maxSessions, idleSeconds);
+        }
     }
 
     /**
-     * Create a new Source object.
-     * @throws CheckstyleException if checker creation fails.
+     * Load a value from the store. The store is only a cache, so errors are treated as misses.
+     *
+     * @param key the value's key
+     * @return the value, or null if it is not available
      */
-    Source() {
+    private static byte[] loadStored(final String key) {
+        ClassStore store = classStore;
+        if (store == null) {
+            return null;
+        }
+        try {
+            return store.get(key);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Save a value to the store. The store is only a cache, so errors are ignored.
+     *
+     * @param key   the value's key
+     * @param value the value
+     */
+    private static void store(final String key, final byte[] value) {
+        ClassStore store = classStore;
+        if (store == null) {
+            return;
+        }
+        try {
+            store.put(key, value);
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Set the store used to keep compiled classes and checkstyle results across restarts.
+     *
+     * @param setClassStore the store to use, or null to always check and compile from scratch
+     */
+    static void setClassStore(final ClassStore setClassStore) {
+        classStore = setClassStore;
+    }
+
+    /**
+     * Store of compiled classes and checkstyle results kept across restarts, or null if there isn't one.
+     */
+    private static volatile ClassStore classStore = null;
+
+    /**
+     * Default size cap of the store in megabytes.
+     */
+    private static final long DEFAULT_STORE_MEGABYTES = 256;
+
+    /**
+     * Bytes in a megabyte.
+     */
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    /**
+     * Hash of the checkstyle configuration, so stored checkstyle results are not reused after it changes.
+     */
+    private static String checkstyleFingerprint = "";
+
+    /**
+     * Versions of the compilers, so stored classes are not reused after an upgrade.
+     */
+    private static final String COMPILER_FINGERPRINT = System.getProperty("java.version") + "/"
+            + org.codehaus.janino.Compiler.class.getPackage().getImplementationVersion();
+
+    /**
+     * Build the permissions submitted code runs with.
+     *
+     * @return a new set of the default permissions
+     */
+    static Permissions defaultPermissions() {
+        Permissions defaults = new Permissions();
         // Required for out-of-order classes
-        permissions.add(new RuntimePermission("getProtectionDomain"));
+        defaults.add(new RuntimePermission("getProtectionDomain"));
         // Required for streams
-        permissions.add(new RuntimePermission("accessDeclaredMembers"));
-        permissions.add(new ReflectPermission("suppressAccessChecks"));
+        defaults.add(new RuntimePermission("accessDeclaredMembers"));
+        defaults.add(new ReflectPermission("suppressAccessChecks"));
         // Required for generics
-        permissions.add(new RuntimePermission("getClassLoader"));
+        defaults.add(new RuntimePermission("getClassLoader"));
+        return defaults;
+    }
 
+    /**
+     * Create a new Source object.
+     * @throws CheckstyleException if checker creation fails.
+     */
+    Source() {
         // Set up the checkstyle checker
         try {
             final ClassLoader moduleClassLoader = StringChecker.class.getClassLoader();
@@ -253,6 +533,22 @@ public abstract class Source implements Callable<Void> {
      */
     protected abstract Map<String, String> sources();
 
+    /**
+     * Get the total length of the sources, computing it once per submission.
+     *
+     * @return the number of characters in all of the sources
+     */
+    final long sourceLength() {
+        if (sourceLength == null) {
+            long length = 0;
+            for (String contents : sources().values()) {
+                length += contents.length();
+            }
+            sourceLength = length;
+        }
+        return sourceLength;
+    }
+
     /**
      * Create a new source object from a received JSON string.
      *
@@ -261,9 +557,34 @@ public abstract class Source implements Callable<Void> {
      * @return new source object initialized from the JSON string
      */
     protected static Source received(final String json, final Class<? extends Source> klass) {
-        Source source = gson.fromJson(json, klass);
-        source.received = OffsetDateTime.now();
-        return source;
+        FlightRecorder.Span span = FlightRecorder.begin(FlightRecorder.Phase.DECODE);
+        Source source = null;
+        try {
+            source = gson.fromJson(json, klass);
+            source.received = OffsetDateTime.now();
+            return source;
+        } finally {
+            span.end(source, source != null);
+        }
+    }
+
+    /**
+     * Create a new source object from a received submission that has already been parsed, for example from CBOR.
+     *
+     * @param tree  the parsed submission
+     * @param klass subclass of Source to deserialize into
+     * @return new source object initialized from the submission
+     */
+    protected static Source received(final JsonElement tree, final Class<? extends Source> klass) {
+        FlightRecorder.Span span = FlightRecorder.begin(FlightRecorder.Phase.DECODE);
+        Source source = null;
+        try {
+            source = gson.fromJson(tree, klass);
+            source.received = OffsetDateTime.now();
+            return source;
+        } finally {
+            span.end(source, source != null);
+        }
     }
 
     /**
@@ -272,8 +593,98 @@ public abstract class Source implements Callable<Void> {
      * @return JSON string representing the result of this execution
      */
     public String completed() {
-        returned = OffsetDateTime.now();
-        return gson.toJson(this);
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        try {
+            completed(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(json.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Mark an execution as completed and stream JSON to return to the client.
+     *
+     * @param out stream to write UTF-8 JSON to
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void completed(final OutputStream out) throws IOException {
+        completed(new ResultWriter(out));
+    }
+
+    /**
+     * Mark an execution as completed and write the result to return to the client.
+     *
+     * @param writer the writer to write the result with, which determines its encoding
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public void completed(final ResultWriter writer) throws IOException {
+        FlightRecorder.Span span = FlightRecorder.begin(FlightRecorder.Phase.SERIALIZE);
+        boolean written = false;
+        try {
+            returned = OffsetDateTime.now();
+            writer.beginObject();
+            writeFields(writer);
+            writer.endObject();
+            writer.flush();
+            written = true;
+        } finally {
+            span.end(this, written);
+        }
+    }
+
+    /**
+     * Write the fields returned to the client.
+     * <p>
+     * Subclasses write their own fields first and then call this, which is the order Gson used.
+     *
+     * @param writer the writer to write fields to
+     * @throws IOException thrown if the stream cannot be written
+     */
+    protected void writeFields(final ResultWriter writer) throws IOException {
+        writer.field("runCheckstyle", runCheckstyle);
+        writer.field("requireCheckstyle", requireCheckstyle);
+        writer.field("shareExecution", shareExecution);
+        writer.field("lastPhase", lastPhase);
+        writer.field("priority", priority);
+        writer.field("compiler", compiler);
+        writer.field("hedgeLead", hedgeLead);
+        writer.field("as", as);
+        writer.field("received", received);
+        writer.field("returned", returned);
+        writer.field("checkstyleStarted", checkstyleStarted);
+        writer.field("checkstyleFinished", checkstyleFinished);
+        writer.field("checkstyleLength", checkstyleLength);
+        writer.field("checkstyleSucceeded", checkstyleSucceeded);
+        writer.field("compileStarted", compileStarted);
+        writer.field("compileFinished", compileFinished);
+        writer.field("compileLength", compileLength);
+        writer.field("compiled", compiled);
+        writer.field("compilationErrorMessage", compilationErrorMessage);
+        writer.field("compilationErrorStackTrace", compilationErrorStackTrace);
+        writer.field("executionStarted", executionStarted);
+        writer.field("executionFinished", executionFinished);
+        writer.field("executionLength", executionLength);
+        writer.field("executed", executed);
+        writer.field("crashed", crashed);
+        writer.field("timedOut", timedOut);
+        writer.field("executionErrorMessage", executionErrorMessage);
+        writer.field("executionErrorStackTrace", executionErrorStackTrace);
+        writer.field("timeoutLength", timeoutLength);
+        writer.field("blockBudget", blockBudget);
+        writer.field("blocksExecuted", blocksExecuted);
+        writer.field("budgetExceeded", budgetExceeded);
+        writer.field("output", output);
+        // The expected output is not sent back, since saving that bandwidth is why it is compared here
+        writer.field("expectedOutputHash", expectedOutputHash);
+        writer.field("comparison", comparison);
+        writer.field("stopOnMismatch", stopOnMismatch);
+        writer.field("outputMatched", outputMatched);
+        writer.field("outputMismatch", outputMismatch);
+        writer.field("indentLevel", indentLevel);
+        if (returnProfile) {
+            writer.field("profile", profile());
+        }
     }
 
     /**
@@ -341,19 +752,44 @@ public abstract class Source implements Callable<Void> {
             return this;
         }
         int messageCount = 0;
+        String storeKey = null;
+        FlightRecorder.Span span = FlightRecorder.begin(FlightRecorder.Phase.CHECKSTYLE);
+        SlowPhaseSampler.Watch watch = SlowPhaseSampler.watch(CHECKSTYLE_PHASE, profile);
         try {
             checkstyleStarted = OffsetDateTime.now();
+            if (classStore != null) {
+                storeKey = sourcesKey("checkstyle", checkstyleFingerprint, String.valueOf(indentLevel));
+                byte[] stored = loadStored(storeKey);
+                if (stored != null) {
+                    checkstyleSucceeded = stored[0] != 0;
+                    return this;
+                }
+            }
             checker.configure(reconfigureIndentLevel(defaultCheckstyleConfiguration));
+            // We only report whether checkstyle passed, so skip checks after the first one that fails
+            checker.setFailFast(true);
             for (Map.Entry<String, String> source : sources().entrySet()) {
                 SortedSet<LocalizedMessage> sourceMessages = checker.processString(source.getValue(), source.getKey());
                 messageCount += sourceMessages.size();
+                if (messageCount > 0) {
+                    break;
+                }
             }
             checkstyleSucceeded = messageCount == 0;
+            if (storeKey != null) {
+                byte[] result = {0};
+                if (checkstyleSucceeded) {
+                    result[0] = 1;
+                }
+                store(storeKey, result);
+            }
         } catch (CheckstyleException e) {
             checkstyleSucceeded = false;
         } finally {
             checkstyleFinished = OffsetDateTime.now();
             checkstyleLength = diffTimestamps(checkstyleStarted, checkstyleFinished);
+            span.end(this, checkstyleSucceeded);
+            watch.close();
         }
         return this;
     }
@@ -365,6 +801,193 @@ public abstract class Source implements Callable<Void> {
      */
     protected abstract void doCompile() throws Exception;
 
+    /**
+     * Called on each executor to compile with a specific compiler during a hedged compile.
+     * <p>
+     * Janino and the JDK run at the same time, so this must not modify the executor. The result is passed to
+     * {@link #useCompiled(String, Object)} if this compiler wins.
+     *
+     * @param useCompiler the compiler to use, either Janino or JDK
+     * @return whatever the executor needs to run the compiled code
+     * @throws Exception thrown if the compile fails
+     */
+    protected abstract Object compileWith(String useCompiler) throws Exception;
+
+    /**
+     * Called on each executor to keep the result of a successful compile.
+     * <p>
+     * Also used to hand the result of an identical in-flight submission to this one, so executors that run code with
+     * static state must load it into a fresh class loader here.
+     *
+     * @param useCompiler the compiler that produced the result
+     * @param result      the value returned by {@link #compileWith(String)}
+     * @throws Exception thrown if the compiled code cannot be loaded
+     */
+    protected abstract void useCompiled(String useCompiler, Object result) throws Exception;
+
+    /**
+     * Called on each executor to get the classes it loaded in {@link #useCompiled(String, Object)}.
+     * <p>
+     * Passing these back to useCompiled must load the same code again.
+     *
+     * @return a map of binary class names to class file bytes
+     */
+    protected abstract Map<String, byte[]> compiledClasses();
+
+    /**
+     * Load compiled classes into a new sandboxed class loader.
+     * <p>
+     * The classes are instrumented to check for cancellation as they are loaded, so the bytes kept for reuse stay as
+     * the compiler produced them. The loader is tracked by the metaspace budget until it is collected.
+     *
+     * @param classes a map of binary class names to class file bytes
+     * @return a class loader containing the classes
+     */
+    protected final ClassLoader loadClasses(final Map<String, byte[]> classes) {
+        return loadClasses(classes, Thread.currentThread().getContextClassLoader());
+    }
+
+    /**
+     * Load compiled classes into a new sandboxed class loader on top of classes loaded earlier.
+     *
+     * @param classes a map of binary class names to class file bytes
+     * @param parent  the class loader the classes may refer to
+     * @return a class loader containing the classes
+     */
+    protected final ClassLoader loadClasses(final Map<String, byte[]> classes, final ClassLoader parent) {
+        return confine(new ByteArrayClassLoader(CancellationInstrumenter.instrument(classes), parent),
+                classes.keySet());
+    }
+
+    /**
+     * Confine a class loader to the sandbox and track it against the metaspace budget.
+     *
+     * @param classLoader the class loader
+     * @param classNames  names of the classes it holds, to describe it
+     * @param <T>         the type of the class loader
+     * @return the class loader, for chaining
+     */
+    protected final <T extends ClassLoader> T confine(final T classLoader, final Collection<String> classNames) {
+        Sandbox.confine(classLoader, permissions);
+        loaders.add(MetaspaceBudget.track(classLoader, classNames));
+        return classLoader;
+    }
+
+    /**
+     * Release the class loaders created for this submission once it has run, so they can be collected.
+     * <p>
+     * Executors whose classes stay in use after the request override this and release them later.
+     *
+     * @param created the loaders created for this submission
+     */
+    protected void releaseLoaders(final List<MetaspaceBudget.Tracked> created) {
+        MetaspaceBudget.release(created, timedOut);
+    }
+
+    /**
+     * Most threads running hedged compiles at once, counting losing attempts that are still finishing.
+     */
+    private static final int HEDGE_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How long an idle hedged compile thread is kept.
+     */
+    private static final long HEDGE_KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * Threads used to run hedged compiles. Attempts are never queued: when every thread is busy, compiles stop being
+     * hedged until losing attempts finish.
+     */
+    private static final ExecutorService HEDGE_EXECUTOR = new ThreadPoolExecutor(0, HEDGE_THREADS,
+            HEDGE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "hedged-compile");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Compile with Janino and the JDK at the same time and keep whichever succeeds first.
+     * <p>
+     * The router picks the preferred compiler, whose error is reported if both fail. The other attempt is cancelled as
+     * soon as there is a winner. Neither compiler checks for interrupts, so a cancelled attempt runs to completion in
+     * the background; if it succeeds, the winner's lead is recorded by the router when it finishes. Those attempts
+     * hold hedge threads, so under load only the preferred compiler runs, on this thread.
+     *
+     * @throws Exception the preferred compiler's error if both compiles fail
+     */
+    private void hedgedCompile() throws Exception {
+        String preferred = "Janino";
+        if (CompilerRouter.matchingRule(sources().values().toArray(new String[0])) != null) {
+            preferred = "JDK";
+        }
+        final Map<String, Long> finishedAt = new HashMap<>();
+        Map<Future<Object>, String> attempts = new HashMap<>();
+        CompletionService<Object> completionService = new ExecutorCompletionService<>(HEDGE_EXECUTOR);
+        String other = "JDK";
+        if (preferred.equals(other)) {
+            other = "Janino";
+        }
+        for (final String useCompiler : new String[] {preferred, other}) {
+            Future<Object> attempt;
+            try {
+                attempt = completionService.submit(() -> {
+                    Object result = compileWith(useCompiler);
+                    long finished = System.nanoTime();
+                    synchronized (finishedAt) {
+                        for (Map.Entry<String, Long> earlier : finishedAt.entrySet()) {
+                            CompilerRouter.recordHedgeLead(earlier.getKey(),
+                                    (finished - earlier.getValue()) / NANOSECONDS_TO_SECONDS);
+                        }
+                        finishedAt.put(useCompiler, finished);
+                    }
+                    return result;
+                });
+            } catch (RejectedExecutionException e) {
+                CompilerRouter.recordHedgeSkipped();
+                break;
+            }
+            attempts.put(attempt, useCompiler);
+        }
+        if (attempts.isEmpty()) {
+            useCompiled(preferred, compileWith(preferred));
+            return;
+        }
+
+        Map<String, Throwable> failures = new HashMap<>();
+        for (int i = 0; i < attempts.size(); i++) {
+            Future<Object> attempt = completionService.take();
+            String useCompiler = attempts.get(attempt);
+            Object result;
+            try {
+                result = attempt.get();
+            } catch (ExecutionException e) {
+                failures.put(useCompiler, e.getCause());
+                continue;
+            }
+            for (Future<Object> loser : attempts.keySet()) {
+                loser.cancel(true);
+            }
+            useCompiled(useCompiler, result);
+            if (attempts.size() > 1) {
+                CompilerRouter.recordHedgeWin(useCompiler);
+            }
+            synchronized (finishedAt) {
+                for (Map.Entry<String, Long> loser : finishedAt.entrySet()) {
+                    if (!loser.getKey().equals(useCompiler)) {
+                        hedgeLead = Math.abs(loser.getValue() - finishedAt.get(useCompiler)) / NANOSECONDS_TO_SECONDS;
+                    }
+                }
+            }
+            return;
+        }
+
+        Throwable failure = failures.get(preferred);
+        if (failure instanceof Exception) {
+            throw (Exception) failure;
+        }
+        throw new ExecutionException(failure);
+    }
+
     /**
      * Compile the source to bytecode.
      * <p>
@@ -373,19 +996,41 @@ public abstract class Source implements Callable<Void> {
      * @return this object for chaining
      */
     public final Source compile() {
-        if (runCheckstyle && requireCheckstyle && !checkstyleSucceeded) {
+        if (!runsPhase(COMPILE_PHASE) || (runCheckstyle && requireCheckstyle && !checkstyleSucceeded)) {
             return this;
         }
+        FlightRecorder.Span span = FlightRecorder.begin(FlightRecorder.Phase.COMPILE);
+        SlowPhaseSampler.Watch watch = SlowPhaseSampler.watch(COMPILE_PHASE, profile);
         try {
             compileStarted = OffsetDateTime.now();
-            doCompile();
+            String storeKey = null;
+            if (classStore != null) {
+                storeKey = sourcesKey("compile", COMPILER_FINGERPRINT, compiler, compileContext());
+                byte[] stored = loadStored(storeKey);
+                if (stored != null) {
+                    Map.Entry<String, Map<String, byte[]>> storedClasses = ClassStore.decodeClasses(stored);
+                    useCompiled(storedClasses.getKey(), storedClasses.getValue());
+                    compiled = true;
+                    return this;
+                }
+            }
+            if (compiler.equals(HEDGED)) {
+                hedgedCompile();
+            } else {
+                doCompile();
+            }
             compiled = true;
+            if (storeKey != null) {
+                store(storeKey, ClassStore.encodeClasses(compiler, compiledClasses()));
+            }
         } catch (Exception e) {
             compilationErrorMessage = e.toString();
             compilationErrorStackTrace = stackTraceToString(e);
         } finally {
             compileFinished = OffsetDateTime.now();
             compileLength = diffTimestamps(compileStarted, compileFinished);
+            span.end(this, compiled);
+            watch.close();
         }
         return this;
     }
@@ -393,9 +1038,9 @@ public abstract class Source implements Callable<Void> {
     /**
      * Called on each executor to actually run the code.
      *
-     * @throws Exception thrown if execution fails
+     * @throws Throwable thrown if execution fails
      */
-    protected abstract void doExecute() throws Exception;
+    protected abstract void doExecute() throws Throwable;
 
     @Override
     public final Void call() {
@@ -418,62 +1063,491 @@ public abstract class Source implements Callable<Void> {
 
     /**
      * Execute some compiled Java code.
+     * <p>
+     * If the executor has invocations, each one runs separately with its own output, and all of them share the
+     * timeout.
      *
      * @return this object for chaining
      */
-    @SuppressWarnings("deprecation")
     public final Source execute() {
-        if (!compiled) {
+        if (!compiled || !runsPhase(EXECUTE_PHASE)) {
+            return this;
+        }
+        try {
+            OutputMatcher.mode(comparison);
+        } catch (IllegalArgumentException e) {
+            executionErrorMessage = e.getMessage();
             return this;
         }
         OUTPUT_LOCK.lock();
+        FlightRecorder.Span span = FlightRecorder.begin(FlightRecorder.Phase.EXECUTE);
+        SlowPhaseSampler.Watch watch = SlowPhaseSampler.watch(EXECUTE_PHASE, profile);
         try {
-            FutureTask<Void> futureTask = new FutureTask<>(this);
-            Thread executionThread = new Thread(futureTask);
-
-
+            if (invocationsOf(this) != null) {
+                return executeInvocations((Invocable) this);
+            }
             ByteArrayOutputStream combinedOutputStream = new ByteArrayOutputStream();
-            PrintStream combinedStream = new PrintStream(combinedOutputStream);
-            PrintStream old = System.out;
-            PrintStream err = System.err;
-            System.setOut(combinedStream);
-            System.setErr(combinedStream);
-
+            OutputMatcher matcher = outputMatcher(expectedOutput, expectedOutputHash);
+            OutputStream capture = combinedOutputStream;
+            if (matcher != null) {
+                capture = matcher;
+            }
+            CancellationCheck.Execution execution = new CancellationCheck.Execution(blockBudget);
             try {
-                executionThread.start();
-                futureTask.get(timeoutLength, TimeUnit.MILLISECONDS);
-                timedOut = false;
-            } catch (TimeoutException e) {
-                futureTask.cancel(true);
-                executionThread.stop();
-                timedOut = true;
-            } catch (Throwable e) {
-                timedOut = false;
+                timedOut = runCaptured(this, timeoutLength, execution, capture);
             } finally {
+                blocksExecuted = execution.blocks();
+                budgetExceeded = execution.exceeded();
                 executionFinished = OffsetDateTime.now();
                 executionLength = diffTimestamps(executionStarted, executionFinished);
-
-                System.out.flush();
-                System.err.flush();
-                System.setOut(old);
-                System.setErr(err);
-                if (executed) {
+                if (matcher != null) {
+                    matcher.finish();
+                    outputMatched = executed && matcher.matched();
+                    outputMismatch = matcher.mismatch();
+                } else if (executed) {
                     output = combinedOutputStream.toString();
                 }
             }
             return this;
         } finally {
+            span.end(this, executed);
+            watch.close();
+            Health.executed(timedOut);
             OUTPUT_LOCK.unlock();
         }
     }
 
+    /**
+     * Run each invocation in turn against the compiled code.
+     * <p>
+     * All of the invocations must finish within the submission's timeout. Each one gets its own timeout or whatever
+     * is left, whichever is less, and the ones left when time runs out are not run and count as timed out. Execution
+     * succeeds only if every invocation does, and crashes or times out if any invocation does. Output matches if it
+     * matches for every invocation that has an expected output.
+     *
+     * @param invocable the executor and its invocations
+     * @return this object for chaining
+     */
+    private Source executeInvocations(final Invocable invocable) {
+        executionStarted = OffsetDateTime.now();
+        executed = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutLength);
+        try {
+            for (Invocation invocation : invocable.invocations()) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining > 0) {
+                    runInvocation(invocable, invocation, (int) Math.min(invocation.timeoutLength(timeoutLength),
+                            remaining));
+                } else {
+                    invocation.timedOut = true;
+                }
+                executed &= invocation.executed;
+                crashed |= invocation.crashed;
+                timedOut |= invocation.timedOut;
+                budgetExceeded |= invocation.budgetExceeded;
+                if (blocksExecuted == null) {
+                    blocksExecuted = invocation.blocksExecuted;
+                } else if (invocation.blocksExecuted != null) {
+                    blocksExecuted += invocation.blocksExecuted;
+                }
+            }
+        } finally {
+            executionFinished = OffsetDateTime.now();
+            executionLength = diffTimestamps(executionStarted, executionFinished);
+        }
+        return this;
+    }
+
+    /**
+     * Run one invocation against the compiled code and record its results.
+     *
+     * @param invocable  the executor
+     * @param invocation the invocation to run
+     * @param timeout    how long to let it run in milliseconds
+     */
+    private void runInvocation(final Invocable invocable, final Invocation invocation, final int timeout) {
+        ByteArrayOutputStream invocationOutput = new ByteArrayOutputStream();
+        OutputMatcher matcher = outputMatcher(invocation.expectedOutput, invocation.expectedOutputHash);
+        OutputStream capture = invocationOutput;
+        if (matcher != null) {
+            capture = matcher;
+        }
+        CancellationCheck.Execution execution = new CancellationCheck.Execution(blockBudget);
+        long started = System.nanoTime();
+        invocation.timedOut = runCaptured(() -> invoke(invocable, invocation), timeout, execution, capture);
+        invocation.executionLength = (System.nanoTime() - started) / NANOSECONDS_TO_SECONDS;
+        invocation.blocksExecuted = execution.blocks();
+        invocation.budgetExceeded = execution.exceeded();
+        if (matcher != null) {
+            matcher.finish();
+            invocation.outputMatched = invocation.executed && matcher.matched();
+            invocation.outputMismatch = matcher.mismatch();
+            outputMatched = invocation.outputMatched && (outputMatched == null || outputMatched);
+        } else if (invocation.executed) {
+            invocation.output = invocationOutput.toString();
+        }
+    }
+
+    /**
+     * Create a matcher for some expected output.
+     *
+     * @param expected     the expected output, or null
+     * @param expectedHash the hash of the canonical expected output, or null
+     * @return a matcher, or null if neither the output nor its hash is expected
+     */
+    private OutputMatcher outputMatcher(final String expected, final String expectedHash) {
+        if (expected == null && expectedHash == null) {
+            return null;
+        }
+        return new OutputMatcher(comparison, expected, expectedHash, stopOnMismatch);
+    }
+
+    /**
+     * Get the invocations of an executor.
+     *
+     * @param executor the executor
+     * @return its invocations, or null if it doesn't support them or has none
+     */
+    private static Invocation[] invocationsOf(final Source executor) {
+        if (executor instanceof Invocable) {
+            return ((Invocable) executor).invocations();
+        }
+        return null;
+    }
+
+    /**
+     * Run one invocation, recording whether it succeeded.
+     *
+     * @param invocable  the executor
+     * @param invocation the invocation to run
+     * @return nothing
+     */
+    private static Void invoke(final Invocable invocable, final Invocation invocation) {
+        try {
+            invocable.doInvoke(invocation.arguments());
+            invocation.executed = true;
+        } catch (ThreadDeath ignored) {
+        } catch (Throwable e) {
+            invocation.crashed = true;
+            invocation.executionErrorMessage = e.toString();
+            invocation.executionErrorStackTrace = stackTraceToString(e);
+        }
+        return null;
+    }
+
+    /**
+     * Run a task on a new thread with System.out and System.err captured, and cancel it if it runs too long.
+     * <p>
+     * Must be called with the output lock held. Output written while a cancelled task unwinds is still captured.
+     *
+     * @param task      the task to run
+     * @param timeout   how long to let it run in milliseconds
+     * @param execution the execution to run it as, which also counts its blocks
+     * @param capture   where to capture its output
+     * @return whether the task timed out
+     */
+    private static boolean runCaptured(final Callable<Void> task, final int timeout,
+                                       final CancellationCheck.Execution execution, final OutputStream capture) {
+        FutureTask<Void> futureTask = new FutureTask<>(task);
+        Thread executionThread = CancellationCheck.newThread(execution, futureTask);
+
+        PrintStream combinedStream = new PrintStream(capture);
+        PrintStream old = System.out;
+        PrintStream err = System.err;
+        System.setOut(combinedStream);
+        System.setErr(combinedStream);
+
+        try {
+            executionThread.start();
+            SlowPhaseSampler.delegate(executionThread);
+            futureTask.get(timeout, TimeUnit.MILLISECONDS);
+            return false;
+        } catch (TimeoutException e) {
+            CancellationCheck.cancel(execution, executionThread);
+            return true;
+        } catch (Throwable e) {
+            return false;
+        } finally {
+            SlowPhaseSampler.delegate(null);
+            System.out.flush();
+            System.err.flush();
+            System.setOut(old);
+            System.setErr(err);
+        }
+    }
+
     /**
      * Compile and execute sources. Convenience method for compile + execute.
+     * <p>
+     * Identical submissions that are in flight at the same time share one checkstyle and compile, and also one
+     * execution if they set shareExecution. Each stage waits its turn by priority class. Nothing is run if metaspace
+     * stays above its high-water mark.
      *
      * @return this object for chaining
      */
     public Source run() {
-        return this.checkstyle().compile().execute();
+        if (lastPhase != null && !PHASES.contains(lastPhase)) {
+            executionErrorMessage = "Unknown lastPhase " + lastPhase + ", expected one of " + PHASES;
+            return this;
+        }
+        if (invocationsOf(this) != null && invocationsOf(this).length > MAX_INVOCATIONS) {
+            executionErrorMessage = "Too many invocations, expected at most " + MAX_INVOCATIONS;
+            return this;
+        }
+        // Lint-only requests never load classes, so they don't wait for metaspace
+        if (runsPhase(COMPILE_PHASE) && !MetaspaceBudget.admit()) {
+            executionErrorMessage = MetaspaceBudget.REJECTED_MESSAGE;
+            return this;
+        }
+        try {
+            return coalesceAndRun();
+        } finally {
+            releaseLoaders(loaders);
+        }
+    }
+
+    /**
+     * Compile and execute sources, sharing the work with identical submissions in flight.
+     *
+     * @return this object for chaining
+     */
+    private Source coalesceAndRun() {
+        String key = coalescingKey();
+        CompletableFuture<Source> flight = new CompletableFuture<>();
+        CompletableFuture<Source> inFlight = SingleFlight.join(key, flight);
+        if (inFlight != null) {
+            return follow(inFlight);
+        }
+        try {
+            PriorityScheduler.CHECKSTYLE.run(priority, this::queued, this::checkstyle);
+            if (runsPhase(COMPILE_PHASE)) {
+                PriorityScheduler.COMPILE.run(priority, this::queued, this::compile);
+            }
+            if (shareExecution && runsPhase(EXECUTE_PHASE)) {
+                PriorityScheduler.EXECUTE.run(priority, this::queued, this::execute);
+            }
+        } catch (RuntimeException | Error e) {
+            SingleFlight.land(key, flight, null);
+            throw e;
+        }
+        SingleFlight.land(key, flight, this);
+        if (!shareExecution && runsPhase(EXECUTE_PHASE)) {
+            PriorityScheduler.EXECUTE.run(priority, this::queued, this::execute);
+        }
+        return this;
+    }
+
+    /**
+     * Run checkstyle, compile, and execute without coalescing, each waiting its turn by priority class.
+     *
+     * @return this object for chaining
+     */
+    private Source runGated() {
+        PriorityScheduler.CHECKSTYLE.run(priority, this::queued, this::checkstyle);
+        if (runsPhase(COMPILE_PHASE)) {
+            PriorityScheduler.COMPILE.run(priority, this::queued, this::compile);
+        }
+        if (runsPhase(EXECUTE_PHASE)) {
+            PriorityScheduler.EXECUTE.run(priority, this::queued, this::execute);
+        }
+        return this;
+    }
+
+    /**
+     * Wait for an identical submission to finish and copy its results.
+     * <p>
+     * Our own received and returned timestamps are kept. If the other submission failed we run on our own, still
+     * waiting our turn at each stage.
+     *
+     * @param inFlight the flight to wait for
+     * @return this object for chaining
+     */
+    private Source follow(final Future<Source> inFlight) {
+        Source leader;
+        try {
+            leader = inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            leader = null;
+        } catch (ExecutionException e) {
+            leader = null;
+        }
+        SingleFlight.recordFollower(leader, leader != null && shareExecution);
+        if (leader == null) {
+            return runGated();
+        }
+
+        checkstyleStarted = leader.checkstyleStarted;
+        checkstyleFinished = leader.checkstyleFinished;
+        checkstyleLength = leader.checkstyleLength;
+        checkstyleSucceeded = leader.checkstyleSucceeded;
+        compiler = leader.compiler;
+        hedgeLead = leader.hedgeLead;
+        compileStarted = leader.compileStarted;
+        compileFinished = leader.compileFinished;
+        compileLength = leader.compileLength;
+        compilationErrorMessage = leader.compilationErrorMessage;
+        compilationErrorStackTrace = leader.compilationErrorStackTrace;
+        if (leader.compiled) {
+            try {
+                useCompiled(leader.compiler, leader.compiledClasses());
+                compiled = true;
+            } catch (Exception e) {
+                compilationErrorMessage = e.toString();
+                compilationErrorStackTrace = stackTraceToString(e);
+            }
+        }
+
+        if (!shareExecution) {
+            if (!runsPhase(EXECUTE_PHASE)) {
+                return this;
+            }
+            return PriorityScheduler.EXECUTE.run(priority, this::queued, this::execute);
+        }
+        executionStarted = leader.executionStarted;
+        executionFinished = leader.executionFinished;
+        executionLength = leader.executionLength;
+        executed = leader.executed;
+        crashed = leader.crashed;
+        timedOut = leader.timedOut;
+        blocksExecuted = leader.blocksExecuted;
+        budgetExceeded = leader.budgetExceeded;
+        executionErrorMessage = leader.executionErrorMessage;
+        executionErrorStackTrace = leader.executionErrorStackTrace;
+        output = leader.output;
+        outputMatched = leader.outputMatched;
+        outputMismatch = leader.outputMismatch;
+        Invocation[] invocations = invocationsOf(this);
+        if (invocations != null) {
+            Invocation[] leaderInvocations = invocationsOf(leader);
+            for (int i = 0; i < invocations.length; i++) {
+                invocations[i].copyResults(leaderInvocations[i]);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Add to the time this submission waited for the scheduler.
+     *
+     * @param nanoseconds how long it waited to be admitted to a stage
+     */
+    private void queued(final long nanoseconds) {
+        queueWait += nanoseconds;
+    }
+
+    /**
+     * Get the time this submission waited for the scheduler.
+     *
+     * @return the total time it waited to be admitted to checkstyle, compiling, and running, in nanoseconds
+     */
+    final long queueWait() {
+        return queueWait;
+    }
+
+    /**
+     * Get the stacks sampled from phases of this submission that ran over the slow phase threshold.
+     *
+     * @return the folded stacks, or null if no phase was sampled
+     */
+    final String profile() {
+        return profile.folded();
+    }
+
+    /**
+     * Check whether this submission runs a phase.
+     *
+     * @param phase the phase
+     * @return true if the phase comes no later than the last phase this submission asked for
+     */
+    protected final boolean runsPhase(final String phase) {
+        if (lastPhase == null) {
+            return true;
+        }
+        return PHASES.indexOf(phase) <= PHASES.indexOf(lastPhase);
+    }
+
+    /**
+     * Hash everything about this submission that affects its result.
+     * <p>
+     * Submissions with the same key are coalesced, so this covers every setting that changes how the sources are
+     * checked, compiled, or run.
+     *
+     * @return the key used to find identical submissions in flight
+     */
+    protected final String coalescingKey() {
+        return sourcesKey("run", String.valueOf(runCheckstyle), String.valueOf(requireCheckstyle),
+                String.valueOf(shareExecution), optional(lastPhase), compiler, String.valueOf(indentLevel),
+                String.valueOf(timeoutLength), String.valueOf(blockBudget), optional(expectedOutput),
+                optional(expectedOutputHash), optional(comparison), String.valueOf(stopOnMismatch), entryPoint(),
+                compileContext());
+    }
+
+    /**
+     * Describe an optional setting for a key, so that a missing value can't collide with any given one.
+     *
+     * @param value the setting, or null
+     * @return the setting marked as present, or a marker for a missing one
+     */
+    static String optional(final String value) {
+        if (value == null) {
+            return "-";
+        }
+        return "+" + value;
+    }
+
+    /**
+     * Hash the sources as the executor sees them, together with some settings.
+     *
+     * @param settings the settings that affect the result being keyed
+     * @return a key identifying the sources and settings
+     */
+    private String sourcesKey(final String... settings) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        updateKey(digest, getClass().getName());
+        for (String setting : settings) {
+            updateKey(digest, setting);
+        }
+        for (Map.Entry<String, String> source : new TreeMap<>(sources()).entrySet()) {
+            updateKey(digest, source.getKey());
+            updateKey(digest, source.getValue());
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Add a value to a key, prefixed by its length so that adjacent values cannot run together.
+     *
+     * @param digest the digest being built
+     * @param value  the value to add
+     */
+    private static void updateKey(final MessageDigest digest, final String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    /**
+     * Describe what gets run once the sources are compiled, if it is not part of the sources themselves.
+     *
+     * @return a description of the entry point
+     */
+    protected String entryPoint() {
+        return "";
+    }
+
+    /**
+     * Describe what the sources are compiled against besides the platform, if it affects the compiled classes.
+     *
+     * @return a description of the classes the sources may refer to
+     */
+    protected String compileContext() {
+        return "";
     }
 
     /**
@@ -481,6 +1555,11 @@ public abstract class Source implements Callable<Void> {
      */
     private static final double MILLISECONDS_TO_SECONDS = 1000.0;
 
+    /**
+     * Convert nanoseconds to seconds.
+     */
+    private static final double NANOSECONDS_TO_SECONDS = 1000000000.0;
+
     /**
      * Compute the difference of two timestamps in seconds.
      *
@@ -3,6 +3,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -102,6 +103,35 @@ public final class StringChecker extends AutomaticBean implements MessageDispatc
     /** Controls whether exceptions should halt execution or not. */
     private boolean haltOnException = true;
 
+    /**
+     * Controls whether processing a String skips the remaining FileSetChecks once one reports a violation.
+     * TreeWalker, which runs nearly all of the checks, is a single FileSetCheck and always walks the whole tree.
+     */
+    private boolean failFast;
+
+    /** The fullText, lines, and lineBreaks fields of FileText, or null if they are not accessible. */
+    private static final Field[] FILE_TEXT_FIELDS = fileTextFields();
+
+    /**
+     * Looks up the FileText fields filled in by {@link #toFileText(File, String)}.
+     * @return the fullText, lines, and lineBreaks fields, or null if they are not accessible.
+     */
+    private static Field[] fileTextFields() {
+        try {
+            final Field[] fields = {
+                FileText.class.getDeclaredField("fullText"),
+                FileText.class.getDeclaredField("lines"),
+                FileText.class.getDeclaredField("lineBreaks"),
+            };
+            for (final Field field : fields) {
+                field.setAccessible(true);
+            }
+            return fields;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            return null;
+        }
+    }
+
     /**
      * Creates a new {@code Checker} instance.
      * The instance needs to be contextualized and configured.
@@ -298,6 +328,11 @@ public final class StringChecker extends AutomaticBean implements MessageDispatc
 
     /**
      * Processes a String with all FileSetChecks.
+     * <p>
+     * In fail-fast mode, processing stops after the first FileSetCheck that reports a violation. That skips
+     * file-level checks that come after the TreeWalker, but not the TreeWalker's own checks: it only hands back
+     * their messages once the whole tree has been walked, so there is no point at which it could stop early.
+     *
      * @param contents a String to process.
      * @param filename the name of the file whose contents are provided
      * @return a sorted set of messages to be logged.
@@ -307,9 +342,12 @@ public final class StringChecker extends AutomaticBean implements MessageDispatc
         final SortedSet<LocalizedMessage> fileMessages = new TreeSet<>();
         final File pretendFile = new File(filename);
         try {
-            final FileText theText = new FileText(pretendFile, Arrays.asList(contents.split("\n")));
+            final FileText theText = toFileText(pretendFile, contents);
             for (final FileSetCheck fsc : fileSetChecks) {
                 fileMessages.addAll(fsc.process(pretendFile, theText));
+                if (failFast && !fileMessages.isEmpty()) {
+                    break;
+                }
             }
         } catch (Exception ex) {
             log.debug("Exception occurred.", ex);
@@ -327,6 +365,70 @@ public final class StringChecker extends AutomaticBean implements MessageDispatc
         return fileMessages;
     }
 
+    /**
+     * Builds a FileText for a String.
+     * <p>
+     * Equivalent to {@code new FileText(file, Arrays.asList(contents.split("\n")))}, but finds the lines in a
+     * single pass over the String and reuses it as the full text instead of joining the lines back together. FileText
+     * is final, so the fields are filled in reflectively. If that fails we fall back to the list constructor.
+     *
+     * @param file the pretend file the contents belong to
+     * @param contents the contents of the file
+     * @return a FileText for the contents
+     */
+    static FileText toFileText(final File file, final String contents) {
+        // Like String.split, drop trailing empty lines
+        int end = contents.length();
+        while (end > 0 && contents.charAt(end - 1) == '\n') {
+            end--;
+        }
+        if (FILE_TEXT_FIELDS == null || (end == 0 && !contents.isEmpty())) {
+            return new FileText(file, Arrays.asList(contents.split("\n")));
+        }
+
+        int lineCount = 1;
+        boolean carriageReturns = false;
+        for (int i = 0; i < end; i++) {
+            final char character = contents.charAt(i);
+            if (character == '\n') {
+                lineCount++;
+            } else if (character == '\r') {
+                carriageReturns = true;
+            }
+        }
+        final int[] lineStarts = new int[lineCount + 1];
+        final String[] lines = new String[lineCount];
+        int lineStart = 0;
+        for (int line = 0; line < lineCount; line++) {
+            int lineEnd = contents.indexOf('\n', lineStart);
+            if (lineEnd < 0 || lineEnd > end) {
+                lineEnd = end;
+            }
+            lineStarts[line] = lineStart;
+            lines[line] = contents.substring(lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+        }
+        lineStarts[lineCount] = end + 1;
+
+        String fullText = contents;
+        if (contents.length() != end + 1) {
+            fullText = contents.substring(0, end) + "\n";
+        }
+
+        final FileText theText = new FileText(file, Collections.emptyList());
+        try {
+            FILE_TEXT_FIELDS[0].set(theText, fullText);
+            FILE_TEXT_FIELDS[1].set(theText, lines);
+            if (!carriageReturns) {
+                // FileText also treats \r as a line break when it computes these itself
+                FILE_TEXT_FIELDS[2].set(theText, lineStarts);
+            }
+        } catch (IllegalAccessException e) {
+            return new FileText(file, Arrays.asList(contents.split("\n")));
+        }
+        return theText;
+    }
+
     /**
      * Check if all before execution file filters accept starting the file.
      *
@@ -584,6 +686,14 @@ public final class StringChecker extends AutomaticBean implements MessageDispatc
         this.haltOnException = setHaltOnException;
     }
 
+    /**
+     * Sets whether processing a String skips the remaining FileSetChecks once one reports a violation.
+     * @param setFailFast the new value.
+     */
+    public void setFailFast(final boolean setFailFast) {
+        this.failFast = setFailFast;
+    }
+
     /**
      * Clears the cache.
      */
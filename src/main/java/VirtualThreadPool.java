@@ -0,0 +1,105 @@
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Jetty thread pool that runs each task on its own virtual thread.
+ * <p>
+ * A /run request spends most of its time waiting for checkstyle, the compiler, and the execution thread, so with
+ * virtual threads the number of open requests is no longer limited by the size of a platform thread pool. Submitted
+ * code is unaffected: Source always runs it on a new platform thread of its own, which is cancelled cooperatively
+ * when it times out and abandoned if it doesn't unwind, since virtual threads can't be given their own priority.
+ * <p>
+ * Virtual threads need Java 21 or newer. We still build for older releases, so the executor is looked up
+ * reflectively.
+ */
+public final class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+    /**
+     * Executor that starts a new virtual thread for every task.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Number of tasks currently running.
+     */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Create a new virtual thread pool.
+     *
+     * @throws IllegalStateException thrown if this Java runtime does not support virtual threads
+     */
+    public VirtualThreadPool() {
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer", e);
+        }
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        running.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Wait until the pool has been stopped and every task has finished.
+     *
+     * @throws InterruptedException thrown if interrupted while waiting
+     */
+    @Override
+    public void join() throws InterruptedException {
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            continue;
+        }
+    }
+
+    /**
+     * Get the number of threads in the pool.
+     *
+     * @return the number of tasks currently running, each on its own thread
+     */
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    /**
+     * Get the number of idle threads in the pool.
+     *
+     * @return always zero, since threads are not reused
+     */
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    /**
+     * Check whether the pool is running out of threads.
+     *
+     * @return always false, since a new thread is created for every task
+     */
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    /**
+     * Stop accepting tasks. Running tasks are allowed to finish.
+     */
+    @Override
+    protected void doStop() {
+        executor.shutdown();
+    }
+}
@@ -1,7 +1,21 @@
 import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonObject;
+import com.google.gson.JsonElement;
 import org.apache.commons.cli.*;
 import spark.Filter;
+import spark.Request;
+import spark.Response;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import static spark.Spark.*;
 
@@ -14,38 +28,89 @@ public class WebServer {
      */
     private static final int DEFAULT_SERVER_PORT = 8888;
 
+    /**
+     * How long to wait for the access log to be written out on shutdown.
+     */
+    private static final Duration ACCESS_LOG_CLOSE_TIMEOUT = Duration.ofSeconds(1);
+
+    /**
+     * Headers that say how a /run request and its response are encoded and scheduled, and so are passed on when
+     * forwarding.
+     */
+    private static final String[] FORWARDED_HEADERS = {
+        "Content-Type", "Content-Encoding", "Accept", "Accept-Encoding", PriorityScheduler.HEADER
+    };
+
     static {
         System.setProperty("org.eclipse.jetty.util.log.class", "org.eclipse.jetty.util.log.StdErrLog");
         System.setProperty("org.eclipse.jetty.LEVEL", "OFF");
     }
 
     /**
-     * Run submitted code.
-     * <p>
-     * Exposed here for use by the testing suite.
+     * Create the source object for a submission.
      *
      * @param requestBody request content as a String
-     * @return response as a String
+     * @return the source to run, or null if the submission asks for an unknown executor
      */
-    public static String run(final String requestBody) {
+    private static Source received(final String requestBody) {
         JsonObject requestContent = Json.parse(requestBody).asObject();
-        String runAs;
+        String runAs = "Snippet";
         if (requestContent.get("as") != null) {
             runAs = requestContent.get("as").asString();
-        } else {
-            runAs = "Snippet";
         }
-        Source source = null;
+        Class<? extends Source> executor = executor(runAs);
+        if (executor == null) {
+            return null;
+        }
+        return Source.received(requestBody, executor);
+    }
+
+    /**
+     * Create the source object for a submission that has already been parsed, for example from CBOR.
+     *
+     * @param requestContent the parsed submission
+     * @return the source to run, or null if the submission asks for an unknown executor
+     */
+    private static Source received(final JsonElement requestContent) {
+        String runAs = "Snippet";
+        JsonElement as = requestContent.getAsJsonObject().get("as");
+        if (as != null && !as.isJsonNull()) {
+            runAs = as.getAsString();
+        }
+        Class<? extends Source> executor = executor(runAs);
+        if (executor == null) {
+            return null;
+        }
+        return Source.received(requestContent, executor);
+    }
+
+    /**
+     * Find the executor a submission asks for.
+     *
+     * @param runAs the name of the executor
+     * @return the executor class, or null if it is unknown
+     */
+    private static Class<? extends Source> executor(final String runAs) {
         switch (runAs) {
             case "Snippet":
-                source = Source.received(requestBody, Snippet.class);
-                break;
+                return Snippet.class;
             case "SimpleCompiler":
-                source = Source.received(requestBody, SimpleCompiler.class);
-                break;
+                return SimpleCompiler.class;
             default:
-                break;
+                return null;
         }
+    }
+
+    /**
+     * Run submitted code.
+     * <p>
+     * Exposed here for use by the testing suite.
+     *
+     * @param requestBody request content as a String
+     * @return response as a String
+     */
+    public static String run(final String requestBody) {
+        Source source = received(requestBody);
         if (source == null) {
             return requestBody;
         }
@@ -53,33 +118,230 @@ public class WebServer {
     }
 
     /**
-     * Start the code execution web server.
+     * Handle a /run request, forwarding it to the node that owns it in cluster mode.
      *
-     * @param args command line arguments
-     * @throws ParseException thrown if command line options cannot be parsed
+     * @param request   the request
+     * @param response  the response
+     * @param peers     the cluster, or null if not in cluster mode
+     * @param accessLog the access log, or null if requests are not logged
+     * @param verbose   whether to print errors and return stacks sampled from slow phases
+     * @return the response body, or "" if it has already been written
      */
-    public static void main(final String[] args) throws ParseException {
+    private static Object run(final Request request, final Response response, final Cluster peers,
+                              final AccessLog accessLog, final boolean verbose) {
+        long receivedAt = System.nanoTime();
+        String id = request.headers(AccessLog.ID_HEADER);
+        if (id == null && accessLog != null) {
+            id = accessLog.nextId();
+        }
+        if (id != null) {
+            response.header(AccessLog.ID_HEADER, id);
+        }
+        Source source = null;
+        String forwardedTo = null;
+        try {
+            response.type("application/json; charset=utf-8");
+            byte[] body = WireFormat.decode(request.bodyAsBytes(), request.headers("Content-Encoding"));
+            boolean cborRequest = WireFormat.isCbor(request.contentType());
+            if (cborRequest) {
+                source = received(CborReader.read(body));
+            } else {
+                source = received(new String(body, StandardCharsets.UTF_8));
+            }
+            if (source == null) {
+                if (cborRequest) {
+                    response.type(WireFormat.CBOR);
+                }
+                return body;
+            }
+            if (source.priority == null) {
+                source.priority = request.headers(PriorityScheduler.HEADER);
+            }
+            source.returnProfile = verbose;
+            if (peers != null && request.headers(Cluster.FORWARDED_HEADER) == null) {
+                String owner = peers.owner(source.coalescingKey());
+                if (!owner.equals(peers.self())) {
+                    Map<String, String> headers = new HashMap<>();
+                    for (String header : FORWARDED_HEADERS) {
+                        if (request.headers(header) != null) {
+                            headers.put(header, request.headers(header));
+                        }
+                    }
+                    if (id != null) {
+                        headers.put(AccessLog.ID_HEADER, id);
+                    }
+                    if (peers.forward(owner, request.bodyAsBytes(), headers, response.raw())) {
+                        forwardedTo = owner;
+                        return "";
+                    }
+                }
+                peers.servedLocally();
+            }
+
+            boolean cbor = WireFormat.acceptsCbor(request.headers("Accept"));
+            if (cbor) {
+                response.type(WireFormat.CBOR);
+            }
+            String encoding = WireFormat.responseEncoding(request.headers("Accept-Encoding"));
+            response.header("Vary", "Accept, Accept-Encoding");
+            if (encoding != null) {
+                response.header("Content-Encoding", encoding);
+            }
+            OutputStream out = WireFormat.encode(response.raw().getOutputStream(), encoding);
+            ResultWriter writer;
+            if (cbor) {
+                writer = new CborResultWriter(out);
+            } else {
+                writer = new ResultWriter(out);
+            }
+            source.run().completed(writer);
+            WireFormat.finish(out);
+            return "";
+        } catch (Exception e) {
+            if (verbose) {
+                System.err.println(e.toString());
+            }
+            return "";
+        } finally {
+            if (accessLog != null && forwardedTo != null) {
+                accessLog.recordForwarded(id, forwardedTo, receivedAt);
+            } else if (accessLog != null && source != null) {
+                accessLog.record(id, source, receivedAt);
+            }
+        }
+    }
 
+    /**
+     * Run the next chunk of a REPL session.
+     * <p>
+     * Sessions are kept by the node that opened them, so these requests are never forwarded in cluster mode.
+     *
+     * @param request  the request, with the chunk in the same form as a snippet submission
+     * @param response the response
+     * @return the chunk's result, or an error if the session doesn't exist
+     */
+    private static String runChunk(final Request request, final Response response) {
+        response.type("application/json; charset=utf-8");
+        ReplSession session = ReplSession.get(request.params(":id"));
+        if (session == null) {
+            response.status(HttpServletResponse.SC_NOT_FOUND);
+            return new JsonObject().add("error", ReplSession.UNKNOWN_MESSAGE).toString();
+        }
+        ReplChunk chunk = (ReplChunk) Source.received(request.body(), ReplChunk.class);
+        if (chunk.priority == null) {
+            chunk.priority = request.headers(PriorityScheduler.HEADER);
+        }
+        return session.evaluate(chunk).completed();
+    }
+
+    /**
+     * Describe the command line options.
+     *
+     * @return the options the server accepts
+     */
+    private static Options options() {
         Options options = new Options();
         options.addOption("p", "port", true, "Port to use. Default is 8888.");
         options.addOption("i", "interactive", false, "Enable interactive mode.");
         options.addOption("l", "local", false, "Enable local development mode by disabling CORS.");
         options.addOption("v", "verbose", false, "Enable verbose mode.");
+        options.addOption("t", "virtual-threads", false,
+                "Handle requests on virtual threads. Requires Java 21 or newer.");
+        options.addOption("s", "store", true,
+                "Path to a file that keeps compiled classes and checkstyle results across restarts.");
+        options.addOption("m", "store-megabytes", true, "Size cap of the store file, under 2048. Default is 256.");
+        options.addOption("b", "metaspace-megabytes", true,
+                "Metaspace high-water mark above which new runs wait for memory. Default is 80% of MaxMetaspaceSize.");
+        options.addOption("n", "peers", true,
+                "Comma-separated host:port addresses of other nodes. Enables cluster mode.");
+        options.addOption("a", "advertise", true,
+                "Address other nodes use to reach this one in cluster mode. Default is localhost:<port>.");
+        options.addOption("k", "cluster-secret", true,
+                "Secret a node must present to join the cluster. Without one, only the peers given by -n may join.");
+        options.addOption("q", "priority-targets", true,
+                "Comma-separated class=milliseconds latency targets of the priority classes, which set their weights. "
+                        + "Default is " + PriorityScheduler.DEFAULT_TARGETS + ".");
+        options.addOption("r", "max-sessions", true,
+                "Number of REPL sessions kept at once. Default is " + ReplSession.DEFAULT_MAX_SESSIONS + ".");
+        options.addOption("e", "session-idle-seconds", true,
+                "Idle time after which a REPL session is closed. Default is " + ReplSession.DEFAULT_IDLE_SECONDS + ".");
+        options.addOption("j", "library", true,
+                "Comma-separated .java sources, .jar archives, or directories of them to load once as a shared "
+                        + "library that SimpleCompiler submissions compile against.");
+        options.addOption("f", "flight-recording", true,
+                "Path of a file to write a continuous flight recording with submission phase events to on exit. "
+                        + "Requires Java 12 or newer.");
+        options.addOption("o", "access-log", true,
+                "Path of a file to log one JSON line per /run request to. Rotated every 64 MB, keeping "
+                        + AccessLog.ROTATED_FILES + " old files.");
+        options.addOption("w", "slow-phase-ms", true,
+                "Time a checkstyle, compile, or execution phase may run before its stacks are sampled into the access "
+                        + "log, or 0 to never sample. Default is " + SlowPhaseSampler.DEFAULT_THRESHOLD_MS + ".");
+        options.addOption("h", "health-limits", true,
+                "Comma-separated signal=limit saturation limits above which /health reports that this node is not "
+                        + "accepting traffic. Default is " + Health.DEFAULT_LIMITS + ".");
         options.addOption("c", "checkstyle", true,
                 "Path to checkstyle configuration file. Defaults to ./defaults/checkstyle.xml");
+        return options;
+    }
+
+    /**
+     * Create this node's cluster member from the command line options.
+     *
+     * @param settings   the command line options
+     * @param serverPort the port this node listens on
+     * @return the cluster member, or null if not in cluster mode
+     */
+    private static Cluster cluster(final CommandLine settings, final int serverPort) {
+        if (!settings.hasOption("n")) {
+            return null;
+        }
+        String self = settings.getOptionValue("a", "localhost:" + serverPort);
+        return new Cluster(self, Arrays.asList(settings.getOptionValue("n").split(",")),
+                settings.getOptionValue("k"));
+    }
+
+    /**
+     * Start the code execution web server.
+     *
+     * @param args command line arguments
+     * @throws ParseException thrown if command line options cannot be parsed
+     */
+    public static void main(final String[] args) throws ParseException {
         CommandLineParser parser = new BasicParser();
-        CommandLine settings = parser.parse(options, args);
+        CommandLine settings = parser.parse(options(), args);
 
+        int serverPort = DEFAULT_SERVER_PORT;
         if (settings.hasOption("p")) {
-            port(Integer.parseInt(settings.getOptionValue("p")));
-        } else {
-            port(DEFAULT_SERVER_PORT);
+            serverPort = Integer.parseInt(settings.getOptionValue("p"));
         }
+        port(serverPort);
+
+        final Cluster peers = cluster(settings, serverPort);
 
         if (settings.hasOption("i")) {
             staticFiles.location("/webroot");
         }
 
+        if (settings.hasOption("t")) {
+            try {
+                EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY,
+                        new EmbeddedJettyFactory().withThreadPool(new VirtualThreadPool()));
+            } catch (IllegalStateException e) {
+                System.err.println(e.getMessage());
+                System.exit(-1);
+            }
+        }
+
+        if (settings.hasOption("f")) {
+            try {
+                FlightRecorder.start(Paths.get(settings.getOptionValue("f")));
+            } catch (IllegalStateException e) {
+                System.err.println(e.getMessage());
+                System.exit(-1);
+            }
+        }
+
         try {
             Source.initialize(settings);
         } catch (Exception e) {
@@ -87,18 +349,103 @@ public class WebServer {
             System.exit(-1);
         }
 
-        post("/run", (request, response) -> {
+        AccessLog log = null;
+        if (settings.hasOption("o")) {
+            log = new AccessLog(Paths.get(settings.getOptionValue("o")), AccessLog.DEFAULT_MAX_BYTES,
+                    AccessLog.DEFAULT_CAPACITY).start();
+            final AccessLog closing = log;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> closing.close(ACCESS_LOG_CLOSE_TIMEOUT)));
+        }
+        final AccessLog accessLog = log;
+
+        final boolean verbose = settings.hasOption("v");
+        post("/run", (request, response) -> run(request, response, peers, accessLog, verbose));
+
+        post("/session", (request, response) -> {
+            response.type("application/json; charset=utf-8");
             try {
+                return new JsonObject().add("session", ReplSession.open().id()).toString();
+            } catch (IllegalStateException e) {
+                response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return new JsonObject().add("error", e.getMessage()).toString();
+            }
+        });
+        post("/session/:id", WebServer::runChunk);
+        delete("/session/:id", (request, response) -> {
+            response.type("application/json; charset=utf-8");
+            return new JsonObject().add("closed", ReplSession.close(request.params(":id"))).toString();
+        });
+
+        get("/sessions", (request, response) -> {
+            response.type("application/json; charset=utf-8");
+            return ReplSession.stats().toString();
+        });
+        get("/library", (request, response) -> {
+            response.type("application/json; charset=utf-8");
+            return SharedLibrary.stats().toString();
+        });
+        if (accessLog != null) {
+            get("/access-log", (request, response) -> {
                 response.type("application/json; charset=utf-8");
-                return run(request.body());
-            } catch (Exception e) {
-                if (settings.hasOption("v")) {
-                    System.err.println(e.toString());
-                }
-                return "";
+                return accessLog.stats().toString();
+            });
+        }
+
+        get("/router", (request, response) -> {
+            response.type("application/json; charset=utf-8");
+            return CompilerRouter.stats().toString();
+        });
+
+        get("/coalescing", (request, response) -> {
+            response.type("application/json; charset=utf-8");
+            return SingleFlight.stats().toString();
+        });
+
+        get("/cancellation", (request, response) -> {
+            response.type("application/json; charset=utf-8");
+            return CancellationCheck.stats().toString();
+        });
+
+        get("/priority", (request, response) -> {
+            response.type("application/json; charset=utf-8");
+            return PriorityScheduler.stats().toString();
+        });
+
+        get("/health", (request, response) -> {
+            response.type("application/json; charset=utf-8");
+            JsonObject health = Health.check();
+            if (!health.get("accepting").asBoolean()) {
+                response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
             }
+            return health.toString();
+        });
+
+        get("/sampler", (request, response) -> {
+            response.type("application/json; charset=utf-8");
+            return SlowPhaseSampler.stats().toString();
+        });
+
+        get("/metaspace", (request, response) -> {
+            response.type("application/json; charset=utf-8");
+            return MetaspaceBudget.stats().toString();
         });
 
+        if (peers != null) {
+            get("/cluster", (request, response) -> {
+                response.type("application/json; charset=utf-8");
+                return peers.stats().toString();
+            });
+            post("/cluster/join", (request, response) -> {
+                if (!peers.join(request.body().trim(), request.headers(Cluster.SECRET_HEADER))) {
+                    response.status(HttpServletResponse.SC_FORBIDDEN);
+                    return "";
+                }
+                response.type("application/json; charset=utf-8");
+                return peers.stats().toString();
+            });
+            peers.start();
+        }
+
         if (settings.hasOption("l")) {
             after((Filter) (request, response) -> {
                 response.header("Access-Control-Allow-Origin", "*");
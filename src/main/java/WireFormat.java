@@ -0,0 +1,218 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Negotiate how /run requests and responses are encoded and compressed.
+ * <p>
+ * Clients can send CBOR instead of JSON by setting Content-Type to application/cbor, and ask for CBOR results through
+ * Accept. Request bodies may be compressed with gzip or deflate as given by Content-Encoding, and responses are
+ * compressed when Accept-Encoding allows it.
+ */
+public final class WireFormat {
+    /**
+     * Media type of JSON requests and results.
+     */
+    public static final String JSON = "application/json";
+
+    /**
+     * Media type of CBOR requests and results.
+     */
+    public static final String CBOR = "application/cbor";
+
+    /**
+     * The gzip content coding.
+     */
+    public static final String GZIP = "gzip";
+
+    /**
+     * The deflate content coding, which HTTP defines as zlib-wrapped deflate.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Largest request body accepted after decompression, so that a small compressed body can't exhaust memory.
+     */
+    private static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Size of the buffer used to decompress request bodies.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Not instantiable.
+     */
+    private WireFormat() { }
+
+    /**
+     * Check whether a request body is CBOR.
+     *
+     * @param contentType the request's Content-Type, or null
+     * @return whether the body is CBOR
+     */
+    public static boolean isCbor(final String contentType) {
+        return contentType != null && mediaType(contentType).equals(CBOR);
+    }
+
+    /**
+     * Check whether a client accepts CBOR results. JSON is used unless CBOR is explicitly accepted.
+     *
+     * @param accept the request's Accept header, or null
+     * @return whether to send CBOR
+     */
+    public static boolean acceptsCbor(final String accept) {
+        return accepts(accept, CBOR);
+    }
+
+    /**
+     * Choose how to compress a response.
+     *
+     * @param acceptEncoding the request's Accept-Encoding header, or null
+     * @return gzip or deflate, or null to send the response uncompressed
+     */
+    public static String responseEncoding(final String acceptEncoding) {
+        if (accepts(acceptEncoding, GZIP)) {
+            return GZIP;
+        }
+        if (accepts(acceptEncoding, DEFLATE)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Decompress a request body.
+     *
+     * @param body            the body as received
+     * @param contentEncoding the request's Content-Encoding header, or null
+     * @return the decompressed body
+     * @throws IOException thrown if the encoding is unsupported or the body cannot be decompressed
+     */
+    public static byte[] decode(final byte[] body, final String contentEncoding) throws IOException {
+        if (contentEncoding == null || contentEncoding.trim().isEmpty()
+                || contentEncoding.trim().equalsIgnoreCase("identity")) {
+            return body;
+        }
+        String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        InputStream decompressed;
+        if (encoding.equals(GZIP)) {
+            decompressed = new GZIPInputStream(new ByteArrayInputStream(body));
+        } else if (encoding.equals(DEFLATE)) {
+            decompressed = new InflaterInputStream(new ByteArrayInputStream(body));
+        } else {
+            throw new IOException("Unsupported Content-Encoding " + contentEncoding);
+        }
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (InputStream in = decompressed) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                if (decoded.size() + read > MAX_BODY_BYTES) {
+                    throw new IOException("Request body is too large");
+                }
+                decoded.write(buffer, 0, read);
+            }
+        }
+        return decoded.toByteArray();
+    }
+
+    /**
+     * Wrap a response stream so that what is written to it is compressed.
+     * <p>
+     * The returned stream must be finished by calling {@link #finish(OutputStream)}.
+     *
+     * @param out      the response stream
+     * @param encoding gzip or deflate, or null to leave the response uncompressed
+     * @return the stream to write the response to
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public static OutputStream encode(final OutputStream out, final String encoding) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        if (DEFLATE.equals(encoding)) {
+            return new DeflaterOutputStream(out);
+        }
+        return out;
+    }
+
+    /**
+     * Finish writing a response stream returned by {@link #encode(OutputStream, String)}, without closing the
+     * underlying stream.
+     *
+     * @param out the stream returned by encode
+     * @throws IOException thrown if the stream cannot be written
+     */
+    public static void finish(final OutputStream out) throws IOException {
+        if (out instanceof DeflaterOutputStream) {
+            ((DeflaterOutputStream) out).finish();
+        }
+        out.flush();
+    }
+
+    /**
+     * Check whether a list header such as Accept or Accept-Encoding allows a value.
+     * <p>
+     * A value is allowed if it is listed without a quality of zero. Wildcards are ignored, so that clients that
+     * accept anything keep getting uncompressed JSON as before.
+     *
+     * @param header the header, or null
+     * @param value  the value to look for
+     * @return whether the value is allowed
+     */
+    private static boolean accepts(final String header, final String value) {
+        if (header == null) {
+            return false;
+        }
+        for (String element : header.split(",")) {
+            String[] parameters = element.split(";");
+            if (!mediaType(parameters[0]).equals(value)) {
+                continue;
+            }
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim().toLowerCase(Locale.ROOT);
+                if (parameter.startsWith("q=") && isZero(parameter.substring(2))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a quality value is zero. Invalid values are not.
+     *
+     * @param quality the quality value
+     * @return whether it is zero
+     */
+    private static boolean isZero(final String quality) {
+        try {
+            return Double.parseDouble(quality) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get a media type or coding without its parameters.
+     *
+     * @param value the header value
+     * @return the media type or coding in lower case
+     */
+    private static String mediaType(final String value) {
+        int parameters = value.indexOf(';');
+        String mediaType = value;
+        if (parameters != -1) {
+            mediaType = value.substring(0, parameters);
+        }
+        return mediaType.trim().toLowerCase(Locale.ROOT);
+    }
+}
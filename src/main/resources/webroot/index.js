@@ -23,12 +23,12 @@ $(function () {
     source = source.getValue() + "\n"
     if (id === "runClass") {
       run = {
-        as: "SimpleCompiler", className: "Example", indentLevel: 2,
+        as: "SimpleCompiler", className: "Example", indentLevel: 2, priority: "interactive",
         sources: [ source ]
       }
     } else {
       run = {
-        as: "Snippet", indentLevel: 2, source
+        as: "Snippet", indentLevel: 2, priority: "interactive", source
       }
     }
     console.log(run)
@@ -0,0 +1,138 @@
+import com.eclipsesource.json.Json
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Duration
+
+/**
+ * Test the AccessLog class.
+ */
+class TestAccessLog {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    private val directories = mutableListOf<Path>()
+
+    private fun logDirectory(): Path {
+        val directory = Files.createTempDirectory("log")
+        directories.add(directory)
+        return directory
+    }
+
+    @AfterMethod
+    fun deleteLogs() {
+        for (directory in directories) {
+            Files.walk(directory).use { paths -> paths.sorted(Comparator.reverseOrder()).forEach { Files.delete(it) } }
+        }
+        directories.clear()
+    }
+
+    /**
+     * Test that a request's line carries its phase timings and outcome.
+     */
+    @Test
+    fun testRecord() {
+        val path = logDirectory().resolve("access.log")
+        val log = AccessLog(path, AccessLog.DEFAULT_MAX_BYTES, AccessLog.DEFAULT_CAPACITY)
+        val received = System.nanoTime()
+        val source = SimpleCompiler().run("""
+public class Question {
+    public static void main(final String[] unused) {
+        System.out.print("logged");
+    }
+}
+""")
+        Assert.assertTrue(log.record(log.nextId(), source, received))
+        Assert.assertTrue(log.recordForwarded("forwarded-1", "localhost:8889", received))
+        Assert.assertEquals(log.drain(), 2)
+
+        val lines = Files.readAllLines(path)
+        Assert.assertEquals(lines.size, 2)
+        val line = Json.parse(lines[0]).asObject()
+        Assert.assertEquals(line.get("as").asString(), "SimpleCompiler")
+        Assert.assertEquals(line.get("compiler").asString(), "Janino")
+        Assert.assertEquals(line.get("outputLength").asLong(), 6)
+        Assert.assertTrue(line.get("compileMs").asDouble() > 0)
+        Assert.assertTrue(line.get("totalMs").asDouble() >= line.get("compileMs").asDouble())
+        Assert.assertTrue(line.get("queueMs").asDouble() >= 0)
+        Assert.assertTrue(line.get("executed").asBoolean())
+        Assert.assertFalse(line.get("timedOut").asBoolean())
+        Assert.assertEquals(Json.parse(lines[1]).asObject().get("forwardedTo").asString(), "localhost:8889")
+    }
+
+    /**
+     * Test that lines are dropped rather than waited for when the buffer is full.
+     */
+    @Test
+    fun testFullBuffer() {
+        val path = logDirectory().resolve("access.log")
+        val log = AccessLog(path, AccessLog.DEFAULT_MAX_BYTES, 3)
+        for (i in 1..4) {
+            Assert.assertTrue(log.offer("{\"line\":$i}"))
+        }
+        Assert.assertFalse(log.offer("{\"line\":5}"))
+        Assert.assertEquals(log.stats().get("pending").asLong(), 4)
+        Assert.assertEquals(log.drain(), 4)
+        Assert.assertTrue(log.offer("{\"line\":6}"))
+        Assert.assertEquals(log.drain(), 1)
+
+        Assert.assertEquals(Files.readAllLines(path).map { Json.parse(it).asObject().get("line").asInt() },
+                listOf(1, 2, 3, 4, 6))
+        Assert.assertEquals(log.stats().get("dropped").asLong(), 1)
+        Assert.assertEquals(log.stats().get("written").asLong(), 5)
+    }
+
+    /**
+     * Test that the file is rotated once it grows too large, keeping a limited number of old files.
+     */
+    @Test
+    fun testRotation() {
+        val path = logDirectory().resolve("access.log")
+        val log = AccessLog(path, 100, 16)
+        val line = "x".repeat(59)
+        for (i in 1..(AccessLog.ROTATED_FILES + 2) * 2) {
+            Assert.assertTrue(log.offer(line))
+            log.drain()
+        }
+        Assert.assertEquals(Files.readAllLines(path).size, 2)
+        for (i in 1..AccessLog.ROTATED_FILES) {
+            Assert.assertEquals(Files.readAllLines(log.rotatedPath(i)).size, 2)
+        }
+        Assert.assertFalse(Files.exists(log.rotatedPath(AccessLog.ROTATED_FILES + 1)))
+        Assert.assertEquals(log.stats().get("rotated").asLong(), AccessLog.ROTATED_FILES + 1L)
+    }
+
+    /**
+     * Test that the background thread writes lines from many threads, and closing writes out the rest.
+     */
+    @Test
+    fun testConcurrentWriters() {
+        val path = logDirectory().resolve("access.log")
+        val log = AccessLog(path, AccessLog.DEFAULT_MAX_BYTES, AccessLog.DEFAULT_CAPACITY).start()
+        val threads = (1..8).map { thread ->
+            Thread {
+                for (i in 1..500) {
+                    while (!log.offer("{\"thread\":$thread,\"line\":$i}")) {
+                        Thread.yield()
+                    }
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        log.close(Duration.ofSeconds(5))
+
+        val lines = Files.readAllLines(path).map { Json.parse(it).asObject() }
+        Assert.assertEquals(lines.size, 4000)
+        for (thread in 1..8) {
+            Assert.assertEquals(lines.filter { it.get("thread").asInt() == thread }.map { it.get("line").asInt() },
+                    (1..500).toList())
+        }
+        Assert.assertFalse(log.offer("{}"))
+    }
+}
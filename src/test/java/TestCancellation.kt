@@ -0,0 +1,269 @@
+import org.testng.Assert
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+
+/**
+ * Test the CancellationInstrumenter and CancellationCheck classes.
+ */
+class TestCancellation {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    private fun stat(name: String): Long = CancellationCheck.stats().get(name).asLong()
+
+    private fun runSnippet(source: String): Snippet {
+        val snippet = Snippet()
+        snippet.runCheckstyle = false
+        snippet.run(source)
+        return snippet
+    }
+
+    /**
+     * Test that instrumented code of every shape both compilers produce still verifies and runs correctly.
+     */
+    @Test
+    fun testInstrumentedCodeRuns() {
+        val skippedMethods = stat("skippedMethods")
+        val skippedClasses = stat("skippedClasses")
+        for (compiler in listOf("Janino", "JDK")) {
+            val classes = SimpleCompiler(compiler)
+            classes.runCheckstyle = false
+            classes.run("""
+public class Question {
+    private static int counter;
+
+    static {
+        for (int i = 0; i < 3; i++) {
+            counter += i;
+        }
+    }
+
+    private int total;
+
+    Question(final int count) {
+        int i = 0;
+        do {
+            total += i;
+            i++;
+        } while (i < count);
+    }
+
+    static int fib(final int n) {
+        if (n < 2) {
+            return n;
+        }
+        return fib(n - 1) + fib(n - 2);
+    }
+
+    static String name(final int value) {
+        switch (value) {
+            case 0:
+                return "zero";
+            case 1:
+                return "one";
+            case 2:
+                return "two";
+            default:
+                return "many";
+        }
+    }
+
+    static int sparse(final int value) {
+        switch (value) {
+            case 1:
+                return 10;
+            case 1000:
+                return 20;
+            case -50:
+                return 30;
+            default:
+                return 0;
+        }
+    }
+
+    public static void main(final String[] unused) {
+        int sum = 0;
+        outer:
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                if (j > i) {
+                    continue outer;
+                }
+                sum += j;
+            }
+        }
+        int caught = 0;
+        for (int i = 0; i < 3; i++) {
+            try {
+                if (i == 1) {
+                    throw new IllegalStateException();
+                }
+                caught += 10;
+            } catch (IllegalStateException e) {
+                caught += 1;
+            } finally {
+                caught += 100;
+            }
+        }
+        int built = 0;
+        for (int i = 0; i < 4; i++) {
+            built += new Question(i > 2 ? 3 : 2).total;
+        }
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            names.append(name(i)).append(' ');
+        }
+        System.out.print(counter + " " + new Question(5).total + " " + fib(15) + " " + sum + " " + caught + " "
+                + names.toString().trim() + " " + sparse(1000) + sparse(-50) + sparse(7) + " " + built);
+    }
+}
+""")
+            Assert.assertEquals(classes.compiler, compiler)
+            Assert.assertNull(classes.executionErrorMessage, classes.executionErrorStackTrace)
+            Assert.assertEquals(classes.output, "3 10 610 165 321 zero one two many 20300 6")
+        }
+        Assert.assertEquals(stat("skippedMethods"), skippedMethods)
+        Assert.assertEquals(stat("skippedClasses"), skippedClasses)
+    }
+
+    /**
+     * Test that code that catches ThreadDeath and keeps going is still cancelled without being abandoned.
+     */
+    @Test
+    fun testCooperativeCancellation() {
+        for (source in listOf("""
+try {
+    while (System.nanoTime() > 0) { }
+} catch (Throwable e) {
+    while (System.nanoTime() > 0) { }
+}
+""", """
+try {
+    int i = 0;
+} finally {
+    while (System.nanoTime() > 0) { }
+}
+""", """
+for (int i = 0; i < 100; i++) {
+    try {
+        while (System.nanoTime() > 0) { }
+    } catch (Throwable e) { }
+}
+System.out.println("escaped");
+""")) {
+            val cooperative = stat("cooperative")
+            val abandoned = stat("abandoned")
+            val snippet = runSnippet(source)
+            Assert.assertTrue(snippet.timedOut)
+            Assert.assertFalse(snippet.executed)
+            Assert.assertNull(snippet.output)
+            Assert.assertEquals(stat("cooperative"), cooperative + 1)
+            Assert.assertEquals(stat("abandoned"), abandoned)
+        }
+    }
+
+    /**
+     * Test that threads the submission starts are cancelled too.
+     */
+    @Test
+    fun testSpawnedThreadsCancelled() {
+        val snippet = runSnippet("""
+Thread thread = new Thread(new Runnable() {
+    public void run() {
+        while (System.nanoTime() > 0) { }
+    }
+});
+thread.setName("spawned");
+thread.start();
+while (System.nanoTime() > 0) { }
+""")
+        Assert.assertTrue(snippet.timedOut)
+        val deadline = System.currentTimeMillis() + 5000
+        while (Thread.getAllStackTraces().keys.any { it.name == "spawned" } && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        Assert.assertFalse(Thread.getAllStackTraces().keys.any { it.name == "spawned" })
+    }
+
+    /**
+     * Test that a thread busy in library code is abandoned rather than stopped, and counted until it finishes.
+     */
+    @Test
+    fun testAbandonedThread() {
+        val abandoned = stat("abandoned")
+        val snippet = runSnippet("""
+System.out.println(java.math.BigInteger.valueOf(3).pow(4000000).bitLength());
+""")
+        Assert.assertTrue(snippet.timedOut)
+        Assert.assertFalse(snippet.executed)
+        Assert.assertEquals(stat("abandoned"), abandoned + 1)
+        Assert.assertEquals(stat("abandonedRunning"), 1)
+        Assert.assertEquals(Health.check().get("abandonedThreads").asInt(), 1)
+
+        val deadline = System.currentTimeMillis() + 30000
+        while (stat("abandonedRunning") > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        Assert.assertEquals(stat("abandonedRunning"), 0)
+        Assert.assertEquals(Health.check().get("abandonedThreads").asInt(), 0)
+    }
+
+    /**
+     * Test that block counts don't depend on the timeout, and that running past the budget cancels execution.
+     */
+    @Test
+    fun testBlockBudget() {
+        val source = """
+int total = 0;
+for (int i = 0; i < 1000; i++) {
+    total += i;
+}
+System.out.println(total);
+"""
+        val unlimited = runSnippet(source)
+        Assert.assertNull(unlimited.blocksExecuted)
+
+        val counts = listOf(100, 5000).map { timeout ->
+            val snippet = Snippet()
+            snippet.runCheckstyle = false
+            snippet.blockBudget = 1000000
+            snippet.timeoutLength = timeout
+            snippet.run(source)
+            Assert.assertTrue(snippet.executed)
+            Assert.assertFalse(snippet.budgetExceeded)
+            Assert.assertEquals(snippet.output, "499500\n")
+            snippet.blocksExecuted
+        }
+        Assert.assertEquals(counts[0], counts[1])
+        Assert.assertTrue(counts[0]!! > 1000 && counts[0]!! < 1100, counts[0].toString())
+
+        val exceeded = stat("budgetExceeded")
+        val snippet = Snippet()
+        snippet.runCheckstyle = false
+        snippet.blockBudget = counts[0]!! - 1
+        snippet.timeoutLength = 5000
+        snippet.run(source)
+        Assert.assertTrue(snippet.budgetExceeded)
+        Assert.assertFalse(snippet.timedOut)
+        Assert.assertFalse(snippet.executed)
+        Assert.assertFalse(snippet.crashed)
+        Assert.assertNull(snippet.output)
+        Assert.assertEquals(snippet.blocksExecuted, counts[0])
+        Assert.assertEquals(stat("budgetExceeded"), exceeded + 1)
+    }
+
+    /**
+     * Test that classes that can't be parsed are left as they are.
+     */
+    @Test
+    fun testUnparseableClasses() {
+        val skippedClasses = stat("skippedClasses")
+        val garbage = mapOf("Garbage" to byteArrayOf(1, 2, 3), "Truncated" to byteArrayOf(-54, -2, -70, -66, 0, 0))
+        val instrumented = CancellationInstrumenter.instrument(garbage)
+        Assert.assertEquals(instrumented["Garbage"], garbage["Garbage"])
+        Assert.assertEquals(instrumented["Truncated"], garbage["Truncated"])
+        Assert.assertEquals(stat("skippedClasses"), skippedClasses + 2)
+    }
+}
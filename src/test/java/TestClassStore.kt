@@ -0,0 +1,167 @@
+import org.testng.Assert
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+import java.io.RandomAccessFile
+import java.nio.file.Files
+import java.nio.file.attribute.BasicFileAttributes
+
+/**
+ * Test the ClassStore class.
+ */
+class TestClassStore {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    /**
+     * Test that values survive reopening the store.
+     */
+    @Test
+    fun testReopen() {
+        val path = Files.createTempFile("store", ".bin")
+        ClassStore(path, 1024 * 1024).use {
+            it.put("first", byteArrayOf(1, 2, 3))
+            it.put("second", byteArrayOf(4))
+            Assert.assertEquals(it.get("first"), byteArrayOf(1, 2, 3))
+            Assert.assertNull(it.get("third"))
+        }
+        ClassStore(path, 1024 * 1024).use {
+            Assert.assertEquals(it.count(), 2)
+            Assert.assertEquals(it.get("first"), byteArrayOf(1, 2, 3))
+            Assert.assertEquals(it.get("second"), byteArrayOf(4))
+        }
+        Files.delete(path)
+    }
+
+    /**
+     * Test that a partially written record is dropped when the store is reopened.
+     */
+    @Test
+    fun testTornWrite() {
+        val path = Files.createTempFile("store", ".bin")
+        ClassStore(path, 1024 * 1024).use {
+            it.put("first", byteArrayOf(1, 2, 3))
+            it.put("second", ByteArray(100))
+        }
+        RandomAccessFile(path.toFile(), "rw").use { it.setLength(it.length() - 10) }
+        ClassStore(path, 1024 * 1024).use {
+            Assert.assertEquals(it.count(), 1)
+            Assert.assertEquals(it.get("first"), byteArrayOf(1, 2, 3))
+            Assert.assertNull(it.get("second"))
+            it.put("second", ByteArray(100))
+            Assert.assertEquals(it.get("second"), ByteArray(100))
+        }
+        Files.delete(path)
+    }
+
+    /**
+     * Test that compaction keeps the store under its cap and keeps recently used values.
+     */
+    @Test
+    fun testCompaction() {
+        val path = Files.createTempFile("store", ".bin")
+        ClassStore(path, 4096).use {
+            it.put("kept", ByteArray(100))
+            for (i in 0 until 100) {
+                it.put("value$i", ByteArray(100))
+                it.get("kept")
+            }
+            Assert.assertTrue(it.size() <= 4096)
+            Assert.assertNotNull(it.get("kept"))
+            Assert.assertNull(it.get("value0"))
+        }
+        Files.delete(path)
+    }
+
+    /**
+     * Test that values too large to survive compaction are skipped without rewriting the store.
+     */
+    @Test
+    fun testOversizedValue() {
+        val path = Files.createTempFile("store", ".bin")
+        ClassStore(path, 4096).use {
+            it.put("small", ByteArray(100))
+            val size = it.size()
+            val fileKey = Files.readAttributes(path, BasicFileAttributes::class.java).fileKey()
+            for (i in 0 until 3) {
+                it.put("large", ByteArray(3500))
+            }
+            Assert.assertNull(it.get("large"))
+            Assert.assertEquals(it.count(), 1)
+            Assert.assertEquals(it.size(), size)
+            Assert.assertEquals(Files.size(path), size)
+            Assert.assertEquals(Files.readAttributes(path, BasicFileAttributes::class.java).fileKey(), fileKey)
+            Assert.assertNotNull(it.get("small"))
+        }
+        Files.delete(path)
+    }
+
+    /**
+     * Test that reads of records appended since the last read see the right bytes however reads and appends interleave.
+     */
+    @Test
+    fun testInterleavedReads() {
+        val path = Files.createTempFile("store", ".bin")
+        ClassStore(path, 1024 * 1024).use {
+            for (i in 0 until 200) {
+                it.put("value$i", ByteArray(i % 37 + 1) { i.toByte() })
+                Assert.assertEquals(it.get("value$i"), ByteArray(i % 37 + 1) { i.toByte() })
+                Assert.assertEquals(it.get("value" + i / 2), ByteArray(i / 2 % 37 + 1) { (i / 2).toByte() })
+            }
+        }
+        ClassStore(path, 1024 * 1024).use {
+            Assert.assertEquals(it.count(), 200)
+            Assert.assertEquals(it.get("value199"), ByteArray(199 % 37 + 1) { 199.toByte() })
+        }
+        Files.delete(path)
+    }
+
+    /**
+     * Test that size caps the file offsets cannot address are rejected.
+     */
+    @Test
+    fun testBadCap() {
+        val path = Files.createTempFile("store", ".bin")
+        Assert.assertThrows(IllegalArgumentException::class.java) { ClassStore(path, 2048L * 1024 * 1024) }
+        Assert.assertThrows(IllegalArgumentException::class.java) { ClassStore(path, 0) }
+        ClassStore(path, 2047L * 1024 * 1024).close()
+        Files.delete(path)
+    }
+
+    /**
+     * Test that compiled classes are loaded from the store instead of being compiled again.
+     */
+    @Test
+    fun testStoredCompile() {
+        val path = Files.createTempFile("store", ".bin")
+        val source = """
+public class Question {
+    private static int runs = 0;
+    public static void main(final String[] unused) {
+        runs++;
+        System.out.print(runs);
+    }
+}
+"""
+        try {
+            ClassStore(path, 1024 * 1024).use {
+                Source.setClassStore(it)
+                val first = SimpleCompiler().run(source)
+                Assert.assertEquals(first.output, "1")
+                Assert.assertEquals(it.count(), 2)
+            }
+            ClassStore(path, 1024 * 1024).use {
+                Source.setClassStore(it)
+                val second = SimpleCompiler().run(source)
+                Assert.assertTrue(second.checkstyleSucceeded)
+                Assert.assertTrue(second.compiled)
+                Assert.assertEquals(second.output, "1")
+                Assert.assertEquals(it.count(), 2)
+            }
+        } finally {
+            Source.setClassStore(null)
+            Files.delete(path)
+        }
+    }
+}
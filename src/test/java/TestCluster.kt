@@ -0,0 +1,234 @@
+import com.eclipsesource.json.Json
+import com.eclipsesource.json.JsonObject
+import com.sun.net.httpserver.HttpServer
+import org.testng.Assert
+import org.testng.annotations.AfterClass
+import org.testng.annotations.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.lang.reflect.Proxy
+import java.net.HttpURLConnection
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.URL
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import javax.servlet.ServletOutputStream
+import javax.servlet.WriteListener
+import javax.servlet.http.HttpServletResponse
+
+/**
+ * Test the Cluster class, using separate JVMs as peers.
+ */
+class TestCluster {
+    private val nodes = mutableMapOf<String, Process>()
+
+    private fun freePort(): Int {
+        ServerSocket(0).use { return it.localPort }
+    }
+
+    private fun startNode(port: Int, peers: List<String>): String {
+        val address = "localhost:$port"
+        val command = mutableListOf(File(System.getProperty("java.home"), "bin/java").path)
+        command.addAll(ManagementFactory.getRuntimeMXBean().inputArguments.filter {
+            it.startsWith("-Djava.security.manager") || it.startsWith("--add-opens")
+        })
+        command.addAll(listOf("-cp", System.getProperty("java.class.path"), "WebServer",
+                "-p", port.toString(), "-n", peers.joinToString(","), "-k", "test-secret"))
+        nodes[address] = ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start()
+        return address
+    }
+
+    private fun cluster(address: String): JsonObject {
+        val connection = URL("http://$address/cluster").openConnection() as HttpURLConnection
+        return Json.parse(connection.inputStream.reader()).asObject()
+    }
+
+    private fun run(address: String, submission: String): JsonObject {
+        val connection = URL("http://$address/run").openConnection() as HttpURLConnection
+        connection.requestMethod = "POST"
+        connection.doOutput = true
+        connection.outputStream.use { it.write(submission.toByteArray()) }
+        return Json.parse(connection.inputStream.reader()).asObject()
+    }
+
+    private fun runCbor(address: String, source: String): com.google.gson.JsonObject {
+        val connection = URL("http://$address/run").openConnection() as HttpURLConnection
+        connection.requestMethod = "POST"
+        connection.doOutput = true
+        connection.setRequestProperty("Content-Type", WireFormat.CBOR)
+        connection.setRequestProperty("Content-Encoding", WireFormat.GZIP)
+        connection.setRequestProperty("Accept", WireFormat.CBOR)
+        connection.setRequestProperty("Accept-Encoding", WireFormat.GZIP)
+        GZIPOutputStream(connection.outputStream).use {
+            val writer = CborResultWriter(it)
+            writer.beginObject()
+            writer.field("source", source)
+            writer.endObject()
+            writer.flush()
+        }
+        Assert.assertEquals(connection.getHeaderField("Content-Type"), WireFormat.CBOR)
+        Assert.assertEquals(connection.getHeaderField("Content-Encoding"), WireFormat.GZIP)
+        val body = GZIPInputStream(connection.inputStream).use { it.readBytes() }
+        return CborReader.read(body).asJsonObject
+    }
+
+    private fun waitFor(message: String, condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 30000
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                if (condition()) {
+                    return
+                }
+            } catch (ignored: Exception) { }
+            Thread.sleep(250)
+        }
+        Assert.fail(message)
+    }
+
+    private fun healthy(address: String): List<String> {
+        return cluster(address).get("healthy").asArray().map { it.asString() }.sorted()
+    }
+
+    @AfterClass
+    fun stopNodes() {
+        nodes.values.forEach { it.destroyForcibly() }
+    }
+
+    /**
+     * Test that the ring spreads keys evenly and only moves keys to or from a node that joins or leaves.
+     */
+    @Test
+    fun testRing() {
+        val keys = (0 until 3000).map { "submission$it" }
+        val three = Cluster.buildRing(listOf("a:1", "b:1", "c:1"))
+        val four = Cluster.buildRing(listOf("a:1", "b:1", "c:1", "d:1"))
+
+        for (count in Cluster.ownership(three, keys).values) {
+            Assert.assertTrue(count > 600, "$count")
+        }
+        var moved = 0
+        for (key in keys) {
+            val before = Cluster.owner(three, key)
+            val after = Cluster.owner(four, key)
+            if (before != after) {
+                Assert.assertEquals(after, "d:1")
+                moved++
+            }
+        }
+        Assert.assertTrue(moved in 450..1200, "$moved")
+    }
+
+    /**
+     * Test that only valid addresses may join, and only configured peers unless a shared secret is presented.
+     */
+    @Test
+    fun testJoin() {
+        Assert.assertTrue(Cluster.isAddress("localhost:8888"))
+        Assert.assertTrue(Cluster.isAddress("10.0.0.1:80"))
+        for (address in listOf("localhost", "localhost:0", "localhost:8888/run", "user@localhost:8888",
+                "localhost:8888?x", "http://localhost:8888", ":8888", "")) {
+            Assert.assertFalse(Cluster.isAddress(address), address)
+        }
+        Assert.assertThrows(IllegalArgumentException::class.java) { Cluster("localhost:1", listOf("localhost"), null) }
+
+        val closed = Cluster("localhost:1", listOf("localhost:2"), null)
+        Assert.assertTrue(closed.join("localhost:2", null))
+        Assert.assertFalse(closed.join("localhost:3", null))
+        Assert.assertFalse(closed.join("localhost:3", "guess"))
+
+        val open = Cluster("localhost:1", listOf(), "secret")
+        Assert.assertFalse(open.join("localhost:3", null))
+        Assert.assertFalse(open.join("localhost:3", "guess"))
+        Assert.assertFalse(open.join("localhost:3/evil", "secret"))
+        Assert.assertTrue(open.join("localhost:3", "secret"))
+        Assert.assertEquals(open.stats().get("healthy").asArray().map { it.asString() },
+                listOf("localhost:1", "localhost:3"))
+    }
+
+    /**
+     * Test that an owner's error response is relayed rather than run again here, and that only an unreachable owner
+     * leaves the ring.
+     */
+    @Test
+    fun testForwardErrors() {
+        val server = HttpServer.create(InetSocketAddress("localhost", 0), 0)
+        server.createContext("/run") { exchange ->
+            exchange.requestBody.readBytes()
+            val body = "owner failed".toByteArray()
+            exchange.sendResponseHeaders(500, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        server.start()
+        val owner = "localhost:${server.address.port}"
+        val cluster = Cluster("localhost:1", listOf(owner), null)
+        var status = 0
+        val out = ByteArrayOutputStream()
+        val response = Proxy.newProxyInstance(javaClass.classLoader, arrayOf(HttpServletResponse::class.java)) {
+            _, method, args ->
+            when (method.name) {
+                "setStatus" -> status = args[0] as Int
+                "getOutputStream" -> return@newProxyInstance object : ServletOutputStream() {
+                    override fun write(b: Int) = out.write(b)
+                    override fun isReady() = true
+                    override fun setWriteListener(listener: WriteListener?) { }
+                }
+            }
+            null
+        } as HttpServletResponse
+        try {
+            Assert.assertTrue(cluster.forward(owner, "{}".toByteArray(), mapOf(), response))
+            Assert.assertEquals(status, 500)
+            Assert.assertEquals(out.toString("UTF-8"), "owner failed")
+            Assert.assertEquals(cluster.stats().get("forwardFailures").asLong(), 0)
+            Assert.assertTrue(cluster.stats().get("healthy").asArray().map { it.asString() }.contains(owner))
+        } finally {
+            server.stop(0)
+        }
+
+        Assert.assertFalse(cluster.forward(owner, "{}".toByteArray(), mapOf(), response))
+        Assert.assertEquals(cluster.stats().get("forwardFailures").asLong(), 1)
+        Assert.assertEquals(cluster.stats().get("unhealthy").asArray().map { it.asString() }, listOf(owner))
+    }
+
+    /**
+     * Test forwarding, failover, and joining with several local nodes.
+     */
+    @Test
+    fun testNodes() {
+        val ports = List(3) { freePort() }
+        val addresses = ports.map { "localhost:$it" }
+        for (port in ports) {
+            startNode(port, addresses.filter { it != "localhost:$port" })
+        }
+        waitFor("nodes did not see each other") { addresses.all { healthy(it) == addresses.sorted() } }
+
+        val submission = JsonObject().add("source", "System.out.println(6 * 7);").toString()
+        for (address in addresses) {
+            Assert.assertEquals(run(address, submission).get("output").asString().trim(), "42")
+        }
+        val stats = addresses.map { cluster(it) }
+        Assert.assertEquals(stats.map { it.get("servedLocally").asLong() }.sum(), 1)
+        Assert.assertEquals(stats.map { it.get("forwarded").asLong() }.sum(), 2)
+        val owner = stats.first { it.get("servedLocally").asLong() == 1L }.get("self").asString()
+        for (address in addresses) {
+            Assert.assertEquals(runCbor(address, "System.out.println(6 * 7);").get("output").asString.trim(), "42")
+        }
+
+        nodes.remove(owner)!!.destroyForcibly().waitFor()
+        val remaining = addresses.filter { it != owner }
+        for (address in remaining) {
+            Assert.assertEquals(run(address, submission).get("output").asString().trim(), "42")
+        }
+        waitFor("failed node was not removed") { remaining.all { healthy(it) == remaining.sorted() } }
+
+        val joined = startNode(freePort(), listOf(remaining.first()))
+        val all = (remaining + joined).sorted()
+        waitFor("new node did not join") { all.all { healthy(it) == all } }
+        for (address in all) {
+            Assert.assertEquals(run(address, submission).get("output").asString().trim(), "42")
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import com.eclipsesource.json.Json
+import com.eclipsesource.json.JsonObject
+import org.testng.Assert
+import org.testng.SkipException
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Test the FlightRecorder class.
+ */
+class TestFlightRecorder {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    /**
+     * Call a getter on a recorded object, which we can't refer to directly since we still build for Java 10.
+     */
+    private fun get(recorded: Any, method: String, vararg arguments: Any): Any? =
+            recorded.javaClass.getMethod(method, *arguments.map { it.javaClass }.toTypedArray())
+                    .invoke(recorded, *arguments)
+
+    /**
+     * Test that every phase of a submission emits an event describing it.
+     */
+    @Test
+    fun testPhaseEvents() {
+        if (!FlightRecorder.available()) {
+            throw SkipException("Flight recorder events require Java 12 or newer")
+        }
+        val recording = Files.createTempFile("janini", ".jfr")
+        Assert.assertFalse(FlightRecorder.recording())
+        FlightRecorder.start(recording)
+        try {
+            Assert.assertTrue(FlightRecorder.recording())
+            val submission = JsonObject()
+            submission.add("source", "System.out.println(\"recorded\");")
+            submission.add("as", "Snippet")
+            val result = Json.parse(WebServer.run(submission.toString())).asObject()
+            Assert.assertTrue(result.get("executed").asBoolean())
+        } finally {
+            FlightRecorder.stop()
+        }
+        Assert.assertFalse(FlightRecorder.recording())
+
+        val events = Class.forName("jdk.jfr.consumer.RecordingFile")
+                .getMethod("readAllEvents", Path::class.java).invoke(null, recording) as List<*>
+        val phases = mutableMapOf<String, Any>()
+        for (event in events) {
+            val name = get(get(event!!, "getEventType")!!, "getName") as String
+            if (name.startsWith(FlightRecorder.EVENT_PREFIX)) {
+                Assert.assertNull(phases.put(name.removePrefix(FlightRecorder.EVENT_PREFIX), event), name)
+                Assert.assertEquals(get(event, "getValue", "as"), "Snippet")
+            }
+        }
+        Assert.assertEquals(phases.keys, setOf("Decode", "Checkstyle", "Compile", "Execute", "Serialize"))
+        val execute = phases["Execute"]!!
+        Assert.assertEquals(get(execute, "getValue", "succeeded"), true)
+        Assert.assertEquals(get(execute, "getValue", "outputLength"), "recorded\n".length.toLong())
+        Assert.assertEquals(get(phases["Compile"]!!, "getValue", "compiler"), "Janino")
+        Assert.assertTrue(get(phases["Compile"]!!, "getValue", "sourceLength") as Long > 0)
+        Files.delete(recording)
+    }
+
+    /**
+     * Test that phases are free to time when nothing is recording.
+     */
+    @Test
+    fun testNotRecording() {
+        val span = FlightRecorder.begin(FlightRecorder.Phase.COMPILE)
+        span.end(null, true)
+        Assert.assertTrue(SimpleCompiler().run("""
+public class Question {
+    public static void main(final String[] unused) {
+        System.out.print("quiet");
+    }
+}
+""").executed)
+    }
+}
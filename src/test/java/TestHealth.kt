@@ -0,0 +1,87 @@
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+
+/**
+ * Test the Health class.
+ */
+class TestHealth {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    @AfterMethod
+    fun resetLimits() {
+        Health.configure(Health.DEFAULT_LIMITS)
+    }
+
+    /**
+     * Test that an idle node reports its signals and accepts traffic.
+     */
+    @Test
+    fun testIdle() {
+        Health.configure("timeoutRate=1,gcFraction=1")
+        val health = Health.check()
+        Assert.assertTrue(health.get("accepting").asBoolean(), health.toString())
+        Assert.assertTrue(health.get("reasons").asArray().isEmpty)
+        Assert.assertEquals(health.get("execute").asObject().get("queued").asInt(), 0)
+        Assert.assertEquals(health.get("execute").asObject().get("available").asInt(), 1)
+        val heap = health.get("heap").asObject()
+        Assert.assertTrue(heap.get("fraction").asDouble() > 0)
+        Assert.assertTrue(heap.get("afterCollection").asLong() in 1..heap.get("max").asLong(), heap.toString())
+        Assert.assertEquals(heap.get("fraction").asDouble(),
+                heap.get("afterCollection").asDouble() / heap.get("max").asDouble())
+        Assert.assertEquals(health.get("limits").asObject().get("timeoutRate").asDouble(), 1.0)
+        Assert.assertEquals(health.get("limits").asObject().get("heap").asDouble(), 0.9)
+    }
+
+    /**
+     * Test that a signal over its limit stops the node accepting traffic.
+     */
+    @Test
+    fun testOverLimit() {
+        Health.configure("heap=0")
+        val health = Health.check()
+        Assert.assertFalse(health.get("accepting").asBoolean())
+        Assert.assertEquals(health.get("reasons").asArray().size(), 1, health.toString())
+        Assert.assertTrue(health.get("reasons").asArray().get(0).asString().startsWith("heap "))
+    }
+
+    /**
+     * Test that timeouts count toward the verdict once there are enough executions to judge the rate by.
+     */
+    @Test
+    fun testTimeoutRate() {
+        val before = Health.check().get("window").asObject()
+        val snippet = Snippet()
+        snippet.runCheckstyle = false
+        snippet.run("while (System.nanoTime() > 0) { }")
+        Assert.assertTrue(snippet.timedOut)
+
+        val window = Health.check().get("window").asObject()
+        Assert.assertEquals(window.get("executions").asLong(), before.get("executions").asLong() + 1)
+        Assert.assertEquals(window.get("timeouts").asLong(), before.get("timeouts").asLong() + 1)
+
+        Health.configure("timeoutRate=0,gcFraction=1")
+        val executions = window.get("executions").asLong()
+        Assert.assertEquals(Health.check().get("accepting").asBoolean(), executions < Health.MIN_EXECUTIONS)
+        for (i in executions until Health.MIN_EXECUTIONS) {
+            Health.executed(false)
+        }
+        val health = Health.check()
+        Assert.assertFalse(health.get("accepting").asBoolean())
+        Assert.assertTrue(health.get("reasons").asArray().get(0).asString().startsWith("timeoutRate "))
+    }
+
+    /**
+     * Test that unknown signals and negative limits are rejected.
+     */
+    @Test
+    fun testBadLimits() {
+        Assert.assertThrows(IllegalArgumentException::class.java) { Health.configure("queueDepth=4") }
+        Assert.assertThrows(IllegalArgumentException::class.java) { Health.configure("heap=-1") }
+        Assert.assertThrows(IllegalArgumentException::class.java) { Health.configure("heap") }
+    }
+}
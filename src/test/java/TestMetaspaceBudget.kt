@@ -0,0 +1,122 @@
+import com.eclipsesource.json.JsonObject
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Test the MetaspaceBudget class.
+ */
+class TestMetaspaceBudget {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    @AfterMethod
+    fun reset() {
+        MetaspaceBudget.setLimit(0)
+        MetaspaceBudget.setLeakAge(60000)
+    }
+
+    private fun stat(name: String): Long = MetaspaceBudget.stats().get(name).asLong()
+
+    private fun timedOutLeaks(): List<JsonObject> {
+        return MetaspaceBudget.stats().get("leaks").asArray().map { it.asObject() }.filter {
+            it.get("timedOut").asBoolean() && it.get("classes").asString().startsWith("SC")
+        }
+    }
+
+    private fun runSnippet(source: String): Boolean {
+        val snippet = Snippet()
+        snippet.runCheckstyle = false
+        return snippet.run(source).timedOut
+    }
+
+    /**
+     * Test that loaders are tracked from creation until they are collected.
+     */
+    @Test
+    fun testTracking() {
+        val created = stat("loadersCreated")
+        val collected = stat("loadersCollected")
+        Assert.assertFalse(runSnippet("System.out.println(1);"))
+        Assert.assertEquals(stat("loadersCreated"), created + 1)
+
+        MetaspaceBudget.setLeakAge(0)
+        MetaspaceBudget.scan()
+        Assert.assertTrue(stat("loadersCollected") > collected)
+        Assert.assertEquals(stat("loadersInUse"), 0)
+    }
+
+    /**
+     * Test that a loader kept alive by a thread the submission left running is reported, until it is collected.
+     */
+    @Test
+    fun testLeakDetection() {
+        val leaksReported = stat("leaksReported")
+        Assert.assertTrue(runSnippet("""
+new Thread(new Runnable() {
+    public void run() {
+        try {
+            Thread.sleep(2000);
+        } catch (InterruptedException e) { }
+    }
+}).start();
+while (System.nanoTime() > 0) { }
+"""))
+        MetaspaceBudget.setLeakAge(0)
+        MetaspaceBudget.scan()
+        Assert.assertEquals(timedOutLeaks().size, 1)
+        Assert.assertTrue(stat("leaksReported") > leaksReported)
+
+        Thread.sleep(3000)
+        System.gc()
+        MetaspaceBudget.scan()
+        Assert.assertEquals(timedOutLeaks().size, 0)
+    }
+
+    /**
+     * Test that runs wait and are turned away while metaspace is above the high-water mark.
+     */
+    @Test
+    fun testThrottling() {
+        val throttled = stat("throttled")
+        val rejected = stat("rejected")
+        MetaspaceBudget.setLimit(MetaspaceBudget.used() * 4)
+        Assert.assertTrue(MetaspaceBudget.admit())
+        Assert.assertEquals(stat("throttled"), throttled)
+
+        MetaspaceBudget.setLimit(1)
+        val snippet = Snippet()
+        snippet.run("System.out.println(1);")
+        Assert.assertFalse(snippet.compiled)
+        Assert.assertEquals(snippet.executionErrorMessage, MetaspaceBudget.REJECTED_MESSAGE)
+        Assert.assertEquals(stat("throttled"), throttled + 1)
+        Assert.assertEquals(stat("rejected"), rejected + 1)
+        Assert.assertTrue(stat("trimmed") > 0)
+
+        MetaspaceBudget.setLimit(0)
+        Assert.assertEquals(Snippet().run("System.out.println(1);").output, "1\n")
+    }
+
+    /**
+     * Test that a run is turned away at its deadline even while another run holds the reclaim lock.
+     */
+    @Test
+    fun testDeadlineWhileCollecting() {
+        MetaspaceBudget.setLimit(1)
+        val executor = Executors.newSingleThreadExecutor()
+        MetaspaceBudget.RECLAIM_LOCK.lock()
+        try {
+            val waiter = executor.submit(Callable { MetaspaceBudget.admit() })
+            Assert.assertFalse(waiter.get(MetaspaceBudget.THROTTLE_WAIT_MS * 3 / 2, TimeUnit.MILLISECONDS))
+        } finally {
+            MetaspaceBudget.RECLAIM_LOCK.unlock()
+            executor.shutdown()
+        }
+    }
+}
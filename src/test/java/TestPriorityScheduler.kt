@@ -0,0 +1,126 @@
+import com.eclipsesource.json.Json
+import com.eclipsesource.json.JsonObject
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+import java.util.Collections
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Test the PriorityScheduler class.
+ */
+class TestPriorityScheduler {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    @AfterMethod
+    fun reset() {
+        PriorityScheduler.configure(PriorityScheduler.DEFAULT_TARGETS)
+    }
+
+    private fun admitted(priority: String, stage: String): Long =
+            PriorityScheduler.stats().get(priority).asObject().get(stage).asObject().get("admitted").asLong()
+
+    /**
+     * Test that a submission whose leader failed still waits its turn at every gate when it runs on its own.
+     */
+    @Test
+    fun testAbandonedFollowerGated() {
+        val snippet = Snippet()
+        snippet.runCheckstyle = false
+        snippet.priority = "interactive"
+        snippet.source = "System.out.print(\"${System.nanoTime()}\");"
+        val failed = CompletableFuture<Source>()
+        Assert.assertNull(SingleFlight.join(snippet.coalescingKey(), failed))
+        failed.completeExceptionally(IllegalStateException("leader failed"))
+
+        val checkstyle = admitted("interactive", "checkstyle")
+        val compile = admitted("interactive", "compile")
+        val execute = admitted("interactive", "execute")
+        try {
+            Assert.assertTrue(snippet.run().executed)
+        } finally {
+            SingleFlight.land(snippet.coalescingKey(), failed, null)
+        }
+        Assert.assertEquals(admitted("interactive", "checkstyle"), checkstyle + 1)
+        Assert.assertEquals(admitted("interactive", "compile"), compile + 1)
+        Assert.assertEquals(admitted("interactive", "execute"), execute + 1)
+    }
+
+    /**
+     * Test that waiting classes are admitted in proportion to their weights.
+     */
+    @Test
+    fun testWeightedDequeuing() {
+        PriorityScheduler.configure("interactive=1,batch=3")
+        val gate = PriorityScheduler.Gate(1)
+        gate.enter("batch")
+
+        val order = Collections.synchronizedList(mutableListOf<String>())
+        val threads = listOf("batch", "interactive").flatMap { priority ->
+            (1..6).map {
+                Thread {
+                    gate.enter(priority)
+                    order.add(priority.substring(0, 1))
+                    gate.exit()
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        while (gate.stats("batch").get("queued").asInt() + gate.stats("interactive").get("queued").asInt() < 12) {
+            Thread.sleep(10)
+        }
+        gate.exit()
+        threads.forEach { it.join() }
+
+        Assert.assertEquals(order.joinToString(""), "iiiibiibbbbb")
+        Assert.assertEquals(gate.stats("interactive").get("admitted").asLong(), 6)
+        Assert.assertEquals(gate.stats("batch").get("admitted").asLong(), 7)
+        Assert.assertTrue(gate.stats("batch").get("maxWaitMs").asDouble() > 0)
+    }
+
+    /**
+     * Test that submissions are scheduled in the class they ask for, and otherwise in the longest-target class.
+     */
+    @Test
+    fun testClasses() {
+        Assert.assertEquals(PriorityScheduler.resolve("interactive"), "interactive")
+        Assert.assertEquals(PriorityScheduler.resolve(null), "batch")
+        Assert.assertEquals(PriorityScheduler.resolve("urgent"), "batch")
+
+        val checkstyle = admitted("interactive", "checkstyle")
+        val compile = admitted("interactive", "compile")
+        val execute = admitted("interactive", "execute")
+        val submission = JsonObject()
+        submission.add("source", "System.out.println(\"${System.nanoTime()}\");")
+        submission.add("priority", "interactive")
+        val result = Json.parse(WebServer.run(submission.toString())).asObject()
+        Assert.assertTrue(result.get("executed").asBoolean())
+        Assert.assertEquals(result.get("priority").asString(), "interactive")
+        Assert.assertEquals(admitted("interactive", "checkstyle"), checkstyle + 1)
+        Assert.assertEquals(admitted("interactive", "compile"), compile + 1)
+        Assert.assertEquals(admitted("interactive", "execute"), execute + 1)
+
+        PriorityScheduler.configure("ide=100,grader=2000,regrade=60000")
+        Assert.assertEquals(PriorityScheduler.resolve(null), "regrade")
+        Assert.assertEquals(PriorityScheduler.stats().get("grader").asObject().get("targetMs").asLong(), 2000)
+    }
+
+    /**
+     * Test that bad latency targets are rejected.
+     */
+    @Test
+    fun testBadTargets() {
+        for (targets in listOf("interactive", "interactive=0", "=100", "interactive=fast")) {
+            try {
+                PriorityScheduler.configure(targets)
+                Assert.fail(targets)
+            } catch (e: IllegalArgumentException) {
+            }
+        }
+        Assert.assertEquals(PriorityScheduler.resolve(null), "batch")
+    }
+}
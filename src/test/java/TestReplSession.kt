@@ -0,0 +1,207 @@
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+
+/**
+ * Test the ReplSession and ReplChunk classes.
+ */
+class TestReplSession {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    @AfterMethod
+    fun reset() {
+        ReplSession.setMaxSessions(ReplSession.DEFAULT_MAX_SESSIONS)
+        ReplSession.setIdleTimeout(ReplSession.DEFAULT_IDLE_SECONDS * 1000)
+    }
+
+    private fun evaluate(session: ReplSession, source: String, compiler: String = ""): ReplChunk {
+        val chunk = ReplChunk()
+        chunk.runCheckstyle = false
+        chunk.source = source
+        if (compiler != "") {
+            chunk.compiler = compiler
+        }
+        session.evaluate(chunk)
+        return chunk
+    }
+
+    /**
+     * Test that variables, methods, classes, and imports carry over from chunk to chunk, and only new code runs.
+     */
+    @Test
+    fun testStateCarriesOver() {
+        for (compiler in listOf("Janino", "JDK")) {
+            val session = ReplSession.open()
+            var chunk = evaluate(session, """
+import java.util.ArrayList;
+int count = 2, step;
+int[] squares = {1, 4, 9};
+ArrayList<String> names = new ArrayList<String>();
+System.out.println("first");
+""", compiler)
+            Assert.assertTrue(chunk.executed, chunk.compilationErrorMessage)
+            Assert.assertEquals(chunk.output, "first\n")
+            Assert.assertEquals(chunk.chunk, 1)
+
+            chunk = evaluate(session, """
+int twice(int value) {
+    return value * step;
+}
+class Counter {
+    int total;
+    void add(int value) {
+        total += value;
+    }
+}
+step = 2;
+count++;
+names.add("one");
+""", compiler)
+            Assert.assertTrue(chunk.executed, chunk.compilationErrorMessage)
+            Assert.assertEquals(chunk.output, "")
+
+            chunk = evaluate(session, """
+Counter counter = new Counter();
+for (int i = 0; i < squares.length; i++) {
+    counter.add(squares[i]);
+}
+names.add("two");
+System.out.println(twice(count) + " " + counter.total + " " + names);
+""", compiler)
+            Assert.assertTrue(chunk.executed, chunk.compilationErrorMessage)
+            Assert.assertEquals(chunk.output, "6 14 [one, two]\n")
+            Assert.assertEquals(chunk.compiler, compiler)
+            Assert.assertEquals(chunk.chunk, 3)
+
+            chunk = evaluate(session, """
+String count = "hidden";
+System.out.println(count + " " + counter.total);
+""", compiler)
+            Assert.assertEquals(chunk.output, "hidden 14\n")
+            Assert.assertTrue(ReplSession.close(session.id()))
+        }
+    }
+
+    /**
+     * Test that a chunk that doesn't compile reports the line it was written on and leaves the session as it was.
+     */
+    @Test
+    fun testCompileErrors() {
+        val session = ReplSession.open()
+        Assert.assertTrue(evaluate(session, "int value = 1;").executed)
+        val broken = evaluate(session, """int other = 2;
+System.out.println(other);
+value = "text";
+""")
+        Assert.assertFalse(broken.compiled)
+        Assert.assertTrue(broken.compilationErrorMessage.contains("Line 3"), broken.compilationErrorMessage)
+        Assert.assertEquals(session.chunks(), 1)
+
+        val chunk = evaluate(session, "System.out.println(value + 1);")
+        Assert.assertEquals(chunk.output, "2\n")
+        Assert.assertEquals(chunk.chunk, 2)
+        ReplSession.close(session.id())
+    }
+
+    /**
+     * Test that lambdas and anonymous classes, which carry their own braces and semicolons, split correctly.
+     */
+    @Test
+    fun testNestedDeclarations() {
+        val session = ReplSession.open()
+        var chunk = evaluate(session, """
+java.util.Map<String, Integer> counts = new java.util.HashMap<String, Integer>(), empty;
+Runnable hello = () -> {
+    int local = 1;
+    System.out.println("hello " + local);
+};
+Object greeter = new Object() {
+    @Override
+    public String toString() {
+        return "greeter";
+    }
+};
+if (counts.isEmpty()) {
+    counts.put("a", 1);
+} else {
+    counts.put("b", 2);
+}
+""")
+        Assert.assertTrue(chunk.executed, chunk.compilationErrorMessage)
+        Assert.assertEquals(chunk.compiler, "JDK")
+
+        chunk = evaluate(session, "hello.run(); System.out.println(greeter + \" \" + counts + \" \" + empty);")
+        Assert.assertEquals(chunk.output, "hello 1\ngreeter {a=1} null\n")
+        ReplSession.close(session.id())
+    }
+
+    /**
+     * Test that only new chunks run, so a session's cost doesn't grow with its length.
+     */
+    @Test
+    fun testTimeoutKeepsSession() {
+        val session = ReplSession.open()
+        evaluate(session, "int before = 41;")
+        val looping = evaluate(session, "int after = 1;\nwhile (System.nanoTime() > 0) { }")
+        Assert.assertTrue(looping.timedOut)
+        Assert.assertEquals(evaluate(session, "System.out.println(before + after);").output, "42\n")
+        ReplSession.close(session.id())
+    }
+
+    /**
+     * Test that chunks which stop before execution are rejected and don't add to the session.
+     */
+    @Test
+    fun testPhaseRejected() {
+        val session = ReplSession.open()
+        for (phase in listOf(Source.CHECKSTYLE_PHASE, Source.COMPILE_PHASE)) {
+            val chunk = ReplChunk()
+            chunk.source = "int unused = 1;"
+            chunk.lastPhase = phase
+            session.evaluate(chunk)
+            Assert.assertFalse(chunk.compiled)
+            Assert.assertEquals(chunk.executionErrorMessage, ReplSession.PHASE_MESSAGE)
+        }
+        val chunk = evaluate(session, "int unused = 2;\nSystem.out.println(unused);")
+        Assert.assertEquals(chunk.output, "2\n")
+        Assert.assertEquals(chunk.chunk, 1)
+        ReplSession.close(session.id())
+    }
+
+    /**
+     * Test that sessions are limited in number and closed once idle.
+     */
+    @Test
+    fun testLimits() {
+        ReplSession.expire()
+        ReplSession.setMaxSessions(ReplSession.stats().get("open").asInt() + 1)
+        val session = ReplSession.open()
+        val rejected = ReplSession.stats().get("rejected").asLong()
+        try {
+            ReplSession.open()
+            Assert.fail()
+        } catch (e: IllegalStateException) {
+            Assert.assertEquals(e.message, ReplSession.TOO_MANY_MESSAGE)
+        }
+        Assert.assertEquals(ReplSession.stats().get("rejected").asLong(), rejected + 1)
+
+        evaluate(session, "int kept = 1;")
+        Assert.assertTrue(ReplSession.stats().get("bytes").asLong() > 0)
+        ReplSession.setIdleTimeout(0)
+        Thread.sleep(5)
+        val replacement = ReplSession.open()
+        Assert.assertNull(ReplSession.get(session.id()))
+        Assert.assertEquals(ReplSession.get(replacement.id()), replacement)
+
+        val chunk = ReplChunk()
+        chunk.source = "System.out.println(1);"
+        session.evaluate(chunk)
+        Assert.assertFalse(chunk.compiled)
+        Assert.assertFalse(ReplSession.close(session.id()))
+        Assert.assertTrue(ReplSession.close(replacement.id()))
+    }
+}
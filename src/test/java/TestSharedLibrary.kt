@@ -0,0 +1,148 @@
+import org.codehaus.commons.compiler.CompileException
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.jar.JarOutputStream
+import java.util.zip.ZipEntry
+
+/**
+ * Test the SharedLibrary class.
+ */
+class TestSharedLibrary {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    private val temporary = mutableListOf<Path>()
+
+    @AfterMethod
+    fun reset() {
+        SharedLibrary.clear()
+        for (path in temporary) {
+            Files.walk(path).use { paths -> paths.sorted(Comparator.reverseOrder()).forEach { Files.delete(it) } }
+        }
+        temporary.clear()
+    }
+
+    private val submission = """
+import scaffold.Greeter;
+
+public class Question {
+    public static void main(final String[] unused) {
+        System.out.println(Greeter.greet("world"));
+    }
+}
+"""
+
+    /**
+     * Write a library of one source that uses a class from a jar next to it.
+     */
+    private fun library(): Path {
+        val directory = Files.createTempDirectory("library")
+        temporary.add(directory)
+        val jarClasses = JDKCompiler.compileToBytes(mapOf("Shout.java" to """
+package tools;
+public class Shout {
+    public static String loud(String text) {
+        return text.toUpperCase();
+    }
+}
+"""))
+        JarOutputStream(Files.newOutputStream(directory.resolve("tools.jar"))).use { jar ->
+            for ((name, bytes) in jarClasses) {
+                jar.putNextEntry(ZipEntry(name.replace('.', '/') + ".class"))
+                jar.write(bytes)
+                jar.closeEntry()
+            }
+        }
+        Files.createDirectories(directory.resolve("scaffold"))
+        Files.write(directory.resolve("scaffold").resolve("Greeter.java"), """
+package scaffold;
+import tools.Shout;
+public class Greeter {
+    public static String greet(String name) {
+        return Shout.loud("hello " + name);
+    }
+    public static void quit() {
+        System.exit(-1);
+    }
+}
+""".toByteArray())
+        return directory
+    }
+
+    /**
+     * Test that submissions compile and run against the library with both compilers, without sending it.
+     */
+    @Test
+    fun testCompileAgainstLibrary() {
+        SharedLibrary.load(listOf(library()), Source.defaultPermissions())
+        val stats = SharedLibrary.stats()
+        Assert.assertEquals(stats.get("classes").asInt(), 2)
+        Assert.assertEquals(stats.get("sources").asInt(), 1)
+        Assert.assertEquals(stats.get("jars").asInt(), 1)
+
+        for (compiler in listOf("Janino", "JDK")) {
+            val classes = SimpleCompiler(compiler).run(submission)
+            Assert.assertTrue(classes.checkstyleSucceeded)
+            Assert.assertTrue(classes.executed, classes.compilationErrorMessage)
+            Assert.assertEquals(classes.output, "HELLO WORLD\n")
+            Assert.assertEquals(classes.compiler, compiler)
+        }
+
+        SharedLibrary.clear()
+        val missing = SimpleCompiler().run(submission)
+        Assert.assertFalse(missing.compiled)
+    }
+
+    /**
+     * Test that the library's code is confined to the sandbox like the submissions that call it.
+     */
+    @Test
+    fun testLibrarySandboxed() {
+        SharedLibrary.load(listOf(library()), Source.defaultPermissions())
+        val classes = SimpleCompiler().run("""
+import scaffold.Greeter;
+
+public class Question {
+    public static void main(final String[] unused) {
+        Greeter.quit();
+    }
+}
+""")
+        Assert.assertTrue(classes.compiled)
+        Assert.assertFalse(classes.executed)
+        Assert.assertTrue(classes.crashed)
+    }
+
+    /**
+     * Test that bad libraries are rejected and leave the loaded one in place.
+     */
+    @Test
+    fun testBadLibraries() {
+        SharedLibrary.load(listOf(library()), Source.defaultPermissions())
+        val fingerprint = SharedLibrary.fingerprint()
+        Assert.assertNotEquals(fingerprint, "")
+
+        val text = Files.createTempFile("library", ".txt")
+        temporary.add(text)
+        try {
+            SharedLibrary.load(listOf(text), Source.defaultPermissions())
+            Assert.fail()
+        } catch (e: IllegalArgumentException) {
+        }
+        val broken = Files.createTempDirectory("library")
+        temporary.add(broken)
+        Files.write(broken.resolve("Broken.java"), "public class Broken { int".toByteArray())
+        try {
+            SharedLibrary.load(listOf(broken), Source.defaultPermissions())
+            Assert.fail()
+        } catch (e: CompileException) {
+        }
+        Assert.assertEquals(SharedLibrary.fingerprint(), fingerprint)
+    }
+}
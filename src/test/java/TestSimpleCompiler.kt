@@ -1,3 +1,5 @@
+import com.eclipsesource.json.JsonArray
+import com.eclipsesource.json.JsonObject
 import org.codehaus.commons.compiler.CompileException
 import org.testng.Assert
 import org.testng.annotations.BeforeClass
@@ -206,6 +208,116 @@ public class Question {
         Assert.assertFalse(classes.timedOut)
     }
 
+    /**
+     * Verify that lambdas skip Janino.
+     */
+    @Test
+    fun testLambdasSkipJanino() {
+        val missesBefore = CompilerRouter.stats().get("janinoMisses").asLong()
+        val classes = SimpleCompiler().run("""
+public class Question {
+    public static void main(final String[] unused) {
+        Runnable runnable = () -> System.out.print("Lambda");
+        runnable.run();
+    }
+}
+""")
+
+        Assert.assertEquals(classes.output, "Lambda")
+        Assert.assertEquals(classes.compiler, "JDK")
+        Assert.assertTrue(CompilerRouter.stats().get("rules").asObject().get("LAMBDA").asLong() > 0)
+        Assert.assertEquals(CompilerRouter.stats().get("janinoMisses").asLong(), missesBefore)
+    }
+
+    /**
+     * Verify that only the generic forms Janino rejects skip it.
+     */
+    @Test
+    fun testGenericRouting() {
+        Assert.assertNull(CompilerRouter.matchingRule("""
+import java.util.ArrayList;
+
+public class Question {
+    private static final int MAX = 4;
+
+    static <T extends Comparable<T>> T first(final ArrayList<T> values) {
+        return (T) values.get(0);
+    }
+
+    public static void main(final String[] unused) {
+        ArrayList<String> list = new ArrayList<String>();
+        int x = 1;
+        int y = 2;
+        if (x < MAX && y > 0) {
+            list.add("Geoffrey");
+        }
+    }
+}
+"""))
+        Assert.assertNull(CompilerRouter.matchingRule("public class Box<T extends Comparable<T>> { }"))
+        Assert.assertEquals(CompilerRouter.matchingRule("public class Question implements Comparable<Question> { }"),
+                CompilerRouter.Rule.GENERIC_SUPERTYPE)
+        Assert.assertEquals(CompilerRouter.matchingRule("class Names<T> extends java.util.ArrayList<T> { }"),
+                CompilerRouter.Rule.GENERIC_SUPERTYPE)
+
+        val classes = SimpleCompiler().run("""
+import java.util.ArrayList;
+
+public class Question {
+    public static void main(final String[] unused) {
+        ArrayList<String> list = new ArrayList<String>();
+        list.add("Geoffrey");
+        System.out.print((String) list.get(0));
+    }
+}
+""")
+        Assert.assertEquals(classes.output, "Geoffrey")
+        Assert.assertEquals(classes.compiler, "Janino")
+    }
+
+    /**
+     * Verify that hedged compiles use whichever compiler succeeds.
+     */
+    @Test
+    fun testHedgedCompile() {
+        val classes = SimpleCompiler(Source.HEDGED).run("""
+import java.util.ArrayList;
+
+public class Question {
+    public static void main(final String[] unused) {
+        ArrayList<String> list = new ArrayList<String>();
+        list.add("Geoffrey");
+        String working = list.get(0);
+        System.out.print(working);
+    }
+}
+""")
+
+        Assert.assertEquals(classes.output, "Geoffrey")
+        Assert.assertEquals(classes.compiler, "JDK")
+        Assert.assertTrue(classes.executed)
+    }
+
+    /**
+     * Verify that hedged compiles fail if both compilers fail.
+     */
+    @Test
+    fun testHedgedCompileFailure() {
+        val classes = SimpleCompiler(Source.HEDGED)
+        classes.runCheckstyle = false
+        classes.run("""
+public class Question {
+    public static void main(final String[] unused) {
+        System.out.print("Broken")
+    }
+}
+""")
+
+        Assert.assertFalse(classes.compiled)
+        Assert.assertNotNull(classes.compilationErrorMessage)
+        Assert.assertFalse(classes.executed)
+    }
+
     /**
      * Verify that imports work properly.
      */
@@ -331,7 +443,7 @@ public class Question {
     /**
      * Test multiple classes in multiple sources in the wrong order.
      *
-     * Currently we expect this to fail.
+     * Janino compiles all sources in one pass, so this works.
      */
     @Test
     fun testMultipleClassesInMultipleSourcesInWrongOrderJanino() {
@@ -350,15 +462,16 @@ public class Question {
     }
 }
 """)
-        Assert.assertFalse(classes.compiled)
-        Assert.assertFalse(classes.executed)
+        Assert.assertEquals(classes.output, "Working")
+        Assert.assertEquals(classes.compiler, "Janino")
+        Assert.assertTrue(classes.executed)
         Assert.assertFalse(classes.timedOut)
     }
 
     /**
      * Test multiple classes in multiple sources in the wrong order.
      *
-     * Currently we expect this to fail.
+     * The JDK compiler compiles all sources together, so this works.
      */
     @Test
     fun testMultipleClassesInMultipleSourcesInWrongOrderJDK() {
@@ -377,8 +490,9 @@ public class Question {
     }
 }
 """)
-        Assert.assertFalse(classes.compiled)
-        Assert.assertFalse(classes.executed)
+        Assert.assertEquals(classes.output, "Working")
+        Assert.assertEquals(classes.compiler, "JDK")
+        Assert.assertTrue(classes.executed)
         Assert.assertFalse(classes.timedOut)
     }
 
@@ -528,4 +642,141 @@ public class Question {
 """)
         Assert.assertFalse(classes.checkstyleSucceeded)
     }
-}
\ No newline at end of file
+
+    /**
+     * Test that streamed results match what Gson produces, including failed compiles.
+     */
+    @Test
+    fun testResultMatchesGson() {
+        val classes = SimpleCompiler().run("""
+public class Question {
+    public static void main(final String[] unused) {
+        System.out.print("<b>Hello</b>")
+    }
+}
+""")
+        Assert.assertFalse(classes.compiled)
+        val result = classes.completed()
+        Assert.assertEquals(result, classes.toString())
+    }
+
+    /**
+     * Test that identical submissions in flight together share a compile but not static state.
+     */
+    @Test
+    fun testCoalescedSubmissions() {
+        val source = """
+public class Question {
+    private static int runs = 0;
+    public static void main(final String[] unused) {
+        runs++;
+        System.out.print(runs);
+    }
+}
+"""
+        val pool = java.util.concurrent.Executors.newFixedThreadPool(8)
+        val results = (1..8).map { pool.submit(java.util.concurrent.Callable { SimpleCompiler().run(source) }) }
+                .map { it.get() }
+        pool.shutdown()
+        for (result in results) {
+            Assert.assertTrue(result.compiled)
+            Assert.assertTrue(result.executed)
+            Assert.assertEquals(result.output, "1")
+        }
+    }
+
+    /**
+     * Test running several invocations against one compile, each with its own arguments and timeout.
+     */
+    @Test
+    fun testInvocations() {
+        val source = """
+public class Question {
+    private static int calls = 0;
+    public static void main(final String[] arguments) {
+        calls++;
+        if (arguments.length == 0) {
+            System.out.print("none");
+        } else if (arguments[0].equals("loop")) {
+            while (true) { }
+        } else if (arguments[0].equals("throw")) {
+            throw new IllegalStateException("thrown");
+        } else {
+            System.out.print(Integer.parseInt(arguments[0]) + Integer.parseInt(arguments[1]) + calls);
+        }
+    }
+}
+"""
+        val submission = JsonObject()
+                .add("runCheckstyle", false)
+                .add("timeoutLength", 1000)
+                .add("sources", JsonArray().add(source))
+                .add("invocations", JsonArray()
+                        .add(JsonObject().add("arguments", JsonArray().add("3").add("4")))
+                        .add(JsonObject().add("arguments", JsonArray().add("loop")).add("timeoutLength", 50))
+                        .add(JsonObject().add("arguments", JsonArray().add("throw")))
+                        .add(JsonObject())
+                        .add(JsonObject().add("arguments", JsonArray().add("1").add("1")).add("expectedOutput", "7")))
+        val classes = SimpleCompiler.received(submission.toString()).run()
+        Assert.assertTrue(classes.compiled)
+        Assert.assertFalse(classes.executed)
+        Assert.assertTrue(classes.crashed)
+        Assert.assertTrue(classes.timedOut)
+
+        val invocations = (classes as SimpleCompiler).invocations()!!
+        Assert.assertTrue(invocations[0].executed)
+        Assert.assertEquals(invocations[0].output, "8")
+        Assert.assertTrue(invocations[1].timedOut)
+        Assert.assertTrue(invocations[1].executionLength < 1.0)
+        Assert.assertTrue(invocations[2].crashed)
+        Assert.assertEquals(invocations[2].executionErrorMessage, "java.lang.IllegalStateException: thrown")
+        Assert.assertTrue(invocations[3].executed)
+        Assert.assertEquals(invocations[3].output, "none")
+        Assert.assertTrue(invocations[4].outputMatched!!)
+        Assert.assertNull(invocations[4].output)
+        Assert.assertTrue(classes.outputMatched!!)
+        // Expected output is deliberately not sent back
+        Assert.assertEquals(classes.completed(), classes.toString().replace("\"expectedOutput\":\"7\",", ""))
+    }
+
+    /**
+     * Test that invocations share the submission's timeout and that their number is capped.
+     */
+    @Test
+    fun testInvocationLimits() {
+        val source = """
+public class Question {
+    public static void main(final String[] unused) {
+        while (true) { }
+    }
+}
+"""
+        val looping = JsonArray()
+        for (i in 0 until 3) {
+            looping.add(JsonObject().add("timeoutLength", 150))
+        }
+        val submission = JsonObject()
+                .add("runCheckstyle", false)
+                .add("timeoutLength", 200)
+                .add("sources", JsonArray().add(source))
+                .add("invocations", looping)
+        val classes = SimpleCompiler.received(submission.toString()).run()
+        Assert.assertTrue(classes.compiled)
+        Assert.assertTrue(classes.timedOut)
+        val invocations = (classes as SimpleCompiler).invocations()!!
+        Assert.assertTrue(invocations.all { it.timedOut })
+        Assert.assertTrue(invocations[0].executionLength >= 0.14, invocations[0].executionLength.toString())
+        Assert.assertTrue(invocations[1].executionLength < 0.14, invocations[1].executionLength.toString())
+        Assert.assertEquals(invocations[2].executionLength, 0.0)
+
+        val tooMany = JsonArray()
+        for (i in 0..Source.MAX_INVOCATIONS) {
+            tooMany.add(JsonObject())
+        }
+        submission.set("invocations", tooMany)
+        val rejected = SimpleCompiler.received(submission.toString()).run()
+        Assert.assertFalse(rejected.compiled)
+        Assert.assertFalse(rejected.executed)
+        Assert.assertTrue(rejected.executionErrorMessage.startsWith("Too many invocations"))
+    }
+}
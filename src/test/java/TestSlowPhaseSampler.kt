@@ -0,0 +1,102 @@
+import com.eclipsesource.json.Json
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+import java.io.ByteArrayOutputStream
+
+/**
+ * Test the SlowPhaseSampler class.
+ */
+class TestSlowPhaseSampler {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    @AfterMethod
+    fun resetThreshold() {
+        SlowPhaseSampler.configure(SlowPhaseSampler.DEFAULT_THRESHOLD_MS)
+    }
+
+    private fun runSpinning(): Source {
+        val source = SimpleCompiler()
+        source.runCheckstyle = false
+        source.run("""
+public class Question {
+    static void spin() {
+        long stop = System.nanoTime() + 80000000L;
+        while (System.nanoTime() < stop) { }
+    }
+
+    public static void main(final String[] unused) {
+        spin();
+        System.out.print("spun");
+    }
+}
+""")
+        return source
+    }
+
+    /**
+     * Test that a slow execution is sampled on the thread running the submitted code.
+     */
+    @Test
+    fun testSlowExecution() {
+        SlowPhaseSampler.configure(20)
+        val samples = SlowPhaseSampler.stats().get("samples").asLong()
+        val source = runSpinning()
+        Assert.assertTrue(source.executed)
+        Assert.assertEquals(source.output, "spun")
+
+        val profile = source.profile()
+        Assert.assertNotNull(profile)
+        val lines = profile!!.trim().split("\n")
+        Assert.assertTrue(lines.any { it.startsWith("execute;") && it.contains(";Question.main;Question.spin") }, profile)
+        for (line in lines) {
+            Assert.assertTrue(line.substringAfterLast(' ').toInt() > 0, line)
+        }
+        Assert.assertTrue(SlowPhaseSampler.stats().get("samples").asLong() > samples)
+        Assert.assertTrue(SlowPhaseSampler.stats().get("slow").asObject().get("execute").asLong() > 0)
+
+        val out = ByteArrayOutputStream()
+        source.completed(ResultWriter(out))
+        Assert.assertNull(Json.parse(out.toString("UTF-8")).asObject().get("profile"))
+        source.returnProfile = true
+        out.reset()
+        source.completed(ResultWriter(out))
+        Assert.assertEquals(Json.parse(out.toString("UTF-8")).asObject().get("profile").asString(), profile)
+    }
+
+    /**
+     * Test that nothing is sampled when phases finish under the threshold or sampling is off.
+     */
+    @Test
+    fun testFastOrDisabled() {
+        Assert.assertNull(runSpinning().profile())
+        SlowPhaseSampler.configure(0)
+        Assert.assertNull(runSpinning().profile())
+    }
+
+    /**
+     * Test that deep stacks are cut at the root end and distinct stacks are capped.
+     */
+    @Test
+    fun testFolding() {
+        val profile = SlowPhaseSampler.Profile()
+        val deep = Array(SlowPhaseSampler.MAX_DEPTH + 10) { StackTraceElement("Deep", "frame$it", null, 0) }
+        profile.add("compile", deep)
+        profile.add("compile", deep)
+        val folded = profile.folded()!!.trim()
+        Assert.assertTrue(folded.startsWith("compile;" + SlowPhaseSampler.TRUNCATED + ";Deep.frame"
+                + (SlowPhaseSampler.MAX_DEPTH - 1) + ";"), folded)
+        Assert.assertTrue(folded.endsWith(";Deep.frame0 2"), folded)
+
+        for (i in 1..SlowPhaseSampler.MAX_STACKS + 5) {
+            profile.add("execute", arrayOf(StackTraceElement("Wide", "frame$i", null, 0)))
+        }
+        val lines = profile.folded()!!.trim().split("\n")
+        Assert.assertEquals(lines.size, SlowPhaseSampler.MAX_STACKS + 1)
+        Assert.assertTrue(lines.contains("execute 6"), lines.toString())
+    }
+}
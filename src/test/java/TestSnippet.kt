@@ -1,6 +1,7 @@
 import org.testng.Assert
 import org.testng.annotations.BeforeClass
 import org.testng.annotations.Test
+import java.util.regex.Pattern
 
 /**
  * Test the WebServer class.
@@ -195,4 +196,157 @@ for(int=0;i<10;i++){
         Assert.assertFalse(snippet.compiled)
         Assert.assertFalse(snippet.executed)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testResultMatchesGson() {
+        val snippet = Snippet().run("""
+System.out.print("<a href='x'> & = \t \u0001 \u00e9 \u20ac \ud83d\ude00 \u2028 \\ \"");
+""")
+        Assert.assertTrue(snippet.executed)
+        val result = snippet.completed()
+        Assert.assertEquals(result, snippet.toString())
+    }
+
+    @Test
+    fun testSharedExecution() {
+        val source = """
+int total = 0;
+for (int i = 0; i < 10; i++) {
+    total += i;
+}
+System.out.print(total);
+"""
+        val pool = java.util.concurrent.Executors.newFixedThreadPool(8)
+        val results = (1..8).map {
+            pool.submit(java.util.concurrent.Callable {
+                val snippet = Snippet()
+                snippet.shareExecution = true
+                snippet.run(source)
+            })
+        }.map { it.get() }
+        pool.shutdown()
+        for (result in results) {
+            Assert.assertTrue(result.executed)
+            Assert.assertEquals(result.output, "45")
+        }
+    }
+
+    private fun compare(source: String, expected: String?, comparison: String? = null,
+                        stopOnMismatch: Boolean = false, expectedHash: String? = null): Source {
+        val snippet = Snippet()
+        snippet.expectedOutput = expected
+        snippet.expectedOutputHash = expectedHash
+        snippet.comparison = comparison
+        snippet.stopOnMismatch = stopOnMismatch
+        snippet.timeoutLength = 1000
+        snippet.runCheckstyle = false
+        return snippet.run(source)
+    }
+
+    /**
+     * Test comparing output with what was expected on the server.
+     */
+    @Test
+    fun testExpectedOutput() {
+        val source = """
+System.out.println("first line  ");
+System.out.println("second   line");
+System.out.println();
+"""
+        val exact = compare(source, "first line  \nsecond   line\n\n")
+        Assert.assertTrue(exact.executed)
+        Assert.assertTrue(exact.outputMatched!!)
+        Assert.assertNull(exact.output)
+        Assert.assertNull(exact.outputMismatch)
+        Assert.assertFalse(exact.completed().contains("\"output\""))
+
+        val mismatch = compare(source, "first line  \nsecond line\n")
+        Assert.assertFalse(mismatch.outputMatched!!)
+        Assert.assertEquals(mismatch.outputMismatch,
+                "Mismatch at line 2, column 8: expected \"line\\n\" but got \"  line\\n\"")
+        Assert.assertFalse(compare(source, "first line\nsecond   line").outputMatched!!)
+        Assert.assertFalse(compare(source, "first line  \nsecond   line\n\nthird").outputMatched!!)
+
+        Assert.assertTrue(compare(source, " first line second line ", "whitespace").outputMatched!!)
+        Assert.assertFalse(compare(source, "first line second", "whitespace").outputMatched!!)
+        Assert.assertTrue(compare(source, "first line\r\nsecond   line", "lines").outputMatched!!)
+        Assert.assertFalse(compare(source, "first line\nsecond line", "lines").outputMatched!!)
+
+        val hash = OutputMatcher.hash("lines", "first line\nsecond   line\n")
+        Assert.assertTrue(compare(source, null, "lines", expectedHash = hash).outputMatched!!)
+        Assert.assertFalse(compare(source, null, "exact", expectedHash = hash).outputMatched!!)
+
+        val unknown = compare(source, "", "fuzzy")
+        Assert.assertFalse(unknown.executed)
+        Assert.assertEquals(unknown.executionErrorMessage, "Unknown comparison fuzzy")
+    }
+
+    /**
+     * Test stopping execution at the first mismatch.
+     */
+    @Test
+    fun testStopOnMismatch() {
+        val source = """
+System.out.println("right");
+System.out.println("wrong");
+while (System.nanoTime() > 0) { }
+"""
+        val stopped = compare(source, "right\nright\n", stopOnMismatch = true)
+        Assert.assertFalse(stopped.timedOut)
+        Assert.assertFalse(stopped.executed)
+        Assert.assertFalse(stopped.outputMatched!!)
+        Assert.assertEquals(stopped.outputMismatch,
+                "Mismatch at line 2, column 1: expected \"right\\n\" but got \"wrong\\n\"")
+
+        Assert.assertTrue(compare(source, "right\nright\n").timedOut)
+    }
+
+    /**
+     * Template a snippet the way Snippet.sources() did before it stopped using regexes and per-line padding strings.
+     */
+    private fun legacyTemplate(source: String, indentLevel: Int): String {
+        val builder = StringBuilder()
+        builder.append("public class Snippet {\n")
+        builder.append(" ".repeat(indentLevel)).append("public static void snippet() {\n")
+        val trimmed = source.dropWhile { it <= ' ' }.dropLastWhile { it <= ' ' }
+        for (original in Pattern.compile("\n").split(trimmed)) {
+            if (original.startsWith("import ")) {
+                continue
+            }
+            var line = original
+            if (line.startsWith("static ")) {
+                line = line.replace("static ", "")
+            }
+            builder.append(" ".repeat(indentLevel * 2)).append(line.replace(Regex("\\s+$"), "")).append("\n")
+        }
+        builder.append(" ".repeat(indentLevel)).append("}\n")
+        builder.append("}\n\n")
+        return builder.toString()
+    }
+
+    /**
+     * Test that templating produces exactly what the previous templating did.
+     */
+    @Test
+    fun testTemplateMatchesLegacy() {
+        val sources = listOf(
+                "",
+                "System.out.println(1);",
+                "\n\n  int x = 1;  \n\tSystem.out.println(x);\t \n\n",
+                "import java.util.ArrayList;\nArrayList<String> list = new ArrayList<String>();\nimport java.util.List;",
+                "static int add(int a, int b) {\n  return a + b;\n}\nstatic void notStatic() { int static y; }",
+                "static static int twice = 0;\nSystem.out.print(\"static \");",
+                "int a = 1;\r\nint b = 2; \r\n\r\nSystem.out.print(a + b);\r\n",
+                "String s = \"\u000B\u000C\";\u000B\u000C\n\n\n// last",
+                "x" + " ".repeat(200) + "\n" + "y;")
+        for (source in sources) {
+            for (indentLevel in listOf(0, 2, 4, 40)) {
+                val snippet = Snippet()
+                snippet.source = source
+                snippet.setIndentLevel(indentLevel)
+                Assert.assertEquals(snippet.sources()[snippet.filename], legacyTemplate(source, indentLevel),
+                        "$source at indent $indentLevel")
+            }
+        }
+    }
+}
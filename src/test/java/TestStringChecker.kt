@@ -0,0 +1,30 @@
+import com.puppycrawl.tools.checkstyle.api.FileText
+import org.testng.Assert
+import org.testng.annotations.Test
+import java.io.File
+import java.util.regex.Pattern
+
+/**
+ * Test the StringChecker class.
+ */
+class TestStringChecker {
+    /**
+     * Test that the FileText built from line offsets matches the one checkstyle builds from split lines.
+     */
+    @Test
+    fun testFileTextMatchesSplitLines() {
+        val file = File("Question.java")
+        val inputs = listOf("", "a", "a\n", "a\nb", "a\nb\n\n", "\n\n", "\nfirst\n\nthird\n", "a\r\nb\r\n",
+                "public class Question {\n    int x;\n}\n")
+        for (contents in inputs) {
+            val expected = FileText(file, Pattern.compile("\n").split(contents).toList())
+            val actual = StringChecker.toFileText(file, contents)
+            Assert.assertEquals(actual.fullText.toString(), expected.fullText.toString(), contents)
+            Assert.assertEquals(actual.toLinesArray(), expected.toLinesArray(), contents)
+            Assert.assertEquals(actual.size(), expected.size(), contents)
+            for (offset in 0 until expected.fullText.length) {
+                Assert.assertEquals(actual.lineColumn(offset), expected.lineColumn(offset), "$contents at $offset")
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import com.eclipsesource.json.Json
+import com.eclipsesource.json.JsonObject
+import org.testng.Assert
+import org.testng.SkipException
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Test the VirtualThreadPool class.
+ */
+class TestVirtualThreadPool {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    /**
+     * Check whether this runtime has virtual threads.
+     */
+    private fun supported(): Boolean = Runtime.version().feature() >= 21
+
+    /**
+     * Test that a request handled by the pool runs on a virtual thread while its code runs on a platform thread.
+     */
+    @Test
+    fun testRequestOnVirtualThread() {
+        if (!supported()) {
+            throw SkipException("Virtual threads require Java 21 or newer")
+        }
+        val pool = VirtualThreadPool()
+        pool.start()
+        try {
+            val handler = CompletableFuture<Boolean>()
+            val result = CompletableFuture<String>()
+            pool.execute {
+                handler.complete(Thread::class.java.getMethod("isVirtual").invoke(Thread.currentThread()) as Boolean)
+                val submission = JsonObject()
+                submission.add("source", """
+System.out.print(Thread.currentThread().getClass().getName());
+""")
+                result.complete(WebServer.run(submission.toString()))
+            }
+            Assert.assertTrue(handler.get(10, TimeUnit.SECONDS))
+            val response = Json.parse(result.get(10, TimeUnit.SECONDS)).asObject()
+            Assert.assertTrue(response.get("executed").asBoolean())
+            Assert.assertEquals(response.get("output").asString(), "java.lang.Thread")
+        } finally {
+            pool.stop()
+        }
+        pool.join()
+        Assert.assertEquals(pool.getThreads(), 0)
+    }
+
+    /**
+     * Test that submissions that time out are reported as timed out on the runtimes that need virtual threads, both
+     * when they unwind and when their thread has to be abandoned.
+     */
+    @Test
+    fun testTimeoutOnVirtualThread() {
+        if (!supported()) {
+            throw SkipException("Virtual threads require Java 21 or newer")
+        }
+        val pool = VirtualThreadPool()
+        pool.start()
+        try {
+            for (source in listOf("while (System.nanoTime() > 0) { }",
+                    "System.out.println(java.math.BigInteger.valueOf(3).pow(4000000).bitLength());")) {
+                val result = CompletableFuture<String>()
+                pool.execute {
+                    val submission = JsonObject().add("source", source).add("runCheckstyle", false)
+                    result.complete(WebServer.run(submission.toString()))
+                }
+                val response = Json.parse(result.get(10, TimeUnit.SECONDS)).asObject()
+                Assert.assertTrue(response.get("timedOut").asBoolean(), response.toString())
+                Assert.assertFalse(response.get("executed").asBoolean())
+            }
+        } finally {
+            pool.stop()
+        }
+        pool.join()
+    }
+
+    /**
+     * Test that older runtimes are reported as an illegal state rather than failing later.
+     */
+    @Test
+    fun testUnsupportedRuntime() {
+        if (supported()) {
+            throw SkipException("This runtime supports virtual threads")
+        }
+        Assert.assertThrows(IllegalStateException::class.java) { VirtualThreadPool() }
+    }
+}
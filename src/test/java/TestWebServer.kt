@@ -119,4 +119,40 @@ public class Question {
                 }
 
     }
+
+    /**
+     * Test that a submission can stop after checkstyle or after compiling.
+     */
+    @Test
+    fun testLastPhase() {
+        val source = """
+public class Question {
+    public static void main(final String[] unused) {
+        System.out.print("phases");
+    }
+}""".trim()
+        val results = listOf(Source.CHECKSTYLE_PHASE, Source.COMPILE_PHASE, Source.EXECUTE_PHASE).map { phase ->
+            val submission = JsonObject()
+            submission.add("as", "SimpleCompiler")
+            submission.add("lastPhase", phase)
+            submission.add("sources", JsonArray().add(source))
+            Json.parse(WebServer.run(submission.toString())).asObject()
+        }
+        for (result in results) {
+            Assert.assertTrue(result.get("checkstyleSucceeded").asBoolean())
+        }
+        Assert.assertFalse(results[0].get("compiled").asBoolean())
+        Assert.assertNull(results[0].get("compileStarted"))
+        Assert.assertTrue(results[1].get("compiled").asBoolean())
+        Assert.assertFalse(results[1].get("executed").asBoolean())
+        Assert.assertNull(results[1].get("executionStarted"))
+        Assert.assertEquals(results[2].get("output").asString(), "phases")
+
+        val submission = JsonObject()
+        submission.add("lastPhase", "link")
+        submission.add("source", "System.out.print(1);")
+        val result = Json.parse(WebServer.run(submission.toString())).asObject()
+        Assert.assertFalse(result.get("executed").asBoolean())
+        Assert.assertTrue(result.get("executionErrorMessage").asString().startsWith("Unknown lastPhase link"))
+    }
 }
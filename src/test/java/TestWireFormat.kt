@@ -0,0 +1,120 @@
+import com.google.gson.JsonElement
+import com.google.gson.JsonParser
+import org.testng.Assert
+import org.testng.annotations.BeforeClass
+import org.testng.annotations.Test
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Test the WireFormat, CborResultWriter, and CborReader classes.
+ */
+class TestWireFormat {
+    @BeforeClass
+    fun initialize() {
+        Source.initialize(null);
+    }
+
+    private fun cbor(source: Source): JsonElement {
+        val bytes = ByteArrayOutputStream()
+        source.completed(CborResultWriter(bytes))
+        return CborReader.read(bytes.toByteArray())
+    }
+
+    private fun withoutReturned(result: JsonElement): JsonElement {
+        val copy = result.deepCopy().asJsonObject
+        copy.remove("returned")
+        return copy
+    }
+
+    private fun bytes(vararg values: Int) = ByteArray(values.size) { values[it].toByte() }
+
+    /**
+     * Test that CBOR results have exactly the same fields and values as JSON results.
+     */
+    @Test
+    fun testResultsMatchJson() {
+        val snippet = Snippet().run("""
+int a = -3;
+System.out.println("<é> ${'$'}{a}   😀");
+""")
+        Assert.assertTrue(snippet.executed)
+        val json = JsonParser().parse(snippet.completed())
+        Assert.assertEquals(withoutReturned(cbor(snippet)), withoutReturned(json))
+
+        val submission = """
+{"as": "SimpleCompiler", "runCheckstyle": false, "timeoutLength": 70000, "sources": ["
+public class Question {
+    public static void main(final String[] arguments) {
+        System.out.print(arguments.length);
+    }
+}
+"], "invocations": [{"arguments": ["a", "b"]}, {"timeoutLength": 500, "expectedOutput": "0"}]}
+"""
+        val classes = SimpleCompiler.received(submission).run()
+        Assert.assertTrue(classes.executed)
+        val classesJson = JsonParser().parse(classes.completed())
+        Assert.assertEquals(withoutReturned(cbor(classes)), withoutReturned(classesJson))
+    }
+
+    /**
+     * Test reading CBOR submissions.
+     */
+    @Test
+    fun testReadSubmission() {
+        val bytes = ByteArrayOutputStream()
+        val writer = CborResultWriter(bytes)
+        writer.beginObject()
+        writer.field("source", "System.out.print(40 + 2);")
+        writer.field("timeoutLength", 1000)
+        writer.field("runCheckstyle", false)
+        writer.endObject()
+        writer.flush()
+        val snippet = Source.received(CborReader.read(bytes.toByteArray()), Snippet::class.java).run()
+        Assert.assertEquals(snippet.output, "42")
+
+        // {"a": [1, -500, 1.5, null], "b": "x" "yz"} with definite lengths, a half float, and a chunked string
+        val tree = CborReader.read(bytes(0xa2, 0x61, 'a'.toInt(), 0x84, 0x01, 0x39, 0x01, 0xf3, 0xf9, 0x3e, 0x00, 0xf6,
+                0x61, 'b'.toInt(), 0x7f, 0x61, 'x'.toInt(), 0x62, 'y'.toInt(), 'z'.toInt(), 0xff))
+        Assert.assertEquals(tree, JsonParser().parse("""{"a": [1, -500, 1.5, null], "b": "xyz"}"""))
+
+        val invalid = listOf(
+                bytes(0x82, 0x01),
+                bytes(0x41, 0x00),
+                bytes(0xa1, 0x01, 0x01),
+                bytes(0x01, 0x01),
+                bytes(0x7a, 0x7f, 0xff, 0xff, 0xff),
+                ByteArray(100) { 0x81.toByte() })
+        for (input in invalid) {
+            Assert.assertThrows(IOException::class.java) { CborReader.read(input) }
+        }
+    }
+
+    /**
+     * Test compressed request bodies and content negotiation.
+     */
+    @Test
+    fun testNegotiation() {
+        val body = "{\"source\": \"System.out.println(1);\"}".repeat(100).toByteArray()
+        val gzipped = ByteArrayOutputStream()
+        GZIPOutputStream(gzipped).use { it.write(body) }
+        val deflated = ByteArrayOutputStream()
+        DeflaterOutputStream(deflated).use { it.write(body) }
+        Assert.assertEquals(WireFormat.decode(gzipped.toByteArray(), "gzip"), body)
+        Assert.assertEquals(WireFormat.decode(deflated.toByteArray(), " Deflate "), body)
+        Assert.assertEquals(WireFormat.decode(body, null), body)
+        Assert.assertEquals(WireFormat.decode(body, "identity"), body)
+        Assert.assertThrows(IOException::class.java) { WireFormat.decode(body, "br") }
+
+        Assert.assertEquals(WireFormat.responseEncoding("gzip, deflate, br"), "gzip")
+        Assert.assertEquals(WireFormat.responseEncoding("gzip;q=0, deflate"), "deflate")
+        Assert.assertNull(WireFormat.responseEncoding("*"))
+        Assert.assertNull(WireFormat.responseEncoding(null))
+        Assert.assertTrue(WireFormat.acceptsCbor("application/json;q=0.5, application/cbor"))
+        Assert.assertFalse(WireFormat.acceptsCbor("*/*"))
+        Assert.assertTrue(WireFormat.isCbor("Application/CBOR; charset=binary"))
+        Assert.assertFalse(WireFormat.isCbor("application/json"))
+    }
+}